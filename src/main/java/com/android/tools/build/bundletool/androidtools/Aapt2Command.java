@@ -20,6 +20,7 @@ import com.android.tools.build.bundletool.androidtools.CommandExecutor.CommandOp
 import com.google.common.collect.ImmutableList;
 import java.nio.file.Path;
 import java.time.Duration;
+import java.util.Optional;
 
 /** Exposes aapt2 commands used by Bundle Tool. */
 public interface Aapt2Command {
@@ -33,6 +34,24 @@ public interface Aapt2Command {
     throw new UnsupportedOperationException("Not implemented");
   }
 
+  /**
+   * Returns the version of aapt2, used to identify the outputs of this command.
+   *
+   * <p>Empty if the version is unknown, in which case the outputs of this command are never cached.
+   */
+  default Optional<String> getVersion() {
+    return Optional.empty();
+  }
+
+  /**
+   * Releases the resources held by this command between invocations, e.g. long-lived aapt2
+   * processes.
+   *
+   * <p>Called when a bundletool command completes. The command may still be used afterwards, in
+   * which case the resources are acquired again.
+   */
+  default void releaseResources() {}
+
   static Aapt2Command createFromExecutablePath(Path aapt2Path) {
     return new Aapt2Command() {
       private final Duration timeoutMillis = Duration.ofMinutes(5);
@@ -68,6 +87,16 @@ public interface Aapt2Command {
             .execute(convertCommand, CommandOptions.builder().setTimeout(timeoutMillis).build());
       }
 
+      @Override
+      public Optional<String> getVersion() {
+        ImmutableList<String> output =
+            new DefaultCommandExecutor()
+                .executeAndCapture(
+                    ImmutableList.of(aapt2Path.toString(), "version"),
+                    CommandOptions.builder().setTimeout(timeoutMillis).build());
+        return output.stream().map(String::trim).filter(line -> !line.isEmpty()).findFirst();
+      }
+
       @Override
       public ImmutableList<String> dumpBadging(Path apkPath) {
         return new DefaultCommandExecutor()
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.androidtools;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.common.collect.ImmutableList;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Logger;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * An {@link Aapt2Command} which runs the commands in long-lived aapt2 processes started in daemon
+ * mode, rather than starting a new process for each command.
+ *
+ * <p>A daemon is started the first time a thread runs a command while all other daemons are busy,
+ * so there are at most as many daemons as threads running aapt2 commands concurrently. Commands
+ * are sent on the standard input of the daemon, one argument per line followed by an empty line.
+ * The daemon prints "Done" on both its standard output and error once the command has completed,
+ * preceded by "Error" on its standard error if the command failed.
+ *
+ * <p>If a daemon can't be started (e.g. with versions of aapt2 not supporting the daemon mode) or
+ * a command fails in a daemon, the command is run again in a new aapt2 process, which also reports
+ * the errors of aapt2 the same way as {@link Aapt2Command#createFromExecutablePath}.
+ *
+ * <p>{@link #releaseResources()} must be called once the command is no longer used to stop the
+ * daemons.
+ */
+public final class Aapt2DaemonCommand implements Aapt2Command {
+
+  private static final Logger logger = Logger.getLogger(Aapt2DaemonCommand.class.getName());
+
+  private static final Duration COMMAND_TIMEOUT = Duration.ofMinutes(5);
+  private static final Duration STARTUP_TIMEOUT = Duration.ofSeconds(30);
+
+  private final Path aapt2Path;
+  private final Aapt2Command processPerCommand;
+
+  @GuardedBy("this")
+  private final Deque<Aapt2Daemon> idleDaemons = new ArrayDeque<>();
+
+  @GuardedBy("this")
+  private final Set<Aapt2Daemon> allDaemons = new HashSet<>();
+
+  /** Set once a daemon could not be started, in which case no other daemon is started. */
+  @GuardedBy("this")
+  private boolean daemonModeUnsupported = false;
+
+  private Aapt2DaemonCommand(Path aapt2Path) {
+    this.aapt2Path = aapt2Path;
+    this.processPerCommand = Aapt2Command.createFromExecutablePath(aapt2Path);
+  }
+
+  public static Aapt2DaemonCommand createFromExecutablePath(Path aapt2Path) {
+    return new Aapt2DaemonCommand(aapt2Path);
+  }
+
+  @Override
+  public void convertApkProtoToBinary(Path protoApk, Path binaryApk) {
+    execute(
+        ImmutableList.of(
+            "convert",
+            "--output-format",
+            "binary",
+            "-o",
+            binaryApk.toString(),
+            protoApk.toString()),
+        () -> processPerCommand.convertApkProtoToBinary(protoApk, binaryApk));
+  }
+
+  @Override
+  public void optimizeToSparseResourceTables(Path originalApk, Path outputApk) {
+    execute(
+        ImmutableList.of(
+            "optimize",
+            "--enable-sparse-encoding",
+            "-o",
+            outputApk.toString(),
+            originalApk.toString()),
+        () -> processPerCommand.optimizeToSparseResourceTables(originalApk, outputApk));
+  }
+
+  @Override
+  public ImmutableList<String> dumpBadging(Path apkPath) {
+    // Only called once per command, not worth mixing its output with the daemon protocol.
+    return processPerCommand.dumpBadging(apkPath);
+  }
+
+  @Override
+  public Optional<String> getVersion() {
+    return processPerCommand.getVersion();
+  }
+
+  /**
+   * Stops all the daemons.
+   *
+   * <p>Must not be called while commands are running. The daemons are started again if the command
+   * is used afterwards.
+   */
+  @Override
+  public synchronized void releaseResources() {
+    allDaemons.forEach(Aapt2Daemon::stop);
+    allDaemons.clear();
+    idleDaemons.clear();
+  }
+
+  private void execute(ImmutableList<String> args, Runnable processPerCommandFallback) {
+    Optional<Aapt2Daemon> daemon = acquireDaemon();
+    if (!daemon.isPresent()) {
+      processPerCommandFallback.run();
+      return;
+    }
+
+    boolean succeeded = daemon.get().execute(args, COMMAND_TIMEOUT);
+    if (succeeded) {
+      releaseDaemon(daemon.get());
+    } else {
+      discardDaemon(daemon.get());
+      logger.warning(
+          "aapt2 daemon failed to run command " + args + ", retrying in a new aapt2 process.");
+      processPerCommandFallback.run();
+    }
+  }
+
+  private Optional<Aapt2Daemon> acquireDaemon() {
+    synchronized (this) {
+      if (daemonModeUnsupported) {
+        return Optional.empty();
+      }
+      if (!idleDaemons.isEmpty()) {
+        return Optional.of(idleDaemons.removeFirst());
+      }
+    }
+
+    // Starting a daemon takes time, so it's done without holding the lock.
+    Optional<Aapt2Daemon> daemon = Aapt2Daemon.start(aapt2Path, STARTUP_TIMEOUT);
+    synchronized (this) {
+      if (daemon.isPresent()) {
+        allDaemons.add(daemon.get());
+      } else {
+        logger.warning("Unable to start aapt2 in daemon mode, running one process per command.");
+        daemonModeUnsupported = true;
+      }
+    }
+    return daemon;
+  }
+
+  private synchronized void releaseDaemon(Aapt2Daemon daemon) {
+    if (allDaemons.contains(daemon)) {
+      idleDaemons.addFirst(daemon);
+    } else {
+      // The resources were released in the meantime.
+      daemon.stop();
+    }
+  }
+
+  private synchronized void discardDaemon(Aapt2Daemon daemon) {
+    allDaemons.remove(daemon);
+    daemon.stop();
+  }
+
+  /** A single aapt2 process running in daemon mode. */
+  private static final class Aapt2Daemon {
+    private static final String DONE = "Done";
+    private static final String ERROR = "Error";
+    private static final String READY = "Ready";
+
+    private final Process process;
+    private final BufferedWriter stdin;
+    /** Lines output by the process, followed by an empty {@link Optional} once the stream ends. */
+    private final BlockingQueue<Optional<String>> stdoutLines = new LinkedBlockingQueue<>();
+
+    private final BlockingQueue<Optional<String>> stderrLines = new LinkedBlockingQueue<>();
+
+    private Aapt2Daemon(Process process) {
+      this.process = process;
+      this.stdin = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), UTF_8));
+      startReaderThread(process.getInputStream(), stdoutLines);
+      startReaderThread(process.getErrorStream(), stderrLines);
+    }
+
+    /** Returns the started daemon, or empty if it couldn't be started. */
+    static Optional<Aapt2Daemon> start(Path aapt2Path, Duration timeout) {
+      Process process;
+      try {
+        process = new ProcessBuilder(aapt2Path.toString(), "daemon").start();
+      } catch (IOException e) {
+        return Optional.empty();
+      }
+      Aapt2Daemon daemon = new Aapt2Daemon(process);
+      try {
+        long deadlineNanos = System.nanoTime() + timeout.toNanos();
+        Optional<String> line;
+        do {
+          line = pollLine(daemon.stdoutLines, deadlineNanos);
+        } while (line.isPresent() && !line.get().equals(READY));
+        if (!line.isPresent()) {
+          daemon.stop();
+          return Optional.empty();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        daemon.stop();
+        return Optional.empty();
+      }
+      return Optional.of(daemon);
+    }
+
+    /** Runs the command in the daemon and returns whether it succeeded. */
+    boolean execute(ImmutableList<String> args, Duration timeout) {
+      try {
+        for (String arg : args) {
+          stdin.write(arg);
+          stdin.newLine();
+        }
+        // An empty line marks the end of the command.
+        stdin.newLine();
+        stdin.flush();
+
+        long deadlineNanos = System.nanoTime() + timeout.toNanos();
+        return awaitDone(stdoutLines, deadlineNanos).isPresent()
+            && awaitDone(stderrLines, deadlineNanos)
+                .map(errorLines -> !errorLines.contains(ERROR))
+                .orElse(false);
+      } catch (IOException e) {
+        return false;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+
+    void stop() {
+      try {
+        // The "quit" command ends the daemon mode.
+        stdin.write("quit");
+        stdin.newLine();
+        stdin.newLine();
+        stdin.close();
+        if (!process.waitFor(1, SECONDS)) {
+          process.destroyForcibly();
+        }
+      } catch (IOException e) {
+        process.destroyForcibly();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        process.destroyForcibly();
+      }
+    }
+
+    /**
+     * Returns the lines output before "Done", or empty if the stream ended or the deadline passed
+     * before.
+     */
+    private static Optional<ImmutableList<String>> awaitDone(
+        BlockingQueue<Optional<String>> lines, long deadlineNanos) throws InterruptedException {
+      ImmutableList.Builder<String> linesBeforeDone = ImmutableList.builder();
+      while (true) {
+        Optional<String> line = pollLine(lines, deadlineNanos);
+        if (!line.isPresent()) {
+          return Optional.empty();
+        }
+        if (line.get().equals(DONE)) {
+          return Optional.of(linesBeforeDone.build());
+        }
+        linesBeforeDone.add(line.get());
+      }
+    }
+
+    /** Returns the next line, or empty if the stream has ended or the deadline has passed. */
+    private static Optional<String> pollLine(
+        BlockingQueue<Optional<String>> lines, long deadlineNanos) throws InterruptedException {
+      Optional<String> line = lines.poll(deadlineNanos - System.nanoTime(), NANOSECONDS);
+      if (line == null) {
+        return Optional.empty();
+      }
+      if (!line.isPresent()) {
+        // Keep the end of stream marker for subsequent reads.
+        lines.add(line);
+      }
+      return line;
+    }
+
+    private static void startReaderThread(
+        InputStream stream, BlockingQueue<Optional<String>> lines) {
+      Thread thread =
+          new Thread(
+              () -> {
+                try (BufferedReader reader =
+                    new BufferedReader(new InputStreamReader(stream, UTF_8))) {
+                  String line;
+                  while ((line = reader.readLine()) != null) {
+                    lines.add(Optional.of(line.trim()));
+                  }
+                } catch (IOException e) {
+                  // Process terminated.
+                } finally {
+                  lines.add(Optional.empty());
+                }
+              },
+              "aapt2-daemon-reader");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+}
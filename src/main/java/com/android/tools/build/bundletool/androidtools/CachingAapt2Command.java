@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.androidtools;
+
+import static com.google.common.base.Preconditions.checkState;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.logging.Logger;
+
+/**
+ * An {@link Aapt2Command} which stores the outputs of the conversions in a directory, and re-uses
+ * them when the same input is converted again with the same version of aapt2.
+ *
+ * <p>The outputs are keyed by the digest of the input file, the operation and the aapt2 version,
+ * so the directory can be shared across builds and across processes. Nothing is ever evicted from
+ * the directory: it is up to the caller to clean it up.
+ *
+ * <p>If the version of aapt2 is unknown, all calls are forwarded to the underlying command.
+ */
+public final class CachingAapt2Command implements Aapt2Command {
+
+  private static final Logger logger = Logger.getLogger(CachingAapt2Command.class.getName());
+
+  private final Aapt2Command aapt2Command;
+  private final Path cacheDirectory;
+  private final Supplier<Optional<String>> aapt2Version;
+
+  public CachingAapt2Command(Aapt2Command aapt2Command, Path cacheDirectory) {
+    this.aapt2Command = aapt2Command;
+    this.cacheDirectory = cacheDirectory;
+    this.aapt2Version = Suppliers.memoize(aapt2Command::getVersion);
+  }
+
+  @Override
+  public void convertApkProtoToBinary(Path protoApk, Path binaryApk) {
+    runCached("convert", protoApk, binaryApk, aapt2Command::convertApkProtoToBinary);
+  }
+
+  @Override
+  public void optimizeToSparseResourceTables(Path originalApk, Path outputApk) {
+    runCached(
+        "optimize-sparse", originalApk, outputApk, aapt2Command::optimizeToSparseResourceTables);
+  }
+
+  @Override
+  public ImmutableList<String> dumpBadging(Path apkPath) {
+    return aapt2Command.dumpBadging(apkPath);
+  }
+
+  @Override
+  public Optional<String> getVersion() {
+    return aapt2Version.get();
+  }
+
+  @Override
+  public void releaseResources() {
+    aapt2Command.releaseResources();
+  }
+
+  private void runCached(String operation, Path input, Path output, Aapt2Operation aapt2Operation) {
+    if (!aapt2Version.get().isPresent()) {
+      aapt2Operation.run(input, output);
+      return;
+    }
+
+    try {
+      Path cachedOutput = cacheDirectory.resolve(cacheKey(operation, input) + ".apk");
+      if (Files.exists(cachedOutput)) {
+        Files.copy(cachedOutput, output, REPLACE_EXISTING);
+        return;
+      }
+
+      aapt2Operation.run(input, output);
+      checkState(Files.exists(output), "No APK created by aapt2 %s command.", operation);
+      storeInCache(output, cachedOutput);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private String cacheKey(String operation, Path input) throws IOException {
+    HashCode inputDigest = MoreFiles.asByteSource(input).hash(Hashing.sha256());
+    return Hashing.sha256()
+        .newHasher()
+        .putString(operation, UTF_8)
+        .putByte((byte) 0)
+        .putString(aapt2Version.get().get(), UTF_8)
+        .putByte((byte) 0)
+        .putBytes(inputDigest.asBytes())
+        .hash()
+        .toString();
+  }
+
+  /**
+   * Copies the output to the cache directory.
+   *
+   * <p>The file is first written under a temporary name then moved into place, so that concurrent
+   * builds never read a partially written output.
+   */
+  private void storeInCache(Path output, Path cachedOutput) {
+    Optional<Path> tmpFile = Optional.empty();
+    try {
+      Files.createDirectories(cacheDirectory);
+      tmpFile =
+          Optional.of(
+              Files.createTempFile(cacheDirectory, cachedOutput.getFileName().toString(), ".tmp"));
+      Files.copy(output, tmpFile.get(), REPLACE_EXISTING);
+      try {
+        Files.move(tmpFile.get(), cachedOutput, ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmpFile.get(), cachedOutput, REPLACE_EXISTING);
+      }
+    } catch (IOException e) {
+      // The cache is only an optimization, failing to populate it must not fail the build.
+      logger.warning("Failed to store aapt2 output in cache: " + e.getMessage());
+    } finally {
+      tmpFile.ifPresent(CachingAapt2Command::deleteIfExists);
+    }
+  }
+
+  private static void deleteIfExists(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      logger.warning("Failed to delete temporary file '" + file + "': " + e.getMessage());
+    }
+  }
+
+  private interface Aapt2Operation {
+    void run(Path input, Path output);
+  }
+}
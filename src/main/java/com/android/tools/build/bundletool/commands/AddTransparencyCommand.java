@@ -43,6 +43,8 @@ import com.google.common.base.Preconditions;
 import com.google.common.io.BaseEncoding;
 import com.google.common.io.ByteSource;
 import com.google.common.io.CharSource;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.util.JsonFormat;
 import java.io.IOException;
@@ -54,6 +56,7 @@ import java.security.cert.X509Certificate;
 import java.security.interfaces.RSAPrivateKey;
 import java.security.interfaces.RSAPublicKey;
 import java.util.Optional;
+import java.util.concurrent.Executors;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 import org.jose4j.jws.JsonWebSignature;
@@ -256,16 +259,23 @@ public abstract class AddTransparencyCommand {
               .build();
         }
       }
-      switch (getMode()) {
-        case DEFAULT:
-          executeDefaultMode(inputBundle);
-          break;
-        case GENERATE_CODE_TRANSPARENCY_FILE:
-          executeGenerateCodeTransparencyFileMode(inputBundle);
-          break;
-        case INJECT_SIGNATURE:
-          executeInjectSignatureMode(inputBundle);
-          break;
+      ListeningExecutorService executorService =
+          MoreExecutors.listeningDecorator(
+              Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()));
+      try {
+        switch (getMode()) {
+          case DEFAULT:
+            executeDefaultMode(inputBundle, executorService);
+            break;
+          case GENERATE_CODE_TRANSPARENCY_FILE:
+            executeGenerateCodeTransparencyFileMode(inputBundle, executorService);
+            break;
+          case INJECT_SIGNATURE:
+            executeInjectSignatureMode(inputBundle, executorService);
+            break;
+        }
+      } finally {
+        executorService.shutdown();
       }
     } catch (ZipException e) {
       throw InvalidBundleException.builder()
@@ -302,10 +312,12 @@ public abstract class AddTransparencyCommand {
     throw new IllegalStateException("Unsupported DexMergingChoice");
   }
 
-  private void executeDefaultMode(AppBundle inputBundle) throws IOException, JoseException {
+  private void executeDefaultMode(AppBundle inputBundle, ListeningExecutorService executorService)
+      throws IOException, JoseException {
     validateDefaultModeInputs();
     String jsonText =
-        toJsonText(CodeTransparencyFactory.createCodeTransparencyMetadata(inputBundle));
+        toJsonText(
+            CodeTransparencyFactory.createCodeTransparencyMetadata(inputBundle, executorService));
     AppBundle.Builder bundleBuilder = inputBundle.toBuilder();
     bundleBuilder.setBundleMetadata(
         inputBundle.getBundleMetadata().toBuilder()
@@ -318,10 +330,12 @@ public abstract class AddTransparencyCommand {
     new AppBundleSerializer().writeToDisk(bundleBuilder.build(), getOutputPath());
   }
 
-  private void executeGenerateCodeTransparencyFileMode(AppBundle inputBundle) throws IOException {
+  private void executeGenerateCodeTransparencyFileMode(
+      AppBundle inputBundle, ListeningExecutorService executorService) throws IOException {
     validateGenerateCodeTransparencyFileModeInputs();
     String codeTransparencyMetadata =
-        toJsonText(CodeTransparencyFactory.createCodeTransparencyMetadata(inputBundle));
+        toJsonText(
+            CodeTransparencyFactory.createCodeTransparencyMetadata(inputBundle, executorService));
     Files.write(
         getOutputPath(),
         toBytes(
@@ -330,12 +344,14 @@ public abstract class AddTransparencyCommand {
             .read());
   }
 
-  private void executeInjectSignatureMode(AppBundle inputBundle) throws IOException {
+  private void executeInjectSignatureMode(
+      AppBundle inputBundle, ListeningExecutorService executorService) throws IOException {
     validateInjectSignatureModeInputs();
     String signature =
         BaseEncoding.base64Url().encode(Files.readAllBytes(getTransparencySignaturePath().get()));
     String codeTransparencyMetadata =
-        toJsonText(CodeTransparencyFactory.createCodeTransparencyMetadata(inputBundle));
+        toJsonText(
+            CodeTransparencyFactory.createCodeTransparencyMetadata(inputBundle, executorService));
     String transparencyFileWithoutSignature =
         createJwtWithoutSignature(codeTransparencyMetadata, getTransparencyKeyCertificate().get());
     AppBundle bundleWithTransparency =
@@ -348,7 +364,8 @@ public abstract class AddTransparencyCommand {
                         toBytes(transparencyFileWithoutSignature + "." + signature))
                     .build())
             .build();
-    if (!BundleTransparencyCheckUtils.checkTransparency(bundleWithTransparency).verified()) {
+    if (!BundleTransparencyCheckUtils.checkTransparency(bundleWithTransparency, executorService)
+        .verified()) {
       throw CommandExecutionException.builder()
           .withInternalMessage(
               "Code transparency verification failed for the provided public key certificate and"
@@ -28,6 +28,7 @@ import static com.android.tools.build.bundletool.model.utils.files.FilePrecondit
 import static com.android.tools.build.bundletool.model.utils.files.FilePreconditions.checkFileExistsAndExecutable;
 import static com.android.tools.build.bundletool.model.utils.files.FilePreconditions.checkFileExistsAndReadable;
 import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.function.Function.identity;
 
 import com.android.apksig.SigningCertificateLineage;
 import com.android.apksig.apk.ApkFormatException;
@@ -35,6 +36,7 @@ import com.android.apksig.util.DataSource;
 import com.android.apksig.util.DataSources;
 import com.android.bundle.Devices.DeviceSpec;
 import com.android.tools.build.bundletool.androidtools.Aapt2Command;
+import com.android.tools.build.bundletool.androidtools.Aapt2DaemonCommand;
 import com.android.tools.build.bundletool.commands.CommandHelp.CommandDescription;
 import com.android.tools.build.bundletool.commands.CommandHelp.FlagDescription;
 import com.android.tools.build.bundletool.device.AdbServer;
@@ -52,6 +54,7 @@ import com.android.tools.build.bundletool.model.Password;
 import com.android.tools.build.bundletool.model.SignerConfig;
 import com.android.tools.build.bundletool.model.SigningConfiguration;
 import com.android.tools.build.bundletool.model.SourceStamp;
+import com.android.tools.build.bundletool.model.ZipPath;
 import com.android.tools.build.bundletool.model.exceptions.CommandExecutionException;
 import com.android.tools.build.bundletool.model.exceptions.InvalidBundleException;
 import com.android.tools.build.bundletool.model.exceptions.InvalidCommandException;
@@ -59,7 +62,6 @@ import com.android.tools.build.bundletool.model.utils.DefaultSystemEnvironmentPr
 import com.android.tools.build.bundletool.model.utils.SystemEnvironmentProvider;
 import com.android.tools.build.bundletool.model.utils.files.FileUtils;
 import com.android.tools.build.bundletool.preprocessors.AppBundlePreprocessorManager;
-import com.android.tools.build.bundletool.preprocessors.AppBundleRecompressor;
 import com.android.tools.build.bundletool.preprocessors.DaggerAppBundlePreprocessorComponent;
 import com.android.tools.build.bundletool.splitters.DexCompressionSplitter;
 import com.android.tools.build.bundletool.validation.AppBundleValidator;
@@ -68,7 +70,9 @@ import com.google.auto.value.AutoValue;
 import com.google.common.base.Ascii;
 import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteSource;
 import com.google.common.io.MoreFiles;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
@@ -140,6 +144,8 @@ public abstract class BuildApksCommand {
   private static final Flag<ImmutableSet<OptimizationDimension>> OPTIMIZE_FOR_FLAG =
       Flag.enumSet("optimize-for", OptimizationDimension.class);
   private static final Flag<Path> AAPT2_PATH_FLAG = Flag.path("aapt2");
+  private static final Flag<Path> AAPT2_CACHE_DIR_FLAG = Flag.path("aapt2-cache-dir");
+  private static final Flag<Path> DEX_MERGE_CACHE_DIR_FLAG = Flag.path("dex-merge-cache-dir");
   private static final Flag<Integer> MAX_THREADS_FLAG = Flag.positiveInteger("max-threads");
   private static final Flag<ApkBuildMode> BUILD_MODE_FLAG =
       Flag.enumFlag("mode", ApkBuildMode.class);
@@ -194,6 +200,42 @@ public abstract class BuildApksCommand {
           .map(Boolean::parseBoolean)
           .orElse(false);
 
+  /**
+   * Whether the APKs are written to the APK Set archive as soon as they are serialized, rather than
+   * all staged in a temporary directory and copied at the end.
+   *
+   * <p>Can be overridden using the system property "bundletool.apkset.streaming" set to "true".
+   */
+  private static final boolean ENABLE_STREAMING_APK_SET_ARCHIVE =
+      SystemEnvironmentProvider.DEFAULT_PROVIDER
+          .getProperty("bundletool.apkset.streaming")
+          .map(Boolean::parseBoolean)
+          .orElse(false);
+
+  private static final String AAPT2_DAEMON_PROPERTY = "bundletool.aapt2.daemon";
+
+  /**
+   * Whether aapt2 runs in long-lived daemon processes.
+   *
+   * <p>Can be overridden using the system property "bundletool.aapt2.daemon" set to "true".
+   */
+  private static final boolean ENABLE_AAPT2_DAEMON =
+      SystemEnvironmentProvider.DEFAULT_PROVIDER
+          .getProperty(AAPT2_DAEMON_PROPERTY)
+          .map(Boolean::parseBoolean)
+          .orElse(false);
+
+  /**
+   * Whether the App Bundle is memory-mapped when read by the APK serializer.
+   *
+   * <p>Can be overridden using the system property "bundletool.bundle.mmap" set to "true".
+   */
+  private static final boolean ENABLE_MEMORY_MAPPED_BUNDLE =
+      SystemEnvironmentProvider.DEFAULT_PROVIDER
+          .getProperty("bundletool.bundle.mmap")
+          .map(Boolean::parseBoolean)
+          .orElse(false);
+
   public abstract Path getBundlePath();
 
   public abstract Path getOutputFile();
@@ -228,6 +270,24 @@ public abstract class BuildApksCommand {
 
   public abstract Optional<Aapt2Command> getAapt2Command();
 
+  public abstract Optional<Path> getAapt2CacheDirectory();
+
+  public abstract Optional<Path> getDexMergeCacheDirectory();
+
+  /**
+   * Whether aapt2 runs in long-lived daemon processes rather than in a new process for each APK.
+   *
+   * <p>Applies to the aapt2 binary extracted from bundletool, and to the aapt2 binary set with the
+   * flag --aapt2. An aapt2 command set with {@link Builder#setAapt2Command} is used as is.
+   */
+  public abstract boolean getEnableAapt2Daemon();
+
+  /**
+   * Whether the App Bundle is memory-mapped when read by the APK serializer, so that the payloads
+   * of its entries are read from the page cache without copies.
+   */
+  public abstract boolean getEnableMemoryMappedBundle();
+
   public abstract Optional<SigningConfiguration> getSigningConfiguration();
 
   ListeningExecutorService getExecutorService() {
@@ -257,6 +317,8 @@ public abstract class BuildApksCommand {
 
   public abstract boolean getEnableNewApkSerializer();
 
+  public abstract boolean getEnableStreamingApkSetArchive();
+
   public static Builder builder() {
     return new AutoValue_BuildApksCommand.Builder()
         .setOverwriteOutput(false)
@@ -269,7 +331,10 @@ public abstract class BuildApksCommand {
         .setModules(ImmutableSet.of())
         .setExtraValidators(ImmutableList.of())
         .setSystemApkOptions(ImmutableSet.of())
-        .setEnableNewApkSerializer(ENABLE_NEW_APK_SERIALIZER);
+        .setEnableNewApkSerializer(ENABLE_NEW_APK_SERIALIZER)
+        .setEnableStreamingApkSetArchive(ENABLE_STREAMING_APK_SET_ARCHIVE)
+        .setEnableAapt2Daemon(ENABLE_AAPT2_DAEMON)
+        .setEnableMemoryMappedBundle(ENABLE_MEMORY_MAPPED_BUNDLE);
   }
 
   /** Builder for the {@link BuildApksCommand}. */
@@ -366,6 +431,21 @@ public abstract class BuildApksCommand {
     /** Provides a wrapper around the execution of the aapt2 command. */
     public abstract Builder setAapt2Command(Aapt2Command aapt2Command);
 
+    /**
+     * Sets a directory where the outputs of aapt2 are stored and re-used across builds.
+     *
+     * <p>Optional. If not set, aapt2 converts the resources of every APK on each build.
+     */
+    public abstract Builder setAapt2CacheDirectory(Path aapt2CacheDirectory);
+
+    /**
+     * Sets a directory where the dex files merged for standalone APKs are stored and re-used
+     * across builds.
+     *
+     * <p>Optional. If not set, the dex files of standalone APKs are merged on each build.
+     */
+    public abstract Builder setDexMergeCacheDirectory(Path dexMergeCacheDirectory);
+
     /**
      * Sets the signing configuration for the generated APKs.
      *
@@ -446,6 +526,34 @@ public abstract class BuildApksCommand {
 
     public abstract Builder setEnableNewApkSerializer(boolean enabled);
 
+    /**
+     * Sets whether the APKs are written to the APK Set archive as soon as they are serialized.
+     *
+     * <p>This avoids staging all the APKs in a temporary directory before copying them into the
+     * archive. Only applies to the {@link OutputFormat#APK_SET} output format.
+     */
+    public abstract Builder setEnableStreamingApkSetArchive(boolean enabled);
+
+    /**
+     * Sets whether aapt2 runs in long-lived daemon processes rather than in a new process for each
+     * APK.
+     *
+     * <p>Applies to the aapt2 binary extracted from bundletool, and to the aapt2 binary set with the
+     * flag --aapt2. An aapt2 command set with {@link #setAapt2Command} is used as is: use {@link
+     * Aapt2DaemonCommand#createFromExecutablePath} to run a given aapt2 binary in daemon mode.
+     */
+    public abstract Builder setEnableAapt2Daemon(boolean enabled);
+
+    abstract boolean getEnableAapt2Daemon();
+
+    /**
+     * Sets whether the App Bundle is memory-mapped when read by the APK serializer.
+     *
+     * <p>Note that on Windows, memory-mapped files can't be deleted until the mapping is garbage
+     * collected, which may prevent the temporary files of the command from being deleted.
+     */
+    public abstract Builder setEnableMemoryMappedBundle(boolean enabled);
+
     abstract BuildApksCommand autoBuild();
 
     public BuildApksCommand build() {
@@ -575,11 +683,22 @@ public abstract class BuildApksCommand {
     // Optional arguments.
     OUTPUT_FORMAT_FLAG.getValue(flags).ifPresent(buildApksCommand::setOutputFormat);
     OVERWRITE_OUTPUT_FLAG.getValue(flags).ifPresent(buildApksCommand::setOverwriteOutput);
+    systemEnvironmentProvider
+        .getProperty(AAPT2_DAEMON_PROPERTY)
+        .map(Boolean::parseBoolean)
+        .ifPresent(buildApksCommand::setEnableAapt2Daemon);
     AAPT2_PATH_FLAG
         .getValue(flags)
         .ifPresent(
             aapt2Path ->
-                buildApksCommand.setAapt2Command(Aapt2Command.createFromExecutablePath(aapt2Path)));
+                buildApksCommand.setAapt2Command(
+                    buildApksCommand.getEnableAapt2Daemon()
+                        ? Aapt2DaemonCommand.createFromExecutablePath(aapt2Path)
+                        : Aapt2Command.createFromExecutablePath(aapt2Path)));
+    AAPT2_CACHE_DIR_FLAG.getValue(flags).ifPresent(buildApksCommand::setAapt2CacheDirectory);
+    DEX_MERGE_CACHE_DIR_FLAG
+        .getValue(flags)
+        .ifPresent(buildApksCommand::setDexMergeCacheDirectory);
 
     BUILD_MODE_FLAG.getValue(flags).ifPresent(buildApksCommand::setApkBuildMode);
     LOCAL_TESTING_MODE_FLAG.getValue(flags).ifPresent(buildApksCommand::setLocalTestingMode);
@@ -654,46 +773,26 @@ public abstract class BuildApksCommand {
     }
 
     try (TempDirectory tempDir = new TempDirectory(getClass().getSimpleName())) {
-      Path bundlePath;
-      // The new APK serializer relies on the compression of entries in the App Bundle.
-      // Unfortunately, we don't know the compression level that was used when the bundle was built,
-      // so we re-compress all entries with our desired compression level.
-      // Exception is made when the device spec is specified, we only need a fraction of the
-      // entries, so re-compressing all entries would be a waste of CPU.
-      boolean recompressAppBundle = getEnableNewApkSerializer() && !getDeviceSpec().isPresent();
-      if (recompressAppBundle) {
-        bundlePath = tempDir.getPath().resolve("recompressed.aab");
-        new AppBundleRecompressor(getExecutorService())
-            .recompressAppBundle(getBundlePath().toFile(), bundlePath.toFile());
-      } else {
-        bundlePath = getBundlePath();
-      }
+      // With the new APK serializer, the entries of the App Bundle are re-compressed lazily, the
+      // first time an APK needs them, and the compressed payloads are shared across APKs (see
+      // CompressedPayloadCache). Entries never used by any APK are thus never re-compressed, and
+      // the compression overlaps with the rest of the APK generation.
+      Path bundlePath = getBundlePath();
+
+      try {
+        AppBundleValidator bundleValidator =
+            AppBundleValidator.create(getExtraValidators(), getExecutorService());
+        // The validators of the zip file operate on a ZipFile, which is closed right after.
+        try (ZipFile bundleZip = new ZipFile(bundlePath.toFile())) {
+          bundleValidator.validateFile(bundleZip);
+        }
 
-      try (ZipFile bundleZip = new ZipFile(bundlePath.toFile());
-          ZipReader zipReader = ZipReader.createFromFile(bundlePath)) {
-        AppBundleValidator bundleValidator = AppBundleValidator.create(getExtraValidators());
-        bundleValidator.validateFile(bundleZip);
-
-        AppBundle appBundle = AppBundle.buildFromZip(bundleZip);
-        bundleValidator.validate(appBundle);
-
-        AppBundlePreprocessorManager appBundlePreprocessorManager =
-            DaggerAppBundlePreprocessorComponent.builder()
-                .setBuildApksCommand(this)
-                .build()
-                .create();
-        AppBundle preprocessedAppBundle = appBundlePreprocessorManager.processAppBundle(appBundle);
-
-        BuildApksManager buildApksManager =
-            DaggerBuildApksManagerComponent.builder()
-                .setBuildApksCommand(this)
-                .setTempDirectory(tempDir)
-                .setAppBundle(preprocessedAppBundle)
-                .setZipReader(zipReader)
-                .setUseBundleCompression(recompressAppBundle)
-                .build()
-                .create();
-        buildApksManager.execute();
+        try (ZipReader zipReader =
+            getEnableMemoryMappedBundle()
+                ? ZipReader.createFromFileMemoryMapped(bundlePath)
+                : ZipReader.createFromFile(bundlePath)) {
+          executeWithBundle(bundlePath, zipReader, bundleValidator, tempDir);
+        }
       } catch (ZipException e) {
         throw InvalidBundleException.builder()
             .withCause(e)
@@ -711,6 +810,42 @@ public abstract class BuildApksCommand {
     return getOutputFile();
   }
 
+  private void executeWithBundle(
+      Path bundlePath,
+      ZipReader zipReader,
+      AppBundleValidator bundleValidator,
+      TempDirectory tempDir) {
+    // The App Bundle is loaded from the zip reader also used by the APK serializer, so that the
+    // central directory is only parsed once and all the reads share the same file handle.
+    AppBundle appBundle = AppBundle.buildFromZipEntries(bundlePath, readFileEntries(zipReader));
+    bundleValidator.validate(appBundle);
+
+    AppBundlePreprocessorManager appBundlePreprocessorManager =
+        DaggerAppBundlePreprocessorComponent.builder().setBuildApksCommand(this).build().create();
+    AppBundle preprocessedAppBundle = appBundlePreprocessorManager.processAppBundle(appBundle);
+
+    BuildApksManager buildApksManager =
+        DaggerBuildApksManagerComponent.builder()
+            .setBuildApksCommand(this)
+            .setTempDirectory(tempDir)
+            .setAppBundle(preprocessedAppBundle)
+            .setZipReader(zipReader)
+            // The compression level of the entries in the App Bundle is unknown, so the entries
+            // are always re-compressed with the desired compression level.
+            .setUseBundleCompression(false)
+            .build()
+            .create();
+    buildApksManager.execute();
+  }
+
+  /** Returns the content of all the regular files of the zip, sorted by path for determinism. */
+  private static ImmutableMap<ZipPath, ByteSource> readFileEntries(ZipReader zipReader) {
+    return AppBundle.indexFileEntries(
+        zipReader.getEntries().keySet().stream().filter(name -> !name.endsWith("/")).sorted(),
+        identity(),
+        zipReader::getUncompressedPayloadSource);
+  }
+
   private void validateInput() {
     checkFileExistsAndReadable(getBundlePath());
 
@@ -803,6 +938,26 @@ public abstract class BuildApksCommand {
                 .setOptional(true)
                 .setDescription("Path to the aapt2 binary to use.")
                 .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(AAPT2_CACHE_DIR_FLAG.getName())
+                .setExampleValue("path/to/cache/dir")
+                .setOptional(true)
+                .setDescription(
+                    "Path to a directory where the resources converted by aapt2 are cached, "
+                        + "so that they are re-used by subsequent builds. The directory is never "
+                        + "cleaned up by bundletool.")
+                .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(DEX_MERGE_CACHE_DIR_FLAG.getName())
+                .setExampleValue("path/to/cache/dir")
+                .setOptional(true)
+                .setDescription(
+                    "Path to a directory where the dex files merged for standalone APKs are "
+                        + "cached, so that they are re-used by subsequent builds. The directory is "
+                        + "never cleaned up by bundletool.")
+                .build())
         .addFlag(
             FlagDescription.builder()
                 .setFlagName(BUILD_MODE_FLAG.getName())
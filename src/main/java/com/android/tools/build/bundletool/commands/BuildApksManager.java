@@ -23,10 +23,12 @@ import static com.google.common.collect.ImmutableSet.toImmutableSet;
 import com.android.bundle.Commands.LocalTestingInfo;
 import com.android.bundle.Config.BundleConfig;
 import com.android.bundle.Devices.DeviceSpec;
+import com.android.tools.build.bundletool.androidtools.Aapt2Command;
 import com.android.tools.build.bundletool.commands.BuildApksCommand.ApkBuildMode;
 import com.android.tools.build.bundletool.commands.BuildApksCommand.SystemApkOption;
 import com.android.tools.build.bundletool.device.ApkMatcher;
 import com.android.tools.build.bundletool.io.ApkSerializerManager;
+import com.android.tools.build.bundletool.io.ApkSerializerManager.PendingAssetSlices;
 import com.android.tools.build.bundletool.io.ApkSetBuilderFactory;
 import com.android.tools.build.bundletool.io.ApkSetBuilderFactory.ApkSetBuilder;
 import com.android.tools.build.bundletool.io.SplitApkSerializer;
@@ -80,6 +82,7 @@ public final class BuildApksManager {
   private final SplitApksGenerator splitApksGenerator;
   private final ShardedApksFacade shardedApksFacade;
   private final ApkOptimizations apkOptimizations;
+  private final Aapt2Command aapt2Command;
 
   @Inject
   BuildApksManager(
@@ -93,7 +96,8 @@ public final class BuildApksManager {
       ApkSerializerManager apkSerializerManager,
       SplitApksGenerator splitApksGenerator,
       ShardedApksFacade shardedApksFacade,
-      ApkOptimizations apkOptimizations) {
+      ApkOptimizations apkOptimizations,
+      Aapt2Command aapt2Command) {
     this.appBundle = appBundle;
     this.command = command;
     this.bundletoolVersion = bundletoolVersion;
@@ -105,6 +109,7 @@ public final class BuildApksManager {
     this.apkSerializerManager = apkSerializerManager;
     this.shardedApksFacade = shardedApksFacade;
     this.apkOptimizations = apkOptimizations;
+    this.aapt2Command = aapt2Command;
   }
 
   public void execute() throws IOException {
@@ -114,23 +119,72 @@ public final class BuildApksManager {
             : ModuleDependenciesUtils.getModulesIncludingDependencies(
                 appBundle, getBundleModules(appBundle, command.getModules()));
 
-    GeneratedApks.Builder generatedApksBuilder = GeneratedApks.builder();
-    GeneratedAssetSlices.Builder generatedAssetSlices = GeneratedAssetSlices.builder();
-
     boolean enableUniversalAsFallbackForSplits = false;
-    boolean enableInstallTimeNonRemovableModules = false;
     ApksToGenerate apksToGenerate =
         new ApksToGenerate(
             appBundle, command.getApkBuildMode(), enableUniversalAsFallbackForSplits, deviceSpec);
 
+    // The bundle is validated before any APK, including asset slices, is generated or serialized.
+    Optional<AppBundle> mergedAppBundle = Optional.empty();
+    if (apksToGenerate.generateSplitApks()) {
+      boolean enableInstallTimeNonRemovableModules = false;
+      mergedAppBundle =
+          Optional.of(
+              BundleModuleMerger.mergeNonRemovableInstallTimeModules(
+                  appBundle, enableInstallTimeNonRemovableModules));
+      AppBundleValidator bundleValidator =
+          AppBundleValidator.create(command.getExtraValidators(), command.getExecutorService());
+      bundleValidator.validate(mergedAppBundle.get());
+    }
+
+    // Discards the APK Set archive if it isn't written, e.g. on failure.
+    try (ApkSetBuilder apkSetBuilder = createApkSetBuilder(tempDir.getPath())) {
+      try {
+        // Asset slices don't depend on any other APK, so they are serialized in the background
+        // while the other APKs are being generated. Their order is declared first, from this
+        // thread, so that the order of the APKs in the APK Set doesn't depend on timing.
+        PendingAssetSlices pendingAssetSlices =
+            apkSerializerManager.startSerializingAssetSlices(
+                apkSetBuilder,
+                generateAssetSlices(apksToGenerate),
+                command.getApkBuildMode(),
+                deviceSpec);
+        try {
+          generateAndSerializeApks(
+              apkSetBuilder,
+              apksToGenerate,
+              mergedAppBundle,
+              requestedModules,
+              pendingAssetSlices);
+        } catch (IOException | RuntimeException | Error e) {
+          // Nothing must be written to the APK Set once this method has returned.
+          pendingAssetSlices.cancelAndAwait();
+          throw e;
+        }
+      } finally {
+        // aapt2 is no longer needed once all the APKs have been serialized, or on failure.
+        aapt2Command.releaseResources();
+      }
+
+      if (command.getOverwriteOutput()) {
+        Files.deleteIfExists(command.getOutputFile());
+      }
+      apkSetBuilder.writeTo(command.getOutputFile());
+    }
+  }
+
+  private void generateAndSerializeApks(
+      ApkSetBuilder apkSetBuilder,
+      ApksToGenerate apksToGenerate,
+      Optional<AppBundle> mergedAppBundle,
+      ImmutableSet<BundleModule> requestedModules,
+      PendingAssetSlices pendingAssetSlices)
+      throws IOException {
+    GeneratedApks.Builder generatedApksBuilder = GeneratedApks.builder();
+
     // Split APKs
     if (apksToGenerate.generateSplitApks()) {
-      AppBundle mergedAppBundle =
-          BundleModuleMerger.mergeNonRemovableInstallTimeModules(
-              appBundle, enableInstallTimeNonRemovableModules);
-      AppBundleValidator bundleValidator = AppBundleValidator.create(command.getExtraValidators());
-      bundleValidator.validate(mergedAppBundle);
-      generatedApksBuilder.setSplitApks(generateSplitApks(mergedAppBundle));
+      generatedApksBuilder.setSplitApks(generateSplitApks(mergedAppBundle.get()));
     }
 
     // Instant APKs
@@ -160,11 +214,6 @@ public final class BuildApksManager {
       generatedApksBuilder.setSystemApks(generateSystemApks(appBundle, requestedModules));
     }
 
-    // Asset Slices
-    if (apksToGenerate.generateAssetSlices()) {
-      generatedAssetSlices.setAssetSlices(generateAssetSlices(appBundle));
-    }
-
     // Populate alternative targeting based on variant targeting of all APKs.
     GeneratedApks generatedApks =
         AlternativeVariantTargetingPopulator.populateAlternativeVariantTargeting(
@@ -178,26 +227,27 @@ public final class BuildApksManager {
 
     if (deviceSpec.isPresent()) {
       // It is easier to fully check device compatibility once the splits have been generated (in
-      // memory). Note that no costly I/O happened up until this point, so it's not too late for
-      // this check.
+      // memory). Only asset slices may have been serialized up until this point, so it's not too
+      // late for this check.
       checkDeviceCompatibilityWithBundle(generatedApks, deviceSpec.get());
     }
 
-    ApkSetBuilder apkSetBuilder = createApkSetBuilder(tempDir.getPath());
-
     // Create variants and serialize APKs.
     apkSerializerManager.populateApkSetBuilder(
         apkSetBuilder,
         generatedApks,
-        generatedAssetSlices.build(),
+        pendingAssetSlices,
         command.getApkBuildMode(),
         deviceSpec,
         getLocalTestingInfo(appBundle));
+  }
 
-    if (command.getOverwriteOutput()) {
-      Files.deleteIfExists(command.getOutputFile());
+  private GeneratedAssetSlices generateAssetSlices(ApksToGenerate apksToGenerate) {
+    GeneratedAssetSlices.Builder generatedAssetSlices = GeneratedAssetSlices.builder();
+    if (apksToGenerate.generateAssetSlices()) {
+      generatedAssetSlices.setAssetSlices(generateAssetSlices(appBundle));
     }
-    apkSetBuilder.writeTo(command.getOutputFile());
+    return generatedAssetSlices.build();
   }
 
   private ImmutableList<ModuleSplit> generateStandaloneApks(AppBundle appBundle) {
@@ -270,6 +320,10 @@ public final class BuildApksManager {
   private ApkSetBuilder createApkSetBuilder(Path tempDir) {
     switch (command.getOutputFormat()) {
       case APK_SET:
+        if (command.getEnableStreamingApkSetArchive()) {
+          return ApkSetBuilderFactory.createApkSetStreamingArchiveBuilder(
+              splitApkSerializer, standaloneApkSerializer, tempDir, command.getOutputFile());
+        }
         return ApkSetBuilderFactory.createApkSetBuilder(
             splitApkSerializer, standaloneApkSerializer, tempDir);
       case DIRECTORY:
@@ -16,10 +16,12 @@
 package com.android.tools.build.bundletool.commands;
 
 import com.android.tools.build.bundletool.androidtools.Aapt2Command;
+import com.android.tools.build.bundletool.androidtools.CachingAapt2Command;
 import com.android.tools.build.bundletool.io.TempDirectory;
+import com.android.tools.build.bundletool.mergers.CachingDexMerger;
 import com.android.tools.build.bundletool.mergers.D8DexMerger;
 import com.android.tools.build.bundletool.mergers.DexMerger;
-import dagger.Binds;
+import com.android.tools.r8.Version;
 import dagger.Module;
 import dagger.Provides;
 
@@ -30,11 +32,26 @@ public abstract class BundletoolModule {
   @CommandScoped
   @Provides
   static Aapt2Command provideAapt2Command(BuildApksCommand command, TempDirectory tempDir) {
+    Aapt2Command aapt2Command =
+        command
+            .getAapt2Command()
+            .orElseGet(
+                () ->
+                    CommandUtils.extractAapt2FromJar(
+                        tempDir.getPath(), command.getEnableAapt2Daemon()));
     return command
-        .getAapt2Command()
-        .orElseGet(() -> CommandUtils.extractAapt2FromJar(tempDir.getPath()));
+        .getAapt2CacheDirectory()
+        .<Aapt2Command>map(cacheDir -> new CachingAapt2Command(aapt2Command, cacheDir))
+        .orElse(aapt2Command);
   }
 
-  @Binds
-  abstract DexMerger provideDexMerger(D8DexMerger d8DexMerger);
+  @CommandScoped
+  @Provides
+  static DexMerger provideDexMerger(BuildApksCommand command, D8DexMerger d8DexMerger) {
+    return command
+        .getDexMergeCacheDirectory()
+        .<DexMerger>map(
+            cacheDir -> new CachingDexMerger(d8DexMerger, cacheDir, Version.getVersionString()))
+        .orElse(d8DexMerger);
+  }
 }
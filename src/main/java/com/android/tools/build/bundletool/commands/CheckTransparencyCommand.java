@@ -38,10 +38,13 @@ import com.android.tools.build.bundletool.transparency.TransparencyCheckResult;
 import com.google.auto.value.AutoValue;
 import com.google.common.base.Ascii;
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.io.PrintStream;
 import java.nio.file.Path;
 import java.security.cert.X509Certificate;
 import java.util.Optional;
+import java.util.concurrent.Executors;
 
 /** Command to verify code transparency. */
 @AutoValue
@@ -217,16 +220,23 @@ public abstract class CheckTransparencyCommand {
 
   public void checkTransparency(PrintStream outputStream) {
     TransparencyCheckResult result = TransparencyCheckResult.empty();
-    switch (getMode()) {
-      case CONNECTED_DEVICE:
-        result = ConnectedDeviceModeTransparencyChecker.checkTransparency(this);
-        break;
-      case BUNDLE:
-        result = BundleModeTransparencyChecker.checkTransparency(this);
-        break;
-      case APK:
-        result = ApkModeTransparencyChecker.checkTransparency(this);
-        break;
+    ListeningExecutorService executorService =
+        MoreExecutors.listeningDecorator(
+            Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()));
+    try {
+      switch (getMode()) {
+        case CONNECTED_DEVICE:
+          result = ConnectedDeviceModeTransparencyChecker.checkTransparency(this, executorService);
+          break;
+        case BUNDLE:
+          result = BundleModeTransparencyChecker.checkTransparency(this, executorService);
+          break;
+        case APK:
+          result = ApkModeTransparencyChecker.checkTransparency(this, executorService);
+          break;
+      }
+    } finally {
+      executorService.shutdown();
     }
     printResult(outputStream, result);
   }
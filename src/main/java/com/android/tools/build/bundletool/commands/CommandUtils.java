@@ -17,6 +17,7 @@
 package com.android.tools.build.bundletool.commands;
 
 import com.android.tools.build.bundletool.androidtools.Aapt2Command;
+import com.android.tools.build.bundletool.androidtools.Aapt2DaemonCommand;
 import com.android.tools.build.bundletool.flags.Flag;
 import com.android.tools.build.bundletool.flags.ParsedFlags;
 import com.android.tools.build.bundletool.model.exceptions.CommandExecutionException;
@@ -60,9 +61,23 @@ final class CommandUtils {
   }
 
   static Aapt2Command extractAapt2FromJar(Path tempDir) {
+    return extractAapt2FromJar(tempDir, /* daemonMode= */ false);
+  }
+
+  /**
+   * Extracts aapt2 from the bundletool jar.
+   *
+   * @param daemonMode whether to run aapt2 in long-lived daemon processes, see {@link
+   *     Aapt2DaemonCommand}
+   */
+  static Aapt2Command extractAapt2FromJar(Path tempDir, boolean daemonMode) {
     return new SdkToolsLocator()
         .extractAapt2(tempDir)
-        .map(Aapt2Command::createFromExecutablePath)
+        .map(
+            aapt2Path ->
+                daemonMode
+                    ? Aapt2DaemonCommand.createFromExecutablePath(aapt2Path)
+                    : Aapt2Command.createFromExecutablePath(aapt2Path))
         .orElseThrow(
             () ->
                 CommandExecutionException.builder()
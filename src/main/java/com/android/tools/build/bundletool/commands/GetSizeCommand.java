@@ -18,7 +18,6 @@ package com.android.tools.build.bundletool.commands;
 
 import static com.android.tools.build.bundletool.commands.GetSizeCommand.GetSizeSubcommand.STRING_TO_SUBCOMMAND;
 import static com.android.tools.build.bundletool.model.utils.ApkSizeUtils.getCompressedSizeByApkPaths;
-import static com.android.tools.build.bundletool.model.utils.ApkSizeUtils.getVariantCompressedSizeByApkPaths;
 import static com.android.tools.build.bundletool.model.utils.CollectorUtils.combineMaps;
 import static com.android.tools.build.bundletool.model.utils.GetSizeCsvUtils.getSizeTotalOutputInCsv;
 import static com.android.tools.build.bundletool.model.utils.files.FilePreconditions.checkFileExistsAndReadable;
@@ -43,6 +42,7 @@ import com.android.tools.build.bundletool.model.GetSizeRequest;
 import com.android.tools.build.bundletool.model.SizeConfiguration;
 import com.android.tools.build.bundletool.model.exceptions.InvalidCommandException;
 import com.android.tools.build.bundletool.model.utils.ConfigurationSizesMerger;
+import com.android.tools.build.bundletool.model.utils.GZipSizeCache;
 import com.android.tools.build.bundletool.model.utils.ResultUtils;
 import com.android.tools.build.bundletool.model.utils.SizeFormatter;
 import com.android.tools.build.bundletool.model.utils.files.FilePreconditions;
@@ -53,10 +53,14 @@ import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.io.PrintStream;
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
 
 /** Gets over-the-wire sizes of APKS that are going to be served from the APK Set. */
 @AutoValue
@@ -104,6 +108,7 @@ public abstract class GetSizeCommand implements GetSizeRequest {
       Flag.enumSet("dimensions", Dimension.class);
   private static final Flag<Boolean> HUMAN_READABLE_SIZES_FLAG =
       Flag.booleanFlag("human-readable-sizes");
+  private static final Flag<Path> SIZE_CACHE_FILE_FLAG = Flag.path("size-cache-file");
   private static final Joiner COMMA_JOINER = Joiner.on(',');
 
   @VisibleForTesting
@@ -136,6 +141,9 @@ public abstract class GetSizeCommand implements GetSizeRequest {
   /** Gets whether to format sizes to human readable units. */
   public abstract boolean getHumanReadableSizes();
 
+  /** Gets the file where the sizes of the APKs are cached across invocations. */
+  public abstract Optional<Path> getSizeCacheFile();
+
   public static Builder builder() {
     return new AutoValue_GetSizeCommand.Builder()
         .setDeviceSpec(DeviceSpec.getDefaultInstance())
@@ -173,6 +181,14 @@ public abstract class GetSizeCommand implements GetSizeRequest {
     /** Sets whether to format sizes to human readable units. */
     public abstract Builder setHumanReadableSizes(boolean humanReadableSizes);
 
+    /**
+     * Sets a file where the sizes of the APKs are cached, so that the sizes of APKs which are
+     * unchanged across invocations are not calculated again.
+     *
+     * <p>Optional. If not set, the sizes of all APKs are calculated on each invocation.
+     */
+    public abstract Builder setSizeCacheFile(Path sizeCacheFile);
+
     public abstract GetSizeCommand build();
   }
 
@@ -182,6 +198,7 @@ public abstract class GetSizeCommand implements GetSizeRequest {
     Optional<ImmutableSet<String>> modules = MODULES_FLAG.getValue(flags);
     Optional<Boolean> instant = INSTANT_FLAG.getValue(flags);
     Optional<Boolean> pretty = HUMAN_READABLE_SIZES_FLAG.getValue(flags);
+    Optional<Path> sizeCacheFile = SIZE_CACHE_FILE_FLAG.getValue(flags);
 
     ImmutableSet<Dimension> dimensions = DIMENSIONS_FLAG.getValue(flags).orElse(ImmutableSet.of());
     flags.checkNoUnknownFlags();
@@ -203,6 +220,7 @@ public abstract class GetSizeCommand implements GetSizeRequest {
 
     instant.ifPresent(command::setInstant);
     pretty.ifPresent(command::setHumanReadableSizes);
+    sizeCacheFile.ifPresent(command::setSizeCacheFile);
 
     if (dimensions.contains(Dimension.ALL)) {
       dimensions = SUPPORTED_DIMENSIONS;
@@ -251,16 +269,32 @@ public abstract class GetSizeCommand implements GetSizeRequest {
 
     ImmutableList<Variant> variants =
         new VariantMatcher(getDeviceSpec(), getInstant()).getAllMatchingVariants(buildApksResult);
-    ImmutableMap<String, Long> variantCompressedSizeByApkPaths =
-        getVariantCompressedSizeByApkPaths(variants, getApksArchivePath());
-
-    ImmutableList<String> assetModuleApks =
-        buildApksResult.getAssetSliceSetList().stream()
-            .flatMap(module -> module.getApkDescriptionList().stream())
+    // The sizes of the APKs of all variants and asset modules are computed in a single parallel
+    // pass over the APK Set.
+    ImmutableList<String> apkPaths =
+        Stream.concat(
+                variants.stream()
+                    .flatMap(variant -> variant.getApkSetList().stream())
+                    .flatMap(apkSet -> apkSet.getApkDescriptionList().stream()),
+                buildApksResult.getAssetSliceSetList().stream()
+                    .flatMap(module -> module.getApkDescriptionList().stream()))
             .map(ApkDescription::getPath)
+            .distinct()
             .collect(toImmutableList());
-    ImmutableMap<String, Long> assetModuleCompressedSizeByApkPaths =
-        getCompressedSizeByApkPaths(assetModuleApks, getApksArchivePath());
+    GZipSizeCache gzipSizeCache =
+        getSizeCacheFile().map(GZipSizeCache::loadFrom).orElseGet(GZipSizeCache::inMemory);
+    ListeningExecutorService executorService =
+        MoreExecutors.listeningDecorator(
+            Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()));
+    ImmutableMap<String, Long> compressedSizeByApkPaths;
+    try {
+      compressedSizeByApkPaths =
+          getCompressedSizeByApkPaths(
+              apkPaths, getApksArchivePath(), executorService, gzipSizeCache);
+    } finally {
+      executorService.shutdown();
+    }
+    gzipSizeCache.save();
 
     ImmutableMap<SizeConfiguration, Long> minSizeConfigurationMap = ImmutableMap.of();
     ImmutableMap<SizeConfiguration, Long> maxSizeConfigurationMap = ImmutableMap.of();
@@ -268,7 +302,7 @@ public abstract class GetSizeCommand implements GetSizeRequest {
     for (Variant variant : variants) {
       ConfigurationSizes variantConfigurationSizes =
           new VariantTotalSizeAggregator(
-                  variantCompressedSizeByApkPaths,
+                  compressedSizeByApkPaths,
                   Version.of(buildApksResult.getBundletool().getVersion()),
                   variant,
                   this)
@@ -277,7 +311,7 @@ public abstract class GetSizeCommand implements GetSizeRequest {
           new AssetModuleSizeAggregator(
                   buildApksResult.getAssetSliceSetList(),
                   variant.getTargeting(),
-                  assetModuleCompressedSizeByApkPaths,
+                  compressedSizeByApkPaths,
                   this)
               .getSize();
       ConfigurationSizes configurationSizes =
@@ -360,6 +394,16 @@ public abstract class GetSizeCommand implements GetSizeRequest {
                     "When set, size values are formatted to human readable units: KB, MB, GB."
                         + " Defaults to false.")
                 .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(SIZE_CACHE_FILE_FLAG.getName())
+                .setExampleValue("path/to/size-cache")
+                .setOptional(true)
+                .setDescription(
+                    "Path to a file where the sizes of the APKs are cached, so that the sizes of "
+                        + "APKs identical to the ones of previous invocations are not calculated "
+                        + "again. The file is created if it does not exist.")
+                .build())
         .build();
   }
 
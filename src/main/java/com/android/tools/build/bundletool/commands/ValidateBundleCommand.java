@@ -29,10 +29,14 @@ import com.android.tools.build.bundletool.model.ModuleEntry;
 import com.android.tools.build.bundletool.model.exceptions.CommandExecutionException;
 import com.android.tools.build.bundletool.validation.AppBundleValidator;
 import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.util.Map.Entry;
+import java.util.concurrent.Executors;
 import java.util.zip.ZipFile;
 
 /** Validates and prints information about the bundle or returns AppBundle object. */
@@ -72,8 +76,12 @@ public abstract class ValidateBundleCommand {
   public void execute() throws CommandExecutionException {
     validateInput();
 
+    ListeningExecutorService executorService =
+        MoreExecutors.listeningDecorator(
+            Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()));
     try (ZipFile bundleZip = new ZipFile(getBundlePath().toFile())) {
-      AppBundleValidator bundleValidator = AppBundleValidator.create();
+      AppBundleValidator bundleValidator =
+          AppBundleValidator.create(/* extraSubValidators= */ ImmutableList.of(), executorService);
 
       bundleValidator.validateFile(bundleZip);
       AppBundle appBundle = AppBundle.buildFromZip(bundleZip);
@@ -85,6 +93,8 @@ public abstract class ValidateBundleCommand {
     } catch (IOException e) {
       throw new UncheckedIOException(
           String.format("Error reading zip file '%s'", getBundlePath()), e);
+    } finally {
+      executorService.shutdown();
     }
   }
 
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import com.android.tools.build.bundletool.commands.CommandScoped;
+import com.android.tools.build.bundletool.model.utils.SystemEnvironmentProvider;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.concurrent.GuardedBy;
+import javax.inject.Inject;
+
+/**
+ * Binary APKs converted by aapt2 during a command, shared across all the splits of all variants.
+ *
+ * <p>Splits of different variants very often have the exact same manifest and resources (e.g. the
+ * splits of the L+ and S+ variants only differing by their dex files), in which case the proto APK
+ * written for aapt2 is identical. This ensures that each distinct proto APK is converted only once
+ * while it is cached, the resulting binary APK being stored in the temporary directory of the
+ * command and read by all the splits needing it.
+ *
+ * <p>The binary APKs are evicted once their total size exceeds a limit, which can be overridden
+ * using the system property "bundletool.aapt2.cache.disksize" (in bytes). An evicted APK is deleted
+ * as soon as no split reads it anymore.
+ */
+@CommandScoped
+final class Aapt2ConversionCache {
+
+  private static final long MAX_ON_DISK_BYTES =
+      SystemEnvironmentProvider.DEFAULT_PROVIDER
+          .getProperty("bundletool.aapt2.cache.disksize")
+          .map(Long::parseLong)
+          .orElse(1024L * 1024 * 1024); // 1 GB
+
+  private final TempDirectory tempDirectory;
+  private final Cache<HashCode, ConvertedApk> binaryApks;
+
+  @Inject
+  Aapt2ConversionCache(TempDirectory tempDirectory) {
+    this(tempDirectory, MAX_ON_DISK_BYTES);
+  }
+
+  Aapt2ConversionCache(TempDirectory tempDirectory, long maxOnDiskBytes) {
+    this.tempDirectory = tempDirectory;
+    this.binaryApks =
+        CacheBuilder.newBuilder()
+            .maximumWeight(maxOnDiskBytes)
+            .<HashCode, ConvertedApk>weigher(
+                (key, binaryApk) -> (int) Math.min(Integer.MAX_VALUE, binaryApk.size))
+            .<HashCode, ConvertedApk>removalListener(
+                notification -> notification.getValue().release())
+            .build();
+  }
+
+  /**
+   * Returns the binary APK converted from the given proto APK, running {@code conversion} if the
+   * same proto APK isn't in the cache.
+   *
+   * <p>The conversion must be the same for all calls within a command. If several threads request
+   * the conversion of the same proto APK concurrently, it is converted only once. The returned APK
+   * must be closed once read, and its file must not be modified.
+   */
+  ConvertedApk getOrConvert(Path protoApk, Aapt2Conversion conversion) throws IOException {
+    HashCode protoApkDigest = MoreFiles.asByteSource(protoApk).hash(Hashing.sha256());
+    while (true) {
+      // The APK converted by this call is already referenced by it, see ConvertedApk.
+      AtomicReference<ConvertedApk> convertedByThisCall = new AtomicReference<>();
+      ConvertedApk binaryApk;
+      try {
+        binaryApk =
+            binaryApks.get(
+                protoApkDigest,
+                () -> {
+                  convertedByThisCall.set(convert(protoApk, conversion));
+                  return convertedByThisCall.get();
+                });
+      } catch (ExecutionException | UncheckedExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw new IllegalStateException(e.getCause());
+      }
+      if (binaryApk == convertedByThisCall.get() || binaryApk.retain()) {
+        return binaryApk;
+      }
+      // Evicted and deleted in the meantime, the next lookup converts it again.
+    }
+  }
+
+  private ConvertedApk convert(Path protoApk, Aapt2Conversion conversion) throws IOException {
+    Path binaryApk =
+        Files.createTempDirectory(tempDirectory.getPath(), "aapt2").resolve("binary.apk");
+    conversion.convert(protoApk, binaryApk);
+    checkState(Files.exists(binaryApk), "No APK created by aapt2 convert command.");
+    return new ConvertedApk(binaryApk);
+  }
+
+  /** Converts a proto APK to a binary APK with aapt2. */
+  interface Aapt2Conversion {
+    void convert(Path protoApk, Path binaryApk) throws IOException;
+  }
+
+  /**
+   * A binary APK held by the cache, deleted once evicted from the cache and closed by all the
+   * callers of {@link #getOrConvert} which got it.
+   */
+  static final class ConvertedApk implements AutoCloseable {
+    private final Path path;
+    private final long size;
+
+    /**
+     * Number of holders of the file: the cache itself while the APK is cached, and the callers
+     * which haven't closed it yet, starting with the caller which converted it.
+     */
+    @GuardedBy("this")
+    private int references = 2;
+
+    private ConvertedApk(Path path) throws IOException {
+      this.path = path;
+      this.size = Files.size(path);
+    }
+
+    Path getPath() {
+      return path;
+    }
+
+    @Override
+    public void close() {
+      release();
+    }
+
+    private synchronized boolean retain() {
+      if (references == 0) {
+        return false;
+      }
+      references++;
+      return true;
+    }
+
+    private synchronized void release() {
+      references--;
+      if (references == 0) {
+        try {
+          Files.delete(path);
+          Files.delete(path.getParent());
+        } catch (NoSuchFileException e) {
+          // Already deleted along with the temp directory.
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    }
+  }
+}
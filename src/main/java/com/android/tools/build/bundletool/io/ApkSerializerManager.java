@@ -16,16 +16,14 @@
 package com.android.tools.build.bundletool.io;
 
 import static com.android.tools.build.bundletool.commands.BuildApksCommand.ApkBuildMode.SYSTEM;
-import static com.android.tools.build.bundletool.io.ConcurrencyUtils.waitForAll;
-import static com.android.tools.build.bundletool.model.utils.CollectorUtils.groupingByDeterministic;
 import static com.android.tools.build.bundletool.model.utils.CollectorUtils.groupingBySortedKeys;
+import static com.android.tools.build.bundletool.model.utils.ConcurrencyUtils.waitForAll;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Predicates.alwaysTrue;
 import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.collect.ImmutableMap.toImmutableMap;
 import static java.util.function.Function.identity;
 import static java.util.stream.Collectors.collectingAndThen;
-import static java.util.stream.Collectors.mapping;
 
 import com.android.bundle.Commands.ApkDescription;
 import com.android.bundle.Commands.ApkSet;
@@ -65,6 +63,7 @@ import com.android.tools.build.bundletool.model.ModuleSplit.SplitType;
 import com.android.tools.build.bundletool.model.OptimizationDimension;
 import com.android.tools.build.bundletool.model.VariantKey;
 import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.tools.build.bundletool.model.utils.ConcurrencyUtils;
 import com.android.tools.build.bundletool.model.version.BundleToolVersion;
 import com.android.tools.build.bundletool.optimizations.ApkOptimizations;
 import com.google.common.annotations.VisibleForTesting;
@@ -72,12 +71,17 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.Uninterruptibles;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.Map.Entry;
 import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Predicate;
 import javax.inject.Inject;
@@ -129,6 +133,34 @@ public class ApkSerializerManager {
         serializeApks(apkSetBuilder, generatedApks, apkBuildMode, deviceSpec);
     ImmutableList<AssetSliceSet> allAssetSliceSets =
         serializeAssetSlices(apkSetBuilder, generatedAssetSlices, apkBuildMode, deviceSpec);
+    setTableOfContents(
+        apkSetBuilder, allVariantsWithTargeting, allAssetSliceSets, localTestingInfo);
+  }
+
+  /**
+   * Serializes the given APKs and finalizes the APK Set with the asset slices started by {@link
+   * #startSerializingAssetSlices}, which are only waited for once the APKs have been serialized.
+   */
+  public void populateApkSetBuilder(
+      ApkSetBuilder apkSetBuilder,
+      GeneratedApks generatedApks,
+      PendingAssetSlices pendingAssetSlices,
+      ApkBuildMode apkBuildMode,
+      Optional<DeviceSpec> deviceSpec,
+      LocalTestingInfo localTestingInfo) {
+    ImmutableList<Variant> allVariantsWithTargeting =
+        serializeApks(apkSetBuilder, generatedApks, apkBuildMode, deviceSpec);
+    ImmutableList<AssetSliceSet> allAssetSliceSets =
+        finishSerializingAssetSlices(pendingAssetSlices);
+    setTableOfContents(
+        apkSetBuilder, allVariantsWithTargeting, allAssetSliceSets, localTestingInfo);
+  }
+
+  private void setTableOfContents(
+      ApkSetBuilder apkSetBuilder,
+      ImmutableList<Variant> allVariantsWithTargeting,
+      ImmutableList<AssetSliceSet> allAssetSliceSets,
+      LocalTestingInfo localTestingInfo) {
     // Finalize the output archive.
     BuildApksResult.Builder apksResult =
         BuildApksResult.newBuilder()
@@ -212,9 +244,11 @@ public class ApkSerializerManager {
 
     // After variant targeting of APKs are cleared, there might be duplicate APKs
     // which are removed and the distinct APKs are then serialized in parallel.
+    ImmutableList<ModuleSplit> distinctSplits =
+        finalSplitsByVariant.values().stream().distinct().collect(toImmutableList());
+    apkSetBuilder.declareApkOrder(distinctSplits);
     ImmutableMap<ModuleSplit, ApkDescription> apkDescriptionBySplit =
-        finalSplitsByVariant.values().stream()
-            .distinct()
+        distinctSplits.stream()
             .collect(
                 collectingAndThen(
                     toImmutableMap(
@@ -259,7 +293,24 @@ public class ApkSerializerManager {
       GeneratedAssetSlices generatedAssetSlices,
       ApkBuildMode apkBuildMode,
       Optional<DeviceSpec> deviceSpec) {
+    return finishSerializingAssetSlices(
+        startSerializingAssetSlices(
+            apkSetBuilder, generatedAssetSlices, apkBuildMode, deviceSpec));
+  }
 
+  /**
+   * Declares the order of the asset slices matching the device spec, if any, in the APK Set and
+   * starts serializing them on the executor service.
+   *
+   * <p>Asset slices don't depend on any other APK of the APK Set, so they can be serialized while
+   * the other APKs are still being generated. Since their order is declared by the calling thread
+   * before this method returns, the asset slices always precede the APKs declared afterwards.
+   */
+  public PendingAssetSlices startSerializingAssetSlices(
+      ApkSetBuilder apkSetBuilder,
+      GeneratedAssetSlices generatedAssetSlices,
+      ApkBuildMode apkBuildMode,
+      Optional<DeviceSpec> deviceSpec) {
     Predicate<ModuleSplit> deviceFilter =
         deviceSpec.isPresent()
             ? new ApkMatcher(addDefaultDeviceTierIfNecessary(deviceSpec.get()))
@@ -268,31 +319,45 @@ public class ApkSerializerManager {
 
     ApkSerializer apkSerializer = new ApkSerializer(apkListener, apkBuildMode);
 
-    ImmutableListMultimap<BundleModuleName, ApkDescription> generatedSlicesByModule =
+    ImmutableList<ModuleSplit> assetSlices =
         generatedAssetSlices.getAssetSlices().stream()
             .filter(deviceFilter)
-            .collect(
-                groupingByDeterministic(
-                    ModuleSplit::getModuleName,
-                    mapping(
+            .collect(toImmutableList());
+    apkSetBuilder.declareApkOrder(assetSlices);
+
+    AtomicBoolean cancelled = new AtomicBoolean(false);
+    ImmutableListMultimap<BundleModuleName, ListenableFuture<ApkDescription>>
+        apkDescriptionsByModule =
+            assetSlices.stream()
+                .collect(
+                    ImmutableListMultimap.toImmutableListMultimap(
+                        ModuleSplit::getModuleName,
                         assetSlice -> {
                           ZipPath apkPath = apkPathManager.getApkPath(assetSlice);
                           return executorService.submit(
-                              () -> apkSerializer.serialize(apkSetBuilder, assetSlice, apkPath));
-                        },
-                        toImmutableList())))
-            .entrySet()
-            .stream()
-            .collect(
-                ImmutableListMultimap.flatteningToImmutableListMultimap(
-                    Entry::getKey, entry -> waitForAll(entry.getValue()).stream()));
-    return generatedSlicesByModule.asMap().entrySet().stream()
+                              () -> {
+                                if (cancelled.get()) {
+                                  throw new CancellationException(
+                                      "Serialization of the asset slices cancelled.");
+                                }
+                                return apkSerializer.serialize(apkSetBuilder, assetSlice, apkPath);
+                              });
+                        }));
+    return new PendingAssetSlices(apkDescriptionsByModule, cancelled);
+  }
+
+  /**
+   * Waits for the asset slices started by {@link #startSerializingAssetSlices} to be serialized.
+   */
+  public ImmutableList<AssetSliceSet> finishSerializingAssetSlices(
+      PendingAssetSlices pendingAssetSlices) {
+    return pendingAssetSlices.apkDescriptionsByModule.asMap().entrySet().stream()
         .map(
             entry ->
                 AssetSliceSet.newBuilder()
                     .setAssetModuleMetadata(
                         getAssetModuleMetadata(appBundle.getModule(entry.getKey())))
-                    .addAllApkDescription(entry.getValue())
+                    .addAllApkDescription(waitForAll(entry.getValue()))
                     .build())
         .collect(toImmutableList());
   }
@@ -441,6 +506,39 @@ public class ApkSerializerManager {
     return deviceSpec.toBuilder().setDeviceTier(deviceTierSuffix.get().getDefaultSuffix()).build();
   }
 
+  /** Asset slices being serialized, see {@link #startSerializingAssetSlices}. */
+  public static final class PendingAssetSlices {
+    private final ImmutableListMultimap<BundleModuleName, ListenableFuture<ApkDescription>>
+        apkDescriptionsByModule;
+    private final AtomicBoolean cancelled;
+
+    private PendingAssetSlices(
+        ImmutableListMultimap<BundleModuleName, ListenableFuture<ApkDescription>>
+            apkDescriptionsByModule,
+        AtomicBoolean cancelled) {
+      this.apkDescriptionsByModule = apkDescriptionsByModule;
+      this.cancelled = cancelled;
+    }
+
+    /**
+     * Cancels the serialization of the asset slices, and waits until none of them is being
+     * serialized anymore.
+     *
+     * <p>Asset slices whose serialization has already started are serialized entirely, so that
+     * nothing is written to the APK Set once this method returns.
+     */
+    public void cancelAndAwait() {
+      cancelled.set(true);
+      for (ListenableFuture<ApkDescription> apkDescription : apkDescriptionsByModule.values()) {
+        try {
+          Uninterruptibles.getUninterruptibly(apkDescription);
+        } catch (ExecutionException | CancellationException e) {
+          // The failure of the asset slices is irrelevant once cancelled.
+        }
+      }
+    }
+  }
+
   private final class ApkSerializer {
     private final ApkListener apkListener;
     private final ApkBuildMode apkBuildMode;
@@ -16,14 +16,17 @@
 
 package com.android.tools.build.bundletool.io;
 
+import static com.android.tools.build.bundletool.model.CompressionLevel.DEFAULT_COMPRESSION;
 import static com.android.tools.build.bundletool.model.utils.FileNames.TABLE_OF_CONTENTS_FILE;
 import static com.android.tools.build.bundletool.model.utils.files.FilePreconditions.checkFileExistsAndReadable;
+import static com.google.common.base.Preconditions.checkState;
 
 import com.android.bundle.Commands.ApkDescription;
 import com.android.bundle.Commands.BuildApksResult;
-import com.android.tools.build.bundletool.io.ZipBuilder.EntryOption;
 import com.android.tools.build.bundletool.model.ModuleSplit;
 import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.zipflinger.BytesSource;
+import com.android.zipflinger.ZipArchive;
 import com.google.common.collect.ImmutableList;
 import com.google.protobuf.Message;
 import java.io.FileNotFoundException;
@@ -32,15 +35,23 @@ import java.io.OutputStream;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
 /** Factory for {@link ApkSetBuilder}. */
 public final class ApkSetBuilderFactory {
 
   /** Handles adding of {@link ModuleSplit} to the APK Set archive. */
-  public interface ApkSetBuilder {
+  public interface ApkSetBuilder extends AutoCloseable {
     /** Adds a split APK to the APK Set archive. */
     ApkDescription addSplitApk(ModuleSplit split, ZipPath apkPath);
 
@@ -62,8 +73,24 @@ public final class ApkSetBuilderFactory {
     /** Sets the TOC file in the APK Set archive. */
     void setTableOfContentsFile(BuildApksResult tableOfContentsProto);
 
+    /**
+     * Declares the order in which the given splits should appear in the APK Set archive.
+     *
+     * <p>Must be called before the splits are added. Builders that write the APKs in the archive
+     * as soon as they are serialized rely on this order to produce a deterministic output
+     * regardless of the order in which the APKs are serialized. No-op by default.
+     */
+    default void declareApkOrder(ImmutableList<ModuleSplit> splits) {}
+
     /** Writes out the APK Set archive to the specified destination. */
     void writeTo(Path destinationPath);
+
+    /**
+     * Releases the resources held by the builder, discarding the APK Set archive if it hasn't been
+     * written by {@link #writeTo}. No-op by default.
+     */
+    @Override
+    default void close() {}
   }
 
   public static ApkSetBuilder createApkSetBuilder(
@@ -73,6 +100,15 @@ public final class ApkSetBuilderFactory {
     return new ApkSetArchiveBuilder(splitApkSerializer, standaloneApkSerializer, tempDir);
   }
 
+  public static ApkSetBuilder createApkSetStreamingArchiveBuilder(
+      SplitApkSerializer splitApkSerializer,
+      StandaloneApkSerializer standaloneApkSerializer,
+      Path tempDir,
+      Path outputPath) {
+    return new ApkSetStreamingArchiveBuilder(
+        splitApkSerializer, standaloneApkSerializer, tempDir, outputPath);
+  }
+
   public static ApkSetBuilder createApkSetWithoutArchiveBuilder(
       SplitApkSerializer splitApkSerializer,
       StandaloneApkSerializer standaloneApkSerializer,
@@ -153,25 +189,306 @@ public final class ApkSetBuilderFactory {
       tableOfContents = tableOfContentsProto;
     }
 
+    /**
+     * Writes the APK Set archive.
+     *
+     * <p>The APKs are stored uncompressed, and copied from the temp directory to the archive using
+     * {@link java.nio.channels.FileChannel#transferTo} without going through the Java heap. The
+     * archive is written next to the destination path and moved there once complete.
+     */
     @Override
     public void writeTo(Path destinationPath) {
-      ZipBuilder apkSetZipBuilder = new ZipBuilder();
-      if (tableOfContents != null) {
-        apkSetZipBuilder.addFileWithProtoContent(
-            ZipPath.create(TABLE_OF_CONTENTS_FILE), tableOfContents);
+      Path inProgressArchivePath =
+          destinationPath.resolveSibling(
+              String.format(".%s.%s.tmp", destinationPath.getFileName(), UUID.randomUUID()));
+      try {
+        try (ZipArchive archive = new ZipArchive(inProgressArchivePath)) {
+          if (tableOfContents != null) {
+            archive.add(
+                new BytesSource(
+                    tableOfContents.toByteArray(),
+                    TABLE_OF_CONTENTS_FILE,
+                    DEFAULT_COMPRESSION.getValue()));
+          }
+          // Sort APKs to make ordering deterministic.
+          for (String relativeApkPath : ImmutableList.sortedCopyOf(relativeApkPaths)) {
+            Path fullApkPath = tempDirectory.resolve(relativeApkPath);
+            checkFileExistsAndReadable(fullApkPath);
+            archive.add(new StoredFileSource(fullApkPath, relativeApkPath));
+          }
+        }
+        // Fails if the target file exists.
+        Files.move(inProgressArchivePath, destinationPath);
+      } catch (IOException e) {
+        throw new UncheckedIOException(
+            String.format("Error while writing the APK Set archive to '%s'.", destinationPath), e);
+      } finally {
+        try {
+          Files.deleteIfExists(inProgressArchivePath);
+        } catch (IOException e) {
+          // Best effort: a leftover in-progress archive doesn't affect the output.
+        }
       }
-      // Sort APKs to make ordering deterministic.
-      for (String relativeApkPath : ImmutableList.sortedCopyOf(relativeApkPaths)) {
-        Path fullApkPath = tempDirectory.resolve(relativeApkPath);
-        checkFileExistsAndReadable(fullApkPath);
-        apkSetZipBuilder.addFileFromDisk(
-            ZipPath.create(relativeApkPath), fullApkPath.toFile(), EntryOption.UNCOMPRESSED);
+    }
+  }
+
+  /**
+   * ApkSet builder that stores the generated APKs in the APK Set archive as soon as they are
+   * serialized.
+   *
+   * <p>Unlike {@link ApkSetArchiveBuilder}, the APKs are not all staged in the temp directory
+   * before being copied to the archive: each APK is appended to the archive as soon as all the APKs
+   * preceding it in the order declared by {@link #declareApkOrder} have been written, and then
+   * deleted from the temp directory. The table of contents is the last entry of the archive.
+   *
+   * <p>The archive is written next to the destination path and moved there by {@link #writeTo}.
+   */
+  public static class ApkSetStreamingArchiveBuilder implements ApkSetBuilder {
+    private final SplitApkSerializer splitApkSerializer;
+    private final StandaloneApkSerializer standaloneApkSerializer;
+    private final Path tempDirectory;
+    private final Path inProgressArchivePath;
+
+    /** Position of each declared split in the archive, keyed by identity of the split. */
+    @GuardedBy("this")
+    private final Map<ModuleSplit, Integer> positionBySplit = new IdentityHashMap<>();
+
+    /** Relative paths of the serialized APKs waiting for their turn to be written. */
+    @GuardedBy("this")
+    private final Map<Integer, String> pendingApkPaths = new HashMap<>();
+
+    /** Relative paths of the APKs whose turn has come, in the order they are appended. */
+    @GuardedBy("this")
+    private final Deque<String> apksToAppend = new ArrayDeque<>();
+
+    /** Relative paths of the serialized APKs whose order was not declared. */
+    @GuardedBy("this")
+    private final List<String> undeclaredApkPaths = new ArrayList<>();
+
+    @GuardedBy("this")
+    private int nextPositionToEnqueue = 0;
+
+    /**
+     * Whether a thread is appending APKs to the archive. Only that thread accesses the archive, and
+     * it does so without holding the lock, so that other APKs can be enqueued meanwhile.
+     */
+    @GuardedBy("this")
+    private boolean appending = false;
+
+    /** Only accessed by the thread appending APKs, or by {@link #writeTo} and {@link #close}. */
+    private ZipArchive archive;
+
+    private BuildApksResult tableOfContents;
+
+    public ApkSetStreamingArchiveBuilder(
+        SplitApkSerializer splitApkSerializer,
+        StandaloneApkSerializer standaloneApkSerializer,
+        Path tempDirectory,
+        Path outputPath) {
+      this.splitApkSerializer = splitApkSerializer;
+      this.standaloneApkSerializer = standaloneApkSerializer;
+      this.tempDirectory = tempDirectory;
+      Path outputFileName = outputPath.getFileName();
+      this.inProgressArchivePath =
+          outputPath.resolveSibling(
+              String.format(".%s.%s.tmp", outputFileName, UUID.randomUUID()));
+    }
+
+    @Override
+    public synchronized void declareApkOrder(ImmutableList<ModuleSplit> splits) {
+      for (ModuleSplit split : splits) {
+        checkState(
+            positionBySplit.put(split, positionBySplit.size()) == null,
+            "Order of the split already declared.");
       }
+    }
+
+    @Override
+    public ApkDescription addSplitApk(ModuleSplit split, ZipPath apkPath) {
+      return onApkSerialized(
+          split, splitApkSerializer.writeSplitToDisk(split, tempDirectory, apkPath));
+    }
+
+    @Override
+    public ApkDescription addInstantApk(ModuleSplit split, ZipPath apkPath) {
+      return onApkSerialized(
+          split, splitApkSerializer.writeInstantSplitToDisk(split, tempDirectory, apkPath));
+    }
+
+    @Override
+    public ApkDescription addAssetSliceApk(ModuleSplit split, ZipPath apkPath) {
+      return onApkSerialized(
+          split, splitApkSerializer.writeAssetSliceToDisk(split, tempDirectory, apkPath));
+    }
+
+    @Override
+    public ApkDescription addStandaloneApk(ModuleSplit split, ZipPath apkPath) {
+      return onApkSerialized(
+          split, standaloneApkSerializer.writeToDisk(split, tempDirectory, apkPath));
+    }
+
+    @Override
+    public ApkDescription addStandaloneUniversalApk(ModuleSplit split) {
+      return onApkSerialized(
+          split, standaloneApkSerializer.writeToDiskAsUniversal(split, tempDirectory));
+    }
+
+    @Override
+    public ApkDescription addSystemApk(ModuleSplit split, ZipPath apkPath) {
+      return onApkSerialized(
+          split, standaloneApkSerializer.writeSystemApkToDisk(split, tempDirectory, apkPath));
+    }
+
+    @Override
+    public void setTableOfContentsFile(BuildApksResult tableOfContentsProto) {
+      tableOfContents = tableOfContentsProto;
+    }
+
+    @Override
+    public synchronized void writeTo(Path destinationPath) {
+      awaitAppending();
       try {
-        apkSetZipBuilder.writeTo(destinationPath);
+        checkState(
+            pendingApkPaths.isEmpty() && nextPositionToEnqueue == positionBySplit.size(),
+            "Some of the declared APKs have not been added to the APK Set.");
+        while (!apksToAppend.isEmpty()) {
+          appendApk(apksToAppend.remove());
+        }
+        // APKs whose order wasn't declared are written after the others, sorted to make the
+        // ordering deterministic.
+        for (String relativeApkPath : ImmutableList.sortedCopyOf(undeclaredApkPaths)) {
+          appendApk(relativeApkPath);
+        }
+        undeclaredApkPaths.clear();
+        if (tableOfContents != null) {
+          getArchive()
+              .add(
+                  new BytesSource(
+                      tableOfContents.toByteArray(),
+                      TABLE_OF_CONTENTS_FILE,
+                      DEFAULT_COMPRESSION.getValue()));
+        }
+        getArchive().close();
+        archive = null;
+        // Fails if the target file exists.
+        Files.move(inProgressArchivePath, destinationPath);
       } catch (IOException e) {
         throw new UncheckedIOException(
             String.format("Error while writing the APK Set archive to '%s'.", destinationPath), e);
+      } finally {
+        discardArchive();
+      }
+    }
+
+    @Override
+    public synchronized void close() {
+      awaitAppending();
+      discardArchive();
+    }
+
+    private ApkDescription onApkSerialized(ModuleSplit split, ApkDescription apkDescription) {
+      synchronized (this) {
+        Integer position = positionBySplit.get(split);
+        if (position == null) {
+          undeclaredApkPaths.add(apkDescription.getPath());
+          return apkDescription;
+        }
+        pendingApkPaths.put(position, apkDescription.getPath());
+        while (pendingApkPaths.containsKey(nextPositionToEnqueue)) {
+          apksToAppend.add(pendingApkPaths.remove(nextPositionToEnqueue));
+          nextPositionToEnqueue++;
+        }
+        // If another thread is already appending, it also appends the APKs enqueued here.
+        if (appending || apksToAppend.isEmpty()) {
+          return apkDescription;
+        }
+        appending = true;
+      }
+
+      try {
+        for (String relativeApkPath = pollApkToAppend();
+            relativeApkPath != null;
+            relativeApkPath = pollApkToAppend()) {
+          appendApk(relativeApkPath);
+        }
+      } catch (IOException e) {
+        stopAppending();
+        throw new UncheckedIOException(
+            String.format("Error while writing the APK Set archive '%s'.", inProgressArchivePath),
+            e);
+      } catch (RuntimeException | Error e) {
+        stopAppending();
+        throw e;
+      }
+      return apkDescription;
+    }
+
+    /** Returns the next APK to append, or null once there is none left and appending stopped. */
+    @Nullable
+    private synchronized String pollApkToAppend() {
+      String relativeApkPath = apksToAppend.poll();
+      if (relativeApkPath == null) {
+        stopAppending();
+      }
+      return relativeApkPath;
+    }
+
+    private synchronized void stopAppending() {
+      appending = false;
+      notifyAll();
+    }
+
+    /** Waits for the thread appending APKs, if any, to stop accessing the archive. */
+    @GuardedBy("this")
+    private void awaitAppending() {
+      boolean interrupted = false;
+      try {
+        while (appending) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+      } finally {
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+
+    private void appendApk(String relativeApkPath) throws IOException {
+      Path fullApkPath = tempDirectory.resolve(relativeApkPath);
+      checkFileExistsAndReadable(fullApkPath);
+      getArchive().add(new StoredFileSource(fullApkPath, relativeApkPath));
+      // Free up the disk space as soon as the APK is in the archive.
+      Files.delete(fullApkPath);
+    }
+
+    private ZipArchive getArchive() throws IOException {
+      if (archive == null) {
+        archive = new ZipArchive(inProgressArchivePath);
+        inProgressArchivePath.toFile().deleteOnExit();
+      }
+      return archive;
+    }
+
+    /** Closes and deletes the in-progress archive, if it hasn't been moved to its destination. */
+    @GuardedBy("this")
+    private void discardArchive() {
+      try {
+        if (archive != null) {
+          archive.close();
+        }
+      } catch (IOException e) {
+        // Best effort: the archive is discarded anyway.
+      } finally {
+        archive = null;
+      }
+      try {
+        Files.deleteIfExists(inProgressArchivePath);
+      } catch (IOException e) {
+        // Best effort: the in-progress archive is also deleted when the JVM exits.
       }
     }
   }
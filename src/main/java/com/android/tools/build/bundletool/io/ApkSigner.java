@@ -15,11 +15,15 @@
  */
 package com.android.tools.build.bundletool.io;
 
+import static com.google.common.collect.ImmutableList.toImmutableList;
 import static java.lang.Math.max;
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 
 import com.android.apksig.ApkSigner.SignerConfig;
+import com.android.apksig.DefaultApkSignerEngine;
 import com.android.apksig.apk.ApkFormatException;
+import com.android.apksig.util.DataSource;
+import com.android.apksig.util.DataSources;
 import com.android.tools.build.bundletool.commands.BuildApksModule.ApkSigningConfig;
 import com.android.tools.build.bundletool.commands.BuildApksModule.StampSigningConfig;
 import com.android.tools.build.bundletool.model.ModuleEntry;
@@ -37,6 +41,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.errorprone.annotations.CheckReturnValue;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -73,18 +78,36 @@ class ApkSigner {
     if (!optSigningConfig.isPresent()) {
       return;
     }
+
+    try (TempDirectory tempDirectory = new TempDirectory(getClass().getSimpleName())) {
+      Path signedApkPath = tempDirectory.getPath().resolve("signed.apk");
+      signApk(apkPath, signedApkPath, split);
+      // The input APK must be closed before it gets replaced.
+      Files.move(signedApkPath, apkPath, REPLACE_EXISTING);
+    } catch (IOException e) {
+      throw signingException(e);
+    }
+  }
+
+  private void signApk(Path inputApkPath, Path signedApkPath, ModuleSplit split)
+      throws IOException {
+    try (RandomAccessFile inputApk = new RandomAccessFile(inputApkPath.toFile(), "r")) {
+      signApk(DataSources.asDataSource(inputApk), signedApkPath, split);
+    }
+  }
+
+  private void signApk(DataSource inputApk, Path signedApkPath, ModuleSplit split) {
     SigningConfiguration signingConfiguration = optSigningConfig.get();
 
     boolean signWithV1 = shouldSignWithV1Scheme(split);
     boolean signWithV3 = shouldSignWithV3Scheme(split);
     int minSdkVersion = split.getAndroidManifest().getEffectiveMinSdkVersion();
 
-    try (TempDirectory tempDirectory = new TempDirectory(getClass().getSimpleName())) {
-      Path signedApkPath = tempDirectory.getPath().resolve("signed.apk");
+    try {
       com.android.apksig.ApkSigner.Builder apkSigner =
           new com.android.apksig.ApkSigner.Builder(
                   extractSignerConfigs(signingConfiguration, signWithV3))
-              .setInputApk(apkPath.toFile())
+              .setInputApk(inputApk)
               .setOutputApk(signedApkPath.toFile())
               .setV1SigningEnabled(signWithV1)
               .setV2SigningEnabled(true)
@@ -97,17 +120,49 @@ class ApkSigner {
                 convertToApksigSignerConfig(stampConfig.getSignerConfig()));
           });
       apkSigner.build().sign();
-      Files.move(signedApkPath, apkPath, REPLACE_EXISTING);
     } catch (IOException
         | ApkFormatException
         | NoSuchAlgorithmException
         | InvalidKeyException
         | SignatureException e) {
-      throw CommandExecutionException.builder()
-          .withCause(e)
-          .withInternalMessage("Unable to sign APK.")
-          .build();
+      throw signingException(e);
+    }
+  }
+
+  static CommandExecutionException signingException(Exception e) {
+    return CommandExecutionException.builder()
+        .withCause(e)
+        .withInternalMessage("Unable to sign APK.")
+        .build();
+  }
+
+  /**
+   * Returns a signer which signs the APK of the given split while it is being written, or empty if
+   * APKs are not signed.
+   */
+  public Optional<StreamingApkSigner> createStreamingSigner(ModuleSplit split) {
+    if (!optSigningConfig.isPresent()) {
+      return Optional.empty();
     }
+    SigningConfiguration signingConfiguration = optSigningConfig.get();
+
+    boolean signWithV3 = shouldSignWithV3Scheme(split);
+    DefaultApkSignerEngine.Builder signerEngine =
+        new DefaultApkSignerEngine.Builder(
+                extractSignerConfigs(signingConfiguration, signWithV3).stream()
+                    .map(ApkSigner::convertToEngineSignerConfig)
+                    .collect(toImmutableList()),
+                split.getAndroidManifest().getEffectiveMinSdkVersion())
+            .setV1SigningEnabled(shouldSignWithV1Scheme(split))
+            .setV2SigningEnabled(true)
+            .setV3SigningEnabled(signWithV3)
+            .setOtherSignersSignaturesPreserved(false);
+    optStampSigningConfig.ifPresent(
+        stampConfig ->
+            signerEngine.setStampSignerConfig(
+                convertToEngineSignerConfig(
+                    convertToApksigSignerConfig(stampConfig.getSignerConfig()))));
+    return Optional.of(new StreamingApkSigner(signerEngine.build()));
   }
 
   /**
@@ -131,18 +186,25 @@ class ApkSigner {
   }
 
   /**
-   * Extracts the given {@link ModuleEntry} to the filesystem then signs the file as an APK and
-   * returns a new ModuleEntry with the signed APK as content.
+   * Signs the content of the given {@link ModuleEntry} as an APK and returns a new ModuleEntry with
+   * the signed APK as content.
    */
   private ModuleEntry signModuleEntry(ModuleSplit split, ModuleEntry entry) {
+    if (!optSigningConfig.isPresent()) {
+      return entry.toBuilder().setShouldSign(false).build();
+    }
     try {
       // Creating a new temp directory to ensure unicity of APK name in the temp directory..
       Path tempDir = Files.createTempDirectory(tempDirectory.getPath(), getClass().getSimpleName());
+      Path unsignedApk = tempDir.resolve("unsigned.apk");
       Path embeddedApk = tempDir.resolve("embedded.apk");
+      // The content is extracted so that apksig reads it from disk rather than from memory, and the
+      // signed copy is written next to it.
       try (InputStream entryContent = entry.getContent().openStream()) {
-        Files.copy(entryContent, embeddedApk);
+        Files.copy(entryContent, unsignedApk);
       }
-      signApk(embeddedApk, split);
+      signApk(unsignedApk, embeddedApk, split);
+      Files.delete(unsignedApk);
       return entry.toBuilder().setContent(embeddedApk).setShouldSign(false).build();
     } catch (IOException e) {
       throw new UncheckedIOException(e);
@@ -168,6 +230,13 @@ class ApkSigner {
         .build();
   }
 
+  private static DefaultApkSignerEngine.SignerConfig convertToEngineSignerConfig(
+      SignerConfig signerConfig) {
+    return new DefaultApkSignerEngine.SignerConfig.Builder(
+            signerConfig.getName(), signerConfig.getPrivateKey(), signerConfig.getCertificates())
+        .build();
+  }
+
   private boolean shouldSignWithV1Scheme(ModuleSplit split) {
     return split.getAndroidManifest().getEffectiveMinSdkVersion() < Versions.ANDROID_N_API_VERSION
         || !VersionGuardedFeature.NO_V1_SIGNING_WHEN_POSSIBLE.enabledForVersion(bundletoolVersion);
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.file.StandardOpenOption.READ;
+
+import com.android.tools.build.bundletool.commands.CommandScoped;
+import com.android.tools.build.bundletool.model.CompressionLevel;
+import com.android.tools.build.bundletool.model.utils.SystemEnvironmentProvider;
+import com.android.tools.build.bundletool.model.utils.files.BufferedIo;
+import com.android.zipflinger.Entry;
+import com.android.zipflinger.ZipWriter;
+import com.google.auto.value.AutoValue;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Funnels;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import javax.annotation.concurrent.GuardedBy;
+import javax.inject.Inject;
+
+/**
+ * Cache of the compressed payloads of zip entries, shared across all the APKs generated by a
+ * command.
+ *
+ * <p>The same file (e.g. a dex file or an asset) typically ends up in several APKs (e.g. in
+ * multiple variants, in the standalone APKs and the universal APK). This cache ensures that each
+ * content is compressed only once with a given compression level.
+ *
+ * <p>Small payloads are kept in memory, large ones are stored in the temporary directory of the
+ * command. Both are evicted once the total size exceeds a limit, which can be overridden using the
+ * system properties "bundletool.compression.cache.memorysize" and
+ * "bundletool.compression.cache.disksize" (in bytes).
+ */
+@CommandScoped
+public final class CompressedPayloadCache {
+
+  private static final long MAX_IN_MEMORY_BYTES =
+      SystemEnvironmentProvider.DEFAULT_PROVIDER
+          .getProperty("bundletool.compression.cache.memorysize")
+          .map(Long::parseLong)
+          .orElse(128L * 1024 * 1024); // 128 MB
+
+  private static final long MAX_ON_DISK_BYTES =
+      SystemEnvironmentProvider.DEFAULT_PROVIDER
+          .getProperty("bundletool.compression.cache.disksize")
+          .map(Long::parseLong)
+          .orElse(2L * 1024 * 1024 * 1024); // 2 GB
+
+  private final TempDirectory tempDirectory;
+  private final Cache<Key, InMemoryCompressedPayload> inMemoryPayloads;
+  private final Cache<Key, OnDiskCompressedPayload> onDiskPayloads;
+
+  @Inject
+  CompressedPayloadCache(TempDirectory tempDirectory) {
+    this(tempDirectory, MAX_IN_MEMORY_BYTES, MAX_ON_DISK_BYTES);
+  }
+
+  CompressedPayloadCache(TempDirectory tempDirectory, long maxInMemoryBytes, long maxOnDiskBytes) {
+    this.tempDirectory = tempDirectory;
+    this.inMemoryPayloads =
+        CacheBuilder.newBuilder()
+            .maximumWeight(maxInMemoryBytes)
+            .<Key, InMemoryCompressedPayload>weigher((key, payload) -> toWeight(payload.size()))
+            .build();
+    this.onDiskPayloads =
+        CacheBuilder.newBuilder()
+            .maximumWeight(maxOnDiskBytes)
+            .<Key, OnDiskCompressedPayload>weigher((key, payload) -> toWeight(payload.size()))
+            .<Key, OnDiskCompressedPayload>removalListener(
+                notification -> notification.getValue().release())
+            .build();
+  }
+
+  /**
+   * Returns the compressed payload identified by the given key, compressing it from {@code
+   * compressedPayload} if it isn't in the cache yet.
+   *
+   * <p>If several threads request the same payload concurrently, it is compressed only once.
+   */
+  public CompressedPayload getOrCompress(Key key, PayloadWriter compressedPayload)
+      throws IOException {
+    try {
+      if (key.getUncompressedSize() <= ZipEntrySource.STORE_ON_DISK_THRESHOLD_BYTES) {
+        return inMemoryPayloads.get(
+            key, () -> InMemoryCompressedPayload.create(compressedPayload));
+      }
+      return onDiskPayloads.get(
+          key, () -> OnDiskCompressedPayload.create(compressedPayload, tempDirectory));
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /** Returns an identifier of the content of an entry of the App Bundle. */
+  public static String bundleEntryContentId(Entry entry) {
+    // The App Bundle is not modified during the execution of a command, so the name of the entry
+    // uniquely identifies its content.
+    return "bundle:" + entry.getName();
+  }
+
+  /** Returns an identifier of the content of an entry of any zip file, based on its digest. */
+  public static String digestContentId(ZipReader zipReader, Entry entry) {
+    Hasher hasher = Hashing.sha256().newHasher();
+    if (!entry.isCompressed()) {
+      Optional<ByteBuffer> payload = zipReader.getPayloadBuffer(entry.getName());
+      if (payload.isPresent()) {
+        return "sha256:" + hasher.putBytes(payload.get()).hash();
+      }
+    }
+    try (InputStream in = zipReader.getUncompressedPayload(entry.getName())) {
+      ByteStreams.copy(in, Funnels.asOutputStream(hasher));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return "sha256:" + hasher.hash();
+  }
+
+  private static int toWeight(long size) {
+    return (int) Math.min(Integer.MAX_VALUE, size);
+  }
+
+  /** Key of the cache: the content of an entry and the level it is compressed with. */
+  @AutoValue
+  public abstract static class Key {
+    /** Identifier of the uncompressed content of the entry. */
+    abstract String getContentId();
+
+    abstract long getUncompressedSize();
+
+    abstract CompressionLevel getCompressionLevel();
+
+    public static Key create(
+        String contentId, long uncompressedSize, CompressionLevel compressionLevel) {
+      checkArgument(compressionLevel.isCompressed(), "Only compressed payloads can be cached.");
+      return new AutoValue_CompressedPayloadCache_Key(
+          contentId, uncompressedSize, compressionLevel);
+    }
+  }
+
+  /** Writes the compressed bytes of a payload. */
+  public interface PayloadWriter {
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  /** A compressed payload held by the cache. */
+  public abstract static class CompressedPayload {
+    /** Returns the size of the compressed payload. */
+    public abstract long size();
+
+    /**
+     * Writes the payload to the given zip writer.
+     *
+     * <p>Returns the number of bytes written, or an empty {@link Optional} if the payload has been
+     * evicted from the cache in the meantime, in which case nothing was written.
+     */
+    public abstract Optional<Long> tryWriteTo(ZipWriter writer) throws IOException;
+  }
+
+  private static final class InMemoryCompressedPayload extends CompressedPayload {
+    private final byte[] payloadBytes;
+
+    private InMemoryCompressedPayload(byte[] payloadBytes) {
+      this.payloadBytes = payloadBytes;
+    }
+
+    static InMemoryCompressedPayload create(PayloadWriter compressedPayload) throws IOException {
+      ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+      compressedPayload.writeTo(payloadBytes);
+      return new InMemoryCompressedPayload(payloadBytes.toByteArray());
+    }
+
+    @Override
+    public long size() {
+      return payloadBytes.length;
+    }
+
+    @Override
+    public Optional<Long> tryWriteTo(ZipWriter writer) throws IOException {
+      // A new buffer for each write since the payload may be written concurrently in other zips.
+      return Optional.of((long) writer.write(ByteBuffer.wrap(payloadBytes)));
+    }
+  }
+
+  /**
+   * A payload stored in a file, deleted once evicted from the cache and no longer being written.
+   */
+  private static final class OnDiskCompressedPayload extends CompressedPayload {
+    private final Path payloadPath;
+    private final long payloadSize;
+
+    /** Number of holders of the file, including the cache itself while the payload is cached. */
+    @GuardedBy("this")
+    private int references = 1;
+
+    private OnDiskCompressedPayload(Path payloadPath) throws IOException {
+      this.payloadPath = payloadPath;
+      this.payloadSize = Files.size(payloadPath);
+    }
+
+    static OnDiskCompressedPayload create(
+        PayloadWriter compressedPayload, TempDirectory tempDirectory) throws IOException {
+      Path payloadFile = Files.createTempFile(tempDirectory.getPath(), "cached", ".payload");
+      try (OutputStream out = BufferedIo.outputStream(payloadFile)) {
+        compressedPayload.writeTo(out);
+      }
+      return new OnDiskCompressedPayload(payloadFile);
+    }
+
+    @Override
+    public long size() {
+      return payloadSize;
+    }
+
+    @Override
+    public Optional<Long> tryWriteTo(ZipWriter writer) throws IOException {
+      if (!retain()) {
+        return Optional.empty();
+      }
+      try (FileChannel channel = FileChannel.open(payloadPath, READ)) {
+        writer.transferFrom(channel, 0, payloadSize);
+      } finally {
+        release();
+      }
+      return Optional.of(payloadSize);
+    }
+
+    private synchronized boolean retain() {
+      if (references == 0) {
+        return false;
+      }
+      references++;
+      return true;
+    }
+
+    private synchronized void release() {
+      references--;
+      if (references == 0) {
+        try {
+          Files.delete(payloadPath);
+        } catch (NoSuchFileException e) {
+          // Already deleted along with the temp directory.
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    }
+  }
+}
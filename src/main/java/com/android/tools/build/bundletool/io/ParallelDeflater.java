@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import static com.android.tools.build.bundletool.model.utils.ConcurrencyUtils.waitFor;
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.android.tools.build.bundletool.model.utils.ZlibContexts;
+import com.android.tools.build.bundletool.model.utils.ZlibContexts.PooledDeflater;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a stream into raw deflate data (no zlib header) using multiple threads.
+ *
+ * <p>The input is split into blocks which are compressed independently and concatenated, similarly
+ * to what pigz does. Each block is primed with the last 32 KB of the previous block as dictionary
+ * so that the compression ratio remains close to single-threaded compression. All blocks but the
+ * last are terminated with a sync flush so that they end on a byte boundary without marking the
+ * end of the stream, which makes the concatenation a valid deflate stream.
+ *
+ * <p>The output only depends on the input, the compression level and the block size, not on the
+ * number of threads or the scheduling of the tasks.
+ *
+ * <p>The blocks are compressed on the given executor, but the calling thread compresses itself
+ * any block that no thread has started yet, so this is safe to call from a task running on the
+ * same executor.
+ */
+final class ParallelDeflater {
+
+  /** Size of the blocks compressed independently. */
+  static final int BLOCK_SIZE_BYTES = 512 * 1024;
+
+  /** Size of the window of deflate, i.e. the max distance of back-references. */
+  private static final int DICTIONARY_SIZE_BYTES = 32 * 1024;
+
+  private static final int OUTPUT_BUFFER_SIZE_BYTES = 64 * 1024;
+
+  private final ListeningExecutorService executor;
+  private final int compressionLevel;
+  private final int maxBlocksInFlight;
+
+  ParallelDeflater(ListeningExecutorService executor, int compressionLevel) {
+    this(executor, compressionLevel, 2 * Runtime.getRuntime().availableProcessors());
+  }
+
+  ParallelDeflater(ListeningExecutorService executor, int compressionLevel, int maxBlocksInFlight) {
+    checkArgument(maxBlocksInFlight > 0, "At least one block must be compressed at a time.");
+    this.executor = executor;
+    this.compressionLevel = compressionLevel;
+    this.maxBlocksInFlight = maxBlocksInFlight;
+  }
+
+  /** Compresses all the bytes of {@code in} and writes the raw deflate data to {@code out}. */
+  void deflate(InputStream in, OutputStream out) throws IOException {
+    // Blocks are compressed in order, at most maxBlocksInFlight of them being kept in memory.
+    Deque<ListenableFutureTask<byte[]>> pendingBlocks = new ArrayDeque<>();
+    byte[] previousBlock = null;
+    byte[] block = readBlock(in);
+    while (true) {
+      byte[] nextBlock = block.length == BLOCK_SIZE_BYTES ? readBlock(in) : new byte[0];
+      boolean isLastBlock = nextBlock.length == 0;
+      byte[] dictionary = previousBlock == null ? null : lastBytes(previousBlock);
+      byte[] currentBlock = block;
+      ListenableFutureTask<byte[]> blockTask =
+          ListenableFutureTask.create(() -> deflateBlock(currentBlock, dictionary, isLastBlock));
+      pendingBlocks.add(blockTask);
+      executor.execute(blockTask);
+
+      if (pendingBlocks.size() >= maxBlocksInFlight) {
+        writeBlock(pendingBlocks.remove(), out);
+      }
+      if (isLastBlock) {
+        break;
+      }
+      previousBlock = block;
+      block = nextBlock;
+    }
+    while (!pendingBlocks.isEmpty()) {
+      writeBlock(pendingBlocks.remove(), out);
+    }
+  }
+
+  private static void writeBlock(ListenableFutureTask<byte[]> blockTask, OutputStream out)
+      throws IOException {
+    // No-op if the task has already been started by the executor.
+    blockTask.run();
+    out.write(waitFor(blockTask));
+  }
+
+  private byte[] deflateBlock(byte[] block, byte[] dictionary, boolean isLastBlock) {
+    try (PooledDeflater pooledDeflater =
+        ZlibContexts.acquireDeflater(compressionLevel, /* nowrap= */ true)) {
+      Deflater deflater = pooledDeflater.get();
+      if (dictionary != null) {
+        deflater.setDictionary(dictionary);
+      }
+      deflater.setInput(block);
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(block.length / 2 + 64);
+      byte[] buffer = new byte[OUTPUT_BUFFER_SIZE_BYTES];
+      if (isLastBlock) {
+        deflater.finish();
+        while (!deflater.finished()) {
+          int length = deflater.deflate(buffer);
+          compressed.write(buffer, 0, length);
+        }
+      } else {
+        // A sync flush is complete once the output buffer is not filled entirely.
+        int length;
+        do {
+          length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+          compressed.write(buffer, 0, length);
+        } while (length == buffer.length);
+      }
+      return compressed.toByteArray();
+    }
+  }
+
+  private static byte[] readBlock(InputStream in) throws IOException {
+    byte[] block = new byte[BLOCK_SIZE_BYTES];
+    int length = ByteStreams.read(in, block, 0, block.length);
+    return length == block.length ? block : Arrays.copyOf(block, length);
+  }
+
+  private static byte[] lastBytes(byte[] block) {
+    return Arrays.copyOfRange(
+        block, Math.max(0, block.length - DICTIONARY_SIZE_BYTES), block.length);
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import static com.google.common.base.Preconditions.checkState;
+import static java.nio.file.StandardOpenOption.READ;
+
+import com.android.zipflinger.Source;
+import com.android.zipflinger.ZipWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+/**
+ * A {@link Source} which stores the content of a file on disk uncompressed in the zip.
+ *
+ * <p>The file is read once to compute its CRC32, then its bytes are copied to the zip using {@link
+ * FileChannel#transferTo} without going through the Java heap.
+ */
+final class StoredFileSource extends Source {
+
+  private static final int BUFFER_SIZE_BYTES = 64 * 1024;
+
+  private final Path file;
+
+  StoredFileSource(Path file, String entryName) throws IOException {
+    super(entryName);
+    this.file = file;
+    this.uncompressedSize = Files.size(file);
+    this.compressedSize = uncompressedSize;
+    this.crc = computeCrc32(file);
+    this.compressionFlag = (short) ZipEntry.STORED;
+  }
+
+  @Override
+  public void prepare() {}
+
+  @Override
+  public long writeTo(ZipWriter writer) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, READ)) {
+      checkState(channel.size() == uncompressedSize, "File '%s' was modified.", file);
+      writer.transferFrom(channel, 0, uncompressedSize);
+    }
+    return uncompressedSize;
+  }
+
+  private static int computeCrc32(Path file) throws IOException {
+    CRC32 crc32 = new CRC32();
+    byte[] buffer = new byte[BUFFER_SIZE_BYTES];
+    try (InputStream in = Files.newInputStream(file)) {
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        crc32.update(buffer, 0, read);
+      }
+    }
+    return (int) crc32.getValue();
+  }
+}
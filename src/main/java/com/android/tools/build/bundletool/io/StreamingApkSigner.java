@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.io;
+
+import static com.android.tools.build.bundletool.io.ApkSigner.signingException;
+import static com.google.common.base.Preconditions.checkState;
+import static java.nio.ByteOrder.LITTLE_ENDIAN;
+
+import com.android.apksig.ApkSignerEngine;
+import com.android.apksig.ApkSignerEngine.InspectJarEntryRequest;
+import com.android.apksig.ApkSignerEngine.OutputApkSigningBlockRequest2;
+import com.android.apksig.ApkSignerEngine.OutputJarSignatureRequest;
+import com.android.apksig.apk.ApkFormatException;
+import com.android.apksig.apk.ApkUtils;
+import com.android.apksig.apk.ApkUtils.ZipSections;
+import com.android.apksig.internal.util.Pair;
+import com.android.apksig.util.DataSink;
+import com.android.apksig.util.DataSource;
+import com.android.apksig.util.DataSources;
+import com.android.apksig.zip.ZipFormatException;
+import com.android.zipflinger.ZipArchive;
+import com.google.common.io.ByteSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.zip.Deflater;
+
+/**
+ * Signs an APK while it is being written, rather than reading and re-writing the whole APK once
+ * written like {@link ApkSigner#signApk} does.
+ *
+ * <p>The uncompressed content of every entry must be passed to {@link #addEntry} as the entry is
+ * written, so that the v1 digests are computed inline, and the source stamp certificate digest and
+ * v1 signature files must be written with {@link #writeSignatureEntries} before the APK is closed. Once the APK is closed, {@link
+ * #signApk} inserts the APK Signing Block (v2 and v3 signatures) before the central directory,
+ * which only requires re-writing the central directory.
+ */
+final class StreamingApkSigner implements AutoCloseable {
+
+  private static final int BUFFER_SIZE_BYTES = 8192;
+
+  /** Offset of the central directory offset field in the End of Central Directory record. */
+  private static final int EOCD_CENTRAL_DIRECTORY_OFFSET_FIELD_OFFSET = 16;
+
+  private final ApkSignerEngine signerEngine;
+
+  StreamingApkSigner(ApkSignerEngine signerEngine) {
+    this.signerEngine = signerEngine;
+  }
+
+  /** Passes the uncompressed content of an entry written in the APK to the signer. */
+  void addEntry(String entryName, ByteSource uncompressedContent) throws IOException {
+    // Only requested when signing with the v1 scheme.
+    InspectJarEntryRequest inspectEntryRequest = signerEngine.outputJarEntry(entryName);
+    if (inspectEntryRequest == null) {
+      return;
+    }
+    DataSink dataSink = inspectEntryRequest.getDataSink();
+    try (InputStream content = uncompressedContent.openStream()) {
+      byte[] buffer = new byte[BUFFER_SIZE_BYTES];
+      int read;
+      while ((read = content.read(buffer)) != -1) {
+        dataSink.consume(buffer, 0, read);
+      }
+    }
+    inspectEntryRequest.done();
+  }
+
+  /**
+   * Writes the source stamp certificate digest and the v1 signature files, if any, in the APK.
+   *
+   * <p>Must be called after all other entries. Like {@link com.android.apksig.ApkSigner}, the
+   * source stamp certificate digest is written first, so that it's covered by the v1 signature.
+   */
+  void writeSignatureEntries(ZipArchive apkWriter) throws IOException {
+    try {
+      Pair<String, byte[]> sourceStampCertificateDigest =
+          signerEngine.generateSourceStampCertificateDigest();
+      if (sourceStampCertificateDigest != null) {
+        addEntry(
+            sourceStampCertificateDigest.getFirst(),
+            ByteSource.wrap(sourceStampCertificateDigest.getSecond()));
+        apkWriter.add(
+            new BytesSource2(
+                sourceStampCertificateDigest.getSecond(),
+                sourceStampCertificateDigest.getFirst(),
+                Deflater.DEFAULT_COMPRESSION));
+      }
+
+      OutputJarSignatureRequest outputJarSignatureRequest = signerEngine.outputJarEntries();
+      if (outputJarSignatureRequest == null) {
+        return;
+      }
+      for (OutputJarSignatureRequest.JarEntry entry :
+          outputJarSignatureRequest.getAdditionalJarEntries()) {
+        addEntry(entry.getName(), ByteSource.wrap(entry.getData()));
+        apkWriter.add(
+            new BytesSource2(entry.getData(), entry.getName(), Deflater.DEFAULT_COMPRESSION));
+      }
+      outputJarSignatureRequest.done();
+    } catch (ApkFormatException
+        | NoSuchAlgorithmException
+        | InvalidKeyException
+        | SignatureException e) {
+      throw signingException(e);
+    }
+  }
+
+  /**
+   * Inserts the APK Signing Block in the given APK, which must have been written entirely.
+   *
+   * <p>Only the central directory and the End of Central Directory record are re-written, after
+   * the signing block.
+   */
+  void signApk(Path apkPath) throws IOException {
+    try (RandomAccessFile apkFile = new RandomAccessFile(apkPath.toFile(), "rw")) {
+      DataSource apk = DataSources.asDataSource(apkFile);
+      ZipSections zipSections = ApkUtils.findZipSections(apk);
+      long centralDirectoryOffset = zipSections.getZipCentralDirectoryOffset();
+      byte[] centralDirectory =
+          readBytes(
+              apk, centralDirectoryOffset, zipSections.getZipCentralDirectorySizeBytes());
+      long eocdOffset = zipSections.getZipEndOfCentralDirectoryOffset();
+      byte[] eocd = readBytes(apk, eocdOffset, apk.size() - eocdOffset);
+
+      OutputApkSigningBlockRequest2 outputApkSigningBlockRequest =
+          signerEngine.outputZipSections2(
+              apk.slice(0, centralDirectoryOffset),
+              DataSources.asDataSource(ByteBuffer.wrap(centralDirectory)),
+              DataSources.asDataSource(ByteBuffer.wrap(eocd)));
+      if (outputApkSigningBlockRequest != null) {
+        int padding = outputApkSigningBlockRequest.getPaddingSizeBeforeApkSigningBlock();
+        byte[] apkSigningBlock = outputApkSigningBlockRequest.getApkSigningBlock();
+        long newCentralDirectoryOffset = centralDirectoryOffset + padding + apkSigningBlock.length;
+        checkState(
+            newCentralDirectoryOffset <= 0xFFFFFFFFL, "APK too large to insert a signing block.");
+        ByteBuffer.wrap(eocd)
+            .order(LITTLE_ENDIAN)
+            .putInt(EOCD_CENTRAL_DIRECTORY_OFFSET_FIELD_OFFSET, (int) newCentralDirectoryOffset);
+
+        apkFile.seek(centralDirectoryOffset);
+        apkFile.write(new byte[padding]);
+        apkFile.write(apkSigningBlock);
+        apkFile.write(centralDirectory);
+        apkFile.write(eocd);
+        apkFile.setLength(apkFile.getFilePointer());
+        outputApkSigningBlockRequest.done();
+      }
+      signerEngine.outputDone();
+    } catch (ZipFormatException
+        | ApkFormatException
+        | NoSuchAlgorithmException
+        | InvalidKeyException
+        | SignatureException e) {
+      throw signingException(e);
+    }
+  }
+
+  @Override
+  public void close() {
+    signerEngine.close();
+  }
+
+  private static byte[] readBytes(DataSource dataSource, long offset, long size)
+      throws IOException {
+    ByteBuffer buffer = dataSource.getByteBuffer(offset, Math.toIntExact(size));
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return bytes;
+  }
+}
@@ -20,6 +20,7 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
 import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.tools.build.bundletool.model.utils.Crc32Source;
 import com.android.tools.build.bundletool.model.utils.ZipUtils;
 import com.android.tools.build.bundletool.model.utils.files.BufferedIo;
 import com.google.auto.value.AutoValue;
@@ -37,6 +38,7 @@ import java.util.Enumeration;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
@@ -49,7 +51,11 @@ import javax.annotation.concurrent.GuardedBy;
  * invoked.
  */
 public final class ZipBuilder {
-  private static final long PRELOAD_INTO_MEMORY_THRESHOLD = 150 * 1024 * 1024L;
+  /**
+   * Uncompressed entries smaller than this are loaded in memory so that their content is read only
+   * once. Larger entries are read twice but never held in memory.
+   */
+  private static final long PRELOAD_INTO_MEMORY_THRESHOLD = 1024 * 1024L;
   private static final long EPOCH = 0L;
 
   /** Entries to be output. */
@@ -87,21 +93,9 @@ public final class ZipBuilder {
             zipEntry.setTime(EPOCH);
             if (entry.hasOption(EntryOption.UNCOMPRESSED)) {
               zipEntry.setMethod(ZipEntry.STORED);
-              // ZipFile API requires us to set the following properties manually for uncompressed
-              // ZipEntries, just setting the compression method is not enough.
-              ByteSource originalData = entry.getContent().get();
-              // If entry is small enough it would be better to preload it into memory to not
-              // read it twice. Two reads are required because we need to know crc32 before we put
-              // entry content into zip.
-              ByteSource entryData =
-                  originalData.size() < PRELOAD_INTO_MEMORY_THRESHOLD
-                      ? preloadEntryData(originalData)
-                      : originalData;
-              zipEntry.setSize(entryData.size());
-              zipEntry.setCompressedSize(entryData.size());
-              zipEntry.setCrc(entryData.hash(Hashing.crc32()).padToLong());
+              ByteSource entryData = setStoredEntrySizeAndCrc(zipEntry, entry.getContent().get());
               outZip.putNextEntry(zipEntry);
-              entry.getContent().get().copyTo(outZip);
+              entryData.copyTo(outZip);
             } else {
               outZip.putNextEntry(zipEntry);
               entry.getContent().get().copyTo(outZip);
@@ -282,6 +276,41 @@ public final class ZipBuilder {
     UNCOMPRESSED
   }
 
+  /**
+   * Sets the size and CRC-32 of an uncompressed entry, which the ZipFile API requires before the
+   * content is written.
+   *
+   * <p>They are taken from the content when it knows them upfront, e.g. when copied from another
+   * zip file, otherwise the content is read once to compute them.
+   *
+   * @return the content to write in the entry
+   */
+  private static ByteSource setStoredEntrySizeAndCrc(ZipEntry zipEntry, ByteSource content)
+      throws IOException {
+    ByteSource entryData = content;
+    long size;
+    long crc;
+    OptionalLong knownCrc =
+        content instanceof Crc32Source
+            ? ((Crc32Source) content).crc32IfKnown()
+            : OptionalLong.empty();
+    Optional<Long> knownSize = content.sizeIfKnown().toJavaUtil();
+    if (knownCrc.isPresent() && knownSize.isPresent()) {
+      size = knownSize.get();
+      crc = knownCrc.getAsLong();
+    } else {
+      size = content.size();
+      if (size < PRELOAD_INTO_MEMORY_THRESHOLD) {
+        entryData = preloadEntryData(content);
+      }
+      crc = entryData.hash(Hashing.crc32()).padToLong();
+    }
+    zipEntry.setSize(size);
+    zipEntry.setCompressedSize(size);
+    zipEntry.setCrc(crc);
+    return entryData;
+  }
+
   private static ByteSource preloadEntryData(ByteSource byteSource) throws IOException {
     return ByteSource.wrap(byteSource.read());
   }
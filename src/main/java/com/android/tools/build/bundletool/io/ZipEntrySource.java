@@ -20,27 +20,33 @@ import static com.android.tools.build.bundletool.model.CompressionLevel.SAME_AS_
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
-import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static java.nio.file.StandardOpenOption.READ;
 
+import com.android.tools.build.bundletool.io.CompressedPayloadCache.CompressedPayload;
+import com.android.tools.build.bundletool.io.CompressedPayloadCache.PayloadWriter;
 import com.android.tools.build.bundletool.model.CompressionLevel;
 import com.android.tools.build.bundletool.model.ZipPath;
 import com.android.tools.build.bundletool.model.utils.SystemEnvironmentProvider;
+import com.android.tools.build.bundletool.model.utils.ZlibContexts;
+import com.android.tools.build.bundletool.model.utils.files.BufferedIo;
 import com.android.zipflinger.Entry;
 import com.android.zipflinger.Location;
 import com.android.zipflinger.Source;
 import com.android.zipflinger.ZipWriter;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.errorprone.annotations.MustBeClosed;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.zip.Deflater;
-import java.util.zip.DeflaterInputStream;
+import java.util.Optional;
+import java.util.function.Function;
 import java.util.zip.ZipEntry;
 
 /** A {@link Source} which can change the compression of an entry. */
@@ -60,6 +66,21 @@ public final class ZipEntrySource extends Source {
           .map(Integer::parseInt)
           .orElse(1024 * 1024); // 1 MB
 
+  /**
+   * Threshold of the size of entries above which the compression is split in blocks compressed in
+   * parallel, when an executor is available.
+   *
+   * <p>Can be overridden using the system property "bundletool.compression.parallel.entrysize".
+   */
+  @VisibleForTesting
+  static final long PARALLEL_COMPRESSION_THRESHOLD_BYTES =
+      SystemEnvironmentProvider.DEFAULT_PROVIDER
+          .getProperty("bundletool.compression.parallel.entrysize")
+          .map(Long::parseLong)
+          .orElse(16L * 1024 * 1024); // 16 MB
+
+  private static final int BUFFER_SIZE_BYTES = 8192;
+
   private final Entry entry;
   private final Payload payload;
   private final CompressionLevel compressionLevel;
@@ -107,7 +128,68 @@ public final class ZipEntrySource extends Source {
       CompressionLevel compressionLevel,
       TempDirectory tempDirectory)
       throws IOException {
-    Payload payload = buildPayload(zipReader, entry, compressionLevel, tempDirectory);
+    return create(
+        zipReader,
+        entry,
+        newEntryName,
+        compressionLevel,
+        tempDirectory,
+        /* parallelCompressionExecutor= */ Optional.empty());
+  }
+
+  /**
+   * Same as {@link #create(ZipReader, Entry, ZipPath, CompressionLevel, TempDirectory)} but large
+   * entries are compressed in parallel on the given executor, if present.
+   */
+  static ZipEntrySource create(
+      ZipReader zipReader,
+      Entry entry,
+      ZipPath newEntryName,
+      CompressionLevel compressionLevel,
+      TempDirectory tempDirectory,
+      Optional<ListeningExecutorService> parallelCompressionExecutor)
+      throws IOException {
+    Payload payload =
+        buildPayload(
+            zipReader, entry, compressionLevel, tempDirectory, parallelCompressionExecutor);
+    return new ZipEntrySource(entry, newEntryName, payload, compressionLevel);
+  }
+
+  /**
+   * Same as {@link #create(ZipReader, Entry, ZipPath, CompressionLevel, TempDirectory)} but the
+   * compressed payload is looked up in, and added to, the given {@link CompressedPayloadCache}.
+   *
+   * @param contentIdFunction returns an identifier of the uncompressed content of the entry; only
+   *     invoked if the entry needs to be compressed.
+   */
+  static ZipEntrySource createWithCache(
+      ZipReader zipReader,
+      Entry entry,
+      ZipPath newEntryName,
+      CompressionLevel compressionLevel,
+      TempDirectory tempDirectory,
+      Optional<ListeningExecutorService> parallelCompressionExecutor,
+      CompressedPayloadCache payloadCache,
+      Function<Entry, String> contentIdFunction)
+      throws IOException {
+    if (!compressionLevel.isCompressed()) {
+      return create(
+          zipReader,
+          entry,
+          newEntryName,
+          compressionLevel,
+          tempDirectory,
+          parallelCompressionExecutor);
+    }
+    CompressedPayloadCache.Key key =
+        CompressedPayloadCache.Key.create(
+            contentIdFunction.apply(entry), entry.getUncompressedSize(), compressionLevel);
+    PayloadWriter payloadWriter =
+        out ->
+            writeRecompressedPayload(
+                zipReader, entry, compressionLevel, parallelCompressionExecutor, out);
+    CompressedPayload cachedPayload = payloadCache.getOrCompress(key, payloadWriter);
+    Payload payload = new CachedPayload(cachedPayload, payloadWriter);
     return new ZipEntrySource(entry, newEntryName, payload, compressionLevel);
   }
 
@@ -115,7 +197,8 @@ public final class ZipEntrySource extends Source {
       ZipReader zipReader,
       Entry entry,
       CompressionLevel compressionLevel,
-      TempDirectory tempDirectory)
+      TempDirectory tempDirectory,
+      Optional<ListeningExecutorService> parallelCompressionExecutor)
       throws IOException {
     switch (compressionLevel) {
       case SAME_AS_SOURCE:
@@ -129,10 +212,14 @@ public final class ZipEntrySource extends Source {
       case DEFAULT_COMPRESSION:
       case BEST_COMPRESSION:
         if (entry.getUncompressedSize() <= STORE_ON_DISK_THRESHOLD_BYTES) {
-          ByteBuffer buffer = extractPayloadToByteBuffer(zipReader, entry, compressionLevel);
+          ByteBuffer buffer =
+              extractPayloadToByteBuffer(
+                  zipReader, entry, compressionLevel, parallelCompressionExecutor);
           return new InMemoryPayload(buffer);
         } else {
-          Path file = extractPayloadToFile(zipReader, entry, compressionLevel, tempDirectory);
+          Path file =
+              extractPayloadToFile(
+                  zipReader, entry, compressionLevel, tempDirectory, parallelCompressionExecutor);
           return new OnDiskPayload(file);
         }
     }
@@ -143,22 +230,53 @@ public final class ZipEntrySource extends Source {
       ZipReader zipReader,
       Entry entry,
       CompressionLevel compressionLevel,
-      TempDirectory tempDirectory)
+      TempDirectory tempDirectory,
+      Optional<ListeningExecutorService> parallelCompressionExecutor)
       throws IOException {
     Path payloadFile = Files.createTempFile(tempDirectory.getPath(), "entry", ".payload");
-    try (InputStream in = recompressedPayloadInputStream(zipReader, entry, compressionLevel)) {
-      Files.copy(in, payloadFile, REPLACE_EXISTING);
+    try (OutputStream out = BufferedIo.outputStream(payloadFile)) {
+      writeRecompressedPayload(zipReader, entry, compressionLevel, parallelCompressionExecutor, out);
     }
     return payloadFile;
   }
 
   private static ByteBuffer extractPayloadToByteBuffer(
-      ZipReader zipReader, Entry entry, CompressionLevel compressionLevel) throws IOException {
-    byte[] payloadBytes;
+      ZipReader zipReader,
+      Entry entry,
+      CompressionLevel compressionLevel,
+      Optional<ListeningExecutorService> parallelCompressionExecutor)
+      throws IOException {
+    ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+    writeRecompressedPayload(
+        zipReader, entry, compressionLevel, parallelCompressionExecutor, payloadBytes);
+    return ByteBuffer.wrap(payloadBytes.toByteArray());
+  }
+
+  /**
+   * Writes the payload of the entry compressed with the given compression level.
+   *
+   * <p>Entries larger than {@link #PARALLEL_COMPRESSION_THRESHOLD_BYTES} are compressed in
+   * parallel if an executor is given, otherwise the compression happens on the calling thread.
+   */
+  private static void writeRecompressedPayload(
+      ZipReader zipReader,
+      Entry entry,
+      CompressionLevel compressionLevel,
+      Optional<ListeningExecutorService> parallelCompressionExecutor,
+      OutputStream out)
+      throws IOException {
+    if (parallelCompressionExecutor.isPresent()
+        && entry.getUncompressedSize() >= PARALLEL_COMPRESSION_THRESHOLD_BYTES) {
+      checkArgument(compressionLevel.isCompressed());
+      try (InputStream in = zipReader.getUncompressedPayload(entry.getName())) {
+        new ParallelDeflater(parallelCompressionExecutor.get(), compressionLevel.getValue())
+            .deflate(in, out);
+      }
+      return;
+    }
     try (InputStream in = recompressedPayloadInputStream(zipReader, entry, compressionLevel)) {
-      payloadBytes = ByteStreams.toByteArray(in);
+      ByteStreams.copy(in, out);
     }
-    return ByteBuffer.wrap(payloadBytes);
   }
 
   @SuppressWarnings("MustBeClosedChecker") // Stream will be closed when the return value is closed.
@@ -166,9 +284,9 @@ public final class ZipEntrySource extends Source {
   private static InputStream recompressedPayloadInputStream(
       ZipReader zipReader, Entry entry, CompressionLevel compressionLevel) {
     checkArgument(compressionLevel.isCompressed());
-    Deflater deflater = new Deflater(compressionLevel.getValue(), /* nowrap= */ true);
     InputStream contentStream = zipReader.getUncompressedPayload(entry.getName());
-    return new DeflaterInputStream(contentStream, deflater);
+    return ZlibContexts.deflaterInputStream(
+        contentStream, compressionLevel.getValue(), /* nowrap= */ true);
   }
 
   @Override
@@ -285,10 +403,40 @@ public final class ZipEntrySource extends Source {
     }
   }
 
+  /** A {@link Payload} shared with other zip entries through a {@link CompressedPayloadCache}. */
+  private static final class CachedPayload extends Payload {
+
+    private final CompressedPayload cachedPayload;
+    private final PayloadWriter payloadWriter;
+
+    CachedPayload(CompressedPayload cachedPayload, PayloadWriter payloadWriter) {
+      this.cachedPayload = cachedPayload;
+      this.payloadWriter = payloadWriter;
+    }
+
+    @Override
+    public long writeTo(ZipWriter writer) throws IOException {
+      Optional<Long> bytesWritten = cachedPayload.tryWriteTo(writer);
+      if (bytesWritten.isPresent()) {
+        return bytesWritten.get();
+      }
+      // The payload was evicted from the cache in the meantime, so we compress it again. The
+      // compression is deterministic so the output has the same size as the cached payload.
+      ZipWriterOutputStream out = new ZipWriterOutputStream(writer);
+      payloadWriter.writeTo(out);
+      checkState(
+          out.getBytesWritten() == cachedPayload.size(), "Unexpected size of compressed payload.");
+      return out.getBytesWritten();
+    }
+
+    @Override
+    public long size() {
+      return cachedPayload.size();
+    }
+  }
+
   /** A {@link Payload} read from a zip and uncompressed on the fly. */
   private static final class UncompressedPayload extends Payload {
-    private static final int BUFFER_SIZE_BYTES = 8192;
-
     private final ZipReader zipReader;
     private final Entry entry;
 
@@ -299,36 +447,70 @@ public final class ZipEntrySource extends Source {
 
     @Override
     public long writeTo(ZipWriter writer) throws IOException {
-      ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE_BYTES);
-
-      int totalBytes = 0;
+      long totalBytes;
       try (InputStream in = zipReader.getUncompressedPayload(entry.getName())) {
-        // TODO: Replace this with write.transferFrom(Channels.newChannel(in)) once zipflinger
-        // supports ReadableByteChannel.
-        int read;
-        while ((read = copy(in, buffer)) > 0 || buffer.position() != 0) {
-          buffer.flip();
-          totalBytes += writer.write(buffer);
-          buffer.compact();
-        }
+        totalBytes = writeStream(in, writer);
       }
       checkState(totalBytes == entry.getUncompressedSize(), "Fewer bytes written than expected.");
 
       return totalBytes;
     }
 
-    @SuppressWarnings("ByteBufferBackingArray") // ByteBuffer was constructed locally.
-    private static int copy(InputStream in, ByteBuffer buffer) throws IOException {
-      int read = in.read(buffer.array(), buffer.position(), buffer.remaining());
-      if (read > 0) {
-        buffer.position(buffer.position() + read);
-      }
-      return read;
-    }
-
     @Override
     public long size() {
       return entry.getUncompressedSize();
     }
   }
+
+  /** An {@link OutputStream} writing directly to a {@link ZipWriter}. */
+  private static final class ZipWriterOutputStream extends OutputStream {
+    private final ZipWriter writer;
+    private long bytesWritten = 0;
+
+    ZipWriterOutputStream(ZipWriter writer) {
+      this.writer = writer;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+      while (buffer.hasRemaining()) {
+        bytesWritten += writer.write(buffer);
+      }
+    }
+
+    long getBytesWritten() {
+      return bytesWritten;
+    }
+  }
+
+  /** Writes all the bytes of the given stream to the {@link ZipWriter}. */
+  private static long writeStream(InputStream in, ZipWriter writer) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE_BYTES);
+
+    long totalBytes = 0;
+    // TODO: Replace this with write.transferFrom(Channels.newChannel(in)) once zipflinger
+    // supports ReadableByteChannel.
+    int read;
+    while ((read = copy(in, buffer)) > 0 || buffer.position() != 0) {
+      buffer.flip();
+      totalBytes += writer.write(buffer);
+      buffer.compact();
+    }
+    return totalBytes;
+  }
+
+  @SuppressWarnings("ByteBufferBackingArray") // ByteBuffer was constructed locally.
+  private static int copy(InputStream in, ByteBuffer buffer) throws IOException {
+    int read = in.read(buffer.array(), buffer.position(), buffer.remaining());
+    if (read > 0) {
+      buffer.position(buffer.position() + read);
+    }
+    return read;
+  }
 }
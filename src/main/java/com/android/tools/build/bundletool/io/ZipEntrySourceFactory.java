@@ -18,7 +18,10 @@ package com.android.tools.build.bundletool.io;
 import com.android.tools.build.bundletool.model.CompressionLevel;
 import com.android.tools.build.bundletool.model.ZipPath;
 import com.android.zipflinger.Entry;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import java.io.IOException;
+import java.util.Optional;
+import java.util.function.Function;
 
 /**
  * Factory to build {@link ZipEntrySource} for a given zip file.
@@ -30,14 +33,59 @@ public final class ZipEntrySourceFactory {
 
   private final ZipReader zipReader;
   private final TempDirectory tempDirectory;
+  private final Optional<CompressedPayloadCache> payloadCache;
+  private final Function<Entry, String> contentIdFunction;
+  private final Optional<ListeningExecutorService> parallelCompressionExecutor;
 
   /**
    * Builds a factory of {@link ZipEntrySource} where all created objects will share the given zip
    * file as source.
    */
   public ZipEntrySourceFactory(ZipReader zipReader, TempDirectory tempDirectory) {
+    this(zipReader, tempDirectory, Optional.empty(), Entry::getName, Optional.empty());
+  }
+
+  private ZipEntrySourceFactory(
+      ZipReader zipReader,
+      TempDirectory tempDirectory,
+      Optional<CompressedPayloadCache> payloadCache,
+      Function<Entry, String> contentIdFunction,
+      Optional<ListeningExecutorService> parallelCompressionExecutor) {
     this.zipReader = zipReader;
     this.tempDirectory = tempDirectory;
+    this.payloadCache = payloadCache;
+    this.contentIdFunction = contentIdFunction;
+    this.parallelCompressionExecutor = parallelCompressionExecutor;
+  }
+
+  /**
+   * Returns a factory of {@link ZipEntrySource} that re-uses the compressed payloads stored in the
+   * given cache.
+   *
+   * @param contentIdFunction returns an identifier of the uncompressed content of an entry of the
+   *     zip file, see {@link CompressedPayloadCache#bundleEntryContentId} and {@link
+   *     CompressedPayloadCache#digestContentId}.
+   */
+  public ZipEntrySourceFactory withPayloadCache(
+      CompressedPayloadCache payloadCache, Function<Entry, String> contentIdFunction) {
+    return new ZipEntrySourceFactory(
+        zipReader,
+        tempDirectory,
+        Optional.of(payloadCache),
+        contentIdFunction,
+        parallelCompressionExecutor);
+  }
+
+  /**
+   * Returns a factory of {@link ZipEntrySource} that compresses large entries in blocks in parallel
+   * on the given executor.
+   *
+   * <p>The compressed payload does not depend on the number of threads, so the output remains
+   * deterministic.
+   */
+  public ZipEntrySourceFactory withParallelCompression(ListeningExecutorService executor) {
+    return new ZipEntrySourceFactory(
+        zipReader, tempDirectory, payloadCache, contentIdFunction, Optional.of(executor));
   }
 
   /**
@@ -45,7 +93,7 @@ public final class ZipEntrySourceFactory {
    * compression level.
    */
   public ZipEntrySource create(Entry entry, CompressionLevel compressionLevel) throws IOException {
-    return ZipEntrySource.create(zipReader, entry, compressionLevel, tempDirectory);
+    return create(entry, ZipPath.create(entry.getName()), compressionLevel);
   }
 
   /**
@@ -56,6 +104,23 @@ public final class ZipEntrySourceFactory {
    */
   public ZipEntrySource create(Entry entry, ZipPath newEntryName, CompressionLevel compressionLevel)
       throws IOException {
-    return ZipEntrySource.create(zipReader, entry, newEntryName, compressionLevel, tempDirectory);
+    if (payloadCache.isPresent()) {
+      return ZipEntrySource.createWithCache(
+          zipReader,
+          entry,
+          newEntryName,
+          compressionLevel,
+          tempDirectory,
+          parallelCompressionExecutor,
+          payloadCache.get(),
+          contentIdFunction);
+    }
+    return ZipEntrySource.create(
+        zipReader,
+        entry,
+        newEntryName,
+        compressionLevel,
+        tempDirectory,
+        parallelCompressionExecutor);
   }
 }
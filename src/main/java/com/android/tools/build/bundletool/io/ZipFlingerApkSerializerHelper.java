@@ -25,7 +25,6 @@ import static com.android.tools.build.bundletool.model.utils.files.FileUtils.cre
 import static com.android.tools.build.bundletool.model.version.VersionGuardedFeature.NO_DEFAULT_UNCOMPRESS_EXTENSIONS;
 import static com.android.zipflinger.Source.NO_ALIGNMENT;
 import static com.google.common.base.Preconditions.checkNotNull;
-import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.collect.ImmutableMap.toImmutableMap;
 import static com.google.common.collect.ImmutableSet.toImmutableSet;
@@ -36,6 +35,7 @@ import com.android.bundle.Config.BundleConfig;
 import com.android.bundle.Config.ResourceOptimizations.SparseEncoding;
 import com.android.tools.build.bundletool.androidtools.Aapt2Command;
 import com.android.tools.build.bundletool.commands.BuildApksManagerComponent.UseBundleCompression;
+import com.android.tools.build.bundletool.io.Aapt2ConversionCache.ConvertedApk;
 import com.android.tools.build.bundletool.model.BundleModule.SpecialModuleEntry;
 import com.android.tools.build.bundletool.model.CompressionLevel;
 import com.android.tools.build.bundletool.model.ModuleEntry;
@@ -51,9 +51,10 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.io.ByteSource;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import java.io.IOException;
 import java.io.UncheckedIOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Map;
 import java.util.Optional;
@@ -72,6 +73,9 @@ final class ZipFlingerApkSerializerHelper extends ApkSerializerHelper {
   private final ZipReader bundleZipReader;
   private final BundleConfig bundleConfig;
   private final ApkSigner apkSigner;
+  private final CompressedPayloadCache compressedPayloadCache;
+  private final Aapt2ConversionCache aapt2ConversionCache;
+  private final ListeningExecutorService executorService;
   private final Aapt2Command aapt2;
   private final Version bundletoolVersion;
   private final boolean enableSparseEncoding;
@@ -91,12 +95,18 @@ final class ZipFlingerApkSerializerHelper extends ApkSerializerHelper {
       Aapt2Command aapt2,
       Version bundletoolVersion,
       ApkSigner apkSigner,
+      CompressedPayloadCache compressedPayloadCache,
+      Aapt2ConversionCache aapt2ConversionCache,
+      ListeningExecutorService executorService,
       @UseBundleCompression boolean useBundleCompression) {
     this.bundleZipReader = bundleZipReader;
     this.bundleConfig = bundleConfig;
     this.aapt2 = aapt2;
     this.bundletoolVersion = bundletoolVersion;
     this.apkSigner = apkSigner;
+    this.compressedPayloadCache = compressedPayloadCache;
+    this.aapt2ConversionCache = aapt2ConversionCache;
+    this.executorService = executorService;
     this.useBundleCompression = useBundleCompression;
     this.enableSparseEncoding =
         bundleConfig
@@ -127,50 +137,73 @@ final class ZipFlingerApkSerializerHelper extends ApkSerializerHelper {
     Path partialProtoApk = tempDir.getPath().resolve("proto.apk");
     writeProtoApk(split, partialProtoApk, tempDir);
 
-    // Invoke aapt2 to convert files from proto to binary format.
-    Path binaryApkPath = tempDir.getPath().resolve("binary.apk");
-    if (enableSparseEncoding) {
-      Path interimApk = tempDir.getPath().resolve("interim.apk");
-      aapt2.convertApkProtoToBinary(partialProtoApk, interimApk);
-      aapt2.optimizeToSparseResourceTables(interimApk, binaryApkPath);
-    } else {
-      aapt2.convertApkProtoToBinary(partialProtoApk, binaryApkPath);
+    // Invoke aapt2 to convert files from proto to binary format, unless an identical proto APK has
+    // already been converted for another split.
+    try (ConvertedApk convertedApk =
+        aapt2ConversionCache.getOrConvert(
+            partialProtoApk,
+            (protoApk, binaryApk) -> {
+              if (enableSparseEncoding) {
+                Path interimApk = tempDir.getPath().resolve("interim.apk");
+                aapt2.convertApkProtoToBinary(protoApk, interimApk);
+                aapt2.optimizeToSparseResourceTables(interimApk, binaryApk);
+              } else {
+                aapt2.convertApkProtoToBinary(protoApk, binaryApk);
+              }
+            })) {
+      writeApk(split, outputPath, convertedApk.getPath(), tempDir);
     }
-    checkState(Files.exists(binaryApkPath), "No APK created by aapt2 convert command.");
+  }
 
-    try (ZipArchive apkWriter = new ZipArchive(outputPath);
-        ZipReader aapt2ApkReader = ZipReader.createFromFile(binaryApkPath)) {
-      ImmutableMap<ZipPath, ModuleEntry> moduleEntriesByName =
-          split.getEntries().stream()
-              .collect(
-                  toImmutableMap(
-                      entry -> ApkSerializerHelper.toApkEntryPath(entry.getPath()),
-                      entry -> entry,
-                      // If two entries end up at the same path in the APK, pick one arbitrarily.
-                      // e.g. base/assets/foo and base/root/assets/foo.
-                      (a, b) -> b));
-
-      // Sorting entries by name for determinism.
-      ImmutableSortedSet<ZipPath> sortedEntryNames =
-          Stream.concat(
-                  aapt2ApkReader.getEntries().keySet().stream().map(ZipPath::create),
-                  moduleEntriesByName.keySet().stream())
-              .collect(toImmutableSortedSet(naturalOrder()));
-
-      ApkEntrySerializer apkEntrySerializer =
-          new ApkEntrySerializer(apkWriter, aapt2ApkReader, split, tempDir);
-      for (ZipPath pathInApk : sortedEntryNames) {
-        Optional<Entry> aapt2Entry = aapt2ApkReader.getEntry(pathInApk.toString());
-        if (aapt2Entry.isPresent()) {
-          apkEntrySerializer.addAapt2Entry(pathInApk, aapt2Entry.get());
-        } else {
-          ModuleEntry moduleEntry = checkNotNull(moduleEntriesByName.get(pathInApk));
-          apkEntrySerializer.addRegularEntry(pathInApk, moduleEntry);
+  /** Writes the APK from the binary APK converted by aapt2 and the other entries of the split. */
+  private void writeApk(
+      ModuleSplit split, Path outputPath, Path binaryApkPath, TempDirectory tempDir)
+      throws IOException {
+    // The APK is signed while its entries are written, so that it doesn't need to be read and
+    // written again once complete.
+    Optional<StreamingApkSigner> streamingSigner = apkSigner.createStreamingSigner(split);
+    try {
+      try (ZipArchive apkWriter = new ZipArchive(outputPath);
+          ZipReader aapt2ApkReader = ZipReader.createFromFile(binaryApkPath)) {
+        ImmutableMap<ZipPath, ModuleEntry> moduleEntriesByName =
+            split.getEntries().stream()
+                .collect(
+                    toImmutableMap(
+                        entry -> ApkSerializerHelper.toApkEntryPath(entry.getPath()),
+                        entry -> entry,
+                        // If two entries end up at the same path in the APK, pick one
+                        // arbitrarily. e.g. base/assets/foo and base/root/assets/foo.
+                        (a, b) -> b));
+
+        // Sorting entries by name for determinism.
+        ImmutableSortedSet<ZipPath> sortedEntryNames =
+            Stream.concat(
+                    aapt2ApkReader.getEntries().keySet().stream().map(ZipPath::create),
+                    moduleEntriesByName.keySet().stream())
+                .collect(toImmutableSortedSet(naturalOrder()));
+
+        ApkEntrySerializer apkEntrySerializer =
+            new ApkEntrySerializer(apkWriter, aapt2ApkReader, streamingSigner, split, tempDir);
+        for (ZipPath pathInApk : sortedEntryNames) {
+          Optional<Entry> aapt2Entry = aapt2ApkReader.getEntry(pathInApk.toString());
+          if (aapt2Entry.isPresent()) {
+            apkEntrySerializer.addAapt2Entry(pathInApk, aapt2Entry.get());
+          } else {
+            ModuleEntry moduleEntry = checkNotNull(moduleEntriesByName.get(pathInApk));
+            apkEntrySerializer.addRegularEntry(pathInApk, moduleEntry);
+          }
+        }
+        if (streamingSigner.isPresent()) {
+          streamingSigner.get().writeSignatureEntries(apkWriter);
         }
       }
-    }
 
-    apkSigner.signApk(outputPath, split);
+      if (streamingSigner.isPresent()) {
+        streamingSigner.get().signApk(outputPath);
+      }
+    } finally {
+      streamingSigner.ifPresent(StreamingApkSigner::close);
+    }
   }
 
   private final class ApkEntrySerializer {
@@ -178,6 +211,8 @@ final class ZipFlingerApkSerializerHelper extends ApkSerializerHelper {
     private final ZipArchive apkWriter;
     /** The APK generated by aapt2 containing resources, manifest, etc. */
     private final ZipReader aapt2Apk;
+    /** Signer of the output APK, which is passed the content of every entry added. */
+    private final Optional<StreamingApkSigner> streamingSigner;
     /** A directory to store intermediate artifacts. */
     private final TempDirectory tempDir;
     /** Controller of the compression of the entries in the final APK. */
@@ -186,16 +221,25 @@ final class ZipFlingerApkSerializerHelper extends ApkSerializerHelper {
     private final ImmutableMap<String, Entry> bundleEntries;
 
     ApkEntrySerializer(
-        ZipArchive apkWriter, ZipReader aapt2Apk, ModuleSplit moduleSplit, TempDirectory tempDir) {
+        ZipArchive apkWriter,
+        ZipReader aapt2Apk,
+        Optional<StreamingApkSigner> streamingSigner,
+        ModuleSplit moduleSplit,
+        TempDirectory tempDir) {
       this.apkWriter = apkWriter;
       this.aapt2Apk = aapt2Apk;
+      this.streamingSigner = streamingSigner;
       this.tempDir = tempDir;
       this.compressionManager = new CompressionManager(moduleSplit, bundleConfig);
       this.bundleEntries = bundleZipReader.getEntries();
     }
 
     void addRegularEntry(ZipPath pathInApk, ModuleEntry moduleEntry) throws IOException {
-      ZipEntrySourceFactory sourceFactory = new ZipEntrySourceFactory(bundleZipReader, tempDir);
+      ZipEntrySourceFactory sourceFactory =
+          new ZipEntrySourceFactory(bundleZipReader, tempDir)
+              .withParallelCompression(executorService)
+              .withPayloadCache(
+                  compressedPayloadCache, CompressedPayloadCache::bundleEntryContentId);
       boolean mayCompress = compressionManager.mayCompress(pathInApk);
 
       if (moduleEntry.getBundleLocation().isPresent()) {
@@ -223,6 +267,9 @@ final class ZipFlingerApkSerializerHelper extends ApkSerializerHelper {
                   .setAlignment(getEntryAlignment(pathInApk, /* compressed= */ false));
         }
         apkWriter.add(entrySource);
+        if (streamingSigner.isPresent()) {
+          streamingSigner.get().addEntry(pathInApk.toString(), moduleEntry.getContent());
+        }
 
       } else {
         byte[] uncompressedContent = moduleEntry.getContent().read();
@@ -241,14 +288,26 @@ final class ZipFlingerApkSerializerHelper extends ApkSerializerHelper {
         }
 
         apkWriter.add(bytesSource);
+        if (streamingSigner.isPresent()) {
+          streamingSigner
+              .get()
+              .addEntry(pathInApk.toString(), ByteSource.wrap(uncompressedContent));
+        }
       }
     }
 
     void addAapt2Entry(ZipPath pathInApk, Entry entry) throws IOException {
-      ZipEntrySourceFactory sourceFactory = new ZipEntrySourceFactory(aapt2Apk, tempDir);
+      // The same resources are converted by aapt2 for many APKs, so the compressed payloads are
+      // shared across APKs based on the digest of their content.
+      ZipEntrySourceFactory sourceFactory =
+          new ZipEntrySourceFactory(aapt2Apk, tempDir)
+              .withParallelCompression(executorService)
+              .withPayloadCache(
+                  compressedPayloadCache,
+                  entry -> CompressedPayloadCache.digestContentId(aapt2Apk, entry));
       boolean mayCompress = compressionManager.mayCompress(pathInApk);
 
-      // All entries in aapt2 should be uncompressed (see AppBundleRecompressor), so we don't use
+      // All entries in aapt2 should be uncompressed (see writeProtoApk), so we don't use
       // SAME_AS_SOURCE.
       CompressionLevel compressionLevel = mayCompress ? BEST_COMPRESSION : NO_COMPRESSION;
       ZipEntrySource entrySource =
@@ -267,6 +326,11 @@ final class ZipFlingerApkSerializerHelper extends ApkSerializerHelper {
       }
 
       apkWriter.add(entrySource);
+      if (streamingSigner.isPresent()) {
+        streamingSigner
+            .get()
+            .addEntry(pathInApk.toString(), aapt2Apk.getUncompressedPayloadSource(entry.getName()));
+      }
     }
   }
 
@@ -22,27 +22,37 @@ import static java.nio.file.StandardOpenOption.READ;
 import com.android.tools.build.bundletool.io.ZipReader.EntryNotFoundException;
 import com.android.tools.build.bundletool.model.exceptions.CommandExecutionException;
 import com.android.tools.build.bundletool.model.exceptions.InvalidBundleException;
+import com.android.tools.build.bundletool.model.utils.Crc32Source;
+import com.android.tools.build.bundletool.model.utils.ZlibContexts;
 import com.android.zipflinger.Entry;
 import com.android.zipflinger.Location;
 import com.android.zipflinger.PayloadInputStream;
 import com.android.zipflinger.ZipMap;
 import com.android.zipflinger.ZipWriter;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteSource;
 import com.google.errorprone.annotations.MustBeClosed;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Optional;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
+import java.util.OptionalLong;
 
 /** Parses a zip file, and allows to read entries and their content. */
 public final class ZipReader implements AutoCloseable {
 
+  /** Distance between the start of two consecutive memory mappings of the zip file. */
+  private static final long DEFAULT_MAPPING_STRIDE = 1L << 30; // 1 GB
+
   /** The parsed map of the zip file. */
   private final ZipMap zipMap;
 
@@ -53,18 +63,74 @@ public final class ZipReader implements AutoCloseable {
    */
   private final FileChannel fileChannel;
 
-  private ZipReader(ZipMap zipMap, FileChannel fileChannel) {
+  /**
+   * The memory mappings of the zip file, empty if the file is not memory-mapped.
+   *
+   * <p>The mapping at index i starts at offset {@code i * mappingStride} in the file and spans up
+   * to twice the stride, so consecutive mappings overlap and any region of the file smaller than
+   * {@link #mappingStride} is entirely contained in a single mapping.
+   */
+  private final ImmutableList<MappedByteBuffer> mappings;
+
+  private final long mappingStride;
+
+  private ZipReader(
+      ZipMap zipMap,
+      FileChannel fileChannel,
+      ImmutableList<MappedByteBuffer> mappings,
+      long mappingStride) {
     this.zipMap = zipMap;
     this.fileChannel = fileChannel;
+    this.mappings = mappings;
+    this.mappingStride = mappingStride;
   }
 
   /** Creates an instance of {@link ZipReader} for the given zip file. */
   @MustBeClosed
   public static ZipReader createFromFile(Path zipFile) {
+    return createFromFile(zipFile, /* memoryMapped= */ false, DEFAULT_MAPPING_STRIDE);
+  }
+
+  /**
+   * Creates an instance of {@link ZipReader} for the given zip file, which is mapped in memory.
+   *
+   * <p>The payloads of the entries are then read directly from the page cache, and are accessible
+   * without copy using {@link #getPayloadBuffer}. Note that the mappings are only released once
+   * garbage collected, and on Windows the file can't be deleted until then.
+   */
+  @MustBeClosed
+  public static ZipReader createFromFileMemoryMapped(Path zipFile) {
+    return createFromFileMemoryMapped(zipFile, DEFAULT_MAPPING_STRIDE);
+  }
+
+  /**
+   * Same as {@link #createFromFileMemoryMapped(Path)}, with the given distance between the start of
+   * two consecutive mappings, so that zip files smaller than 1 GB can be split across mappings.
+   */
+  @VisibleForTesting
+  @MustBeClosed
+  static ZipReader createFromFileMemoryMapped(Path zipFile, long mappingStride) {
+    checkArgument(mappingStride > 0 && mappingStride <= DEFAULT_MAPPING_STRIDE);
+    return createFromFile(zipFile, /* memoryMapped= */ true, mappingStride);
+  }
+
+  @MustBeClosed
+  private static ZipReader createFromFile(Path zipFile, boolean memoryMapped, long mappingStride) {
     checkNotNull(zipFile);
     checkArgument(Files.exists(zipFile));
     try {
-      return new ZipReader(ZipMap.from(zipFile.toFile()), FileChannel.open(zipFile, READ));
+      ZipMap zipMap = ZipMap.from(zipFile.toFile());
+      FileChannel fileChannel = FileChannel.open(zipFile, READ);
+      try {
+        return new ZipReader(
+            zipMap,
+            fileChannel,
+            memoryMapped ? mapInMemory(fileChannel, mappingStride) : ImmutableList.of(),
+            mappingStride);
+      } catch (IOException | RuntimeException e) {
+        fileChannel.close();
+        throw e;
+      }
     } catch (IllegalStateException e) {
       // Zipflinger library throws IllegalStateExceptions when the zip has a bad format.
       throw InvalidBundleException.builder()
@@ -76,6 +142,18 @@ public final class ZipReader implements AutoCloseable {
     }
   }
 
+  private static ImmutableList<MappedByteBuffer> mapInMemory(
+      FileChannel fileChannel, long mappingStride) throws IOException {
+    long fileSize = fileChannel.size();
+    long maxMappingSize = Math.min(Integer.MAX_VALUE, 2 * mappingStride);
+    ImmutableList.Builder<MappedByteBuffer> mappings = ImmutableList.builder();
+    for (long offset = 0; offset < fileSize; offset += mappingStride) {
+      long mappingSize = Math.min(maxMappingSize, fileSize - offset);
+      mappings.add(fileChannel.map(MapMode.READ_ONLY, offset, mappingSize));
+    }
+    return mappings.build();
+  }
+
   /** Returns the map of entries inside the zip file (per the CD) keyed by their name. */
   public ImmutableMap<String, Entry> getEntries() {
     return ImmutableMap.copyOf(zipMap.getEntries());
@@ -108,11 +186,58 @@ public final class ZipReader implements AutoCloseable {
     if (!entry.isCompressed()) {
       return entryPayload;
     }
-    Inflater inflater = new Inflater(/* nowrap= */ true); // nowrap = gzip compatible
-    return new InflaterInputStream(entryPayload, inflater);
+    return ZlibContexts.inflaterInputStream(entryPayload, /* nowrap= */ true);
+  }
+
+  /**
+   * Returns a {@link ByteSource} of the uncompressed payload of a zip entry.
+   *
+   * <p>The {@link ByteSource} can be read as long as this {@link ZipReader} is not closed.
+   */
+  public ByteSource getUncompressedPayloadSource(String entryName) {
+    Entry entry =
+        getEntry(entryName)
+            .orElseThrow(() -> new EntryNotFoundException(zipMap.getFile(), entryName));
+    return new UncompressedPayloadByteSource(entry);
+  }
+
+  /**
+   * Returns a read-only view of the payload of a zip entry as stored in the zip file, without
+   * copying it.
+   *
+   * <p>Only available if the zip file is memory-mapped (see {@link #createFromFileMemoryMapped}),
+   * and for payloads smaller than 1 GB.
+   */
+  public Optional<ByteBuffer> getPayloadBuffer(String entryName) {
+    Entry entry =
+        getEntry(entryName)
+            .orElseThrow(() -> new EntryNotFoundException(zipMap.getFile(), entryName));
+    return getEntryPayloadBuffer(entry);
+  }
+
+  private Optional<ByteBuffer> getEntryPayloadBuffer(Entry entry) {
+    if (mappings.isEmpty()) {
+      return Optional.empty();
+    }
+    Location payloadLocation = entry.getPayloadLocation();
+    int mappingIndex = (int) (payloadLocation.first / mappingStride);
+    MappedByteBuffer mapping = mappings.get(mappingIndex);
+    long offsetInMapping = payloadLocation.first - mappingIndex * mappingStride;
+    if (offsetInMapping + payloadLocation.size() > mapping.capacity()) {
+      return Optional.empty();
+    }
+    // Each caller gets its own buffer since the payload may be read concurrently.
+    ByteBuffer payload = mapping.asReadOnlyBuffer();
+    payload.position((int) offsetInMapping);
+    payload.limit((int) (offsetInMapping + payloadLocation.size()));
+    return Optional.of(payload.slice());
   }
 
   private InputStream getEntryPayload(Entry entry) {
+    Optional<ByteBuffer> payloadBuffer = getEntryPayloadBuffer(entry);
+    if (payloadBuffer.isPresent()) {
+      return new ByteBufferInputStream(payloadBuffer.get());
+    }
     try {
       return new PayloadInputStream(fileChannel, entry.getPayloadLocation());
     } catch (IOException e) {
@@ -143,6 +268,78 @@ public final class ZipReader implements AutoCloseable {
     fileChannel.close();
   }
 
+  private final class UncompressedPayloadByteSource extends ByteSource implements Crc32Source {
+    private final Entry entry;
+
+    UncompressedPayloadByteSource(Entry entry) {
+      this.entry = entry;
+    }
+
+    @Override
+    @SuppressWarnings("MustBeClosedChecker") // The caller is responsible for closing the stream.
+    public InputStream openStream() {
+      return getUncompressedPayload(entry.getName());
+    }
+
+    @Override
+    public com.google.common.base.Optional<Long> sizeIfKnown() {
+      return com.google.common.base.Optional.of(entry.getUncompressedSize());
+    }
+
+    @Override
+    public OptionalLong crc32IfKnown() {
+      return OptionalLong.of(Integer.toUnsignedLong(entry.getCrc()));
+    }
+
+    @Override
+    public String toString() {
+      return "ZipReader.getUncompressedPayloadSource("
+          + zipMap.getFile()
+          + ", "
+          + entry.getName()
+          + ")";
+    }
+  }
+
+  /** An {@link InputStream} reading the remaining bytes of a {@link ByteBuffer}. */
+  private static final class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int bytesRead = Math.min(len, buffer.remaining());
+      buffer.get(b, off, bytesRead);
+      return bytesRead;
+    }
+
+    @Override
+    public long skip(long n) {
+      int bytesSkipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+      buffer.position(buffer.position() + bytesSkipped);
+      return bytesSkipped;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+
   /** Exception thrown when an entry is searched for but not found in a zip file. */
   static class EntryNotFoundException extends CommandExecutionException {
     EntryNotFoundException(File zipFile, String entryName) {
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.mergers;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * A {@link DexMerger} which stores the merged dex files in a directory, and re-uses them when the
+ * same dex files are merged again with the same version of the merger.
+ *
+ * <p>The outputs are keyed by the digest of the input dex files, the main dex list, the proguard
+ * map, the debuggable flag, the minSdkVersion and the version of the merger, so the directory can
+ * be shared across builds and across processes. Nothing is ever evicted from the directory: it is
+ * up to the caller to clean it up.
+ */
+public final class CachingDexMerger implements DexMerger {
+
+  private static final Logger logger = Logger.getLogger(CachingDexMerger.class.getName());
+
+  private final DexMerger dexMerger;
+  private final Path cacheDirectory;
+  private final String dexMergerVersion;
+
+  public CachingDexMerger(DexMerger dexMerger, Path cacheDirectory, String dexMergerVersion) {
+    this.dexMerger = dexMerger;
+    this.cacheDirectory = cacheDirectory;
+    this.dexMergerVersion = dexMergerVersion;
+  }
+
+  @Override
+  public ImmutableList<Path> merge(
+      ImmutableList<Path> dexFiles,
+      Path outputDir,
+      Optional<Path> mainDexListFile,
+      Optional<Path> proguardMap,
+      boolean isDebuggable,
+      int minSdkVersion) {
+    try {
+      Path cachedOutputDir =
+          cacheDirectory.resolve(
+              cacheKey(dexFiles, mainDexListFile, proguardMap, isDebuggable, minSdkVersion));
+      if (Files.isDirectory(cachedOutputDir)) {
+        return copyDexFiles(cachedOutputDir, outputDir);
+      }
+
+      ImmutableList<Path> mergedDexFiles =
+          dexMerger.merge(
+              dexFiles, outputDir, mainDexListFile, proguardMap, isDebuggable, minSdkVersion);
+      storeInCache(mergedDexFiles, cachedOutputDir);
+      return mergedDexFiles;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private String cacheKey(
+      ImmutableList<Path> dexFiles,
+      Optional<Path> mainDexListFile,
+      Optional<Path> proguardMap,
+      boolean isDebuggable,
+      int minSdkVersion)
+      throws IOException {
+    // The order of the dex files is part of the key since it can change the output of the merger.
+    Hasher hasher =
+        Hashing.sha256()
+            .newHasher()
+            .putString(dexMergerVersion, UTF_8)
+            .putByte((byte) 0)
+            .putBoolean(isDebuggable)
+            .putInt(minSdkVersion)
+            .putInt(dexFiles.size());
+    for (Path dexFile : dexFiles) {
+      putFileDigest(hasher, dexFile);
+    }
+    putOptionalFileDigest(hasher, mainDexListFile);
+    putOptionalFileDigest(hasher, proguardMap);
+    return hasher.hash().toString();
+  }
+
+  private static void putOptionalFileDigest(Hasher hasher, Optional<Path> file)
+      throws IOException {
+    hasher.putBoolean(file.isPresent());
+    if (file.isPresent()) {
+      putFileDigest(hasher, file.get());
+    }
+  }
+
+  private static void putFileDigest(Hasher hasher, Path file) throws IOException {
+    hasher.putBytes(MoreFiles.asByteSource(file).hash(Hashing.sha256()).asBytes());
+  }
+
+  private static ImmutableList<Path> copyDexFiles(Path fromDir, Path toDir) throws IOException {
+    ImmutableList.Builder<Path> copiedFiles = ImmutableList.builder();
+    for (Path file : listFiles(fromDir)) {
+      copiedFiles.add(Files.copy(file, toDir.resolve(file.getFileName().toString())));
+    }
+    return copiedFiles.build();
+  }
+
+  /**
+   * Copies the merged dex files to the cache directory.
+   *
+   * <p>The files are first written to a temporary directory which is then moved into place, so
+   * that concurrent builds never read a partially written output.
+   */
+  private void storeInCache(ImmutableList<Path> mergedDexFiles, Path cachedOutputDir) {
+    Optional<Path> tmpDir = Optional.empty();
+    try {
+      Files.createDirectories(cacheDirectory);
+      tmpDir =
+          Optional.of(
+              Files.createTempDirectory(
+                  cacheDirectory, cachedOutputDir.getFileName().toString() + "-tmp"));
+      for (Path dexFile : mergedDexFiles) {
+        Files.copy(dexFile, tmpDir.get().resolve(dexFile.getFileName().toString()));
+      }
+      // Fails if another build has stored the same output in the meantime, which is fine.
+      Files.move(tmpDir.get(), cachedOutputDir, ATOMIC_MOVE);
+      tmpDir = Optional.empty();
+    } catch (IOException e) {
+      // The cache is only an optimization, failing to populate it must not fail the build.
+      logger.warning("Failed to store merged dex files in cache: " + e.getMessage());
+    } finally {
+      tmpDir.ifPresent(CachingDexMerger::deleteRecursively);
+    }
+  }
+
+  private static ImmutableList<Path> listFiles(Path dir) throws IOException {
+    try (Stream<Path> files = Files.list(dir)) {
+      return files.sorted().collect(toImmutableList());
+    }
+  }
+
+  private static void deleteRecursively(Path dir) {
+    try {
+      MoreFiles.deleteRecursively(dir, RecursiveDeleteOption.ALLOW_INSECURE);
+    } catch (IOException e) {
+      logger.warning("Failed to delete temporary directory '" + dir + "': " + e.getMessage());
+    }
+  }
+}
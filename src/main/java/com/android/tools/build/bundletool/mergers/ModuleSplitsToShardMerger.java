@@ -44,6 +44,7 @@ import com.android.tools.build.bundletool.model.ModuleSplit;
 import com.android.tools.build.bundletool.model.ModuleSplit.SplitType;
 import com.android.tools.build.bundletool.model.ZipPath;
 import com.android.tools.build.bundletool.model.exceptions.CommandExecutionException;
+import com.android.tools.build.bundletool.model.utils.ConcurrencyUtils;
 import com.android.tools.build.bundletool.model.utils.Versions;
 import com.android.tools.build.bundletool.model.version.Version;
 import com.google.common.annotations.VisibleForTesting;
@@ -57,6 +58,8 @@ import com.google.common.collect.Multimap;
 import com.google.common.collect.SetMultimap;
 import com.google.common.collect.Streams;
 import com.google.common.io.ByteSource;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
@@ -98,7 +101,7 @@ public class ModuleSplitsToShardMerger {
   /** Gets a list of splits, and merges them into a single standalone APK (aka shard). */
   public ModuleSplit mergeSingleShard(
       ImmutableCollection<ModuleSplit> splitsOfShard,
-      Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> mergedDexCache) {
+      Map<ImmutableSet<ModuleEntry>, ListenableFuture<ImmutableList<Path>>> mergedDexCache) {
     return mergeSingleShard(
         splitsOfShard,
         mergedDexCache,
@@ -116,7 +119,7 @@ public class ModuleSplitsToShardMerger {
    */
   public ModuleSplit mergeSingleShard(
       ImmutableCollection<ModuleSplit> splitsOfShard,
-      Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> mergedDexCache,
+      Map<ImmutableSet<ModuleEntry>, ListenableFuture<ImmutableList<Path>>> mergedDexCache,
       SplitType mergedSplitType,
       AndroidManifestMerger manifestMerger) {
 
@@ -263,7 +266,7 @@ public class ModuleSplitsToShardMerger {
   private Collection<ModuleEntry> mergeDexFilesAndCache(
       ListMultimap<BundleModuleName, ModuleEntry> dexFilesToMergeByModule,
       AndroidManifest androidManifest,
-      Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> mergedDexCache) {
+      Map<ImmutableSet<ModuleEntry>, ListenableFuture<ImmutableList<Path>>> mergedDexCache) {
     if (dexFilesToMergeByModule.size() <= 1 || appBundle.getFeatureModules().size() <= 1) {
       // Don't merge if there is only one dex file or an application doesn't have feature modules.
       // If base module contains multiple dex files, it should have been built with multi-dex
@@ -279,9 +282,16 @@ public class ModuleSplitsToShardMerger {
       ImmutableList<ModuleEntry> dexEntries =
           ImmutableList.copyOf(dexFilesToMergeByModule.values());
 
+      // The dex files are merged outside of the cache, so that a long merge doesn't block other
+      // shards. Concurrent shards with the same dex files wait for the merge of the first one.
+      ListenableFutureTask<ImmutableList<Path>> mergeTask =
+          ListenableFutureTask.create(() -> mergeDexFiles(dexEntries, androidManifest));
+      ListenableFuture<ImmutableList<Path>> cachedMerge =
+          mergedDexCache.putIfAbsent(ImmutableSet.copyOf(dexEntries), mergeTask);
       ImmutableList<Path> mergedDexFiles =
-          mergedDexCache.computeIfAbsent(
-              ImmutableSet.copyOf(dexEntries), key -> mergeDexFiles(dexEntries, androidManifest));
+          cachedMerge == null
+              ? ConcurrencyUtils.runAndGet(mergeTask)
+              : ConcurrencyUtils.waitFor(cachedMerge);
 
       // Names of the merged dex files need to be preserved ("classes.dex", "classes2.dex" etc.).
       return mergedDexFiles.stream()
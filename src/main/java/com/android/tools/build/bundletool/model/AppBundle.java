@@ -39,16 +39,19 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
+import com.google.common.io.ByteSource;
 import com.google.errorprone.annotations.Immutable;
 import com.google.protobuf.InvalidProtocolBufferException;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Collection;
-import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.function.Function;
 import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -70,11 +73,54 @@ public abstract class AppBundle {
 
   /** Builds an {@link AppBundle} from an App Bundle on disk. */
   public static AppBundle buildFromZip(ZipFile bundleFile) {
-    BundleConfig bundleConfig = readBundleConfig(bundleFile);
+    return buildFromZipEntries(
+        Paths.get(bundleFile.getName()),
+        indexFileEntries(
+            ZipUtils.allFileEntries(bundleFile),
+            ZipEntry::getName,
+            entry -> ZipUtils.asByteSource(bundleFile, entry)));
+  }
+
+  /**
+   * Indexes the entries of an App Bundle which are regular files by their path in the App Bundle.
+   *
+   * @throws InvalidBundleException if several entries have the same path once normalized, e.g.
+   *     "base/dex/classes.dex" and "base//dex/classes.dex"
+   */
+  public static <T> ImmutableMap<ZipPath, ByteSource> indexFileEntries(
+      Stream<T> entries, Function<T, String> entryName, Function<T, ByteSource> entryContent) {
+    Map<ZipPath, ByteSource> fileEntries = new LinkedHashMap<>();
+    entries.forEach(
+        entry -> {
+          String name = entryName.apply(entry);
+          if (fileEntries.putIfAbsent(ZipPath.create(name), entryContent.apply(entry)) != null) {
+            throw InvalidBundleException.builder()
+                .withUserMessage(
+                    "Found multiple entries with the same path '%s' in the App Bundle.",
+                    ZipPath.create(name))
+                .build();
+          }
+        });
+    return ImmutableMap.copyOf(fileEntries);
+  }
+
+  /**
+   * Builds an {@link AppBundle} from the entries of an App Bundle on disk, read by the caller.
+   *
+   * <p>This allows to load the App Bundle from an already parsed zip file rather than parsing it
+   * again.
+   *
+   * @param bundlePath the path of the App Bundle, only used to record the location of the entries
+   * @param fileEntries the content of all the entries of the App Bundle which are regular files,
+   *     keyed by their path in the App Bundle
+   */
+  public static AppBundle buildFromZipEntries(
+      Path bundlePath, ImmutableMap<ZipPath, ByteSource> fileEntries) {
+    BundleConfig bundleConfig = readBundleConfig(fileEntries);
     return buildFromModules(
-        sanitize(extractModules(bundleFile, bundleConfig)),
+        sanitize(extractModules(bundlePath, fileEntries, bundleConfig)),
         bundleConfig,
-        readBundleMetadata(bundleFile));
+        readBundleMetadata(fileEntries));
   }
 
   public static AppBundle buildFromModules(
@@ -187,8 +233,10 @@ public abstract class AppBundle {
    * does not belong to a module, a null {@link BundleModuleName} is returned.
    */
   public static Optional<BundleModuleName> extractModuleName(ZipEntry entry) {
-    ZipPath path = ZipPath.create(entry.getName());
+    return extractModuleName(ZipPath.create(entry.getName()));
+  }
 
+  private static Optional<BundleModuleName> extractModuleName(ZipPath path) {
     // Ignoring bundle metadata files.
     if (path.startsWith(METADATA_DIRECTORY)) {
       return Optional.empty();
@@ -247,34 +295,27 @@ public abstract class AppBundle {
   }
 
   private static ImmutableList<BundleModule> extractModules(
-      ZipFile bundleFile, BundleConfig bundleConfig) {
+      Path bundlePath, ImmutableMap<ZipPath, ByteSource> fileEntries, BundleConfig bundleConfig) {
     Map<BundleModuleName, BundleModule.Builder> moduleBuilders = new HashMap<>();
-    Enumeration<? extends ZipEntry> entries = bundleFile.entries();
-    while (entries.hasMoreElements()) {
-      ZipEntry entry = entries.nextElement();
-      if (entry.isDirectory()) {
-        continue;
-      }
-
-      Optional<BundleModuleName> moduleName = extractModuleName(entry);
-      if (!moduleName.isPresent()) {
-        continue;
-      }
-
-      BundleModule.Builder moduleBuilder =
-          moduleBuilders.computeIfAbsent(
-              moduleName.get(),
-              name -> BundleModule.builder().setName(name).setBundleConfig(bundleConfig));
-
-      moduleBuilder.addEntry(
-          ModuleEntry.builder()
-              .setBundleLocation(
-                  ModuleEntryBundleLocation.create(
-                      Paths.get(bundleFile.getName()), ZipPath.create(entry.getName())))
-              .setPath(ZipUtils.convertBundleToModulePath(ZipPath.create(entry.getName())))
-              .setContent(ZipUtils.asByteSource(bundleFile, entry))
-              .build());
-    }
+    fileEntries.forEach(
+        (pathInBundle, content) -> {
+          Optional<BundleModuleName> moduleName = extractModuleName(pathInBundle);
+          if (!moduleName.isPresent()) {
+            return;
+          }
+
+          BundleModule.Builder moduleBuilder =
+              moduleBuilders.computeIfAbsent(
+                  moduleName.get(),
+                  name -> BundleModule.builder().setName(name).setBundleConfig(bundleConfig));
+
+          moduleBuilder.addEntry(
+              ModuleEntry.builder()
+                  .setBundleLocation(ModuleEntryBundleLocation.create(bundlePath, pathInBundle))
+                  .setPath(ZipUtils.convertBundleToModulePath(pathInBundle))
+                  .setContent(content)
+                  .build());
+        });
 
     // We verify the presence of the manifest before building the BundleModule objects because the
     // manifest is a required field of the BundleModule class.
@@ -300,16 +341,16 @@ public abstract class AppBundle {
     }
   }
 
-  private static BundleConfig readBundleConfig(ZipFile bundleFile) {
-    ZipEntry bundleConfigEntry = bundleFile.getEntry(BUNDLE_CONFIG_FILE_NAME);
-    if (bundleConfigEntry == null) {
+  private static BundleConfig readBundleConfig(ImmutableMap<ZipPath, ByteSource> fileEntries) {
+    ByteSource bundleConfigContent = fileEntries.get(ZipPath.create(BUNDLE_CONFIG_FILE_NAME));
+    if (bundleConfigContent == null) {
       throw InvalidBundleException.builder()
           .withUserMessage("File '%s' was not found.", BUNDLE_CONFIG_FILE_NAME)
           .build();
     }
 
     try {
-      return BundleConfig.parseFrom(ZipUtils.asByteSource(bundleFile, bundleConfigEntry).read());
+      return BundleConfig.parseFrom(bundleConfigContent.read());
     } catch (InvalidProtocolBufferException e) {
       throw InvalidBundleException.builder()
           .withCause(e)
@@ -321,17 +362,17 @@ public abstract class AppBundle {
     }
   }
 
-  private static BundleMetadata readBundleMetadata(ZipFile bundleFile) {
+  private static BundleMetadata readBundleMetadata(
+      ImmutableMap<ZipPath, ByteSource> fileEntries) {
     BundleMetadata.Builder metadata = BundleMetadata.builder();
-    ZipUtils.allFileEntries(bundleFile)
-        .filter(entry -> ZipPath.create(entry.getName()).startsWith(METADATA_DIRECTORY))
-        .forEach(
-            zipEntry -> {
-              ZipPath bundlePath = ZipPath.create(zipEntry.getName());
-              // Strip the top-level metadata directory.
-              ZipPath metadataPath = bundlePath.subpath(1, bundlePath.getNameCount());
-              metadata.addFile(metadataPath, ZipUtils.asByteSource(bundleFile, zipEntry));
-            });
+    fileEntries.forEach(
+        (bundlePath, content) -> {
+          if (bundlePath.startsWith(METADATA_DIRECTORY)) {
+            // Strip the top-level metadata directory.
+            ZipPath metadataPath = bundlePath.subpath(1, bundlePath.getNameCount());
+            metadata.addFile(metadataPath, content);
+          }
+        });
     return metadata.build();
   }
 
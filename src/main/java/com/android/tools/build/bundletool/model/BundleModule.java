@@ -147,6 +147,11 @@ public abstract class BundleModule {
     return getEntryMap().values();
   }
 
+  @Memoized
+  ModuleEntryPathIndex getEntryPathIndex() {
+    return ModuleEntryPathIndex.create(getEntries());
+  }
+
   public boolean isBaseModule() {
     return BundleModuleName.BASE_MODULE_NAME.equals(getName());
   }
@@ -187,7 +192,7 @@ public abstract class BundleModule {
 
   @Memoized
   public boolean hasRenderscript32Bitcode() {
-    return findEntries(zipPath -> zipPath.toString().endsWith(".bc")).findFirst().isPresent();
+    return getEntryPathIndex().findEntriesWithExtension("bc").findAny().isPresent();
   }
 
   public ImmutableList<String> getDependencies() {
@@ -237,7 +242,7 @@ public abstract class BundleModule {
    * entries.
    */
   public Stream<ModuleEntry> findEntriesUnderPath(ZipPath path) {
-    return findEntries(p -> p.startsWith(path));
+    return getEntryPathIndex().findEntriesUnderPath(path);
   }
 
   /** Returns entry with the given relative module path, if it exists. */
@@ -16,7 +16,11 @@
 package com.android.tools.build.bundletool.model;
 
 import com.android.tools.build.bundletool.model.BundleModule.SpecialModuleEntry;
+import com.android.tools.build.bundletool.model.utils.Crc32Source;
 import com.google.auto.value.AutoValue;
+import com.google.auto.value.extension.memoized.Memoized;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import com.google.common.io.ByteSource;
 import com.google.common.io.Files;
 import com.google.common.io.MoreFiles;
@@ -27,6 +31,7 @@ import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.OptionalLong;
 
 /**
  * Represents an entry in an App Bundle's module.
@@ -61,7 +66,27 @@ public abstract class ModuleEntry {
   /** Returns data source for this entry. */
   public abstract ByteSource getContent();
 
-  /** Checks whether the given entries are identical. */
+  /**
+   * Returns the SHA-256 digest of the content of this entry.
+   *
+   * <p>Computed once, on first use.
+   */
+  @Memoized
+  public HashCode getContentDigest() {
+    try {
+      return getContent().hash(Hashing.sha256());
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          String.format("Failed to compute digest of module entry '%s'.", this), e);
+    }
+  }
+
+  /**
+   * Checks whether the given entries are identical.
+   *
+   * <p>The contents are compared by their digest, which is only computed when the sizes and CRC-32
+   * checksums of the contents, if known upfront, don't already tell them apart.
+   */
   @Override
   public final boolean equals(Object obj2) {
     if (!(obj2 instanceof ModuleEntry)) {
@@ -87,20 +112,39 @@ public abstract class ModuleEntry {
       return false;
     }
 
-    try {
-      return entry1.getContent().contentEquals(entry2.getContent());
-    } catch (IOException e) {
-      throw new UncheckedIOException(
-          String.format(
-              "Failed to compare contents of module entries '%s' and '%s'.", entry1, entry2),
-          e);
+    if (knownToDiffer(entry1.getContent(), entry2.getContent())) {
+      return false;
     }
+
+    return entry1.getContentDigest().equals(entry2.getContentDigest());
   }
 
+  /**
+   * Returns a hash code based on the content digest, so that entries with the same path but
+   * different contents don't collide.
+   *
+   * <p>The digest is computed once, and then shared with {@link #equals}.
+   */
   @Override
   public final int hashCode() {
-    // Deliberately omit the content for performance.
-    return Objects.hash(getPath(), getForceUncompressed());
+    return Objects.hash(getPath(), getForceUncompressed(), getContentDigest().asInt());
+  }
+
+  private static boolean knownToDiffer(ByteSource content1, ByteSource content2) {
+    Optional<Long> size1 = content1.sizeIfKnown().toJavaUtil();
+    Optional<Long> size2 = content2.sizeIfKnown().toJavaUtil();
+    if (size1.isPresent() && size2.isPresent() && !size1.equals(size2)) {
+      return true;
+    }
+    OptionalLong crc1 = crc32IfKnown(content1);
+    OptionalLong crc2 = crc32IfKnown(content2);
+    return crc1.isPresent() && crc2.isPresent() && crc1.getAsLong() != crc2.getAsLong();
+  }
+
+  private static OptionalLong crc32IfKnown(ByteSource content) {
+    return content instanceof Crc32Source
+        ? ((Crc32Source) content).crc32IfKnown()
+        : OptionalLong.empty();
   }
 
   public boolean isSpecialEntry() {
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.model;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static java.util.Comparator.comparing;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.primitives.ImmutableIntArray;
+import com.google.errorprone.annotations.Immutable;
+import java.util.Collection;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Index of the entries of a module by path, answering path prefix and file extension queries
+ * without scanning all the entries.
+ *
+ * <p>Entries are returned in the order in which they were given to the index.
+ */
+@Immutable
+final class ModuleEntryPathIndex {
+
+  private final ImmutableList<ModuleEntry> entries;
+
+  /** Paths of the entries, sorted. Paths under a given path are contiguous in this list. */
+  private final ImmutableList<ZipPath> sortedPaths;
+
+  /** Index in {@link #entries} of the entry at the same index in {@link #sortedPaths}. */
+  private final ImmutableIntArray sortedEntryIndices;
+
+  private final ImmutableListMultimap<String, ModuleEntry> entriesByExtension;
+
+  private ModuleEntryPathIndex(ImmutableList<ModuleEntry> entries) {
+    this.entries = entries;
+    ImmutableList<Integer> sortedIndices =
+        IntStream.range(0, entries.size())
+            .boxed()
+            .sorted(comparing(index -> entries.get(index).getPath()))
+            .collect(toImmutableList());
+    this.sortedPaths =
+        sortedIndices.stream()
+            .map(index -> entries.get(index).getPath())
+            .collect(toImmutableList());
+    this.sortedEntryIndices = ImmutableIntArray.copyOf(sortedIndices);
+    ImmutableListMultimap.Builder<String, ModuleEntry> entriesByExtension =
+        ImmutableListMultimap.builder();
+    for (ModuleEntry entry : entries) {
+      String fileName = entry.getPath().getFileName().toString();
+      int lastDot = fileName.lastIndexOf('.');
+      if (lastDot != -1) {
+        entriesByExtension.put(fileName.substring(lastDot + 1), entry);
+      }
+    }
+    this.entriesByExtension = entriesByExtension.build();
+  }
+
+  static ModuleEntryPathIndex create(Collection<ModuleEntry> entries) {
+    return new ModuleEntryPathIndex(ImmutableList.copyOf(entries));
+  }
+
+  /** Returns all the entries whose path is under the given path. */
+  Stream<ModuleEntry> findEntriesUnderPath(ZipPath path) {
+    int start = firstIndexNotBefore(path);
+    int end = start;
+    while (end < sortedPaths.size() && sortedPaths.get(end).startsWith(path)) {
+      end++;
+    }
+    return IntStream.range(start, end)
+        .map(sortedEntryIndices::get)
+        // Restores the original order of the entries.
+        .sorted()
+        .mapToObj(entries::get);
+  }
+
+  /**
+   * Returns all the entries whose file name has the given extension, i.e. ends with "." followed by
+   * the extension.
+   */
+  Stream<ModuleEntry> findEntriesWithExtension(String extension) {
+    return entriesByExtension.get(extension).stream();
+  }
+
+  /** Returns the index of the first path in {@link #sortedPaths} not before the given path. */
+  private int firstIndexNotBefore(ZipPath path) {
+    int low = 0;
+    int high = sortedPaths.size();
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (sortedPaths.get(middle).compareTo(path) < 0) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+}
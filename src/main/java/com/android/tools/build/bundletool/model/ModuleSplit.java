@@ -524,6 +524,11 @@ public abstract class ModuleSplit {
     return Multimaps.index(getEntries(), entry -> entry.getPath().getParent());
   }
 
+  @Memoized
+  ModuleEntryPathIndex getEntryPathIndex() {
+    return ModuleEntryPathIndex.create(getEntries());
+  }
+
   /** Returns all {@link ModuleEntry} that are directly inside the specified directory. */
   public Stream<ModuleEntry> getEntriesInDirectory(ZipPath directory) {
     checkArgument(directory.getNameCount() > 0, "ZipPath '%s' is empty", directory);
@@ -533,8 +538,7 @@ public abstract class ModuleSplit {
   /**
    * Returns all {@link ModuleEntry} that have a relative module path under a given path.
    *
-   * <p>Note: Consider using {@link #getEntriesByDirectory()} for performance, unless a recursive
-   * search is truly needed.
+   * <p>Runs in logarithmic time in the number of entries, plus the number of entries returned.
    */
   public Stream<ModuleEntry> findEntriesUnderPath(String path) {
     ZipPath zipPath = ZipPath.create(path);
@@ -544,13 +548,10 @@ public abstract class ModuleSplit {
   /**
    * Returns all {@link ModuleEntry} that have a relative module path under a given path.
    *
-   * <p>Note: Consider using {@link #getEntriesByDirectory()} for performance, unless a recursive
-   * search is truly needed.
+   * <p>Runs in logarithmic time in the number of entries, plus the number of entries returned.
    */
   public Stream<ModuleEntry> findEntriesUnderPath(ZipPath zipPath) {
-    return getEntriesByDirectory().asMap().entrySet().stream()
-        .filter(dirAndEntries -> dirAndEntries.getKey().startsWith(zipPath))
-        .flatMap(dirAndEntries -> dirAndEntries.getValue().stream());
+    return getEntryPathIndex().findEntriesUnderPath(zipPath);
   }
 
   /** Returns the {@link ModuleEntry} associated with the given path, or empty if not found. */
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.model;
+
+import com.android.aapt.ConfigurationOuterClass.Configuration;
+import com.android.aapt.Resources.ConfigValue;
+import com.android.aapt.Resources.Entry;
+import com.android.aapt.Resources.Package;
+import com.android.aapt.Resources.ResourceTable;
+import com.android.aapt.Resources.Type;
+import com.google.common.collect.ImmutableList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable index of the config values of a {@link ResourceTable}.
+ *
+ * <p>The entries and the config values of the table are numbered in the order of the table, so
+ * that a subset of the config values can be represented by a {@link BitSet} of their indices,
+ * cheap to build and combine. Only the final subsets are materialized as resource tables with
+ * {@link #filter(BitSet)}.
+ *
+ * <p>The configurations of the config values are interned, so properties derived from a
+ * configuration can be computed once per distinct configuration rather than once per config value.
+ */
+public final class ResourceTableIndex {
+
+  private final ResourceTable resourceTable;
+
+  /** The entries of the table, in the order of the table. */
+  private final ImmutableList<ResourceTableEntry> entries;
+
+  /**
+   * The index of the first config value of each entry, followed by the total number of config
+   * values, so that the config values of entry {@code i} are in {@code [first[i], first[i + 1])}.
+   */
+  private final int[] firstConfigValueIndices;
+
+  /** The config values of the table, in the order of the table. */
+  private final ImmutableList<ConfigValue> configValues;
+
+  /** The distinct configurations of the table, in order of first appearance. */
+  private final ImmutableList<Configuration> configurations;
+
+  /** The index in {@link #configurations} of the configuration of each config value. */
+  private final int[] configurationIndices;
+
+  private ResourceTableIndex(ResourceTable resourceTable) {
+    this.resourceTable = resourceTable;
+
+    ImmutableList.Builder<ResourceTableEntry> entries = ImmutableList.builder();
+    ImmutableList.Builder<ConfigValue> configValues = ImmutableList.builder();
+    ImmutableList.Builder<Configuration> configurations = ImmutableList.builder();
+    Map<Configuration, Integer> configurationIndexByConfiguration = new HashMap<>();
+    int entryCount = 0;
+    int configValueCount = 0;
+    for (Package pkg : resourceTable.getPackageList()) {
+      for (Type type : pkg.getTypeList()) {
+        entryCount += type.getEntryCount();
+        for (Entry entry : type.getEntryList()) {
+          configValueCount += entry.getConfigValueCount();
+        }
+      }
+    }
+
+    this.firstConfigValueIndices = new int[entryCount + 1];
+    this.configurationIndices = new int[configValueCount];
+    int entryIndex = 0;
+    int configValueIndex = 0;
+    for (Package pkg : resourceTable.getPackageList()) {
+      for (Type type : pkg.getTypeList()) {
+        for (Entry entry : type.getEntryList()) {
+          ResourceTableEntry tableEntry = ResourceTableEntry.create(pkg, type, entry);
+          entries.add(tableEntry);
+          firstConfigValueIndices[entryIndex] = configValueIndex;
+          for (ConfigValue configValue : entry.getConfigValueList()) {
+            configValues.add(configValue);
+            Integer configurationIndex =
+                configurationIndexByConfiguration.get(configValue.getConfig());
+            if (configurationIndex == null) {
+              configurationIndex = configurationIndexByConfiguration.size();
+              configurationIndexByConfiguration.put(configValue.getConfig(), configurationIndex);
+              configurations.add(configValue.getConfig());
+            }
+            configurationIndices[configValueIndex++] = configurationIndex;
+          }
+          entryIndex++;
+        }
+      }
+    }
+    firstConfigValueIndices[entryCount] = configValueCount;
+
+    this.entries = entries.build();
+    this.configValues = configValues.build();
+    this.configurations = configurations.build();
+  }
+
+  /** Indexes the given resource table. */
+  public static ResourceTableIndex create(ResourceTable resourceTable) {
+    return new ResourceTableIndex(resourceTable);
+  }
+
+  public ResourceTable getResourceTable() {
+    return resourceTable;
+  }
+
+  public int getEntryCount() {
+    return entries.size();
+  }
+
+  public ResourceTableEntry getEntry(int entryIndex) {
+    return entries.get(entryIndex);
+  }
+
+  /** Returns the index of the first config value of the given entry. */
+  public int getFirstConfigValueIndex(int entryIndex) {
+    return firstConfigValueIndices[entryIndex];
+  }
+
+  /** Returns the index following the last config value of the given entry. */
+  public int getEndConfigValueIndex(int entryIndex) {
+    return firstConfigValueIndices[entryIndex + 1];
+  }
+
+  public int getConfigValueCount() {
+    return configValues.size();
+  }
+
+  public ConfigValue getConfigValue(int configValueIndex) {
+    return configValues.get(configValueIndex);
+  }
+
+  /** Returns the distinct configurations of the table. */
+  public ImmutableList<Configuration> getConfigurations() {
+    return configurations;
+  }
+
+  /**
+   * Returns the index in {@link #getConfigurations()} of the configuration of the given config
+   * value.
+   */
+  public int getConfigurationIndex(int configValueIndex) {
+    return configurationIndices[configValueIndex];
+  }
+
+  /** Returns a set of all the config values of the table. */
+  public BitSet allConfigValues() {
+    BitSet allConfigValues = new BitSet(getConfigValueCount());
+    allConfigValues.set(0, getConfigValueCount());
+    return allConfigValues;
+  }
+
+  /**
+   * Returns the resource table with only the given config values.
+   *
+   * <p>Entries, types and packages left without config values are removed, like {@link
+   * com.android.tools.build.bundletool.model.utils.ResourcesUtils#filterResourceTable} does.
+   */
+  public ResourceTable filter(BitSet selectedConfigValues) {
+    return filter(selectedConfigValues, /* keepEmptyTypes= */ false);
+  }
+
+  /**
+   * Returns the resource table with only the given config values.
+   *
+   * <p>Entries left without config values are removed, but all types and packages are kept.
+   */
+  public ResourceTable filterKeepingEmptyTypes(BitSet selectedConfigValues) {
+    return filter(selectedConfigValues, /* keepEmptyTypes= */ true);
+  }
+
+  private ResourceTable filter(BitSet selectedConfigValues, boolean keepEmptyTypes) {
+    ResourceTable.Builder filteredTable = resourceTable.toBuilder().clearPackage();
+    int entryIndex = 0;
+    for (Package pkg : resourceTable.getPackageList()) {
+      Package.Builder filteredPackage = pkg.toBuilder().clearType();
+      for (Type type : pkg.getTypeList()) {
+        Type.Builder filteredType = type.toBuilder().clearEntry();
+        for (Entry entry : type.getEntryList()) {
+          addFilteredEntry(filteredType, entry, entryIndex++, selectedConfigValues);
+        }
+        if (keepEmptyTypes || filteredType.getEntryCount() > 0) {
+          filteredPackage.addType(filteredType);
+        }
+      }
+      if (keepEmptyTypes || filteredPackage.getTypeCount() > 0) {
+        filteredTable.addPackage(filteredPackage);
+      }
+    }
+    return filteredTable.build();
+  }
+
+  private void addFilteredEntry(
+      Type.Builder filteredType, Entry entry, int entryIndex, BitSet selectedConfigValues) {
+    int first = getFirstConfigValueIndex(entryIndex);
+    int end = getEndConfigValueIndex(entryIndex);
+    int selectedCount = 0;
+    for (int i = selectedConfigValues.nextSetBit(first);
+        i >= 0 && i < end;
+        i = selectedConfigValues.nextSetBit(i + 1)) {
+      selectedCount++;
+    }
+    if (selectedCount == 0) {
+      return;
+    }
+    if (selectedCount == end - first) {
+      // Entries whose config values are all selected are re-used as they are.
+      filteredType.addEntry(entry);
+      return;
+    }
+    Entry.Builder filteredEntry = entry.toBuilder().clearConfigValue();
+    for (int i = selectedConfigValues.nextSetBit(first);
+        i >= 0 && i < end;
+        i = selectedConfigValues.nextSetBit(i + 1)) {
+      filteredEntry.addConfigValue(configValues.get(i));
+    }
+    filteredType.addEntry(filteredEntry);
+  }
+}
@@ -17,15 +17,24 @@
 package com.android.tools.build.bundletool.model.utils;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Throwables.throwIfUnchecked;
 import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.util.concurrent.Futures.getDone;
+import static com.google.common.util.concurrent.Futures.successfulAsList;
+import static com.google.common.util.concurrent.Uninterruptibles.getUninterruptibly;
 
 import com.android.bundle.Commands.ApkDescription;
 import com.android.bundle.Commands.Variant;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutionException;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -38,35 +47,113 @@ public class ApkSizeUtils {
    */
   public static ImmutableMap<String, Long> getVariantCompressedSizeByApkPaths(
       ImmutableList<Variant> variants, Path apksArchive) {
-    ImmutableList<String> apkPaths =
-        variants.stream()
-            .flatMap(variant -> variant.getApkSetList().stream())
-            .flatMap(apkSet -> apkSet.getApkDescriptionList().stream())
-            .map(ApkDescription::getPath)
-            .distinct()
-            .collect(toImmutableList());
-    return getCompressedSizeByApkPaths(apkPaths, apksArchive);
+    return getCompressedSizeByApkPaths(getApkPaths(variants), apksArchive);
+  }
+
+  /**
+   * Returns a map of APK Paths inside the APK Set with the sizes, for all APKs in variants
+   * provided.
+   *
+   * <p>The sizes of the APKs are calculated in parallel on the given executor.
+   */
+  public static ImmutableMap<String, Long> getVariantCompressedSizeByApkPaths(
+      ImmutableList<Variant> variants,
+      Path apksArchive,
+      ListeningExecutorService executorService) {
+    return getCompressedSizeByApkPaths(getApkPaths(variants), apksArchive, executorService);
   }
 
   public static ImmutableMap<String, Long> getCompressedSizeByApkPaths(
       ImmutableList<String> apkPaths, Path apksArchive) {
-    ImmutableMap.Builder<String, Long> sizeByApkPath = ImmutableMap.builder();
+    return getCompressedSizeByApkPaths(apkPaths, apksArchive, GZipSizeCache.inMemory());
+  }
+
+  /**
+   * Returns a map of the given APK Paths inside the APK Set with their sizes.
+   *
+   * <p>The sizes of APKs identical to APKs found in the cache are not calculated again.
+   */
+  public static ImmutableMap<String, Long> getCompressedSizeByApkPaths(
+      ImmutableList<String> apkPaths, Path apksArchive, GZipSizeCache gzipSizeCache) {
+    return getCompressedSizeByApkPaths(
+        apkPaths, apksArchive, MoreExecutors.newDirectExecutorService(), gzipSizeCache);
+  }
+
+  /**
+   * Returns a map of the given APK Paths inside the APK Set with their sizes.
+   *
+   * <p>The sizes of the APKs are calculated in parallel on the given executor.
+   */
+  public static ImmutableMap<String, Long> getCompressedSizeByApkPaths(
+      ImmutableList<String> apkPaths,
+      Path apksArchive,
+      ListeningExecutorService executorService) {
+    return getCompressedSizeByApkPaths(
+        apkPaths, apksArchive, executorService, GZipSizeCache.inMemory());
+  }
+
+  /**
+   * Returns a map of the given APK Paths inside the APK Set with their sizes.
+   *
+   * <p>The sizes of the APKs are calculated in parallel on the given executor. The sizes of APKs
+   * identical to APKs found in the cache are not calculated again.
+   */
+  public static ImmutableMap<String, Long> getCompressedSizeByApkPaths(
+      ImmutableList<String> apkPaths,
+      Path apksArchive,
+      ListeningExecutorService executorService,
+      GZipSizeCache gzipSizeCache) {
     try (ZipFile apksZip = new ZipFile(apksArchive.toFile())) {
-      for (String apkPath : apkPaths) {
-        ZipEntry entry = checkNotNull(apksZip.getEntry(apkPath));
-        // It's possible that the compressed size is larger than the uncompressed one, but the
-        // smallest APK is the one that is actually served.
-        long size =
-            Math.min(
-                entry.getSize(),
-                GZipUtils.calculateGzipCompressedSize(ZipUtils.asByteSource(apksZip, entry)));
-        sizeByApkPath.put(apkPath, size);
+      ImmutableList<ListenableFuture<Long>> sizes =
+          apkPaths.stream()
+              .map(
+                  apkPath ->
+                      executorService.submit(
+                          () -> getCompressedSize(apksZip, apkPath, gzipSizeCache)))
+              .collect(toImmutableList());
+      // All tasks must complete, even if one of them fails, before the archive is closed.
+      getUninterruptibly(successfulAsList(sizes));
+
+      ImmutableMap.Builder<String, Long> sizeByApkPath = ImmutableMap.builder();
+      for (int i = 0; i < apkPaths.size(); i++) {
+        sizeByApkPath.put(apkPaths.get(i), getDone(sizes.get(i)));
       }
+      return sizeByApkPath.build();
+    } catch (ExecutionException e) {
+      throwIfUnchecked(e.getCause());
+      throw new IllegalStateException(e.getCause());
     } catch (IOException e) {
-      throw new UncheckedIOException(
-          String.format("Error while processing the APK Set archive '%s'.", apksArchive), e);
+      throw archiveException(apksArchive, e);
     }
-    return sizeByApkPath.build();
+  }
+
+  private static long getCompressedSize(
+      ZipFile apksZip, String apkPath, GZipSizeCache gzipSizeCache) {
+    ZipEntry entry = checkNotNull(apksZip.getEntry(apkPath));
+    try {
+      // It's possible that the compressed size is larger than the uncompressed one, but the
+      // smallest APK is the one that is actually served.
+      return Math.min(
+          entry.getSize(),
+          GZipUtils.calculateGzipCompressedSize(
+              ZipUtils.asByteSource(apksZip, entry), gzipSizeCache));
+    } catch (IOException e) {
+      throw archiveException(Paths.get(apksZip.getName()), e);
+    }
+  }
+
+  private static ImmutableList<String> getApkPaths(ImmutableList<Variant> variants) {
+    return variants.stream()
+        .flatMap(variant -> variant.getApkSetList().stream())
+        .flatMap(apkSet -> apkSet.getApkDescriptionList().stream())
+        .map(ApkDescription::getPath)
+        .distinct()
+        .collect(toImmutableList());
+  }
+
+  private static UncheckedIOException archiveException(Path apksArchive, IOException e) {
+    return new UncheckedIOException(
+        String.format("Error while processing the APK Set archive '%s'.", apksArchive), e);
   }
 
   private ApkSizeUtils() {}
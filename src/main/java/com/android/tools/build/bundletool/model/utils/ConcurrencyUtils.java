@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2018 The Android Open Source Project
+ * Copyright (C) 2021 The Android Open Source Project
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -14,22 +14,29 @@
  * limitations under the License
  */
 
-package com.android.tools.build.bundletool.io;
+package com.android.tools.build.bundletool.model.utils;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
 
 import com.android.tools.build.bundletool.model.exceptions.BundleToolException;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.Uninterruptibles;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 
 /** Utility methods for working with concurrent code. */
-final class ConcurrencyUtils {
+public final class ConcurrencyUtils {
 
   /** Retrieves results of all futures, if they succeed. If any fails, eagerly throws. */
   public static <T> ImmutableList<T> waitForAll(Iterable<ListenableFuture<T>> futures) {
@@ -63,5 +70,37 @@ final class ConcurrencyUtils {
     }
   }
 
+  /**
+   * Runs the tasks on the executor and returns their results in the order of the tasks.
+   *
+   * <p>Tasks which the executor hasn't started yet when their result is needed are run in the
+   * calling thread, so this method can be nested in tasks running on the same executor.
+   */
+  public static <T> ImmutableList<T> runAllInOrder(
+      ImmutableList<? extends Callable<T>> tasks, Executor executor) {
+    ImmutableList<ListenableFutureTask<T>> futureTasks =
+        tasks.stream().map(ListenableFutureTask::create).collect(toImmutableList());
+    futureTasks.forEach(executor::execute);
+    return futureTasks.stream().map(ConcurrencyUtils::runAndGet).collect(toImmutableList());
+  }
+
+  /**
+   * Returns the result of the task, running it in the calling thread if the executor hasn't started
+   * it yet.
+   *
+   * <p>This guarantees progress even if this method is itself called from a thread of the
+   * executor.
+   */
+  public static <T> T runAndGet(ListenableFutureTask<T> task) {
+    // No-op if the task has already been started by the executor.
+    task.run();
+    try {
+      return Uninterruptibles.getUninterruptibly(task);
+    } catch (ExecutionException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
   private ConcurrencyUtils() {}
 }
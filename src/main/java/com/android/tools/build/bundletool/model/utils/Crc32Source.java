@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package com.android.tools.build.bundletool.model.utils;
+
+import java.util.OptionalLong;
+
+/**
+ * Content whose CRC-32 checksum may be known without reading it, e.g. an entry of a zip file.
+ *
+ * <p>Implemented by {@link com.google.common.io.ByteSource}s to let callers cheaply tell apart
+ * contents which are different.
+ */
+public interface Crc32Source {
+
+  /** Returns the CRC-32 of the content, or empty if it is not known without reading it. */
+  OptionalLong crc32IfKnown();
+}
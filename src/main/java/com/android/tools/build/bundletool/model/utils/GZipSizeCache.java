@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.model.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteSource;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Cache of the GZip compressed sizes of contents, keyed by the CRC-32 and the size of the
+ * uncompressed content, and the deflater level.
+ *
+ * <p>The same entries are found in many APKs of an APK Set, and most APKs are unchanged from one
+ * build to the next, so the cache can be persisted to a file and shared across invocations. Only
+ * contents whose CRC-32 and size are known without reading them (see {@link Crc32Source}) are
+ * cached; other contents are always compressed.
+ *
+ * <p>The cache is safe to use from multiple threads.
+ */
+public final class GZipSizeCache {
+
+  private static final Logger logger = Logger.getLogger(GZipSizeCache.class.getName());
+
+  private static final String FILE_HEADER = "bundletool-gzip-size-cache-v1";
+  private static final Splitter FIELD_SPLITTER = Splitter.on(' ');
+
+  private final Map<CacheKey, Long> gzipSizes;
+  private final Optional<Path> cacheFile;
+
+  private GZipSizeCache(Map<CacheKey, Long> gzipSizes, Optional<Path> cacheFile) {
+    this.gzipSizes = new ConcurrentHashMap<>(gzipSizes);
+    this.cacheFile = cacheFile;
+  }
+
+  /** Creates a cache which only lives in memory. */
+  public static GZipSizeCache inMemory() {
+    return new GZipSizeCache(ImmutableMap.of(), Optional.empty());
+  }
+
+  /**
+   * Creates a cache initialized with the sizes stored in the given file, if it exists.
+   *
+   * <p>The sizes are written back to the file by {@link #save()}. If the file can't be read, the
+   * cache starts empty.
+   */
+  public static GZipSizeCache loadFrom(Path cacheFile) {
+    return new GZipSizeCache(readCacheFile(cacheFile), Optional.of(cacheFile));
+  }
+
+  /**
+   * Returns the GZip compressed size of the content, as calculated by {@code gzipSizeCalculator},
+   * which is only invoked if the size isn't already cached.
+   */
+  public long getGzipCompressedSize(
+      ByteSource content, int deflaterLevel, GZipSizeCalculator gzipSizeCalculator)
+      throws IOException {
+    Optional<CacheKey> key = cacheKey(content, deflaterLevel);
+    if (!key.isPresent()) {
+      return gzipSizeCalculator.calculate(content);
+    }
+    Long cachedSize = gzipSizes.get(key.get());
+    if (cachedSize != null) {
+      return cachedSize;
+    }
+    // Computed without holding any lock: identical contents compressed concurrently are rare.
+    long gzipSize = gzipSizeCalculator.calculate(content);
+    gzipSizes.putIfAbsent(key.get(), gzipSize);
+    return gzipSize;
+  }
+
+  /**
+   * Writes the cached sizes to the file the cache was loaded from, if any.
+   *
+   * <p>The file is first written under a temporary name then moved into place, so that concurrent
+   * invocations never read a partially written file. Failures are only logged.
+   */
+  public void save() {
+    if (!cacheFile.isPresent()) {
+      return;
+    }
+    Path file = cacheFile.get();
+    Optional<Path> tmpFile = Optional.empty();
+    try {
+      Path directory = file.toAbsolutePath().getParent();
+      Files.createDirectories(directory);
+      tmpFile = Optional.of(Files.createTempFile(directory, file.getFileName().toString(), ".tmp"));
+      try (BufferedWriter writer = Files.newBufferedWriter(tmpFile.get(), UTF_8)) {
+        writer.write(FILE_HEADER);
+        writer.newLine();
+        for (Map.Entry<CacheKey, Long> entry : gzipSizes.entrySet()) {
+          CacheKey key = entry.getKey();
+          writer.write(
+              String.format(
+                  "%d %d %d %d",
+                  key.crc32(), key.uncompressedSize(), key.deflaterLevel(), entry.getValue()));
+          writer.newLine();
+        }
+      }
+      try {
+        Files.move(tmpFile.get(), file, ATOMIC_MOVE, REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmpFile.get(), file, REPLACE_EXISTING);
+      }
+    } catch (IOException e) {
+      // The cache is only an optimization, failing to persist it must not fail the command.
+      logger.warning("Failed to write gzip size cache '" + file + "': " + e.getMessage());
+    } finally {
+      tmpFile.ifPresent(GZipSizeCache::deleteIfExists);
+    }
+  }
+
+  private static Optional<CacheKey> cacheKey(ByteSource content, int deflaterLevel) {
+    if (!(content instanceof Crc32Source)) {
+      return Optional.empty();
+    }
+    OptionalLong crc32 = ((Crc32Source) content).crc32IfKnown();
+    Optional<Long> size = content.sizeIfKnown().toJavaUtil();
+    if (!crc32.isPresent() || !size.isPresent()) {
+      return Optional.empty();
+    }
+    return Optional.of(CacheKey.create(crc32.getAsLong(), size.get(), deflaterLevel));
+  }
+
+  private static Map<CacheKey, Long> readCacheFile(Path cacheFile) {
+    if (!Files.exists(cacheFile)) {
+      return ImmutableMap.of();
+    }
+    try {
+      List<String> lines = Files.readAllLines(cacheFile, UTF_8);
+      if (lines.isEmpty() || !lines.get(0).equals(FILE_HEADER)) {
+        logger.warning("Ignoring gzip size cache '" + cacheFile + "' in unknown format.");
+        return ImmutableMap.of();
+      }
+      Map<CacheKey, Long> gzipSizes = new HashMap<>();
+      for (String line : lines.subList(1, lines.size())) {
+        List<String> fields = FIELD_SPLITTER.splitToList(line);
+        gzipSizes.put(
+            CacheKey.create(
+                Long.parseLong(fields.get(0)),
+                Long.parseLong(fields.get(1)),
+                Integer.parseInt(fields.get(2))),
+            Long.parseLong(fields.get(3)));
+      }
+      return gzipSizes;
+    } catch (IOException | RuntimeException e) {
+      logger.warning("Ignoring unreadable gzip size cache '" + cacheFile + "': " + e.getMessage());
+      return ImmutableMap.of();
+    }
+  }
+
+  private static void deleteIfExists(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      logger.warning("Failed to delete temporary file '" + file + "': " + e.getMessage());
+    }
+  }
+
+  /** Calculates the GZip compressed size of a content. */
+  public interface GZipSizeCalculator {
+    long calculate(ByteSource content) throws IOException;
+  }
+
+  @AutoValue
+  abstract static class CacheKey {
+    abstract long crc32();
+
+    abstract long uncompressedSize();
+
+    abstract int deflaterLevel();
+
+    static CacheKey create(long crc32, long uncompressedSize, int deflaterLevel) {
+      return new AutoValue_GZipSizeCache_CacheKey(crc32, uncompressedSize, deflaterLevel);
+    }
+  }
+}
@@ -24,13 +24,24 @@ import com.google.common.io.MoreFiles;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Path;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Deflater;
 import javax.annotation.WillNotClose;
 
 /** Misc utilities for gzipping files. */
 public final class GZipUtils {
 
+  /** Size of the header written by {@link java.util.zip.GZIPOutputStream}. */
+  private static final int GZIP_HEADER_SIZE_BYTES = 10;
+
+  /** Size of the trailer (CRC32 and size) of a gzip file. */
+  private static final int GZIP_TRAILER_SIZE_BYTES = 8;
+
+  /** Size of the header and trailer of a gzip file, around the deflated data. */
+  public static final int GZIP_HEADER_AND_TRAILER_SIZE_BYTES =
+      GZIP_HEADER_SIZE_BYTES + GZIP_TRAILER_SIZE_BYTES;
+
   /** Calculates the GZip compressed size in bytes of the target {@code file}. */
   public static long calculateGzipCompressedSize(Path file) throws IOException {
     return calculateGzipCompressedSize(MoreFiles.asByteSource(file));
@@ -48,15 +59,28 @@ public final class GZipUtils {
     }
   }
 
+  /**
+   * Calculates the GZip compressed size in bytes of the target {@code stream}, re-using the size
+   * cached for an identical content if any.
+   */
+  public static long calculateGzipCompressedSize(ByteSource byteSource, GZipSizeCache cache)
+      throws IOException {
+    return cache.getGzipCompressedSize(
+        byteSource, Deflater.DEFAULT_COMPRESSION, GZipUtils::calculateGzipCompressedSize);
+  }
+
   /** Calculates the GZip compressed size in bytes of the target {@code stream}. */
   public static long calculateGzipCompressedSize(@WillNotClose InputStream stream)
       throws IOException {
     CountingOutputStream countingOutputStream =
         new CountingOutputStream(ByteStreams.nullOutputStream());
-    try (GZIPOutputStream compressedStream = new GZIPOutputStream(countingOutputStream)) {
+    // Same output as a GZIPOutputStream, but re-using a pooled deflater.
+    try (OutputStream compressedStream =
+        ZlibContexts.deflaterOutputStream(
+            countingOutputStream, Deflater.DEFAULT_COMPRESSION, /* nowrap= */ true)) {
       ByteStreams.copy(stream, compressedStream);
     }
-    return countingOutputStream.getCount();
+    return GZIP_HEADER_SIZE_BYTES + countingOutputStream.getCount() + GZIP_TRAILER_SIZE_BYTES;
   }
 
   private GZipUtils() {}
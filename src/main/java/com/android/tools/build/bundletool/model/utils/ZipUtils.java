@@ -27,6 +27,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UncheckedIOException;
 import java.nio.file.Path;
+import java.util.OptionalLong;
 import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -70,7 +71,7 @@ public final class ZipUtils {
     return new ZipEntryByteSource(file, entry);
   }
 
-  private static final class ZipEntryByteSource extends ByteSource {
+  private static final class ZipEntryByteSource extends ByteSource implements Crc32Source {
     private final ZipFile file;
     private final ZipEntry entry;
 
@@ -89,6 +90,11 @@ public final class ZipUtils {
       return entry.getSize() == -1 ? Optional.absent() : Optional.of(entry.getSize());
     }
 
+    @Override
+    public OptionalLong crc32IfKnown() {
+      return entry.getCrc() == -1 ? OptionalLong.empty() : OptionalLong.of(entry.getCrc());
+    }
+
     @Override
     public String toString() {
       return "ZipUtils.asByteSource(" + file + ", " + entry + ")";
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.model.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.errorprone.annotations.MustBeClosed;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Per-thread pools of {@link Deflater} and {@link Inflater} instances.
+ *
+ * <p>Each instance holds native zlib memory which is only freed by {@code end()} or, when that is
+ * never called, by the garbage collector. Since bundletool compresses and decompresses each entry
+ * of the App Bundle many times, the instances are instead reset and kept by the thread which
+ * released them, up to {@link #MAX_IDLE_INSTANCES_PER_KEY} instances per compression level.
+ *
+ * <p>Instances must be released exactly once, by closing the {@link PooledDeflater}, {@link
+ * PooledInflater} or the stream they were acquired with, and must not be used afterwards.
+ */
+public final class ZlibContexts {
+
+  private static final int MAX_IDLE_INSTANCES_PER_KEY = 4;
+
+  private static final ThreadLocal<Map<Integer, Deque<Deflater>>> idleDeflaters =
+      ThreadLocal.withInitial(HashMap::new);
+
+  private static final ThreadLocal<Map<Boolean, Deque<Inflater>>> idleInflaters =
+      ThreadLocal.withInitial(HashMap::new);
+
+  /**
+   * Returns a {@link Deflater} with the given compression level, re-using a released one if
+   * possible.
+   *
+   * @param nowrap whether to produce raw deflate data, without the zlib header and checksum, as
+   *     used in zip and gzip files
+   */
+  @MustBeClosed
+  public static PooledDeflater acquireDeflater(int level, boolean nowrap) {
+    checkArgument(
+        level == Deflater.DEFAULT_COMPRESSION
+            || (level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION),
+        "Invalid compression level: %s.",
+        level);
+    int key = deflaterKey(level, nowrap);
+    Deflater deflater = pollIdle(idleDeflaters.get(), key);
+    return new PooledDeflater(deflater != null ? deflater : new Deflater(level, nowrap), key);
+  }
+
+  /**
+   * Returns an {@link Inflater}, re-using a released one if possible.
+   *
+   * @param nowrap whether to read raw deflate data, without the zlib header and checksum, as used
+   *     in zip and gzip files
+   */
+  @MustBeClosed
+  public static PooledInflater acquireInflater(boolean nowrap) {
+    Inflater inflater = pollIdle(idleInflaters.get(), nowrap);
+    return new PooledInflater(inflater != null ? inflater : new Inflater(nowrap), nowrap);
+  }
+
+  /**
+   * Returns a stream of the decompressed bytes of {@code in}, which is closed along with the
+   * returned stream.
+   */
+  @SuppressWarnings("MustBeClosedChecker") // Released when the returned stream is closed.
+  @MustBeClosed
+  public static InputStream inflaterInputStream(InputStream in, boolean nowrap) {
+    PooledInflater inflater = acquireInflater(nowrap);
+    return new InflaterInputStream(in, inflater.get()) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          inflater.close();
+        }
+      }
+    };
+  }
+
+  /**
+   * Returns a stream of the bytes of {@code in} compressed with the given level, which is closed
+   * along with the returned stream.
+   */
+  @SuppressWarnings("MustBeClosedChecker") // Released when the returned stream is closed.
+  @MustBeClosed
+  public static InputStream deflaterInputStream(InputStream in, int level, boolean nowrap) {
+    PooledDeflater deflater = acquireDeflater(level, nowrap);
+    return new DeflaterInputStream(in, deflater.get()) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          deflater.close();
+        }
+      }
+    };
+  }
+
+  /**
+   * Returns a stream compressing the bytes written to it with the given level into {@code out},
+   * which is closed along with the returned stream.
+   */
+  @SuppressWarnings("MustBeClosedChecker") // Released when the returned stream is closed.
+  @MustBeClosed
+  public static OutputStream deflaterOutputStream(OutputStream out, int level, boolean nowrap) {
+    PooledDeflater deflater = acquireDeflater(level, nowrap);
+    return new DeflaterOutputStream(out, deflater.get()) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          deflater.close();
+        }
+      }
+    };
+  }
+
+  private static int deflaterKey(int level, boolean nowrap) {
+    // Levels range from -1 (default) to 9.
+    return (level + 1) * 2 + (nowrap ? 1 : 0);
+  }
+
+  private static <K, V> V pollIdle(Map<K, Deque<V>> idleInstances, K key) {
+    Deque<V> instances = idleInstances.get(key);
+    return instances == null ? null : instances.pollFirst();
+  }
+
+  /** Returns whether the instance was added to the pool of idle instances of the thread. */
+  private static <K, V> boolean offerIdle(Map<K, Deque<V>> idleInstances, K key, V instance) {
+    Deque<V> instances = idleInstances.computeIfAbsent(key, k -> new ArrayDeque<>());
+    if (instances.size() >= MAX_IDLE_INSTANCES_PER_KEY) {
+      return false;
+    }
+    instances.addFirst(instance);
+    return true;
+  }
+
+  /** A {@link Deflater} returned to the pool when closed. */
+  public static final class PooledDeflater implements AutoCloseable {
+    private final Deflater deflater;
+    private final int key;
+    private boolean released = false;
+
+    private PooledDeflater(Deflater deflater, int key) {
+      this.deflater = deflater;
+      this.key = key;
+    }
+
+    public Deflater get() {
+      checkState(!released, "Deflater used after being released.");
+      return deflater;
+    }
+
+    @Override
+    public void close() {
+      if (released) {
+        return;
+      }
+      released = true;
+      deflater.reset();
+      if (!offerIdle(idleDeflaters.get(), key, deflater)) {
+        deflater.end();
+      }
+    }
+  }
+
+  /** An {@link Inflater} returned to the pool when closed. */
+  public static final class PooledInflater implements AutoCloseable {
+    private final Inflater inflater;
+    private final boolean nowrap;
+    private boolean released = false;
+
+    private PooledInflater(Inflater inflater, boolean nowrap) {
+      this.inflater = inflater;
+      this.nowrap = nowrap;
+    }
+
+    public Inflater get() {
+      checkState(!released, "Inflater used after being released.");
+      return inflater;
+    }
+
+    @Override
+    public void close() {
+      if (released) {
+        return;
+      }
+      released = true;
+      inflater.reset();
+      if (!offerIdle(idleInflaters.get(), nowrap, inflater)) {
+        inflater.end();
+      }
+    }
+  }
+
+  private ZlibContexts() {}
+}
@@ -27,14 +27,18 @@ import com.android.tools.build.bundletool.model.ModuleSplit;
 import com.android.tools.build.bundletool.model.ModuleSplit.SplitType;
 import com.android.tools.build.bundletool.model.SourceStamp;
 import com.android.tools.build.bundletool.model.SourceStamp.StampType;
+import com.android.tools.build.bundletool.model.utils.ConcurrencyUtils;
 import com.android.tools.build.bundletool.optimizations.ApkOptimizations;
 import com.android.tools.build.bundletool.splitters.CodeTransparencyInjector;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import java.nio.file.Path;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.inject.Inject;
 
 /** Generates standalone APKs sharded by required dimensions. */
@@ -45,6 +49,7 @@ public class StandaloneApksGenerator {
   private final Sharder sharder;
   private final ModuleSplitsToShardMerger shardsMerger;
   private final CodeTransparencyInjector codeTransparencyInjector;
+  private final ListeningExecutorService executorService;
 
   @Inject
   public StandaloneApksGenerator(
@@ -52,12 +57,14 @@ public class StandaloneApksGenerator {
       ModuleSplitterForShards moduleSplitter,
       Sharder sharder,
       ModuleSplitsToShardMerger shardsMerger,
-      AppBundle appBundle) {
+      AppBundle appBundle,
+      ListeningExecutorService executorService) {
     this.stampSource = stampSource;
     this.moduleSplitter = moduleSplitter;
     this.sharder = sharder;
     this.shardsMerger = shardsMerger;
     this.codeTransparencyInjector = new CodeTransparencyInjector(appBundle);
+    this.executorService = executorService;
   }
 
   /**
@@ -80,6 +87,9 @@ public class StandaloneApksGenerator {
    *   <li>ABI splits whose targeting is "abi=X"
    *   <li>Density splits whose targeting is "density=Y"
    * </ul>
+   *
+   * <p>The shards are merged in parallel. Dex files are merged only once for all shards containing
+   * the same dex files, and the shards are returned in a deterministic order.
    */
   public ImmutableList<ModuleSplit> generateStandaloneApks(
       ImmutableList<BundleModule> modules, ApkOptimizations apkOptimizations) {
@@ -93,13 +103,28 @@ public class StandaloneApksGenerator {
                         .stream())
             .collect(toImmutableList());
 
-    Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> dexCache = Maps.newHashMap();
-    return sharder.groupSplitsToShards(splits).stream()
-        .map(unfusedShard -> shardsMerger.mergeSingleShard(unfusedShard, dexCache))
-        .map(StandaloneApksGenerator::setVariantTargetingAndSplitType)
-        .map(this::writeSourceStampInManifest)
-        .map(codeTransparencyInjector::inject)
-        .collect(toImmutableList());
+    // Concurrent requests for the same dex files wait for a single merge.
+    Map<ImmutableSet<ModuleEntry>, ListenableFuture<ImmutableList<Path>>> dexCache =
+        new ConcurrentHashMap<>();
+    ImmutableList<ListenableFutureTask<ModuleSplit>> shardTasks =
+        sharder.groupSplitsToShards(splits).stream()
+            .map(
+                unfusedShard ->
+                    ListenableFutureTask.create(() -> generateShard(unfusedShard, dexCache)))
+            .collect(toImmutableList());
+    shardTasks.forEach(executorService::execute);
+
+    // Shards are collected in the order they were created for determinism.
+    return shardTasks.stream().map(ConcurrencyUtils::runAndGet).collect(toImmutableList());
+  }
+
+  private ModuleSplit generateShard(
+      ImmutableList<ModuleSplit> unfusedShard,
+      Map<ImmutableSet<ModuleEntry>, ListenableFuture<ImmutableList<Path>>> dexCache) {
+    ModuleSplit shard = shardsMerger.mergeSingleShard(unfusedShard, dexCache);
+    shard = setVariantTargetingAndSplitType(shard);
+    shard = writeSourceStampInManifest(shard);
+    return codeTransparencyInjector.inject(shard);
   }
 
   private static ModuleSplit setVariantTargetingAndSplitType(ModuleSplit shard) {
@@ -25,6 +25,7 @@ import static com.google.common.collect.ImmutableMap.toImmutableMap;
 
 import com.android.bundle.SizesOuterClass.Breakdown;
 import com.android.bundle.SizesOuterClass.Sizes;
+import com.android.tools.build.bundletool.model.utils.GZipSizeCache;
 import com.android.tools.build.bundletool.model.utils.GZipUtils;
 import com.android.tools.build.bundletool.model.utils.ZipUtils;
 import com.android.tools.build.bundletool.size.ApkCompressedSizeCalculator.JavaUtilZipDeflater;
@@ -36,7 +37,9 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.AbstractMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -45,13 +48,32 @@ import java.util.zip.ZipFile;
 public final class ApkBreakdownGenerator {
 
   private final ApkCompressedSizeCalculator compressedSizeCalculator;
+  private final Optional<GZipSizeCache> gzipSizeCache;
 
   public ApkBreakdownGenerator() {
-    this(new ApkCompressedSizeCalculator(JavaUtilZipDeflater::new));
+    this(
+        new ApkCompressedSizeCalculator(JavaUtilZipDeflater::new),
+        /* gzipSizeCache= */ Optional.empty());
   }
 
-  private ApkBreakdownGenerator(ApkCompressedSizeCalculator compressedSizeCalculator) {
+  /**
+   * Creates a generator which calculates the download size of each entry on its own, re-using the
+   * sizes found in the given cache.
+   *
+   * <p>The total download size of the APK is still calculated by compressing the whole APK. The
+   * download size of each component is off by at most the sum over its entries of the GZIP size of
+   * their first 32 KiB, see {@link ApkCompressedSizeCalculator#calculateGZipSizeForEntries(List,
+   * GZipSizeCache)}; the difference with the total is attributed to {@link ApkComponent#OTHER}.
+   */
+  public ApkBreakdownGenerator(GZipSizeCache gzipSizeCache) {
+    this(new ApkCompressedSizeCalculator(JavaUtilZipDeflater::new), Optional.of(gzipSizeCache));
+  }
+
+  private ApkBreakdownGenerator(
+      ApkCompressedSizeCalculator compressedSizeCalculator,
+      Optional<GZipSizeCache> gzipSizeCache) {
     this.compressedSizeCalculator = compressedSizeCalculator;
+    this.gzipSizeCache = gzipSizeCache;
   }
 
   public Breakdown calculateBreakdown(Path apkPath) throws IOException {
@@ -116,7 +138,9 @@ public final class ApkBreakdownGenerator {
             .collect(toImmutableList());
 
     ImmutableList<Long> downloadSizes =
-        compressedSizeCalculator.calculateGZipSizeForEntries(streams);
+        gzipSizeCache.isPresent()
+            ? compressedSizeCalculator.calculateGZipSizeForEntries(streams, gzipSizeCache.get())
+            : compressedSizeCalculator.calculateGZipSizeForEntries(streams);
 
     return Streams.zip(zipFile.stream(), downloadSizes.stream(), AbstractMap.SimpleEntry::new)
         .collect(
@@ -16,6 +16,10 @@
 
 package com.android.tools.build.bundletool.size;
 
+import com.android.tools.build.bundletool.model.utils.GZipSizeCache;
+import com.android.tools.build.bundletool.model.utils.GZipUtils;
+import com.android.tools.build.bundletool.model.utils.ZlibContexts;
+import com.android.tools.build.bundletool.model.utils.ZlibContexts.PooledDeflater;
 import com.google.common.collect.ImmutableList;
 import com.google.common.io.ByteSource;
 import java.io.Closeable;
@@ -68,6 +72,27 @@ final class ApkCompressedSizeCalculator {
     return gzipSizeIncrements.build();
   }
 
+  /**
+   * Given a list of {@link ByteSource} computes the GZIP size of each stream compressed on its own,
+   * re-using the sizes found in the given cache.
+   *
+   * <p>Unlike {@link #calculateGZipSizeForEntries(List)}, the size of an entry doesn't depend on
+   * the entries before it, so it can be cached across APKs. The price is an approximation: an
+   * entry compressed on its own can't refer to the last 32 KiB of the previous entries, so its size
+   * differs from the one returned by {@link #calculateGZipSizeForEntries(List)} by at most the GZIP
+   * size of its first 32 KiB, and in practice by much less for the entries of an APK, which are
+   * mostly unrelated to each other.
+   */
+  public ImmutableList<Long> calculateGZipSizeForEntries(
+      List<ByteSource> byteSources, GZipSizeCache gzipSizeCache) throws IOException {
+    ImmutableList.Builder<Long> gzipSizes = ImmutableList.builder();
+    for (ByteSource byteSource : byteSources) {
+      long gzipSize = GZipUtils.calculateGzipCompressedSize(byteSource, gzipSizeCache);
+      gzipSizes.add(Math.max(0, gzipSize - GZipUtils.GZIP_HEADER_AND_TRAILER_SIZE_BYTES));
+    }
+    return gzipSizes.build();
+  }
+
   interface ApkGzipDeflater extends Closeable {
 
     /** Compresses the next byte of an entry */
@@ -86,6 +111,7 @@ final class ApkCompressedSizeCalculator {
 
   static final class JavaUtilZipDeflater implements ApkGzipDeflater {
 
+    private final PooledDeflater pooledDeflater;
     private final Deflater deflater;
 
     // Worse case overestimate for the max size deflation should result it.
@@ -95,8 +121,11 @@ final class ApkCompressedSizeCalculator {
 
     private long deflatedSize = 0;
 
+    @SuppressWarnings("MustBeClosedChecker") // Released when this deflater is closed.
     public JavaUtilZipDeflater() {
-      this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, /* noWrap */ true);
+      this.pooledDeflater =
+          ZlibContexts.acquireDeflater(Deflater.DEFAULT_COMPRESSION, /* nowrap= */ true);
+      this.deflater = pooledDeflater.get();
     }
 
     @Override
@@ -121,7 +150,7 @@ final class ApkCompressedSizeCalculator {
 
     @Override
     public void close() {
-      deflater.end();
+      pooledDeflater.close();
     }
   }
 }
@@ -21,20 +21,21 @@ import static com.android.tools.build.bundletool.model.utils.ResourcesUtils.conv
 import static com.android.tools.build.bundletool.model.utils.ResourcesUtils.entries;
 import static com.google.common.collect.ImmutableList.toImmutableList;
 
-import com.android.aapt.Resources.ConfigValue;
-import com.android.aapt.Resources.Entry;
 import com.android.aapt.Resources.ResourceTable;
 import com.android.bundle.Targeting.LanguageTargeting;
 import com.android.tools.build.bundletool.model.ModuleEntry;
 import com.android.tools.build.bundletool.model.ModuleSplit;
 import com.android.tools.build.bundletool.model.ResourceTableEntry;
+import com.android.tools.build.bundletool.model.ResourceTableIndex;
 import com.android.tools.build.bundletool.model.utils.ResourcesUtils;
 import com.google.common.base.Predicates;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Iterables;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.function.Predicate;
 
 /**
@@ -132,11 +133,14 @@ public class LanguageResourcesSplitter extends SplitterForOneTargetingDimension
   private ImmutableMap<String, ResourceTable> groupByLanguage(
       ResourceTable table, boolean hasNonResourceEntries) {
     ImmutableSet<String> languages = ResourcesUtils.getAllLanguages(table);
+    ResourceTableIndex tableIndex = ResourceTableIndex.create(table);
+    Map<String, BitSet> configValuesByLanguage = groupConfigValuesByLanguage(tableIndex);
 
     ImmutableMap.Builder<String, ResourceTable> resourceTableByLanguage =
         new ImmutableMap.Builder<>();
     for (String language : languages) {
-      ResourceTable languageResourceTable = filterByLanguage(table, language);
+      ResourceTable languageResourceTable =
+          tableIndex.filter(configValuesByLanguage.getOrDefault(language, new BitSet()));
       // The resource table might be empty, due to resource pinning. In that case avoid creating
       // a language split.
       if (!languageResourceTable.equals(ResourceTable.getDefaultInstance())) {
@@ -149,10 +153,7 @@ public class LanguageResourcesSplitter extends SplitterForOneTargetingDimension
     // non resource related entries and no pinned entries.
     if (!languages.contains("")) {
       ResourceTable pinnedResources =
-          ResourcesUtils.filterResourceTable(
-              table,
-              /* removeEntryPredicate= */ pinResourceToMaster.negate(),
-              /* configValuesFilterFn= */ ResourceTableEntry::getEntry);
+          tableIndex.filter(configValuesByLanguage.getOrDefault("", new BitSet()));
       if (hasNonResourceEntries || entries(pinnedResources).count() > 0) {
         resourceTableByLanguage.put("", pinnedResources);
       }
@@ -161,40 +162,32 @@ public class LanguageResourcesSplitter extends SplitterForOneTargetingDimension
     return resourceTableByLanguage.build();
   }
 
-  private ResourceTable filterByLanguage(ResourceTable input, String language) {
-    return ResourcesUtils.filterResourceTable(
-        input,
-        /* removeEntryPredicate= */ language.isEmpty()
-            ? Predicates.alwaysFalse()
-            : pinResourceToMaster,
-        /* configValuesFilterFn= */ entry -> filterEntryForLanguage(entry, language));
-  }
-
   /**
-   * Only leaves the language specific config values relevant for the given language. For pinned
-   * resource to master splits, retains them fully if the target language is empty (default value).
+   * Assigns each config value of the table to the language of its configuration, in a single pass
+   * over the table.
    *
-   * @param initialEntry the entry to be updated
-   * @param targetLanguage the desired language to match
-   * @return the entry containing only config values specific to the given language or pinned
-   *     resources to master splits if applicable.
+   * <p>All the config values of the resources pinned to the master split are assigned to the
+   * default language "", regardless of their own language.
    */
-  private Entry filterEntryForLanguage(ResourceTableEntry initialEntry, String targetLanguage) {
-    if (targetLanguage.isEmpty() && pinResourceToMaster.test(initialEntry)) {
-      return initialEntry.getEntry();
+  private Map<String, BitSet> groupConfigValuesByLanguage(ResourceTableIndex tableIndex) {
+    ImmutableList<String> languageByConfiguration =
+        tableIndex.getConfigurations().stream()
+            .map(configuration -> convertLocaleToLanguage(configuration.getLocale()))
+            .collect(toImmutableList());
+
+    Map<String, BitSet> configValuesByLanguage = new HashMap<>();
+    for (int entryIndex = 0; entryIndex < tableIndex.getEntryCount(); entryIndex++) {
+      int first = tableIndex.getFirstConfigValueIndex(entryIndex);
+      int end = tableIndex.getEndConfigValueIndex(entryIndex);
+      if (pinResourceToMaster.test(tableIndex.getEntry(entryIndex))) {
+        configValuesByLanguage.computeIfAbsent("", unused -> new BitSet()).set(first, end);
+        continue;
+      }
+      for (int i = first; i < end; i++) {
+        String language = languageByConfiguration.get(tableIndex.getConfigurationIndex(i));
+        configValuesByLanguage.computeIfAbsent(language, unused -> new BitSet()).set(i);
+      }
     }
-
-    Iterable<ConfigValue> filteredConfigValues =
-        Iterables.filter(
-            initialEntry.getEntry().getConfigValueList(),
-            configValue ->
-                convertLocaleToLanguage(configValue.getConfig().getLocale())
-                    .equals(targetLanguage));
-    return initialEntry
-        .getEntry()
-        .toBuilder()
-        .clearConfigValue()
-        .addAllConfigValue(filteredConfigValues)
-        .build();
+    return configValuesByLanguage;
   }
 }
@@ -24,6 +24,7 @@ import static com.android.tools.build.bundletool.model.version.VersionGuardedFea
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 
 import com.android.aapt.ConfigurationOuterClass.Configuration;
 import com.android.bundle.Config.BundleConfig;
@@ -46,6 +47,7 @@ import com.android.tools.build.bundletool.model.ResourceTableEntry;
 import com.android.tools.build.bundletool.model.SourceStamp.StampType;
 import com.android.tools.build.bundletool.model.SuffixManager;
 import com.android.tools.build.bundletool.model.exceptions.CommandExecutionException;
+import com.android.tools.build.bundletool.model.utils.ConcurrencyUtils;
 import com.android.tools.build.bundletool.model.version.Version;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Predicates;
@@ -54,6 +56,8 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.protobuf.Int32Value;
 import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 import java.util.function.Predicate;
 
 /**
@@ -78,6 +82,7 @@ public class ModuleSplitter {
   private final AbiPlaceholderInjector abiPlaceholderInjector;
   private final PinSpecInjector pinSpecInjector;
   private final CodeTransparencyInjector codeTransparencyInjector;
+  private final Executor executor;
 
   @VisibleForTesting
   public static ModuleSplitter createForTest(BundleModule module, Version bundleVersion) {
@@ -92,7 +97,8 @@ public class ModuleSplitter {
         lPlusVariantTargeting(),
         /* allModuleNames= */ ImmutableSet.of(),
         /* stampSource= */ Optional.empty(),
-        /* stampType= */ null);
+        /* stampType= */ null,
+        directExecutor());
   }
 
   public static ModuleSplitter createNoStamp(
@@ -110,7 +116,8 @@ public class ModuleSplitter {
         variantTargeting,
         allModuleNames,
         /* stampSource= */ Optional.empty(),
-        /* stampType= */ null);
+        /* stampType= */ null,
+        directExecutor());
   }
 
   public static ModuleSplitter create(
@@ -122,6 +129,32 @@ public class ModuleSplitter {
       ImmutableSet<String> allModuleNames,
       Optional<String> stampSource,
       StampType stampType) {
+    return create(
+        module,
+        bundleVersion,
+        appBundle,
+        apkGenerationConfiguration,
+        variantTargeting,
+        allModuleNames,
+        stampSource,
+        stampType,
+        directExecutor());
+  }
+
+  /**
+   * Creates a module splitter which runs the independent splitting pipelines (resources, native
+   * libraries, assets and dex) on the given executor.
+   */
+  public static ModuleSplitter create(
+      BundleModule module,
+      Version bundleVersion,
+      AppBundle appBundle,
+      ApkGenerationConfiguration apkGenerationConfiguration,
+      VariantTargeting variantTargeting,
+      ImmutableSet<String> allModuleNames,
+      Optional<String> stampSource,
+      StampType stampType,
+      Executor executor) {
     return new ModuleSplitter(
         module,
         bundleVersion,
@@ -130,7 +163,8 @@ public class ModuleSplitter {
         variantTargeting,
         allModuleNames,
         stampSource,
-        stampType);
+        stampType,
+        executor);
   }
 
   private ModuleSplitter(
@@ -141,7 +175,8 @@ public class ModuleSplitter {
       VariantTargeting variantTargeting,
       ImmutableSet<String> allModuleNames,
       Optional<String> stampSource,
-      StampType stampType) {
+      StampType stampType,
+      Executor executor) {
     this.module = checkNotNull(module);
     this.bundleVersion = checkNotNull(bundleVersion);
     this.apkGenerationConfiguration = checkNotNull(apkGenerationConfiguration);
@@ -153,6 +188,7 @@ public class ModuleSplitter {
     this.allModuleNames = allModuleNames;
     this.stampSource = stampSource;
     this.stampType = stampType;
+    this.executor = checkNotNull(executor);
   }
 
   public ImmutableList<ModuleSplit> splitModule() {
@@ -208,23 +244,26 @@ public class ModuleSplitter {
           .build();
     }
 
-    ImmutableList.Builder<ModuleSplit> splits = ImmutableList.builder();
-
-    // Resources splits.
-    SplittingPipeline resourcesPipeline = createResourcesSplittingPipeline();
-    splits.addAll(resourcesPipeline.split(ModuleSplit.forResources(module, variantTargeting)));
+    // The pipelines are independent and run in parallel, their splits are collected in order.
+    ImmutableList<Callable<ImmutableCollection<ModuleSplit>>> pipelineTasks =
+        ImmutableList.of(
+            // Resources splits.
+            () ->
+                createResourcesSplittingPipeline()
+                    .split(ModuleSplit.forResources(module, variantTargeting)),
+            // Native libraries splits.
+            () ->
+                createNativeLibrariesSplittingPipeline()
+                    .split(ModuleSplit.forNativeLibraries(module, variantTargeting)),
+            // Assets splits.
+            () ->
+                createAssetsSplittingPipeline()
+                    .split(ModuleSplit.forAssets(module, variantTargeting)),
+            // Dex Files.
+            () -> createDexSplittingPipeline().split(ModuleSplit.forDex(module, variantTargeting)));
 
-    // Native libraries splits.
-    SplittingPipeline nativePipeline = createNativeLibrariesSplittingPipeline();
-    splits.addAll(nativePipeline.split(ModuleSplit.forNativeLibraries(module, variantTargeting)));
-
-    // Assets splits.
-    SplittingPipeline assetsPipeline = createAssetsSplittingPipeline();
-    splits.addAll(assetsPipeline.split(ModuleSplit.forAssets(module, variantTargeting)));
-
-    // Dex Files.
-    SplittingPipeline dexPipeline = createDexSplittingPipeline();
-    splits.addAll(dexPipeline.split(ModuleSplit.forDex(module, variantTargeting)));
+    ImmutableList.Builder<ModuleSplit> splits = ImmutableList.builder();
+    ConcurrencyUtils.runAllInOrder(pipelineTasks, executor).forEach(splits::addAll);
 
     // Other files.
     splits.add(ModuleSplit.forRoot(module, variantTargeting));
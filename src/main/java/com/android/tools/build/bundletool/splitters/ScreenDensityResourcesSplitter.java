@@ -17,44 +17,40 @@
 package com.android.tools.build.bundletool.splitters;
 
 import static com.android.tools.build.bundletool.model.ManifestMutator.withSplitsRequired;
-import static com.android.tools.build.bundletool.model.utils.CollectorUtils.groupingByDeterministic;
 import static com.android.tools.build.bundletool.model.utils.ResourcesUtils.DEFAULT_DENSITY_VALUE;
 import static com.android.tools.build.bundletool.model.utils.ResourcesUtils.MIPMAP_TYPE;
 import static com.android.tools.build.bundletool.model.utils.ResourcesUtils.getLowestDensity;
 import static com.android.tools.build.bundletool.model.version.VersionGuardedFeature.RESOURCES_WITH_NO_ALTERNATIVES_IN_MASTER_SPLIT;
-import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.collect.ImmutableMap.toImmutableMap;
 import static com.google.common.collect.ImmutableSet.toImmutableSet;
 
 import com.android.aapt.ConfigurationOuterClass.Configuration;
 import com.android.aapt.Resources.ConfigValue;
-import com.android.aapt.Resources.Entry;
-import com.android.aapt.Resources.Package;
 import com.android.aapt.Resources.ResourceTable;
-import com.android.aapt.Resources.Type;
 import com.android.bundle.Targeting.ScreenDensity;
 import com.android.bundle.Targeting.ScreenDensity.DensityAlias;
 import com.android.bundle.Targeting.ScreenDensityTargeting;
 import com.android.tools.build.bundletool.model.ModuleSplit;
 import com.android.tools.build.bundletool.model.ResourceId;
 import com.android.tools.build.bundletool.model.ResourceTableEntry;
+import com.android.tools.build.bundletool.model.ResourceTableIndex;
 import com.android.tools.build.bundletool.model.targeting.ScreenDensitySelector;
-import com.android.tools.build.bundletool.model.utils.ResourcesUtils;
 import com.android.tools.build.bundletool.model.version.Version;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
-import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.function.Predicate;
-import java.util.stream.Stream;
 
 /** Splits module resources by screen density. */
 public class ScreenDensityResourcesSplitter extends SplitterForOneTargetingDimension {
@@ -113,13 +109,20 @@ public class ScreenDensityResourcesSplitter extends SplitterForOneTargetingDimen
       return ImmutableList.of(split);
     }
 
+    ResourceTableIndex tableIndex = ResourceTableIndex.create(resourceTable.get());
+    ImmutableMap<DensityAlias, BitSet> configValuesByDensity =
+        selectConfigValuesForAllDensities(tableIndex);
+    // Config values claimed by the density splits, which are removed from the default split.
+    BitSet claimedConfigValues = new BitSet(tableIndex.getConfigValueCount());
     ImmutableList.Builder<ModuleSplit> splitsBuilder = new ImmutableList.Builder<>();
     for (DensityAlias density : densityBuckets) {
-      ResourceTable optimizedTable = filterResourceTableForDensity(resourceTable.get(), density);
+      BitSet densityConfigValues = configValuesByDensity.get(density);
+      ResourceTable optimizedTable = tableIndex.filter(densityConfigValues);
       // Don't generate empty splits.
       if (optimizedTable.equals(ResourceTable.getDefaultInstance())) {
         continue;
       }
+      claimedConfigValues.or(densityConfigValues);
       ModuleSplit.Builder moduleSplitBuilder =
           split.toBuilder()
               .setApkTargeting(
@@ -139,7 +142,8 @@ public class ScreenDensityResourcesSplitter extends SplitterForOneTargetingDimen
       splitsBuilder.add(moduleSplitBuilder.build());
     }
 
-    ModuleSplit defaultResourcesSplit = getDefaultResourcesSplit(split, splitsBuilder.build());
+    ModuleSplit defaultResourcesSplit =
+        getDefaultResourcesSplit(split, tableIndex, claimedConfigValues);
     return splitsBuilder.add(defaultResourcesSplit).build();
   }
 
@@ -148,126 +152,153 @@ public class ScreenDensityResourcesSplitter extends SplitterForOneTargetingDimen
   }
 
   /** Creates resources split with no extra targeting with all other unclaimed resource entries. */
-  private ModuleSplit getDefaultResourcesSplit(
-      ModuleSplit inputSplit, ImmutableCollection<ModuleSplit> densitySplits) {
-    ResourceTable defaultSplitTable =
-        getResourceTableForDefaultSplit(inputSplit, getClaimedConfigs(densitySplits));
+  private static ModuleSplit getDefaultResourcesSplit(
+      ModuleSplit inputSplit, ResourceTableIndex tableIndex, BitSet claimedConfigValues) {
+    BitSet unclaimedConfigValues = tableIndex.allConfigValues();
+    unclaimedConfigValues.andNot(claimedConfigValues);
+    // Types left without entries are kept in the default split.
+    ResourceTable defaultSplitTable = tableIndex.filterKeepingEmptyTypes(unclaimedConfigValues);
     return inputSplit.toBuilder()
         .setEntries(ModuleSplit.filterResourceEntries(inputSplit.getEntries(), defaultSplitTable))
         .setResourceTable(defaultSplitTable)
         .build();
   }
 
-  private ImmutableMultimap<ResourceId, ConfigValue> getClaimedConfigs(
-      Iterable<ModuleSplit> moduleSplits) {
-    ImmutableMultimap.Builder<ResourceId, ConfigValue> result = new ImmutableMultimap.Builder<>();
-    for (ModuleSplit moduleSplit : moduleSplits) {
-      checkState(
-          moduleSplit.getResourceTable().isPresent(),
-          "Resource table not found in the density split.");
-      for (Package pkg : moduleSplit.getResourceTable().get().getPackageList()) {
-        for (Type type : pkg.getTypeList()) {
-          for (Entry entry : type.getEntryList()) {
-            for (ConfigValue configValue : entry.getConfigValueList()) {
-              result.put(ResourceId.create(pkg, type, entry), configValue);
+  /**
+   * Returns the config values of the table which belong to the split of each density bucket.
+   *
+   * <p>As any other resource qualifiers can be requested when delivering resources, the best
+   * matches are only chosen within groups of config values differing by density only. The groups
+   * of each entry are built once, and the best matches for all the density buckets are selected
+   * from them in the same pass over the table.
+   */
+  private ImmutableMap<DensityAlias, BitSet> selectConfigValuesForAllDensities(
+      ResourceTableIndex tableIndex) {
+    ImmutableMap<DensityAlias, BitSet> configValuesByDensity =
+        densityBuckets.stream()
+            .collect(
+                toImmutableMap(
+                    density -> density,
+                    density -> new BitSet(tableIndex.getConfigValueCount())));
+    ImmutableMap<DensityAlias, Set<DensityAlias>> alternativesByDensity =
+        densityBuckets.stream()
+            .collect(
+                toImmutableMap(density -> density, density -> allBut(densityBuckets, density)));
+    DensityAlias lowestDensity = getLowestDensity(densityBuckets);
+    int[] densityGroupByConfiguration = getDensityGroupByConfiguration(tableIndex);
+    ScreenDensitySelector densitySelector = new ScreenDensitySelector();
+
+    for (int entryIndex = 0; entryIndex < tableIndex.getEntryCount(); entryIndex++) {
+      ResourceTableEntry tableEntry = tableIndex.getEntry(entryIndex);
+      // Put mipmaps and resources pinned as a whole into the master split.
+      if (tableEntry.getType().getName().equals(MIPMAP_TYPE)
+          || pinWholeResourceToMaster.test(tableEntry.getResourceId())) {
+        continue;
+      }
+      ImmutableList<ImmutableList<Integer>> densityGroups =
+          getDensityGroups(tableIndex, entryIndex, densityGroupByConfiguration);
+      ImmutableList<ImmutableList<ConfigValue>> densityGroupsConfigValues =
+          densityGroups.stream()
+              .map(
+                  group ->
+                      group.stream().map(tableIndex::getConfigValue).collect(toImmutableList()))
+              .collect(toImmutableList());
+
+      // We want to pin specific configs to the master, instead of putting them into a density
+      // split.
+      ImmutableSet<ConfigValue> configValuesPinnedToMaster = ImmutableSet.of();
+      if (pinLowestBucketToMaster(tableEntry)) {
+        configValuesPinnedToMaster =
+            densityGroupsConfigValues.stream()
+                .flatMap(
+                    group ->
+                        densitySelector
+                            .selectAllMatchingConfigValues(
+                                group,
+                                lowestDensity,
+                                allBut(densityBuckets, lowestDensity),
+                                bundleVersion)
+                            .stream())
+                .collect(toImmutableSet());
+      }
+
+      for (DensityAlias density : densityBuckets) {
+        BitSet selectedConfigValues = configValuesByDensity.get(density);
+        for (int groupIndex = 0; groupIndex < densityGroups.size(); groupIndex++) {
+          ImmutableList<ConfigValue> groupConfigValues = densityGroupsConfigValues.get(groupIndex);
+          for (ConfigValue selectedConfigValue :
+              densitySelector.selectAllMatchingConfigValues(
+                  groupConfigValues, density, alternativesByDensity.get(density), bundleVersion)) {
+            if (!configValuesPinnedToMaster.contains(selectedConfigValue)) {
+              selectedConfigValues.set(
+                  densityGroups
+                      .get(groupIndex)
+                      .get(indexOf(groupConfigValues, selectedConfigValue)));
             }
           }
         }
       }
     }
-    return result.build();
+    return configValuesByDensity;
   }
 
   /**
-   * Returns a resource table for master split.
-   *
-   * <p>It will be stripped of any entries claimed by the config splits.
+   * Returns, for each configuration of the table, the index of its density group, i.e. of the
+   * configuration without density.
    */
-  private ResourceTable getResourceTableForDefaultSplit(
-      ModuleSplit split, ImmutableMultimap<ResourceId, ConfigValue> claimedConfigs) {
-    checkArgument(
-        split.getResourceTable().isPresent(), "Expected the split to contain Resource Table.");
-    ResourceTable.Builder prunedTable = split.getResourceTable().get().toBuilder();
-    for (Package.Builder packageBuilder : prunedTable.getPackageBuilderList()) {
-      for (Type.Builder typeBuilder : packageBuilder.getTypeBuilderList()) {
-        List<Entry> newEntries = new ArrayList<>();
-        for (Entry entry : typeBuilder.getEntryList()) {
-          ResourceId resourceId = ResourceId.create(packageBuilder, typeBuilder, entry);
-          ImmutableList<ConfigValue> allConfigsExceptClaimed =
-              entry.getConfigValueList().stream()
-                  .filter(configValue -> !claimedConfigs.containsEntry(resourceId, configValue))
-                  .collect(toImmutableList());
-          Entry.Builder newEntry =
-              entry.toBuilder().clearConfigValue().addAllConfigValue(allConfigsExceptClaimed);
-          if (newEntry.getConfigValueCount() > 0) { // if everything was claimed we skip the entry.
-            newEntries.add(newEntry.build());
-          }
-        }
-        typeBuilder.clearEntry().addAllEntry(newEntries);
-      }
+  private static int[] getDensityGroupByConfiguration(ResourceTableIndex tableIndex) {
+    ImmutableList<Configuration> configurations = tableIndex.getConfigurations();
+    int[] densityGroupByConfiguration = new int[configurations.size()];
+    Map<Configuration, Integer> densityGroupByConfigurationWithoutDensity = new HashMap<>();
+    for (int i = 0; i < configurations.size(); i++) {
+      densityGroupByConfiguration[i] =
+          densityGroupByConfigurationWithoutDensity.computeIfAbsent(
+              clearDensity(configurations.get(i)),
+              unused -> densityGroupByConfigurationWithoutDensity.size());
     }
-    return prunedTable.build();
-  }
-
-  private ResourceTable filterResourceTableForDensity(ResourceTable input, DensityAlias density) {
-    return ResourcesUtils.filterResourceTable(
-        input,
-        // Put mipmaps into the master split.
-        /* removeEntryPredicate= */ entry -> entry.getType().getName().equals(MIPMAP_TYPE),
-        /* configValuesFilterFn= */ entry -> filterEntryForDensity(entry, density));
+    return densityGroupByConfiguration;
   }
 
   /**
-   * Only leaves the density specific config values optimized for a given density.
-   *
-   * <p>As any other resource qualifiers can be requested when delivering resources, the algorithm
-   * chooses the best match only within group of resources differing by density only.
-   *
-   * @param tableEntry the entry to be updated
-   * @param targetDensity the desired density to match
-   * @return the entry with the best matching density config values.
+   * Groups together the indices of the config values of the entry that only differ on density, in
+   * order of first appearance.
    */
-  private Entry filterEntryForDensity(ResourceTableEntry tableEntry, DensityAlias targetDensity) {
-    Entry initialEntry = tableEntry.getEntry();
-    // Groups together configs that only differ on density.
-    ImmutableMap<Configuration, ? extends List<ConfigValue>> configValuesByConfiguration =
-        initialEntry.getConfigValueList().stream()
-            .filter(
-                configValue ->
-                    RESOURCES_WITH_NO_ALTERNATIVES_IN_MASTER_SPLIT.enabledForVersion(bundleVersion)
-                        || configValue.getConfig().getDensity() != DEFAULT_DENSITY_VALUE)
-            .collect(groupingByDeterministic(configValue -> clearDensity(configValue.getConfig())));
-
-    // Filter out configs that don't have alternatives on density. These configurations can go in
-    // the master split.
-    if (RESOURCES_WITH_NO_ALTERNATIVES_IN_MASTER_SPLIT.enabledForVersion(bundleVersion)) {
-      configValuesByConfiguration =
-          ImmutableMap.copyOf(
-              Maps.filterValues(
-                  configValuesByConfiguration, configValues -> configValues.size() > 1));
+  private ImmutableList<ImmutableList<Integer>> getDensityGroups(
+      ResourceTableIndex tableIndex, int entryIndex, int[] densityGroupByConfiguration) {
+    boolean noAlternativesInMaster =
+        RESOURCES_WITH_NO_ALTERNATIVES_IN_MASTER_SPLIT.enabledForVersion(bundleVersion);
+    Map<Integer, ImmutableList.Builder<Integer>> densityGroups = new LinkedHashMap<>();
+    for (int i = tableIndex.getFirstConfigValueIndex(entryIndex);
+        i < tableIndex.getEndConfigValueIndex(entryIndex);
+        i++) {
+      int configurationIndex = tableIndex.getConfigurationIndex(i);
+      if (!noAlternativesInMaster
+          && tableIndex.getConfigurations().get(configurationIndex).getDensity()
+              == DEFAULT_DENSITY_VALUE) {
+        continue;
+      }
+      densityGroups
+          .computeIfAbsent(
+              densityGroupByConfiguration[configurationIndex], unused -> ImmutableList.builder())
+          .add(i);
     }
+    return densityGroups.values().stream()
+        .map(ImmutableList.Builder::build)
+        // Configs that don't have alternatives on density can go in the master split.
+        .filter(group -> !noAlternativesInMaster || group.size() > 1)
+        .collect(toImmutableList());
+  }
 
-    ImmutableList<List<ConfigValue>> densityGroups =
-        ImmutableList.copyOf(configValuesByConfiguration.values());
-
-    // We want to pin specific configs to the master, instead of putting them into a density split.
-    Predicate<ConfigValue> pinConfigToMaster;
-    if (pinWholeResourceToMaster.test(tableEntry.getResourceId())) {
-      pinConfigToMaster = anyConfig -> true;
-    } else if (pinLowestBucketToMaster(tableEntry)) {
-      ImmutableSet<ConfigValue> lowDensityConfigsPinnedToMaster =
-          pickBestDensityForEachGroup(densityGroups, getLowestDensity(densityBuckets))
-              .collect(toImmutableSet());
-      pinConfigToMaster = lowDensityConfigsPinnedToMaster::contains;
-    } else {
-      pinConfigToMaster = anyConfig -> false;
+  /** Returns the position of the given config value in the list, preferably by identity. */
+  private static int indexOf(List<ConfigValue> configValues, ConfigValue configValue) {
+    for (int i = 0; i < configValues.size(); i++) {
+      if (configValues.get(i) == configValue) {
+        return i;
+      }
     }
-
-    ImmutableList<ConfigValue> valuesToKeep =
-        pickBestDensityForEachGroup(densityGroups, targetDensity)
-            .filter(config -> !pinConfigToMaster.test(config))
-            .collect(toImmutableList());
-    return initialEntry.toBuilder().clearConfigValue().addAllConfigValue(valuesToKeep).build();
+    int index = configValues.indexOf(configValue);
+    checkState(index >= 0, "Selected config value not found in the density group.");
+    return index;
   }
 
   private boolean pinLowestBucketToMaster(ResourceTableEntry entry) {
@@ -275,21 +306,6 @@ public class ScreenDensityResourcesSplitter extends SplitterForOneTargetingDimen
         || (pinLowestBucketOfStylesToMaster && STYLE_TYPE_NAME.equals(entry.getType().getName()));
   }
 
-  /** For each density group, it picks the best match for a given desired densityAlias. */
-  private Stream<ConfigValue> pickBestDensityForEachGroup(
-      ImmutableList<List<ConfigValue>> densityGroups, DensityAlias densityAlias) {
-    return densityGroups.stream()
-        .flatMap(
-            group ->
-                new ScreenDensitySelector()
-                        .selectAllMatchingConfigValues(
-                            ImmutableList.copyOf(group),
-                            densityAlias,
-                            allBut(densityBuckets, densityAlias),
-                            bundleVersion)
-                        .stream());
-  }
-
   private static Set<DensityAlias> allBut(
       ImmutableSet<DensityAlias> splitByDensities, DensityAlias densityAlias) {
     return Sets.difference(splitByDensities, ImmutableSet.of(densityAlias));
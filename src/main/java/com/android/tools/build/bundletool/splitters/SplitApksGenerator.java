@@ -26,10 +26,13 @@ import com.android.tools.build.bundletool.model.BundleModule;
 import com.android.tools.build.bundletool.model.ModuleSplit;
 import com.android.tools.build.bundletool.model.SourceStamp;
 import com.android.tools.build.bundletool.model.SourceStamp.StampType;
+import com.android.tools.build.bundletool.model.utils.ConcurrencyUtils;
 import com.android.tools.build.bundletool.model.version.Version;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import java.util.Optional;
+import java.util.concurrent.Callable;
 import javax.inject.Inject;
 
 /** Generates split APKs. */
@@ -39,27 +42,47 @@ public final class SplitApksGenerator {
   private final Optional<SourceStamp> stampSource;
   private final VariantGenerator variantGenerator;
   private final AppBundle appBundle;
+  private final ListeningExecutorService executorService;
 
   @Inject
   public SplitApksGenerator(
       Version bundletoolVersion,
       Optional<SourceStamp> stampSource,
       VariantGenerator variantGenerator,
-      AppBundle appBundle) {
+      AppBundle appBundle,
+      ListeningExecutorService executorService) {
     this.bundletoolVersion = bundletoolVersion;
     this.stampSource = stampSource;
     this.variantGenerator = variantGenerator;
     this.appBundle = appBundle;
+    this.executorService = executorService;
   }
 
+  /**
+   * Generates the splits of the given modules for all variants.
+   *
+   * <p>Each module is split for each variant in parallel. The splits are returned grouped by
+   * variant, then by module in the order of {@code modules}, regardless of the order in which they
+   * were generated.
+   */
   public ImmutableList<ModuleSplit> generateSplits(
       ImmutableList<BundleModule> modules, ApkGenerationConfiguration apkGenerationConfiguration) {
     ImmutableSet<VariantTargeting> variantTargetings =
         generateVariants(modules, apkGenerationConfiguration);
-    return variantTargetings.stream()
-        .flatMap(
-            variantTargeting ->
-                generateSplitApks(modules, apkGenerationConfiguration, variantTargeting).stream())
+    ImmutableSet<String> allModuleNames =
+        modules.stream().map(module -> module.getName().getName()).collect(toImmutableSet());
+
+    ImmutableList.Builder<Callable<ImmutableList<ModuleSplit>>> splitModuleTasks =
+        ImmutableList.builder();
+    for (VariantTargeting variantTargeting : variantTargetings) {
+      for (BundleModule module : modules) {
+        splitModuleTasks.add(
+            () ->
+                splitModule(module, apkGenerationConfiguration, variantTargeting, allModuleNames));
+      }
+    }
+    return ConcurrencyUtils.runAllInOrder(splitModuleTasks.build(), executorService).stream()
+        .flatMap(ImmutableList::stream)
         .collect(toImmutableList());
   }
 
@@ -74,27 +97,22 @@ public final class SplitApksGenerator {
     return generateAllVariantTargetings(builder.build());
   }
 
-  private ImmutableList<ModuleSplit> generateSplitApks(
-      ImmutableList<BundleModule> modules,
+  private ImmutableList<ModuleSplit> splitModule(
+      BundleModule module,
       ApkGenerationConfiguration apkGenerationConfiguration,
-      VariantTargeting variantTargeting) {
-    ImmutableSet<String> allModuleNames =
-        modules.stream().map(module -> module.getName().getName()).collect(toImmutableSet());
-    ImmutableList.Builder<ModuleSplit> splits = ImmutableList.builder();
-
-    for (BundleModule module : modules) {
-      ModuleSplitter moduleSplitter =
-          ModuleSplitter.create(
-              module,
-              bundletoolVersion,
-              appBundle,
-              apkGenerationConfiguration,
-              variantTargeting,
-              allModuleNames,
-              stampSource.map(SourceStamp::getSource),
-              StampType.STAMP_TYPE_DISTRIBUTION_APK);
-      splits.addAll(moduleSplitter.splitModule());
-    }
-    return splits.build();
+      VariantTargeting variantTargeting,
+      ImmutableSet<String> allModuleNames) {
+    ModuleSplitter moduleSplitter =
+        ModuleSplitter.create(
+            module,
+            bundletoolVersion,
+            appBundle,
+            apkGenerationConfiguration,
+            variantTargeting,
+            allModuleNames,
+            stampSource.map(SourceStamp::getSource),
+            StampType.STAMP_TYPE_DISTRIBUTION_APK,
+            executorService);
+    return moduleSplitter.splitModule();
   }
 }
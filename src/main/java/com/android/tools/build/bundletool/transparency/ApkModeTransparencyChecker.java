@@ -23,6 +23,7 @@ import com.android.tools.build.bundletool.model.ZipPath;
 import com.android.tools.build.bundletool.model.utils.ZipUtils;
 import com.google.common.collect.ImmutableList;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -36,10 +37,11 @@ import java.util.zip.ZipFile;
 /** Executes {@link CheckTransparencyCommand} in APK mode. */
 public final class ApkModeTransparencyChecker {
 
-  public static TransparencyCheckResult checkTransparency(CheckTransparencyCommand command) {
+  public static TransparencyCheckResult checkTransparency(
+      CheckTransparencyCommand command, ListeningExecutorService executorService) {
     try (TempDirectory tempDir = new TempDirectory("apk-transparency-checker")) {
       return ApkTransparencyCheckUtils.checkTransparency(
-          extractAllApksFromZip(command.getApkZipPath().get(), tempDir));
+          extractAllApksFromZip(command.getApkZipPath().get(), tempDir), executorService);
     } catch (IOException e) {
       throw new UncheckedIOException("An error occurred when processing the file.", e);
     }
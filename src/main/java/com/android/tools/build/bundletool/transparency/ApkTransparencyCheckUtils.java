@@ -15,21 +15,32 @@
  */
 package com.android.tools.build.bundletool.transparency;
 
+import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.collect.ImmutableMap.toImmutableMap;
 import static com.google.common.collect.ImmutableSet.toImmutableSet;
 
 import com.android.bundle.CodeTransparencyOuterClass.CodeRelatedFile;
 import com.android.bundle.CodeTransparencyOuterClass.CodeTransparency;
+import com.android.tools.build.bundletool.io.ZipReader;
 import com.android.tools.build.bundletool.model.BundleMetadata;
 import com.android.tools.build.bundletool.model.exceptions.InvalidCommandException;
+import com.android.tools.build.bundletool.model.utils.ConcurrencyUtils;
+import com.android.tools.build.bundletool.model.utils.OsPlatform;
 import com.android.tools.build.bundletool.model.utils.ZipUtils;
+import com.android.zipflinger.Entry;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.Optional;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -41,7 +52,20 @@ public final class ApkTransparencyCheckUtils {
   private static final String TRANSPARENCY_FILE_ZIP_ENTRY_NAME =
       "META-INF/" + BundleMetadata.TRANSPARENCY_SIGNED_FILE_NAME;
 
+  /**
+   * Verifies code transparency for the given device-specific APKs, sequentially on the calling
+   * thread.
+   */
   public static TransparencyCheckResult checkTransparency(ImmutableList<Path> deviceSpecificApks) {
+    return checkTransparency(deviceSpecificApks, MoreExecutors.newDirectExecutorService());
+  }
+
+  /**
+   * Verifies code transparency for the given device-specific APKs, verifying the code related files
+   * of each APK on the given executor.
+   */
+  public static TransparencyCheckResult checkTransparency(
+      ImmutableList<Path> deviceSpecificApks, ListeningExecutorService executorService) {
     Optional<Path> baseApkPath = getBaseApkPath(deviceSpecificApks);
     if (!baseApkPath.isPresent()) {
       throw InvalidCommandException.builder()
@@ -90,7 +114,7 @@ public final class ApkTransparencyCheckUtils {
       CodeTransparency codeTransparencyMetadata =
           CodeTransparencyFactory.parseFrom(jws.getUnverifiedPayload());
       ImmutableSet<String> pathsToModifiedFiles =
-          getModifiedFiles(codeTransparencyMetadata, deviceSpecificApks);
+          getModifiedFiles(codeTransparencyMetadata, deviceSpecificApks, executorService);
       result.fileContentsVerified(pathsToModifiedFiles.isEmpty());
       if (!pathsToModifiedFiles.isEmpty()) {
         result.errorMessage(
@@ -116,52 +140,62 @@ public final class ApkTransparencyCheckUtils {
         .findAny();
   }
 
+  /**
+   * Returns the paths of the code related files of the APKs which are not in the code transparency
+   * metadata.
+   *
+   * <p>Each APK is verified on the given executor, in a single pass which only reads the code
+   * related entries.
+   */
   private static ImmutableSet<String> getModifiedFiles(
-      CodeTransparency codeTransparencyMetadata, ImmutableList<Path> allApkPaths) {
-    ImmutableSet.Builder<String> pathsToModifiedFilesBuilder = ImmutableSet.builder();
-    for (Path apkPath : allApkPaths) {
-      try (ZipFile apkFile = ZipUtils.openZipFile(apkPath)) {
-        pathsToModifiedFilesBuilder.addAll(getModifiedDexFiles(apkFile, codeTransparencyMetadata));
-        pathsToModifiedFilesBuilder.addAll(
-            getModifiedNativeLibraries(apkFile, codeTransparencyMetadata));
-      } catch (IOException e) {
-        throw new UncheckedIOException(e);
-      }
-    }
-    return pathsToModifiedFilesBuilder.build();
-  }
-
-  private static ImmutableSet<String> getModifiedDexFiles(
-      ZipFile apkFile, CodeTransparency codeTransparencyMetadata) {
+      CodeTransparency codeTransparencyMetadata,
+      ImmutableList<Path> allApkPaths,
+      ListeningExecutorService executorService) {
     ImmutableSet<String> expectedDexFiles = getDexFiles(codeTransparencyMetadata);
-    ImmutableSet.Builder<String> pathsToModifiedFilesBuilder = ImmutableSet.builder();
-    apkFile.stream()
-        .forEach(
-            zipEntry -> {
-              String fileHash = getFileHash(apkFile, zipEntry);
-              if (isDexFile(zipEntry) && !expectedDexFiles.contains(fileHash)) {
-                pathsToModifiedFilesBuilder.add(zipEntry.getName());
-              }
-            });
-    return pathsToModifiedFilesBuilder.build();
-  }
-
-  private static ImmutableSet<String> getModifiedNativeLibraries(
-      ZipFile apkFile, CodeTransparency codeTransparencyMetadata) {
     ImmutableMap<String, String> expectedNativeLibrariesByApkPath =
         getNativeLibrariesByApkPath(codeTransparencyMetadata);
-    ImmutableSet.Builder<String> pathsToModifiedFilesBuilder = ImmutableSet.builder();
-    apkFile.stream()
-        .forEach(
-            zipEntry -> {
-              String fileHash = getFileHash(apkFile, zipEntry);
-              if (isNativeLibrary(zipEntry)
-                  && !Optional.ofNullable(expectedNativeLibrariesByApkPath.get(zipEntry.getName()))
-                      .equals(Optional.of(fileHash))) {
-                pathsToModifiedFilesBuilder.add(zipEntry.getName());
-              }
-            });
-    return pathsToModifiedFilesBuilder.build();
+    ImmutableList<ListenableFuture<ImmutableSet<String>>> modifiedFilesPerApk =
+        allApkPaths.stream()
+            .map(
+                apkPath ->
+                    executorService.submit(
+                        () ->
+                            getModifiedFiles(
+                                apkPath, expectedDexFiles, expectedNativeLibrariesByApkPath)))
+            .collect(toImmutableList());
+    return ConcurrencyUtils.waitForAll(modifiedFilesPerApk).stream()
+        .flatMap(ImmutableSet::stream)
+        .collect(toImmutableSet());
+  }
+
+  private static ImmutableSet<String> getModifiedFiles(
+      Path apkPath,
+      ImmutableSet<String> expectedDexFiles,
+      ImmutableMap<String, String> expectedNativeLibrariesByApkPath) {
+    // Mapped files can't be deleted on Windows until garbage collected, and the APKs are sometimes
+    // in temporary directories.
+    try (ZipReader apkReader =
+        OsPlatform.getCurrentPlatform().equals(OsPlatform.WINDOWS)
+            ? ZipReader.createFromFile(apkPath)
+            : ZipReader.createFromFileMemoryMapped(apkPath)) {
+      ImmutableSet.Builder<String> pathsToModifiedFilesBuilder = ImmutableSet.builder();
+      for (Entry zipEntry : sortedByName(apkReader.getEntries().values())) {
+        String entryName = zipEntry.getName();
+        if (isDexFile(entryName)) {
+          if (!expectedDexFiles.contains(getFileHash(apkReader, zipEntry))) {
+            pathsToModifiedFilesBuilder.add(entryName);
+          }
+        } else if (isNativeLibrary(entryName)) {
+          if (!Optional.ofNullable(expectedNativeLibrariesByApkPath.get(entryName))
+              .equals(Optional.of(getFileHash(apkReader, zipEntry)))) {
+            pathsToModifiedFilesBuilder.add(entryName);
+          }
+        }
+      }
+      return pathsToModifiedFilesBuilder.build();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
   }
 
   private static ImmutableSet<String> getDexFiles(CodeTransparency codeTransparency) {
@@ -180,17 +214,39 @@ public final class ApkTransparencyCheckUtils {
         .collect(toImmutableMap(CodeRelatedFile::getApkPath, CodeRelatedFile::getSha256));
   }
 
-  private static boolean isDexFile(ZipEntry zipEntry) {
-    return zipEntry.getName().endsWith(".dex");
+  private static boolean isDexFile(String entryName) {
+    return entryName.endsWith(".dex");
+  }
+
+  private static boolean isNativeLibrary(String entryName) {
+    return entryName.endsWith(".so");
   }
 
-  private static boolean isNativeLibrary(ZipEntry zipEntry) {
-    return zipEntry.getName().endsWith(".so");
+  private static ImmutableList<Entry> sortedByName(Collection<Entry> zipEntries) {
+    return zipEntries.stream()
+        .sorted(Comparator.comparing(Entry::getName))
+        .collect(toImmutableList());
   }
 
-  private static String getFileHash(ZipFile apkFile, ZipEntry zipEntry) {
+  /**
+   * Returns the SHA-256 of the uncompressed content of the entry.
+   *
+   * <p>Stored entries, such as uncompressed native libraries, are hashed directly from the memory
+   * mapping of the APK without any copy.
+   */
+  private static String getFileHash(ZipReader apkReader, Entry zipEntry) {
+    Optional<ByteBuffer> payloadBuffer =
+        zipEntry.isCompressed()
+            ? Optional.empty()
+            : apkReader.getPayloadBuffer(zipEntry.getName());
+    if (payloadBuffer.isPresent()) {
+      return Hashing.sha256().newHasher().putBytes(payloadBuffer.get()).hash().toString();
+    }
     try {
-      return ZipUtils.asByteSource(apkFile, zipEntry).hash(Hashing.sha256()).toString();
+      return apkReader
+          .getUncompressedPayloadSource(zipEntry.getName())
+          .hash(Hashing.sha256())
+          .toString();
     } catch (IOException e) {
       throw new UncheckedIOException(e);
     }
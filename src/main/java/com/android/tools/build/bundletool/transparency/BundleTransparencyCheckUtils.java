@@ -25,6 +25,8 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.MapDifference;
 import com.google.common.collect.Maps;
 import com.google.common.io.ByteSource;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.util.Optional;
 import org.jose4j.jws.JsonWebSignature;
 
@@ -38,6 +40,18 @@ public final class BundleTransparencyCheckUtils {
    *     not contain code transparency file.
    */
   public static TransparencyCheckResult checkTransparency(AppBundle bundle) {
+    return checkTransparency(bundle, MoreExecutors.newDirectExecutorService());
+  }
+
+  /**
+   * Verifies code transparency for the given bundle, hashing the code related files on the given
+   * executor, and returns {@link TransparencyCheckResult}.
+   *
+   * @throws InvalidBundleException if an error occurs during verification, or if the bundle does
+   *     not contain code transparency file.
+   */
+  public static TransparencyCheckResult checkTransparency(
+      AppBundle bundle, ListeningExecutorService executorService) {
     Optional<ByteSource> signedTransparencyFile =
         bundle
             .getBundleMetadata()
@@ -50,7 +64,7 @@ public final class BundleTransparencyCheckUtils {
                   + " command to add code transparency metadata to the bundle.")
           .build();
     }
-    return checkTransparency(bundle, signedTransparencyFile.get());
+    return checkTransparency(bundle, signedTransparencyFile.get(), executorService);
   }
 
   /**
@@ -60,6 +74,20 @@ public final class BundleTransparencyCheckUtils {
    */
   public static TransparencyCheckResult checkTransparency(
       AppBundle bundle, ByteSource signedTransparencyFile) {
+    return checkTransparency(
+        bundle, signedTransparencyFile, MoreExecutors.newDirectExecutorService());
+  }
+
+  /**
+   * Verifies code transparency for the given bundle, hashing the code related files on the given
+   * executor, and returns {@link TransparencyCheckResult}.
+   *
+   * @throws InvalidBundleException if an error occurs during verification.
+   */
+  public static TransparencyCheckResult checkTransparency(
+      AppBundle bundle,
+      ByteSource signedTransparencyFile,
+      ListeningExecutorService executorService) {
     if (bundle.hasSharedUserId()) {
       throw InvalidBundleException.builder()
           .withUserMessage(
@@ -84,7 +112,7 @@ public final class BundleTransparencyCheckUtils {
     MapDifference<String, CodeRelatedFile> difference =
         Maps.difference(
             getCodeRelatedFilesFromTransparencyMetadata(jws),
-            getCodeRelatedFilesFromBundle(bundle));
+            getCodeRelatedFilesFromBundle(bundle, executorService));
     result.fileContentsVerified(difference.areEqual());
     if (!difference.areEqual()) {
       result.errorMessage(getDiffAsString(difference));
@@ -101,8 +129,8 @@ public final class BundleTransparencyCheckUtils {
   }
 
   private static ImmutableMap<String, CodeRelatedFile> getCodeRelatedFilesFromBundle(
-      AppBundle bundle) {
-    return CodeTransparencyFactory.createCodeTransparencyMetadata(bundle)
+      AppBundle bundle, ListeningExecutorService executorService) {
+    return CodeTransparencyFactory.createCodeTransparencyMetadata(bundle, executorService)
         .getCodeRelatedFileList()
         .stream()
         .collect(toImmutableMap(CodeRelatedFile::getPath, codeRelatedFile -> codeRelatedFile));
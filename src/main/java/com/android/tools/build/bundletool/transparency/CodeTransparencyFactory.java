@@ -24,23 +24,42 @@ import com.android.tools.build.bundletool.model.AppBundle;
 import com.android.tools.build.bundletool.model.BundleModule;
 import com.android.tools.build.bundletool.model.ModuleEntry;
 import com.android.tools.build.bundletool.model.exceptions.InvalidBundleException;
+import com.android.tools.build.bundletool.model.utils.ConcurrencyUtils;
 import com.google.common.collect.ImmutableList;
-import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.util.JsonFormat;
 import java.io.IOException;
-import java.io.UncheckedIOException;
 import java.util.Comparator;
 import java.util.stream.Stream;
 
 /** Shared static utilities for adding and verifying {@link CodeTransparency}. */
 public final class CodeTransparencyFactory {
 
-  /** Returns {@link CodeTransparency} for the given {@link AppBundle}. */
+  /**
+   * Returns {@link CodeTransparency} for the given {@link AppBundle}.
+   *
+   * <p>The code related files are hashed sequentially on the calling thread.
+   */
   public static CodeTransparency createCodeTransparencyMetadata(AppBundle bundle) {
-    ImmutableList<CodeRelatedFile> codeRelatedFiles =
+    return createCodeTransparencyMetadata(bundle, MoreExecutors.newDirectExecutorService());
+  }
+
+  /**
+   * Returns {@link CodeTransparency} for the given {@link AppBundle}.
+   *
+   * <p>The code related files are hashed on the given executor.
+   */
+  public static CodeTransparency createCodeTransparencyMetadata(
+      AppBundle bundle, ListeningExecutorService executorService) {
+    ImmutableList<ListenableFuture<CodeRelatedFile>> codeRelatedFileFutures =
         bundle.getFeatureModules().values().stream()
             .flatMap(bundleModule -> getCodeRelatedFileEntries(bundleModule))
-            .map(CodeTransparencyFactory::createCodeRelatedFile)
+            .map(moduleEntry -> executorService.submit(() -> createCodeRelatedFile(moduleEntry)))
+            .collect(toImmutableList());
+    ImmutableList<CodeRelatedFile> codeRelatedFiles =
+        ConcurrencyUtils.waitForAll(codeRelatedFileFutures).stream()
             .sorted(Comparator.comparing(CodeRelatedFile::getPath))
             .collect(toImmutableList());
     return CodeTransparency.newBuilder().addAllCodeRelatedFile(codeRelatedFiles).build();
@@ -75,11 +94,8 @@ public final class CodeTransparencyFactory {
     } else {
       codeRelatedFile.setType(CodeRelatedFile.Type.DEX);
     }
-    try {
-      codeRelatedFile.setSha256(moduleEntry.getContent().hash(Hashing.sha256()).toString());
-    } catch (IOException e) {
-      throw new UncheckedIOException("An error occurred when calculating file hash.", e);
-    }
+    // The digest is memoized by the entry, so it is shared with the other users of the digest.
+    codeRelatedFile.setSha256(moduleEntry.getContentDigest().toString());
     return codeRelatedFile.build();
   }
 
@@ -16,74 +16,298 @@
 
 package com.android.tools.build.bundletool.validation;
 
+import static com.google.common.base.Throwables.throwIfUnchecked;
 import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+import static com.google.common.util.concurrent.Uninterruptibles.getUninterruptibly;
 
 import com.android.tools.build.bundletool.model.AppBundle;
 import com.android.tools.build.bundletool.model.BundleModule;
 import com.android.tools.build.bundletool.model.ModuleEntry;
 import com.android.tools.build.bundletool.model.ZipPath;
 import com.google.common.collect.ImmutableList;
-import java.util.Enumeration;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
-/** Runs given set of validators. */
+/**
+ * Runs given set of validators.
+ *
+ * <p>By default the validators run one after the other. When an executor is given, each validator
+ * runs on its own tasks, which never run concurrently, so that validators don't need to be
+ * thread-safe. In both cases, the exception thrown is the one of the first failing validator in
+ * the given order, or, for the zip entries, of the first invalid entry.
+ *
+ * <p>The files of the modules and the entries of the zip file are listed once, and only visited by
+ * the validators which override {@link SubValidator#validateModuleFile} or {@link
+ * SubValidator#validateBundleZipEntry}.
+ */
 public class ValidatorRunner {
 
+  private static final ClassValue<Boolean> VALIDATES_MODULE_FILES =
+      new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> subValidatorClass) {
+          return overrides(subValidatorClass, "validateModuleFile", ZipPath.class);
+        }
+      };
+
+  private static final ClassValue<Boolean> VALIDATES_BUNDLE_ZIP_ENTRIES =
+      new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> subValidatorClass) {
+          return overrides(
+              subValidatorClass, "validateBundleZipEntry", ZipFile.class, ZipEntry.class);
+        }
+      };
+
   private final ImmutableList<SubValidator> subValidators;
+  private final Optional<ListeningExecutorService> executorService;
 
   public ValidatorRunner(ImmutableList<SubValidator> subValidators) {
     this.subValidators = subValidators;
+    this.executorService = Optional.empty();
+  }
+
+  /** Creates a runner which runs the validators in parallel on the given executor. */
+  public ValidatorRunner(
+      ImmutableList<SubValidator> subValidators, ListeningExecutorService executorService) {
+    this.subValidators = subValidators;
+    this.executorService = Optional.of(executorService);
   }
 
   /** Validates the given App Bundle zip file. */
   public void validateBundleZipFile(ZipFile bundleFile) {
-    subValidators.forEach(subValidator -> subValidator.validateBundleZipFile(bundleFile));
+    // The entries are listed once and only visited by the validators which validate them.
+    ImmutableList<SubValidator> zipEntryValidators =
+        subValidators.stream()
+            .filter(ValidatorRunner::validatesBundleZipEntries)
+            .collect(toImmutableList());
+    ImmutableList<ZipEntry> zipEntries =
+        zipEntryValidators.isEmpty()
+            ? ImmutableList.of()
+            : ImmutableList.copyOf(Collections.list(bundleFile.entries()));
+
+    if (!executorService.isPresent()) {
+      subValidators.forEach(subValidator -> subValidator.validateBundleZipFile(bundleFile));
 
-    Enumeration<? extends ZipEntry> zipEntries = bundleFile.entries();
-    while (zipEntries.hasMoreElements()) {
-      ZipEntry zipEntry = zipEntries.nextElement();
-      subValidators.forEach(
-          subValidator -> subValidator.validateBundleZipEntry(bundleFile, zipEntry));
+      for (ZipEntry zipEntry : zipEntries) {
+        zipEntryValidators.forEach(
+            subValidator -> subValidator.validateBundleZipEntry(bundleFile, zipEntry));
+      }
+      return;
+    }
+
+    runInParallel(subValidator -> subValidator.validateBundleZipFile(bundleFile));
+    validateBundleZipEntriesInParallel(bundleFile, zipEntries, zipEntryValidators);
+  }
+
+  /**
+   * Validates the zip entries with each validator on its own task, and throws the exception that
+   * validating the entries one after the other would have thrown first, i.e. the one of the lowest
+   * entry and, for that entry, of the first validator.
+   */
+  private void validateBundleZipEntriesInParallel(
+      ZipFile bundleFile,
+      ImmutableList<ZipEntry> zipEntries,
+      ImmutableList<SubValidator> zipEntryValidators) {
+    ListeningExecutorService executor = executorService.get();
+    // Index of the lowest entry found to be invalid so far. Entries after it can't be the first
+    // failure, so validators stop as soon as they reach them.
+    AtomicInteger firstInvalidEntryIndex = new AtomicInteger(Integer.MAX_VALUE);
+    ImmutableList<ListenableFuture<Optional<EntryFailure>>> results =
+        zipEntryValidators.stream()
+            .map(
+                subValidator ->
+                    executor.submit(
+                        () -> {
+                          for (int i = 0; i < zipEntries.size(); i++) {
+                            if (i > firstInvalidEntryIndex.get()) {
+                              break;
+                            }
+                            try {
+                              subValidator.validateBundleZipEntry(bundleFile, zipEntries.get(i));
+                            } catch (RuntimeException e) {
+                              firstInvalidEntryIndex.accumulateAndGet(i, Math::min);
+                              return Optional.of(new EntryFailure(i, e));
+                            }
+                          }
+                          return Optional.<EntryFailure>empty();
+                        }))
+            .collect(toImmutableList());
+
+    Optional<EntryFailure> firstFailure = Optional.empty();
+    for (ListenableFuture<Optional<EntryFailure>> result : results) {
+      Optional<EntryFailure> failure = getResult(result);
+      // On a tie, the validator which comes first is kept.
+      if (failure.isPresent()
+          && (!firstFailure.isPresent()
+              || failure.get().entryIndex < firstFailure.get().entryIndex)) {
+        firstFailure = failure;
+      }
+    }
+    if (firstFailure.isPresent()) {
+      throw firstFailure.get().exception;
     }
   }
 
   /** Validates the given App Bundle module zip file. */
   public void validateModuleZipFile(ZipFile moduleFile) {
-    subValidators.forEach(subValidator -> subValidator.validateModuleZipFile(moduleFile));
+    runEach(subValidator -> subValidator.validateModuleZipFile(moduleFile));
   }
 
   /** Validates the given App Bundle. */
   public void validateBundle(AppBundle bundle) {
-    subValidators.forEach(subValidator -> validateBundleUsingSubValidator(bundle, subValidator));
+    ImmutableList<BundleModule> modules = ImmutableList.copyOf(bundle.getModules().values());
+    ImmutableList<ImmutableList<ZipPath>> moduleFiles = getModuleFiles(modules);
+    runEach(
+        subValidator -> {
+          subValidator.validateBundle(bundle);
+          validateBundleModulesUsingSubValidator(modules, moduleFiles, subValidator);
+        });
   }
 
   /** Interprets given modules as a bundle and validates it. */
   public void validateBundleModules(ImmutableList<BundleModule> modules) {
-    subValidators.forEach(
-        subValidator -> validateBundleModulesUsingSubValidator(modules, subValidator));
+    ImmutableList<ImmutableList<ZipPath>> moduleFiles = getModuleFiles(modules);
+    runEach(
+        subValidator ->
+            validateBundleModulesUsingSubValidator(modules, moduleFiles, subValidator));
+  }
+
+  private void runEach(Consumer<SubValidator> validation) {
+    if (executorService.isPresent()) {
+      runInParallel(validation);
+    } else {
+      subValidators.forEach(validation);
+    }
+  }
+
+  private void runInParallel(Consumer<SubValidator> validation) {
+    ListeningExecutorService executor = executorService.get();
+    ImmutableList<ListenableFuture<?>> results =
+        subValidators.stream()
+            .map(subValidator -> executor.submit(() -> validation.accept(subValidator)))
+            .collect(toImmutableList());
+
+    // Once a validator fails, the validators after it can't be the first failure, so they are
+    // cancelled. The ones before it still need to complete.
+    for (int i = 0; i < results.size(); i++) {
+      ListenableFuture<?> result = results.get(i);
+      ImmutableList<ListenableFuture<?>> nextResults = results.subList(i + 1, results.size());
+      result.addListener(
+          () -> {
+            if (hasFailed(result)) {
+              nextResults.forEach(
+                  nextResult -> nextResult.cancel(/* mayInterruptIfRunning= */ true));
+            }
+          },
+          directExecutor());
+    }
+
+    results.forEach(ValidatorRunner::getResult);
   }
 
-  private static void validateBundleUsingSubValidator(AppBundle bundle, SubValidator subValidator) {
-    subValidator.validateBundle(bundle);
-    validateBundleModulesUsingSubValidator(
-        ImmutableList.copyOf(bundle.getModules().values()), subValidator);
+  private static <T> T getResult(Future<T> result) {
+    try {
+      return getUninterruptibly(result);
+    } catch (ExecutionException e) {
+      throwIfUnchecked(e.getCause());
+      throw new IllegalStateException(e.getCause());
+    }
   }
 
+  private static boolean hasFailed(Future<?> result) {
+    if (result.isCancelled()) {
+      return false;
+    }
+    try {
+      Futures.getDone(result);
+      return false;
+    } catch (ExecutionException e) {
+      return true;
+    }
+  }
+
+  /**
+   * Runs the module validations of the given validator.
+   *
+   * @param moduleFiles the paths of the files of each module, in the same order as {@code modules}
+   */
   private static void validateBundleModulesUsingSubValidator(
-      ImmutableList<BundleModule> modules, SubValidator subValidator) {
+      ImmutableList<BundleModule> modules,
+      ImmutableList<ImmutableList<ZipPath>> moduleFiles,
+      SubValidator subValidator) {
     subValidator.validateAllModules(modules);
 
-    for (BundleModule module : modules) {
-      subValidator.validateModule(module);
+    boolean validatesModuleFiles = validatesModuleFiles(subValidator);
+    for (int i = 0; i < modules.size(); i++) {
+      subValidator.validateModule(modules.get(i));
 
-      for (ZipPath moduleFile : getModuleFiles(module)) {
-        subValidator.validateModuleFile(moduleFile);
+      if (validatesModuleFiles) {
+        for (ZipPath moduleFile : moduleFiles.get(i)) {
+          subValidator.validateModuleFile(moduleFile);
+        }
       }
     }
   }
 
-  private static ImmutableList<ZipPath> getModuleFiles(BundleModule module) {
-    return module.getEntries().stream().map(ModuleEntry::getPath).collect(toImmutableList());
+  /**
+   * Lists the paths of the files of each module once for all validators, only if at least one
+   * validator validates them.
+   */
+  private ImmutableList<ImmutableList<ZipPath>> getModuleFiles(
+      ImmutableList<BundleModule> modules) {
+    if (subValidators.stream().noneMatch(ValidatorRunner::validatesModuleFiles)) {
+      return modules.stream().map(module -> ImmutableList.<ZipPath>of()).collect(toImmutableList());
+    }
+    return modules.stream()
+        .map(
+            module ->
+                module.getEntries().stream().map(ModuleEntry::getPath).collect(toImmutableList()))
+        .collect(toImmutableList());
+  }
+
+  private static boolean validatesModuleFiles(SubValidator subValidator) {
+    return VALIDATES_MODULE_FILES.get(subValidator.getClass());
+  }
+
+  private static boolean validatesBundleZipEntries(SubValidator subValidator) {
+    return VALIDATES_BUNDLE_ZIP_ENTRIES.get(subValidator.getClass());
+  }
+
+  /**
+   * Whether the given class overrides the given no-op method of {@link SubValidator}, in which
+   * case the validator needs to be invoked for each file or entry.
+   */
+  private static boolean overrides(
+      Class<?> subValidatorClass, String methodName, Class<?>... parameterTypes) {
+    try {
+      return !subValidatorClass
+          .getMethod(methodName, parameterTypes)
+          .getDeclaringClass()
+          .equals(SubValidator.class);
+    } catch (NoSuchMethodException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /** The first exception thrown by a validator when validating the zip entries. */
+  private static final class EntryFailure {
+    private final int entryIndex;
+    private final RuntimeException exception;
+
+    EntryFailure(int entryIndex, RuntimeException exception) {
+      this.entryIndex = entryIndex;
+      this.exception = exception;
+    }
   }
 }
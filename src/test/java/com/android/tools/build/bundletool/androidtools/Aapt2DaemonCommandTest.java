@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.androidtools;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assume.assumeFalse;
+
+import com.android.tools.build.bundletool.model.utils.OsPlatform;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests of {@link Aapt2DaemonCommand} using shell scripts emulating aapt2. */
+@RunWith(JUnit4.class)
+public class Aapt2DaemonCommandTest {
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  private Path tmpDir;
+  private Path startsLog;
+
+  @Before
+  public void setUp() {
+    assumeFalse(OsPlatform.getCurrentPlatform().equals(OsPlatform.WINDOWS));
+    tmpDir = tmp.getRoot().toPath();
+    startsLog = tmpDir.resolve("starts.log");
+  }
+
+  @Test
+  public void sequentialCommands_runInSingleDaemon() throws Exception {
+    Aapt2DaemonCommand aapt2 =
+        Aapt2DaemonCommand.createFromExecutablePath(writeFakeAapt2(/* supportsDaemon= */ true));
+
+    aapt2.convertApkProtoToBinary(tmpDir.resolve("proto1.apk"), tmpDir.resolve("binary1.apk"));
+    aapt2.convertApkProtoToBinary(tmpDir.resolve("proto2.apk"), tmpDir.resolve("binary2.apk"));
+    aapt2.releaseResources();
+
+    assertThat(readFile("binary1.apk")).isEqualTo("daemon");
+    assertThat(readFile("binary2.apk")).isEqualTo("daemon");
+    assertThat(Files.readAllLines(startsLog)).containsExactly("daemon");
+  }
+
+  @Test
+  public void daemonRestartedAfterResourcesReleased() throws Exception {
+    Aapt2DaemonCommand aapt2 =
+        Aapt2DaemonCommand.createFromExecutablePath(writeFakeAapt2(/* supportsDaemon= */ true));
+
+    aapt2.convertApkProtoToBinary(tmpDir.resolve("proto1.apk"), tmpDir.resolve("binary1.apk"));
+    aapt2.releaseResources();
+    aapt2.convertApkProtoToBinary(tmpDir.resolve("proto2.apk"), tmpDir.resolve("binary2.apk"));
+    aapt2.releaseResources();
+
+    assertThat(readFile("binary2.apk")).isEqualTo("daemon");
+    assertThat(Files.readAllLines(startsLog)).containsExactly("daemon", "daemon");
+  }
+
+  @Test
+  public void daemonModeUnsupported_fallsBackToProcessPerCommand() throws Exception {
+    Aapt2DaemonCommand aapt2 =
+        Aapt2DaemonCommand.createFromExecutablePath(writeFakeAapt2(/* supportsDaemon= */ false));
+
+    aapt2.convertApkProtoToBinary(tmpDir.resolve("proto1.apk"), tmpDir.resolve("binary1.apk"));
+    aapt2.convertApkProtoToBinary(tmpDir.resolve("proto2.apk"), tmpDir.resolve("binary2.apk"));
+    aapt2.releaseResources();
+
+    assertThat(readFile("binary1.apk")).isEqualTo("process");
+    assertThat(readFile("binary2.apk")).isEqualTo("process");
+    // The daemon mode is only attempted once.
+    assertThat(Files.readAllLines(startsLog)).containsExactly("daemon", "convert", "convert");
+  }
+
+  /**
+   * Writes a script which writes "daemon" or "process" in the file passed after "-o", depending on
+   * whether it runs in daemon mode.
+   */
+  private Path writeFakeAapt2(boolean supportsDaemon) throws Exception {
+    Path script = tmpDir.resolve("aapt2");
+    String daemonMode =
+        supportsDaemon
+            ? String.join(
+                "\n",
+                "  echo Ready",
+                "  args=''",
+                "  while IFS= read -r line; do",
+                "    if [ -n \"$line\" ]; then args=\"$args $line\"; continue; fi",
+                "    set -- $args",
+                "    args=''",
+                "    if [ \"$1\" = quit ]; then exit 0; fi",
+                "    write_output daemon \"$@\"",
+                "    echo Done",
+                "    echo Done >&2",
+                "  done",
+                "  exit 0")
+            : "  exit 1";
+    Files.write(
+        script,
+        String.join(
+                "\n",
+                "#!/bin/sh",
+                "write_output() {",
+                "  content=$1; shift; prev=''",
+                "  for arg in \"$@\"; do",
+                "    if [ \"$prev\" = -o ]; then printf %s \"$content\" > \"$arg\"; fi",
+                "    prev=$arg",
+                "  done",
+                "}",
+                "echo \"$1\" >> '" + startsLog + "'",
+                "if [ \"$1\" = daemon ]; then",
+                daemonMode,
+                "fi",
+                "write_output process \"$@\"",
+                "")
+            .getBytes(UTF_8));
+    script.toFile().setExecutable(true);
+    return script;
+  }
+
+  private String readFile(String fileName) throws Exception {
+    return new String(Files.readAllBytes(tmpDir.resolve(fileName)), UTF_8);
+  }
+}
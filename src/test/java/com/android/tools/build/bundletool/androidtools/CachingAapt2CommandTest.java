@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.androidtools;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class CachingAapt2CommandTest {
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  private Path tmpDir;
+  private Path cacheDir;
+
+  @Before
+  public void setUp() {
+    tmpDir = tmp.getRoot().toPath();
+    cacheDir = tmpDir.resolve("cache");
+  }
+
+  @Test
+  public void sameInput_convertedOnce() throws Exception {
+    FakeAapt2Command fakeAapt2 = new FakeAapt2Command(Optional.of("2.19"));
+    Aapt2Command aapt2 = new CachingAapt2Command(fakeAapt2, cacheDir);
+    Path input = writeFile("proto.apk", "resources");
+
+    aapt2.convertApkProtoToBinary(input, tmpDir.resolve("binary1.apk"));
+    aapt2.convertApkProtoToBinary(input, tmpDir.resolve("binary2.apk"));
+
+    assertThat(fakeAapt2.invocations).isEqualTo(1);
+    assertThat(readFile("binary1.apk")).isEqualTo("convert:resources");
+    assertThat(readFile("binary2.apk")).isEqualTo("convert:resources");
+  }
+
+  @Test
+  public void cacheSharedAcrossInstances() throws Exception {
+    Path input = writeFile("proto.apk", "resources");
+    FakeAapt2Command firstAapt2 = new FakeAapt2Command(Optional.of("2.19"));
+    new CachingAapt2Command(firstAapt2, cacheDir)
+        .convertApkProtoToBinary(input, tmpDir.resolve("binary1.apk"));
+
+    FakeAapt2Command secondAapt2 = new FakeAapt2Command(Optional.of("2.19"));
+    new CachingAapt2Command(secondAapt2, cacheDir)
+        .convertApkProtoToBinary(input, tmpDir.resolve("binary2.apk"));
+
+    assertThat(firstAapt2.invocations).isEqualTo(1);
+    assertThat(secondAapt2.invocations).isEqualTo(0);
+    assertThat(readFile("binary2.apk")).isEqualTo("convert:resources");
+  }
+
+  @Test
+  public void differentInputs_convertedSeparately() throws Exception {
+    FakeAapt2Command fakeAapt2 = new FakeAapt2Command(Optional.of("2.19"));
+    Aapt2Command aapt2 = new CachingAapt2Command(fakeAapt2, cacheDir);
+
+    aapt2.convertApkProtoToBinary(writeFile("a.apk", "a"), tmpDir.resolve("binary-a.apk"));
+    aapt2.convertApkProtoToBinary(writeFile("b.apk", "b"), tmpDir.resolve("binary-b.apk"));
+
+    assertThat(fakeAapt2.invocations).isEqualTo(2);
+    assertThat(readFile("binary-a.apk")).isEqualTo("convert:a");
+    assertThat(readFile("binary-b.apk")).isEqualTo("convert:b");
+  }
+
+  @Test
+  public void differentOperations_notShared() throws Exception {
+    FakeAapt2Command fakeAapt2 = new FakeAapt2Command(Optional.of("2.19"));
+    Aapt2Command aapt2 = new CachingAapt2Command(fakeAapt2, cacheDir);
+    Path input = writeFile("input.apk", "resources");
+
+    aapt2.convertApkProtoToBinary(input, tmpDir.resolve("converted.apk"));
+    aapt2.optimizeToSparseResourceTables(input, tmpDir.resolve("optimized.apk"));
+
+    assertThat(fakeAapt2.invocations).isEqualTo(2);
+    assertThat(readFile("optimized.apk")).isEqualTo("optimize:resources");
+  }
+
+  @Test
+  public void differentAapt2Versions_notShared() throws Exception {
+    Path input = writeFile("proto.apk", "resources");
+    FakeAapt2Command oldAapt2 = new FakeAapt2Command(Optional.of("2.18"));
+    new CachingAapt2Command(oldAapt2, cacheDir)
+        .convertApkProtoToBinary(input, tmpDir.resolve("binary1.apk"));
+
+    FakeAapt2Command newAapt2 = new FakeAapt2Command(Optional.of("2.19"));
+    new CachingAapt2Command(newAapt2, cacheDir)
+        .convertApkProtoToBinary(input, tmpDir.resolve("binary2.apk"));
+
+    assertThat(oldAapt2.invocations).isEqualTo(1);
+    assertThat(newAapt2.invocations).isEqualTo(1);
+  }
+
+  @Test
+  public void unknownAapt2Version_notCached() throws Exception {
+    FakeAapt2Command fakeAapt2 = new FakeAapt2Command(Optional.empty());
+    Aapt2Command aapt2 = new CachingAapt2Command(fakeAapt2, cacheDir);
+    Path input = writeFile("proto.apk", "resources");
+
+    aapt2.convertApkProtoToBinary(input, tmpDir.resolve("binary1.apk"));
+    aapt2.convertApkProtoToBinary(input, tmpDir.resolve("binary2.apk"));
+
+    assertThat(fakeAapt2.invocations).isEqualTo(2);
+    assertThat(Files.exists(cacheDir)).isFalse();
+  }
+
+  private Path writeFile(String fileName, String content) throws Exception {
+    Path file = tmpDir.resolve(fileName);
+    Files.write(file, content.getBytes(UTF_8));
+    return file;
+  }
+
+  private String readFile(String fileName) throws Exception {
+    return new String(Files.readAllBytes(tmpDir.resolve(fileName)), UTF_8);
+  }
+
+  /** Writes the name of the operation followed by the content of the input. */
+  private static class FakeAapt2Command implements Aapt2Command {
+    private final Optional<String> version;
+    private int invocations = 0;
+
+    FakeAapt2Command(Optional<String> version) {
+      this.version = version;
+    }
+
+    @Override
+    public void convertApkProtoToBinary(Path protoApk, Path binaryApk) {
+      run("convert", protoApk, binaryApk);
+    }
+
+    @Override
+    public void optimizeToSparseResourceTables(Path originalApk, Path outputApk) {
+      run("optimize", originalApk, outputApk);
+    }
+
+    @Override
+    public Optional<String> getVersion() {
+      return version;
+    }
+
+    private void run(String operation, Path input, Path output) {
+      invocations++;
+      try {
+        String inputContent = new String(Files.readAllBytes(input), UTF_8);
+        Files.write(output, (operation + ":" + inputContent).getBytes(UTF_8));
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+}
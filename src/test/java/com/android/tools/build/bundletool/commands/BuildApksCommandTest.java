@@ -39,6 +39,8 @@ import static com.android.tools.build.bundletool.testing.TestUtils.expectMissing
 import static com.android.tools.build.bundletool.testing.TestUtils.expectMissingRequiredFlagException;
 import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.base.StandardSystemProperty.USER_HOME;
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.collect.ImmutableMap.toImmutableMap;
 import static com.google.common.truth.Truth.assertThat;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.jose4j.jws.AlgorithmIdentifiers.RSA_USING_SHA256;
@@ -53,6 +55,7 @@ import com.android.bundle.Targeting.ApkTargeting;
 import com.android.bundle.Targeting.ScreenDensity.DensityAlias;
 import com.android.bundle.Targeting.VariantTargeting;
 import com.android.tools.build.bundletool.androidtools.Aapt2Command;
+import com.android.tools.build.bundletool.androidtools.Aapt2DaemonCommand;
 import com.android.tools.build.bundletool.device.AdbServer;
 import com.android.tools.build.bundletool.flags.FlagParser;
 import com.android.tools.build.bundletool.flags.FlagParser.FlagParseException;
@@ -60,6 +63,7 @@ import com.android.tools.build.bundletool.flags.ParsedFlags;
 import com.android.tools.build.bundletool.io.AppBundleSerializer;
 import com.android.tools.build.bundletool.io.StandaloneApkSerializer;
 import com.android.tools.build.bundletool.model.AndroidManifest;
+import com.android.tools.build.bundletool.model.AppBundle;
 import com.android.tools.build.bundletool.model.BundleMetadata;
 import com.android.tools.build.bundletool.model.BundleModuleName;
 import com.android.tools.build.bundletool.model.ModuleSplit;
@@ -76,9 +80,11 @@ import com.android.tools.build.bundletool.testing.AppBundleBuilder;
 import com.android.tools.build.bundletool.testing.CertificateFactory;
 import com.android.tools.build.bundletool.testing.FakeSystemEnvironmentProvider;
 import com.android.tools.build.bundletool.testing.TestModule;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.CharSource;
 import com.google.protobuf.util.JsonFormat;
 import dagger.Component;
@@ -102,8 +108,13 @@ import java.security.PrivateKey;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Collections;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 import javax.inject.Inject;
 import org.jose4j.jws.JsonWebSignature;
 import org.jose4j.lang.JoseException;
@@ -502,6 +513,85 @@ public class BuildApksCommandTest {
     assertThat(commandViaBuilder.build()).isEqualTo(commandViaFlags);
   }
 
+  @Test
+  public void buildingViaFlagsAndBuilderHasSameResult_optionalAapt2CacheDir() throws Exception {
+    Path aapt2CacheDir = tmpDir.resolve("aapt2-cache");
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    BuildApksCommand commandViaFlags =
+        BuildApksCommand.fromFlags(
+            new FlagParser()
+                .parse(
+                    "--bundle=" + bundlePath,
+                    "--output=" + outputFilePath,
+                    "--aapt2=" + AAPT2_PATH,
+                    // Optional values.
+                    "--aapt2-cache-dir=" + aapt2CacheDir),
+            new PrintStream(output),
+            systemEnvironmentProvider,
+            fakeAdbServer);
+    BuildApksCommand.Builder commandViaBuilder =
+        BuildApksCommand.builder()
+            .setBundlePath(bundlePath)
+            .setOutputFile(outputFilePath)
+            // Optional values.
+            .setAapt2CacheDirectory(aapt2CacheDir)
+            // Must copy instance of the internal executor service.
+            .setAapt2Command(commandViaFlags.getAapt2Command().get())
+            .setExecutorServiceInternal(commandViaFlags.getExecutorService())
+            .setExecutorServiceCreatedByBundleTool(true)
+            .setOutputPrintStream(commandViaFlags.getOutputPrintStream().get());
+    DebugKeystoreUtils.getDebugSigningConfiguration(systemEnvironmentProvider)
+        .ifPresent(commandViaBuilder::setSigningConfiguration);
+
+    assertThat(commandViaBuilder.build()).isEqualTo(commandViaFlags);
+  }
+
+  @Test
+  public void aapt2DaemonProperty_appliesToAapt2FromFlag() throws Exception {
+    SystemEnvironmentProvider provider =
+        new FakeSystemEnvironmentProvider(
+            /* variables= */ ImmutableMap.of(
+                ANDROID_HOME, "/android/home", ANDROID_SERIAL, DEVICE_ID),
+            /* properties= */ ImmutableMap.of("bundletool.aapt2.daemon", "true"));
+
+    BuildApksCommand command =
+        BuildApksCommand.fromFlags(
+            new FlagParser()
+                .parse(
+                    "--bundle=" + bundlePath,
+                    "--output=" + outputFilePath,
+                    "--aapt2=" + AAPT2_PATH),
+            new PrintStream(new ByteArrayOutputStream()),
+            provider,
+            fakeAdbServer);
+
+    assertThat(command.getEnableAapt2Daemon()).isTrue();
+    assertThat(command.getAapt2Command().get()).isInstanceOf(Aapt2DaemonCommand.class);
+  }
+
+  @Test
+  public void aapt2DaemonPropertyDisabled_aapt2FromFlagNotRunAsDaemon() throws Exception {
+    SystemEnvironmentProvider provider =
+        new FakeSystemEnvironmentProvider(
+            /* variables= */ ImmutableMap.of(
+                ANDROID_HOME, "/android/home", ANDROID_SERIAL, DEVICE_ID),
+            /* properties= */ ImmutableMap.of("bundletool.aapt2.daemon", "false"));
+
+    BuildApksCommand command =
+        BuildApksCommand.fromFlags(
+            new FlagParser()
+                .parse(
+                    "--bundle=" + bundlePath,
+                    "--output=" + outputFilePath,
+                    "--aapt2=" + AAPT2_PATH),
+            new PrintStream(new ByteArrayOutputStream()),
+            provider,
+            fakeAdbServer);
+
+    assertThat(command.getEnableAapt2Daemon()).isFalse();
+    assertThat(command.getAapt2Command().get()).isNotInstanceOf(Aapt2DaemonCommand.class);
+  }
+
   @Test
   public void buildingViaFlagsAndBuilderHasSameResult_deviceId() throws Exception {
     ByteArrayOutputStream output = new ByteArrayOutputStream();
@@ -1342,6 +1432,111 @@ public class BuildApksCommandTest {
                 + " generation.");
   }
 
+  @Test
+  public void bundleWithEntriesOfSameNormalizedPath_throws() throws Exception {
+    Path validBundlePath = tmpDir.resolve("valid.aab");
+    createAppBundle(validBundlePath);
+    // Copies the App Bundle, with the manifest of the base module also under a second name which
+    // is the same path once normalized.
+    try (ZipFile validBundle = new ZipFile(validBundlePath.toFile());
+        ZipOutputStream bundle = new ZipOutputStream(Files.newOutputStream(bundlePath))) {
+      for (ZipEntry entry : Collections.list(validBundle.entries())) {
+        byte[] content = ByteStreams.toByteArray(validBundle.getInputStream(entry));
+        bundle.putNextEntry(new ZipEntry(entry.getName()));
+        bundle.write(content);
+        if (entry.getName().equals("base/manifest/AndroidManifest.xml")) {
+          bundle.putNextEntry(new ZipEntry("base//manifest/AndroidManifest.xml"));
+          bundle.write(content);
+        }
+      }
+    }
+
+    ParsedFlags flags =
+        new FlagParser().parse("--bundle=" + bundlePath, "--output=" + outputFilePath);
+    BuildApksCommand command = BuildApksCommand.fromFlags(flags, fakeAdbServer);
+
+    Throwable e = assertThrows(InvalidBundleException.class, command::execute);
+    assertThat(e)
+        .hasMessageThat()
+        .contains(
+            "Found multiple entries with the same path 'base/manifest/AndroidManifest.xml' in the"
+                + " App Bundle.");
+  }
+
+
+  @Test
+  public void newApkSerializer_uncompressedBundle_sameApksAsCompressedBundle() throws Exception {
+    AppBundle appBundle =
+        new AppBundleBuilder()
+            .addModule(
+                "base",
+                module ->
+                    module
+                        .setManifest(androidManifest("com.app"))
+                        .addFile("assets/file.txt", Strings.repeat("asset", 1000).getBytes(UTF_8))
+                        .addFile("dex/classes.dex", Strings.repeat("dex", 1000).getBytes(UTF_8)))
+            .build();
+    Path compressedBundlePath = tmpDir.resolve("compressed.aab");
+    Path uncompressedBundlePath = tmpDir.resolve("uncompressed.aab");
+    new AppBundleSerializer().writeToDisk(appBundle, compressedBundlePath);
+    new AppBundleSerializer(/* allEntriesUncompressed= */ true)
+        .writeToDisk(appBundle, uncompressedBundlePath);
+
+    ImmutableMap<String, ImmutableMap<String, String>> apksFromCompressedBundle =
+        buildApksWithNewApkSerializer(compressedBundlePath, tmpDir.resolve("from-compressed"));
+    ImmutableMap<String, ImmutableMap<String, String>> apksFromUncompressedBundle =
+        buildApksWithNewApkSerializer(uncompressedBundlePath, tmpDir.resolve("from-uncompressed"));
+
+    // The entries of the App Bundle are re-compressed whatever their compression in the bundle.
+    assertThat(apksFromUncompressedBundle).isEqualTo(apksFromCompressedBundle);
+    ImmutableList<String> assetEntries =
+        apksFromUncompressedBundle.values().stream()
+            .filter(apkEntries -> apkEntries.containsKey("assets/file.txt"))
+            .map(apkEntries -> apkEntries.get("assets/file.txt"))
+            .collect(toImmutableList());
+    assertThat(assetEntries).isNotEmpty();
+    assertThat(assetEntries.stream().allMatch(entry -> entry.startsWith("DEFLATED"))).isTrue();
+  }
+
+  /** Builds the APKs of the App Bundle and describes their entries, keyed by APK and entry path. */
+  private ImmutableMap<String, ImmutableMap<String, String>> buildApksWithNewApkSerializer(
+      Path bundlePath, Path outputDir) throws Exception {
+    BuildApksCommand.builder()
+        .setBundlePath(bundlePath)
+        .setOutputFile(outputDir)
+        .setOutputFormat(DIRECTORY)
+        .setAapt2Command(aapt2Command)
+        .setEnableNewApkSerializer(true)
+        .build()
+        .execute();
+
+    ImmutableList<Path> apkPaths;
+    try (Stream<Path> files = Files.walk(outputDir)) {
+      apkPaths =
+          files
+              .filter(file -> file.toString().endsWith(".apk"))
+              .sorted()
+              .collect(toImmutableList());
+    }
+    ImmutableMap.Builder<String, ImmutableMap<String, String>> apks = ImmutableMap.builder();
+    for (Path apkPath : apkPaths) {
+      try (ZipFile apk = new ZipFile(apkPath.toFile())) {
+        apks.put(
+            outputDir.relativize(apkPath).toString(),
+            Collections.list(apk.entries()).stream()
+                .collect(
+                    toImmutableMap(
+                        ZipEntry::getName,
+                        entry ->
+                            String.format(
+                                "%s size=%d crc=%d",
+                                entry.getMethod() == ZipEntry.DEFLATED ? "DEFLATED" : "STORED",
+                                entry.getCompressedSize(),
+                                entry.getCrc()))));
+      }
+    }
+    return apks.build();
+  }
 
   private void createAppBundle(Path path) throws Exception {
     createAppBundle(path, /* codeTransparency= */ Optional.empty());
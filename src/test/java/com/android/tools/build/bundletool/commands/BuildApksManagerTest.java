@@ -167,12 +167,14 @@ import com.android.tools.build.bundletool.commands.BuildApksCommand.SystemApkOpt
 import com.android.tools.build.bundletool.device.AdbServer;
 import com.android.tools.build.bundletool.io.AppBundleSerializer;
 import com.android.tools.build.bundletool.model.AndroidManifest;
+import com.android.tools.build.bundletool.model.ApkListener;
 import com.android.tools.build.bundletool.model.ApkModifier;
 import com.android.tools.build.bundletool.model.AppBundle;
 import com.android.tools.build.bundletool.model.BundleMetadata;
 import com.android.tools.build.bundletool.model.SigningConfiguration;
 import com.android.tools.build.bundletool.model.SourceStamp;
 import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.tools.build.bundletool.model.exceptions.InvalidBundleException;
 import com.android.tools.build.bundletool.model.exceptions.InvalidVersionCodeException;
 import com.android.tools.build.bundletool.model.utils.CertificateHelper;
 import com.android.tools.build.bundletool.model.utils.files.FilePreconditions;
@@ -188,6 +190,8 @@ import com.android.tools.build.bundletool.testing.FileUtils;
 import com.android.tools.build.bundletool.testing.ResourceTableBuilder;
 import com.android.tools.build.bundletool.testing.TestModule;
 import com.android.tools.build.bundletool.testing.truth.zip.TruthZip;
+import com.android.tools.build.bundletool.validation.SubValidator;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMultiset;
@@ -200,6 +204,7 @@ import com.google.common.io.ByteStreams;
 import com.google.common.io.CharSource;
 import com.google.common.io.Closer;
 import com.google.common.truth.Correspondence;
+import com.google.common.util.concurrent.AbstractListeningExecutorService;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.ExtensionRegistry;
@@ -219,13 +224,16 @@ import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import javax.inject.Inject;
@@ -335,6 +343,214 @@ public class BuildApksManagerTest {
     buildApksManager.execute();
   }
 
+  @Test
+  public void streamingApkSetArchive_sameContentAsStagedArchive() throws Exception {
+    AppBundle appBundle = createAppBundleWithBaseAndFeatureModules("ar", "vr");
+    Path stagedOutputFilePath = outputDir.resolve("staged.apks");
+    TestComponent.useTestModule(
+        this,
+        TestModule.builder().withAppBundle(appBundle).withOutputPath(stagedOutputFilePath).build());
+    buildApksManager.execute();
+
+    TestComponent.useTestModule(
+        this,
+        TestModule.builder()
+            .withAppBundle(appBundle)
+            .withOutputPath(outputFilePath)
+            .withCustomBuildApksCommandSetter(
+                command -> command.setEnableStreamingApkSetArchive(true))
+            .build());
+    buildApksManager.execute();
+
+    ZipFile stagedApkSetFile = openZipFile(stagedOutputFilePath.toFile());
+    ZipFile streamedApkSetFile = openZipFile(outputFilePath.toFile());
+    assertThat(
+            Collections.list(streamedApkSetFile.entries()).stream()
+                .map(ZipEntry::getName)
+                .collect(toImmutableSet()))
+        .containsExactlyElementsIn(
+            Collections.list(stagedApkSetFile.entries()).stream()
+                .map(ZipEntry::getName)
+                .collect(toImmutableSet()));
+    assertThat(extractTocFromApkSetFile(streamedApkSetFile, outputDir))
+        .isEqualTo(extractTocFromApkSetFile(stagedApkSetFile, outputDir));
+    // No in-progress archive should be left behind.
+    try (Stream<Path> outputFiles = Files.list(outputDir)) {
+      assertThat(outputFiles.map(path -> path.getFileName().toString()).collect(toImmutableSet()))
+          .containsExactly("staged.apks", "app.apks", "toc.pb");
+    }
+  }
+
+  @Test
+  public void apkSetArchive_tableOfContentsCompressedAndApksStored() throws Exception {
+    AppBundle appBundle = createAppBundleWithBaseAndFeatureModules("ar", "vr");
+    Path stagedOutputFilePath = outputDir.resolve("staged.apks");
+    TestComponent.useTestModule(
+        this,
+        TestModule.builder().withAppBundle(appBundle).withOutputPath(stagedOutputFilePath).build());
+    buildApksManager.execute();
+
+    TestComponent.useTestModule(
+        this,
+        TestModule.builder()
+            .withAppBundle(appBundle)
+            .withOutputPath(outputFilePath)
+            .withCustomBuildApksCommandSetter(
+                command -> command.setEnableStreamingApkSetArchive(true))
+            .build());
+    buildApksManager.execute();
+
+    for (Path apkSetPath : ImmutableList.of(stagedOutputFilePath, outputFilePath)) {
+      ZipFile apkSetFile = openZipFile(apkSetPath.toFile());
+      for (ZipEntry entry : Collections.list(apkSetFile.entries())) {
+        assertThat(entry.getMethod())
+            .isEqualTo(entry.getName().equals("toc.pb") ? ZipEntry.DEFLATED : ZipEntry.STORED);
+      }
+    }
+  }
+
+  @Test
+  public void streamingApkSetArchive_failure_inProgressArchiveDeleted() throws Exception {
+    ApkListener failingApkListener =
+        new ApkListener() {
+          @Override
+          public void onApkFinalized(ApkDescription apkDescription) {
+            throw new IllegalStateException("Failed to process APK.");
+          }
+        };
+    TestComponent.useTestModule(
+        this,
+        TestModule.builder()
+            .withOutputPath(outputFilePath)
+            .withApkListener(failingApkListener)
+            .withCustomBuildApksCommandSetter(
+                command -> command.setEnableStreamingApkSetArchive(true))
+            .build());
+
+    RuntimeException exception =
+        assertThrows(RuntimeException.class, () -> buildApksManager.execute());
+
+    assertThat(Throwables.getRootCause(exception))
+        .hasMessageThat()
+        .isEqualTo("Failed to process APK.");
+    try (Stream<Path> outputFiles = Files.list(outputDir)) {
+      assertThat(outputFiles.collect(toImmutableList())).isEmpty();
+    }
+  }
+
+  @Test
+  public void streamingApkSetArchive_assetSlicesSerializedLast_stillFirstInArchive()
+      throws Exception {
+    AppBundle appBundle =
+        new AppBundleBuilder()
+            .addModule(
+                "base",
+                builder ->
+                    builder
+                        .addFile("dex/classes.dex")
+                        .setManifest(androidManifest("com.test.app"))
+                        .setResourceTable(resourceTableWithTestLabel("Test feature")))
+            .addModule(
+                "asset_module",
+                builder ->
+                    builder
+                        .setManifest(
+                            androidManifestForAssetModule(
+                                "com.test.app", withInstallTimeDelivery()))
+                        .addFile("assets/images/image.jpg"))
+            .build();
+    // Holds back the first task, i.e. the serialization of the only asset slice, until another APK
+    // has been serialized, so that the other APKs are declared and serialized first.
+    HoldingFirstTaskExecutorService executorService =
+        new HoldingFirstTaskExecutorService(
+            MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(3)));
+    ApkListener apkListener =
+        new ApkListener() {
+          @Override
+          public void onApkFinalized(ApkDescription apkDescription) {
+            if (!apkDescription.hasAssetSliceMetadata()) {
+              executorService.releaseFirstTask();
+            }
+          }
+        };
+    TestComponent.useTestModule(
+        this,
+        TestModule.builder()
+            .withAppBundle(appBundle)
+            .withOutputPath(outputFilePath)
+            .withExecutorService(executorService)
+            .withApkListener(apkListener)
+            .withCustomBuildApksCommandSetter(
+                command -> command.setEnableStreamingApkSetArchive(true))
+            .build());
+
+    buildApksManager.execute();
+
+    ImmutableList<String> entryNames =
+        Collections.list(openZipFile(outputFilePath.toFile()).entries()).stream()
+            .map(ZipEntry::getName)
+            .collect(toImmutableList());
+    assertThat(executorService.firstTaskHeld).isTrue();
+    assertThat(entryNames.get(0)).startsWith("asset-slices/");
+    assertThat(entryNames.stream().filter(name -> name.startsWith("asset-slices/")).count())
+        .isEqualTo(1);
+    assertThat(Iterables.getLast(entryNames)).isEqualTo("toc.pb");
+  }
+
+  @Test
+  public void invalidBundleWithAssetModule_failsBeforeSerializingAnyApk() throws Exception {
+    AppBundle appBundle =
+        new AppBundleBuilder()
+            .addModule(
+                "base",
+                builder ->
+                    builder
+                        .addFile("dex/classes.dex")
+                        .setManifest(androidManifest("com.test.app"))
+                        .setResourceTable(resourceTableWithTestLabel("Test feature")))
+            .addModule(
+                "asset_module",
+                builder ->
+                    builder
+                        .setManifest(
+                            androidManifestForAssetModule(
+                                "com.test.app", withInstallTimeDelivery()))
+                        .addFile("assets/images/image.jpg"))
+            .build();
+    SubValidator failingValidator =
+        new SubValidator() {
+          @Override
+          public void validateBundle(AppBundle bundle) {
+            throw InvalidBundleException.builder().withUserMessage("Invalid bundle.").build();
+          }
+        };
+    List<ApkDescription> finalizedApks = Collections.synchronizedList(new ArrayList<>());
+    ApkListener apkListener =
+        new ApkListener() {
+          @Override
+          public void onApkFinalized(ApkDescription apkDescription) {
+            finalizedApks.add(apkDescription);
+          }
+        };
+    TestComponent.useTestModule(
+        this,
+        TestModule.builder()
+            .withAppBundle(appBundle)
+            .withOutputPath(outputFilePath)
+            .withExecutorService(MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(3)))
+            .withApkListener(apkListener)
+            .withCustomBuildApksCommandSetter(
+                command -> command.setExtraValidators(ImmutableList.of(failingValidator)))
+            .build());
+
+    InvalidBundleException exception =
+        assertThrows(InvalidBundleException.class, () -> buildApksManager.execute());
+
+    assertThat(exception).hasMessageThat().isEqualTo("Invalid bundle.");
+    assertThat(finalizedApks).isEmpty();
+    assertThat(Files.exists(outputFilePath)).isFalse();
+  }
+
   @Test
   public void selectsRightModules() throws Exception {
     AppBundle appBundle =
@@ -5710,4 +5926,67 @@ public class BuildApksManagerTest {
           .inject(testInstance);
     }
   }
+
+  /** Executor service which holds back the first task it's given until it is released. */
+  private static final class HoldingFirstTaskExecutorService
+      extends AbstractListeningExecutorService {
+    private final ListeningExecutorService delegate;
+    private Runnable heldTask;
+    private boolean firstTaskHeld = false;
+    private boolean released = false;
+
+    HoldingFirstTaskExecutorService(ListeningExecutorService delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+      synchronized (this) {
+        if (!firstTaskHeld) {
+          firstTaskHeld = true;
+          heldTask = task;
+          return;
+        }
+      }
+      delegate.execute(task);
+    }
+
+    void releaseFirstTask() {
+      Runnable task;
+      synchronized (this) {
+        if (released || heldTask == null) {
+          return;
+        }
+        released = true;
+        task = heldTask;
+      }
+      delegate.execute(task);
+    }
+
+    @Override
+    public void shutdown() {
+      releaseFirstTask();
+      delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+      return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+      return delegate.awaitTermination(timeout, unit);
+    }
+  }
 }
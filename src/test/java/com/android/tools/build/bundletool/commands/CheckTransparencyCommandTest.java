@@ -53,6 +53,7 @@ import com.android.tools.build.bundletool.testing.CertificateFactory;
 import com.android.tools.build.bundletool.testing.FakeSystemEnvironmentProvider;
 import com.android.tools.build.bundletool.testing.TestModule;
 import com.android.tools.build.bundletool.transparency.CodeTransparencyCryptoUtils;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.hash.Hashing;
@@ -70,6 +71,8 @@ import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import javax.inject.Inject;
 import org.jose4j.jws.JsonWebSignature;
 import org.junit.Before;
@@ -904,11 +907,155 @@ public final class CheckTransparencyCommandTest {
                 + CodeTransparencyCryptoUtils.getCertificateFingerprint(providedApkSigningKeyCert));
   }
 
+  @Test
+  public void apkMode_storedNativeLibraryAndCompressedDex_transparencyVerified() throws Exception {
+    byte[] dexFileContents = Strings.repeat("dex", 1000).getBytes(UTF_8);
+    byte[] nativeLibraryContents = Strings.repeat("native", 1000).getBytes(UTF_8);
+    Path zipOfApksPath =
+        createZipOfApksWithNativeLibraryAndDex(
+            dexFileContents, nativeLibraryContents, dexFileContents, nativeLibraryContents);
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+    CheckTransparencyCommand.builder()
+        .setMode(Mode.APK)
+        .setApkZipPath(zipOfApksPath)
+        .build()
+        .checkTransparency(new PrintStream(outputStream));
+
+    assertThat(new String(outputStream.toByteArray(), UTF_8))
+        .contains(
+            "Code transparency verified: code related file contents match the code transparency"
+                + " file.");
+  }
+
+  @Test
+  public void apkMode_storedNativeLibraryModified_verificationFailed() throws Exception {
+    byte[] dexFileContents = Strings.repeat("dex", 1000).getBytes(UTF_8);
+    byte[] nativeLibraryContents = Strings.repeat("native", 1000).getBytes(UTF_8);
+    Path zipOfApksPath =
+        createZipOfApksWithNativeLibraryAndDex(
+            dexFileContents,
+            nativeLibraryContents,
+            dexFileContents,
+            Strings.repeat("modified", 1000).getBytes(UTF_8));
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+    CheckTransparencyCommand.builder()
+        .setMode(Mode.APK)
+        .setApkZipPath(zipOfApksPath)
+        .build()
+        .checkTransparency(new PrintStream(outputStream));
+
+    assertThat(new String(outputStream.toByteArray(), UTF_8))
+        .contains(
+            "Verification failed because code was modified after code transparency metadata"
+                + " generation. Modified files: [lib/x86/libnative.so]");
+  }
+
+  @Test
+  public void apkMode_compressedDexModified_verificationFailed() throws Exception {
+    byte[] dexFileContents = Strings.repeat("dex", 1000).getBytes(UTF_8);
+    byte[] nativeLibraryContents = Strings.repeat("native", 1000).getBytes(UTF_8);
+    Path zipOfApksPath =
+        createZipOfApksWithNativeLibraryAndDex(
+            dexFileContents,
+            nativeLibraryContents,
+            Strings.repeat("modified", 1000).getBytes(UTF_8),
+            nativeLibraryContents);
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+    CheckTransparencyCommand.builder()
+        .setMode(Mode.APK)
+        .setApkZipPath(zipOfApksPath)
+        .build()
+        .checkTransparency(new PrintStream(outputStream));
+
+    assertThat(new String(outputStream.toByteArray(), UTF_8))
+        .contains(
+            "Verification failed because code was modified after code transparency metadata"
+                + " generation. Modified files: [classes.dex]");
+  }
+
   @Test
   public void printHelpDoesNotCrash() {
     CheckTransparencyCommand.help();
   }
 
+  /**
+   * Creates a zip with a universal APK whose native library is stored and whose dex file is
+   * compressed, and whose code transparency file lists the expected contents of both.
+   */
+  private Path createZipOfApksWithNativeLibraryAndDex(
+      byte[] expectedDexFileContents,
+      byte[] expectedNativeLibraryContents,
+      byte[] dexFileContents,
+      byte[] nativeLibraryContents)
+      throws Exception {
+    Path apkPath = tmpDir.resolve("universal.apk");
+    Path zipOfApksPath = tmpDir.resolve("apks.zip");
+    String serializedJws =
+        createJwsToken(
+            CodeTransparency.newBuilder()
+                .addCodeRelatedFile(
+                    CodeRelatedFile.newBuilder()
+                        .setType(CodeRelatedFile.Type.DEX)
+                        .setPath("base/dex/classes.dex")
+                        .setSha256(
+                            ByteSource.wrap(expectedDexFileContents)
+                                .hash(Hashing.sha256())
+                                .toString())
+                        .build())
+                .addCodeRelatedFile(
+                    CodeRelatedFile.newBuilder()
+                        .setType(CodeRelatedFile.Type.NATIVE_LIBRARY)
+                        .setPath("base/lib/x86/libnative.so")
+                        .setApkPath("lib/x86/libnative.so")
+                        .setSha256(
+                            ByteSource.wrap(expectedNativeLibraryContents)
+                                .hash(Hashing.sha256())
+                                .toString())
+                        .build())
+                .build(),
+            transparencyKeyCertificate,
+            transparencyPrivateKey);
+    ModuleSplit baseModuleSplit =
+        ModuleSplit.builder()
+            .setModuleName(BundleModuleName.create("base"))
+            .setAndroidManifest(AndroidManifest.create(androidManifest("com.app")))
+            .setApkTargeting(ApkTargeting.getDefaultInstance())
+            .setVariantTargeting(VariantTargeting.getDefaultInstance())
+            .setMasterSplit(true)
+            .addEntry(
+                ModuleEntry.builder()
+                    .setPath(ZipPath.create("classes.dex"))
+                    .setContent(ByteSource.wrap(dexFileContents))
+                    .build())
+            .addEntry(
+                ModuleEntry.builder()
+                    .setPath(ZipPath.create("lib/x86/libnative.so"))
+                    .setContent(ByteSource.wrap(nativeLibraryContents))
+                    .setForceUncompressed(true)
+                    .build())
+            .addEntry(
+                ModuleEntry.builder()
+                    .setPath(
+                        ZipPath.create("META-INF")
+                            .resolve(BundleMetadata.TRANSPARENCY_SIGNED_FILE_NAME))
+                    .setContent(
+                        CharSource.wrap(serializedJws).asByteSource(Charset.defaultCharset()))
+                    .build())
+            .build();
+    apkSerializerHelper.writeToZipFile(baseModuleSplit, apkPath);
+    try (ZipFile apkZip = new ZipFile(apkPath.toFile())) {
+      assertThat(apkZip.getEntry("lib/x86/libnative.so").getMethod()).isEqualTo(ZipEntry.STORED);
+      assertThat(apkZip.getEntry("classes.dex").getMethod()).isEqualTo(ZipEntry.DEFLATED);
+    }
+    new ZipBuilder()
+        .addFileWithContent(ZipPath.create("universal.apk"), Files.readAllBytes(apkPath))
+        .writeTo(zipOfApksPath);
+    return zipOfApksPath;
+  }
+
   @CommandScoped
   @Component(modules = {BuildApksModule.class, TestModule.class})
   interface TestComponent {
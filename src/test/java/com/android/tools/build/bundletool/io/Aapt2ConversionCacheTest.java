@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.android.tools.build.bundletool.io.Aapt2ConversionCache.Aapt2Conversion;
+import com.android.tools.build.bundletool.io.Aapt2ConversionCache.ConvertedApk;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class Aapt2ConversionCacheTest {
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private final AtomicInteger conversionCount = new AtomicInteger();
+  private final Aapt2Conversion countingConversion =
+      (protoApk, binaryApk) -> {
+        conversionCount.incrementAndGet();
+        Files.write(binaryApk, Files.readAllBytes(protoApk));
+      };
+
+  private TempDirectory tempDirectory;
+
+  @Before
+  public void setUp() {
+    tempDirectory = new TempDirectory(getClass().getSimpleName());
+  }
+
+  @After
+  public void tearDown() {
+    tempDirectory.close();
+  }
+
+  @Test
+  public void identicalProtoApks_convertedOnce() throws Exception {
+    Aapt2ConversionCache cache = new Aapt2ConversionCache(tempDirectory);
+    Path protoApk1 = writeProtoApk("proto1.apk", "resources");
+    Path protoApk2 = writeProtoApk("proto2.apk", "resources");
+
+    try (ConvertedApk binaryApk1 = cache.getOrConvert(protoApk1, countingConversion);
+        ConvertedApk binaryApk2 = cache.getOrConvert(protoApk2, countingConversion)) {
+      assertThat(conversionCount.get()).isEqualTo(1);
+      assertThat(binaryApk2.getPath()).isEqualTo(binaryApk1.getPath());
+      assertThat(Files.readAllBytes(binaryApk1.getPath())).isEqualTo("resources".getBytes(UTF_8));
+    }
+  }
+
+  @Test
+  public void differentProtoApks_convertedSeparately() throws Exception {
+    Aapt2ConversionCache cache = new Aapt2ConversionCache(tempDirectory);
+    Path protoApk1 = writeProtoApk("proto1.apk", "resources");
+    Path protoApk2 = writeProtoApk("proto2.apk", "other resources");
+
+    try (ConvertedApk binaryApk1 = cache.getOrConvert(protoApk1, countingConversion);
+        ConvertedApk binaryApk2 = cache.getOrConvert(protoApk2, countingConversion)) {
+      assertThat(conversionCount.get()).isEqualTo(2);
+      assertThat(binaryApk2.getPath()).isNotEqualTo(binaryApk1.getPath());
+    }
+  }
+
+  @Test
+  public void cachedApk_keptOnceClosed() throws Exception {
+    Aapt2ConversionCache cache = new Aapt2ConversionCache(tempDirectory);
+    Path protoApk = writeProtoApk("proto.apk", "resources");
+
+    Path binaryApkPath;
+    try (ConvertedApk binaryApk = cache.getOrConvert(protoApk, countingConversion)) {
+      binaryApkPath = binaryApk.getPath();
+    }
+
+    assertThat(Files.exists(binaryApkPath)).isTrue();
+    try (ConvertedApk binaryApk = cache.getOrConvert(protoApk, countingConversion)) {
+      assertThat(conversionCount.get()).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void evictedApk_deletedOnceClosed() throws Exception {
+    // No APK fits in the cache, so they are evicted as soon as they are converted.
+    Aapt2ConversionCache cache =
+        new Aapt2ConversionCache(tempDirectory, /* maxOnDiskBytes= */ 0);
+    Path protoApk = writeProtoApk("proto.apk", "resources");
+
+    Path binaryApkPath;
+    try (ConvertedApk binaryApk = cache.getOrConvert(protoApk, countingConversion)) {
+      binaryApkPath = binaryApk.getPath();
+      assertThat(Files.exists(binaryApkPath)).isTrue();
+    }
+
+    assertThat(Files.exists(binaryApkPath)).isFalse();
+    try (ConvertedApk binaryApk = cache.getOrConvert(protoApk, countingConversion)) {
+      assertThat(conversionCount.get()).isEqualTo(2);
+      assertThat(Files.exists(binaryApk.getPath())).isTrue();
+    }
+  }
+
+  private Path writeProtoApk(String fileName, String content) throws Exception {
+    return Files.write(tmp.getRoot().toPath().resolve(fileName), content.getBytes(UTF_8));
+  }
+}
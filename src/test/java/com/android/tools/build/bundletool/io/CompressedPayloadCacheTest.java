@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import static com.android.tools.build.bundletool.io.ZipEntrySource.STORE_ON_DISK_THRESHOLD_BYTES;
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.android.tools.build.bundletool.io.CompressedPayloadCache.CompressedPayload;
+import com.android.tools.build.bundletool.io.CompressedPayloadCache.Key;
+import com.android.tools.build.bundletool.io.CompressedPayloadCache.PayloadWriter;
+import com.android.tools.build.bundletool.io.ZipBuilder.EntryOption;
+import com.android.tools.build.bundletool.model.CompressionLevel;
+import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.zipflinger.ZipWriter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class CompressedPayloadCacheTest {
+
+  private static final long SMALL_ENTRY_SIZE = 100;
+  private static final long LARGE_ENTRY_SIZE = STORE_ON_DISK_THRESHOLD_BYTES + 1;
+
+  private static final byte[] COMPRESSED_PAYLOAD = "compressed".getBytes(UTF_8);
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private final AtomicInteger compressionCount = new AtomicInteger();
+  private final PayloadWriter countingPayloadWriter =
+      out -> {
+        compressionCount.incrementAndGet();
+        out.write(COMPRESSED_PAYLOAD);
+      };
+
+  private TempDirectory tempDirectory;
+
+  @Before
+  public void setUp() {
+    tempDirectory = new TempDirectory(getClass().getSimpleName());
+  }
+
+  @After
+  public void tearDown() {
+    tempDirectory.close();
+  }
+
+  @Test
+  public void smallEntry_keptInMemory() throws Exception {
+    CompressedPayloadCache cache = new CompressedPayloadCache(tempDirectory);
+
+    CompressedPayload payload =
+        cache.getOrCompress(
+            Key.create("id", SMALL_ENTRY_SIZE, CompressionLevel.DEFAULT_COMPRESSION),
+            countingPayloadWriter);
+
+    assertThat(listPayloadFiles()).isEmpty();
+    assertThat(payload.size()).isEqualTo((long) COMPRESSED_PAYLOAD.length);
+    assertThat(writeToByteArray(payload)).isEqualTo(COMPRESSED_PAYLOAD);
+  }
+
+  @Test
+  public void largeEntry_storedOnDisk() throws Exception {
+    CompressedPayloadCache cache = new CompressedPayloadCache(tempDirectory);
+
+    CompressedPayload payload =
+        cache.getOrCompress(
+            Key.create("id", LARGE_ENTRY_SIZE, CompressionLevel.DEFAULT_COMPRESSION),
+            countingPayloadWriter);
+
+    ImmutableList<Path> payloadFiles = listPayloadFiles();
+    assertThat(payloadFiles).hasSize(1);
+    assertThat(Files.readAllBytes(payloadFiles.get(0))).isEqualTo(COMPRESSED_PAYLOAD);
+    assertThat(payload.size()).isEqualTo((long) COMPRESSED_PAYLOAD.length);
+    assertThat(writeToByteArray(payload)).isEqualTo(COMPRESSED_PAYLOAD);
+  }
+
+  @Test
+  public void sameKey_compressedOnce() throws Exception {
+    CompressedPayloadCache cache = new CompressedPayloadCache(tempDirectory);
+
+    for (long entrySize : new long[] {SMALL_ENTRY_SIZE, LARGE_ENTRY_SIZE}) {
+      Key key = Key.create("id" + entrySize, entrySize, CompressionLevel.DEFAULT_COMPRESSION);
+      CompressedPayload payload1 = cache.getOrCompress(key, countingPayloadWriter);
+      CompressedPayload payload2 = cache.getOrCompress(key, countingPayloadWriter);
+
+      assertThat(payload2).isSameInstanceAs(payload1);
+    }
+    assertThat(compressionCount.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void differentContentIdOrCompressionLevel_compressedSeparately() throws Exception {
+    CompressedPayloadCache cache = new CompressedPayloadCache(tempDirectory);
+
+    cache.getOrCompress(
+        Key.create("id1", SMALL_ENTRY_SIZE, CompressionLevel.DEFAULT_COMPRESSION),
+        countingPayloadWriter);
+    cache.getOrCompress(
+        Key.create("id2", SMALL_ENTRY_SIZE, CompressionLevel.DEFAULT_COMPRESSION),
+        countingPayloadWriter);
+    cache.getOrCompress(
+        Key.create("id1", SMALL_ENTRY_SIZE, CompressionLevel.BEST_COMPRESSION),
+        countingPayloadWriter);
+
+    assertThat(compressionCount.get()).isEqualTo(3);
+  }
+
+  @Test
+  public void evictedOnDiskPayload_deletedAndNotWritten() throws Exception {
+    // No payload fits in the cache, so they are evicted as soon as they are compressed.
+    CompressedPayloadCache cache =
+        new CompressedPayloadCache(
+            tempDirectory, /* maxInMemoryBytes= */ 0, /* maxOnDiskBytes= */ 0);
+
+    CompressedPayload payload =
+        cache.getOrCompress(
+            Key.create("id", LARGE_ENTRY_SIZE, CompressionLevel.DEFAULT_COMPRESSION),
+            countingPayloadWriter);
+
+    assertThat(listPayloadFiles()).isEmpty();
+    assertThat(payload.tryWriteTo(createZipWriter(new ByteArrayOutputStream()))).isEmpty();
+  }
+
+  @Test
+  public void onDiskPayloadEvictedWhileWritten_deletedOnceWritten() throws Exception {
+    // Only one payload fits in the cache, so caching a second one evicts the first.
+    CompressedPayloadCache cache =
+        new CompressedPayloadCache(
+            tempDirectory,
+            /* maxInMemoryBytes= */ 0,
+            /* maxOnDiskBytes= */ COMPRESSED_PAYLOAD.length + 1);
+    CompressedPayload payload =
+        cache.getOrCompress(
+            Key.create("id1", LARGE_ENTRY_SIZE, CompressionLevel.DEFAULT_COMPRESSION),
+            countingPayloadWriter);
+    Path payloadFile = listPayloadFiles().get(0);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ZipWriter writer = createZipWriter(out);
+    doAnswer(
+            invocation -> {
+              cache.getOrCompress(
+                  Key.create("id2", LARGE_ENTRY_SIZE, CompressionLevel.DEFAULT_COMPRESSION),
+                  countingPayloadWriter);
+              assertThat(listPayloadFiles()).hasSize(2);
+              transferTo(out, invocation.getArgument(0), invocation.getArgument(2));
+              return null;
+            })
+        .when(writer)
+        .transferFrom(any(FileChannel.class), anyLong(), anyLong());
+
+    assertThat(payload.tryWriteTo(writer)).hasValue((long) COMPRESSED_PAYLOAD.length);
+    assertThat(out.toByteArray()).isEqualTo(COMPRESSED_PAYLOAD);
+    assertThat(listPayloadFiles()).doesNotContain(payloadFile);
+    assertThat(listPayloadFiles()).hasSize(1);
+    assertThat(payload.tryWriteTo(createZipWriter(new ByteArrayOutputStream()))).isEmpty();
+  }
+
+  @Test
+  public void bundleEntryContentId_basedOnName() throws Exception {
+    Path zipPath =
+        writeZip(
+            "bundle.aab",
+            new ZipBuilder()
+                .addFileWithContent(ZipPath.create("a.txt"), "content".getBytes(UTF_8))
+                .addFileWithContent(ZipPath.create("b.txt"), "content".getBytes(UTF_8)));
+
+    try (ZipReader zipReader = ZipReader.createFromFile(zipPath)) {
+      assertThat(CompressedPayloadCache.bundleEntryContentId(zipReader.getEntry("a.txt").get()))
+          .isNotEqualTo(
+              CompressedPayloadCache.bundleEntryContentId(zipReader.getEntry("b.txt").get()));
+    }
+  }
+
+  @Test
+  public void digestContentId_basedOnUncompressedContent() throws Exception {
+    Path zipPath1 =
+        writeZip(
+            "apk1.apk",
+            new ZipBuilder()
+                .addFileWithContent(
+                    ZipPath.create("stored.txt"),
+                    "content".getBytes(UTF_8),
+                    EntryOption.UNCOMPRESSED)
+                .addFileWithContent(ZipPath.create("other.txt"), "other".getBytes(UTF_8)));
+    Path zipPath2 =
+        writeZip(
+            "apk2.apk",
+            new ZipBuilder()
+                .addFileWithContent(ZipPath.create("deflated.txt"), "content".getBytes(UTF_8)));
+
+    try (ZipReader zipReader1 = ZipReader.createFromFileMemoryMapped(zipPath1);
+        ZipReader zipReader2 = ZipReader.createFromFile(zipPath2)) {
+      String storedContentId =
+          CompressedPayloadCache.digestContentId(
+              zipReader1, zipReader1.getEntry("stored.txt").get());
+      String otherContentId =
+          CompressedPayloadCache.digestContentId(
+              zipReader1, zipReader1.getEntry("other.txt").get());
+      String deflatedContentId =
+          CompressedPayloadCache.digestContentId(
+              zipReader2, zipReader2.getEntry("deflated.txt").get());
+
+      assertThat(deflatedContentId).isEqualTo(storedContentId);
+      assertThat(otherContentId).isNotEqualTo(storedContentId);
+    }
+  }
+
+  private ImmutableList<Path> listPayloadFiles() throws IOException {
+    try (Stream<Path> files = Files.list(tempDirectory.getPath())) {
+      return files.collect(toImmutableList());
+    }
+  }
+
+  private Path writeZip(String fileName, ZipBuilder zipBuilder) throws IOException {
+    return zipBuilder.writeTo(tmp.getRoot().toPath().resolve(fileName));
+  }
+
+  private static byte[] writeToByteArray(CompressedPayload payload) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertThat(payload.tryWriteTo(createZipWriter(out))).hasValue(payload.size());
+    return out.toByteArray();
+  }
+
+  /** Creates a {@link ZipWriter} which appends all the bytes written to the given stream. */
+  private static ZipWriter createZipWriter(ByteArrayOutputStream out) throws IOException {
+    ZipWriter writer = mock(ZipWriter.class);
+    when(writer.write(any(ByteBuffer.class)))
+        .thenAnswer(
+            invocation -> {
+              ByteBuffer buffer = invocation.getArgument(0);
+              int size = buffer.remaining();
+              byte[] bytes = new byte[size];
+              buffer.get(bytes);
+              out.write(bytes);
+              return size;
+            });
+    doAnswer(
+            invocation -> {
+              transferTo(out, invocation.getArgument(0), invocation.getArgument(2));
+              return null;
+            })
+        .when(writer)
+        .transferFrom(any(FileChannel.class), anyLong(), anyLong());
+    return writer;
+  }
+
+  private static void transferTo(ByteArrayOutputStream out, FileChannel channel, long count)
+      throws IOException {
+    ByteStreams.copy(ByteStreams.limit(Channels.newInputStream(channel), count), out);
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import static com.android.tools.build.bundletool.io.ParallelDeflater.BLOCK_SIZE_BYTES;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ParallelDeflaterTest {
+
+  private final ListeningExecutorService executor =
+      MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(2));
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void emptyInput() throws Exception {
+    byte[] input = new byte[0];
+
+    byte[] compressed =
+        deflate(new ParallelDeflater(executor, Deflater.DEFAULT_COMPRESSION), input);
+
+    assertThat(inflate(compressed)).isEqualTo(input);
+  }
+
+  @Test
+  public void smallerThanOneBlock() throws Exception {
+    byte[] input = createCompressibleData(BLOCK_SIZE_BYTES / 3);
+
+    byte[] compressed =
+        deflate(new ParallelDeflater(executor, Deflater.DEFAULT_COMPRESSION), input);
+
+    assertThat(inflate(compressed)).isEqualTo(input);
+    assertThat(compressed.length).isLessThan(input.length);
+  }
+
+  @Test
+  public void exactMultipleOfBlockSize() throws Exception {
+    byte[] input = createCompressibleData(3 * BLOCK_SIZE_BYTES);
+
+    byte[] compressed =
+        deflate(new ParallelDeflater(executor, Deflater.DEFAULT_COMPRESSION), input);
+
+    assertThat(inflate(compressed)).isEqualTo(input);
+  }
+
+  @Test
+  public void manyBlocks_smallPool() throws Exception {
+    byte[] input = createCompressibleData(10 * BLOCK_SIZE_BYTES + 12345);
+
+    byte[] compressed =
+        deflate(
+            new ParallelDeflater(
+                executor, Deflater.BEST_COMPRESSION, /* maxBlocksInFlight= */ 2),
+            input);
+
+    assertThat(inflate(compressed)).isEqualTo(input);
+  }
+
+  @Test
+  public void outputIndependentOfBlocksInFlight() throws Exception {
+    byte[] input = createCompressibleData(5 * BLOCK_SIZE_BYTES + 1);
+
+    byte[] compressedWithOneBlock =
+        deflate(
+            new ParallelDeflater(
+                executor, Deflater.DEFAULT_COMPRESSION, /* maxBlocksInFlight= */ 1),
+            input);
+    byte[] compressedWithManyBlocks =
+        deflate(
+            new ParallelDeflater(
+                executor, Deflater.DEFAULT_COMPRESSION, /* maxBlocksInFlight= */ 8),
+            input);
+
+    assertThat(compressedWithOneBlock).isEqualTo(compressedWithManyBlocks);
+  }
+
+  private static byte[] deflate(ParallelDeflater deflater, byte[] input) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    deflater.deflate(new ByteArrayInputStream(input), out);
+    return out.toByteArray();
+  }
+
+  private static byte[] inflate(byte[] compressed) throws Exception {
+    Inflater inflater = new Inflater(/* nowrap= */ true);
+    try {
+      return ByteStreams.toByteArray(
+          new InflaterInputStream(new ByteArrayInputStream(compressed), inflater));
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /** Random bytes from a small alphabet, so that blocks compress and reference each other. */
+  private static byte[] createCompressibleData(int size) {
+    Random random = new Random(size);
+    byte[] data = new byte[size];
+    for (int i = 0; i < size; i++) {
+      data[i] = (byte) ('a' + random.nextInt(8));
+    }
+    return data;
+  }
+}
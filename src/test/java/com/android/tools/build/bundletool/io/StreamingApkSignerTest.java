@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import static com.android.tools.build.bundletool.testing.CertificateFactory.buildSelfSignedCertificate;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.androidManifest;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.withMinSdkVersion;
+import static com.android.tools.build.bundletool.testing.ModuleSplitUtils.createModuleSplitBuilder;
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.android.apksig.ApkVerifier;
+import com.android.tools.build.bundletool.model.AndroidManifest;
+import com.android.tools.build.bundletool.model.ModuleSplit;
+import com.android.tools.build.bundletool.model.SigningConfiguration;
+import com.android.tools.build.bundletool.model.version.BundleToolVersion;
+import com.android.zipflinger.BytesSource;
+import com.android.zipflinger.ZipArchive;
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Optional;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class StreamingApkSignerTest {
+
+  private static final byte[] DEX_CONTENT = "dex".getBytes(UTF_8);
+  private static final byte[] ASSET_CONTENT = Strings.repeat("asset", 10_000).getBytes(UTF_8);
+
+  private static PrivateKey privateKey;
+  private static X509Certificate certificate;
+  private static PrivateKey stampPrivateKey;
+  private static X509Certificate stampCertificate;
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    KeyPair keyPair = KeyPairGenerator.getInstance("RSA").genKeyPair();
+    privateKey = keyPair.getPrivate();
+    certificate = buildSelfSignedCertificate(keyPair, "CN=StreamingApkSignerTest");
+    KeyPair stampKeyPair = KeyPairGenerator.getInstance("RSA").genKeyPair();
+    stampPrivateKey = stampKeyPair.getPrivate();
+    stampCertificate = buildSelfSignedCertificate(stampKeyPair, "CN=StreamingApkSignerTest_Stamp");
+  }
+
+  @Test
+  public void signsWithV1V2AndV3() throws Exception {
+    SigningConfiguration signingConfig =
+        SigningConfiguration.builder().setSignerConfig(privateKey, certificate).build();
+
+    ApkVerifier.Result result = writeAndVerify(signingConfig, /* minSdkVersion= */ 21);
+
+    assertThat(result.isVerified()).isTrue();
+    assertThat(result.isVerifiedUsingV1Scheme()).isTrue();
+    assertThat(result.isVerifiedUsingV2Scheme()).isTrue();
+    assertThat(result.isVerifiedUsingV3Scheme()).isTrue();
+    assertThat(result.getSignerCertificates()).containsExactly(certificate);
+  }
+
+  @Test
+  public void signsWithV1AndV2() throws Exception {
+    SigningConfiguration signingConfig =
+        SigningConfiguration.builder()
+            .setSignerConfig(privateKey, certificate)
+            .setMinimumV3SigningApiVersion(Optional.of(28))
+            .build();
+
+    ApkVerifier.Result result = writeAndVerify(signingConfig, /* minSdkVersion= */ 21);
+
+    assertThat(result.isVerified()).isTrue();
+    assertThat(result.isVerifiedUsingV1Scheme()).isTrue();
+    assertThat(result.isVerifiedUsingV2Scheme()).isTrue();
+    assertThat(result.isVerifiedUsingV3Scheme()).isFalse();
+    assertThat(result.getSignerCertificates()).containsExactly(certificate);
+  }
+
+  @Test
+  public void signsWithV2AndV3() throws Exception {
+    SigningConfiguration signingConfig =
+        SigningConfiguration.builder().setSignerConfig(privateKey, certificate).build();
+
+    ApkVerifier.Result result = writeAndVerify(signingConfig, /* minSdkVersion= */ 24);
+
+    assertThat(result.isVerified()).isTrue();
+    assertThat(result.isVerifiedUsingV1Scheme()).isFalse();
+    assertThat(result.isVerifiedUsingV2Scheme()).isTrue();
+    assertThat(result.isVerifiedUsingV3Scheme()).isTrue();
+    assertThat(result.getSignerCertificates()).containsExactly(certificate);
+  }
+
+  @Test
+  public void signsWithV2Only() throws Exception {
+    SigningConfiguration signingConfig =
+        SigningConfiguration.builder()
+            .setSignerConfig(privateKey, certificate)
+            .setMinimumV3SigningApiVersion(Optional.of(28))
+            .build();
+
+    ApkVerifier.Result result = writeAndVerify(signingConfig, /* minSdkVersion= */ 24);
+
+    assertThat(result.isVerified()).isTrue();
+    assertThat(result.isVerifiedUsingV1Scheme()).isFalse();
+    assertThat(result.isVerifiedUsingV2Scheme()).isTrue();
+    assertThat(result.isVerifiedUsingV3Scheme()).isFalse();
+    assertThat(result.getSignerCertificates()).containsExactly(certificate);
+  }
+
+  @Test
+  public void signsWithSourceStamp() throws Exception {
+    SigningConfiguration signingConfig =
+        SigningConfiguration.builder().setSignerConfig(privateKey, certificate).build();
+    SigningConfiguration stampSigningConfig =
+        SigningConfiguration.builder().setSignerConfig(stampPrivateKey, stampCertificate).build();
+
+    ApkVerifier.Result result =
+        writeAndVerify(signingConfig, Optional.of(stampSigningConfig), /* minSdkVersion= */ 21);
+
+    assertThat(result.isVerified()).isTrue();
+    assertThat(result.isVerifiedUsingV1Scheme()).isTrue();
+    assertThat(result.isSourceStampVerified()).isTrue();
+    assertThat(result.getSourceStampInfo().getCertificate()).isEqualTo(stampCertificate);
+    try (ZipFile apkZip = new ZipFile(tmp.getRoot().toPath().resolve("app.apk").toFile())) {
+      ZipEntry stampCertEntry = apkZip.getEntry("stamp-cert-sha256");
+      assertThat(stampCertEntry).isNotNull();
+      assertThat(ByteStreams.toByteArray(apkZip.getInputStream(stampCertEntry)))
+          .isEqualTo(Hashing.sha256().hashBytes(stampCertificate.getEncoded()).asBytes());
+    }
+  }
+
+  @Test
+  public void noSigningConfig_noStreamingSigner() throws Exception {
+    ApkSigner apkSigner =
+        createApkSigner(
+            /* signingConfig= */ Optional.empty(), /* stampSigningConfig= */ Optional.empty());
+
+    assertThat(apkSigner.createStreamingSigner(createSplit(/* minSdkVersion= */ 21))).isEmpty();
+  }
+
+  private ApkVerifier.Result writeAndVerify(SigningConfiguration signingConfig, int minSdkVersion)
+      throws Exception {
+    return writeAndVerify(
+        signingConfig, /* stampSigningConfig= */ Optional.empty(), minSdkVersion);
+  }
+
+  private ApkVerifier.Result writeAndVerify(
+      SigningConfiguration signingConfig,
+      Optional<SigningConfiguration> stampSigningConfig,
+      int minSdkVersion)
+      throws Exception {
+    ModuleSplit split = createSplit(minSdkVersion);
+    Path apkPath = tmp.getRoot().toPath().resolve("app.apk");
+
+    try (StreamingApkSigner signer =
+        createApkSigner(Optional.of(signingConfig), stampSigningConfig)
+            .createStreamingSigner(split)
+            .get()) {
+      try (ZipArchive apkWriter = new ZipArchive(apkPath)) {
+        addEntry(apkWriter, signer, "assets/asset.txt", ASSET_CONTENT, Deflater.BEST_SPEED);
+        addEntry(apkWriter, signer, "classes.dex", DEX_CONTENT, Deflater.NO_COMPRESSION);
+        signer.writeSignatureEntries(apkWriter);
+      }
+      signer.signApk(apkPath);
+    }
+
+    return new ApkVerifier.Builder(apkPath.toFile())
+        .setMinCheckedPlatformVersion(minSdkVersion)
+        .build()
+        .verify();
+  }
+
+  private static void addEntry(
+      ZipArchive apkWriter,
+      StreamingApkSigner signer,
+      String name,
+      byte[] content,
+      int compressionLevel)
+      throws Exception {
+    signer.addEntry(name, ByteSource.wrap(content));
+    apkWriter.add(new BytesSource(content, name, compressionLevel));
+  }
+
+  private ApkSigner createApkSigner(
+      Optional<SigningConfiguration> signingConfig,
+      Optional<SigningConfiguration> stampSigningConfig) {
+    return new ApkSigner(
+        signingConfig,
+        stampSigningConfig,
+        BundleToolVersion.getCurrentVersion(),
+        new TempDirectory());
+  }
+
+  private static ModuleSplit createSplit(int minSdkVersion) {
+    return createModuleSplitBuilder()
+        .setAndroidManifest(
+            AndroidManifest.create(
+                androidManifest("com.test.app", withMinSdkVersion(minSdkVersion))))
+        .build();
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+
+import com.android.tools.build.bundletool.io.ZipBuilder.EntryOption;
+import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.zipflinger.Entry;
+import com.android.zipflinger.Location;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ZipReaderTest {
+
+  /** Small mapping stride so that a small zip file spans several mappings. */
+  private static final long MAPPING_STRIDE = 512;
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private Path zipPath;
+
+  @Before
+  public void setUp() {
+    zipPath = tmp.getRoot().toPath().resolve("test.zip");
+  }
+
+  @Test
+  public void memoryMapped_payloadBuffer_sameAsPayload() throws Exception {
+    ImmutableMap<String, byte[]> contents =
+        ImmutableMap.of(
+            "stored.txt", createRandomData(300),
+            "deflated.txt", createCompressibleData(3000));
+    writeZip(contents, /* uncompressedEntries= */ "stored.txt");
+
+    try (ZipReader zipReader = ZipReader.createFromFile(zipPath);
+        ZipReader mappedZipReader = ZipReader.createFromFileMemoryMapped(zipPath)) {
+      for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+        Optional<ByteBuffer> payloadBuffer = mappedZipReader.getPayloadBuffer(entry.getKey());
+
+        assertThat(payloadBuffer).isPresent();
+        assertThat(payloadBuffer.get().isReadOnly()).isTrue();
+        assertThat(toByteArray(payloadBuffer.get()))
+            .isEqualTo(ByteStreams.toByteArray(zipReader.getPayload(entry.getKey())));
+        assertThat(mappedZipReader.getUncompressedPayloadSource(entry.getKey()).read())
+            .isEqualTo(entry.getValue());
+      }
+    }
+  }
+
+  @Test
+  public void memoryMapped_entriesAcrossMappingStride_readFromMappings() throws Exception {
+    // All payloads are smaller than the mapping stride, so they are always in a single mapping.
+    ImmutableMap.Builder<String, byte[]> contentsBuilder = ImmutableMap.builder();
+    for (int i = 0; i < 20; i++) {
+      contentsBuilder.put("stored" + i + ".txt", createRandomData(200 + 10 * i));
+      contentsBuilder.put("deflated" + i + ".txt", createCompressibleData(500 + 20 * i));
+    }
+    ImmutableMap<String, byte[]> contents = contentsBuilder.build();
+    String[] storedEntries =
+        contents.keySet().stream().filter(name -> name.startsWith("stored")).toArray(String[]::new);
+    writeZip(contents, storedEntries);
+
+    int entriesAcrossMappingStride = 0;
+    try (ZipReader zipReader = ZipReader.createFromFile(zipPath);
+        ZipReader mappedZipReader =
+            ZipReader.createFromFileMemoryMapped(zipPath, MAPPING_STRIDE)) {
+      for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+        if (crossesMappingStride(mappedZipReader.getEntry(entry.getKey()).get())) {
+          entriesAcrossMappingStride++;
+        }
+        Optional<ByteBuffer> payloadBuffer = mappedZipReader.getPayloadBuffer(entry.getKey());
+
+        assertThat(payloadBuffer).isPresent();
+        assertThat(toByteArray(payloadBuffer.get()))
+            .isEqualTo(ByteStreams.toByteArray(zipReader.getPayload(entry.getKey())));
+        assertThat(mappedZipReader.getUncompressedPayloadSource(entry.getKey()).read())
+            .isEqualTo(entry.getValue());
+      }
+    }
+    assertThat(entriesAcrossMappingStride).isGreaterThan(1);
+  }
+
+  @Test
+  public void memoryMapped_payloadLargerThanMappingStride_readFromFile() throws Exception {
+    ImmutableMap<String, byte[]> contents =
+        ImmutableMap.of(
+            "stored.txt", createRandomData(4 * (int) MAPPING_STRIDE),
+            "deflated.txt", createRandomData(4 * (int) MAPPING_STRIDE));
+    writeZip(contents, /* uncompressedEntries= */ "stored.txt");
+
+    try (ZipReader zipReader = ZipReader.createFromFile(zipPath);
+        ZipReader mappedZipReader =
+            ZipReader.createFromFileMemoryMapped(zipPath, MAPPING_STRIDE)) {
+      for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+        assertThat(mappedZipReader.getPayloadBuffer(entry.getKey())).isEmpty();
+        assertThat(ByteStreams.toByteArray(mappedZipReader.getPayload(entry.getKey())))
+            .isEqualTo(ByteStreams.toByteArray(zipReader.getPayload(entry.getKey())));
+        assertThat(mappedZipReader.getUncompressedPayloadSource(entry.getKey()).read())
+            .isEqualTo(entry.getValue());
+      }
+    }
+  }
+
+  @Test
+  public void notMemoryMapped_noPayloadBuffer() throws Exception {
+    writeZip(ImmutableMap.of("file.txt", createRandomData(100)));
+
+    try (ZipReader zipReader = ZipReader.createFromFile(zipPath)) {
+      assertThat(zipReader.getPayloadBuffer("file.txt")).isEmpty();
+    }
+  }
+
+  private void writeZip(ImmutableMap<String, byte[]> contents, String... uncompressedEntries)
+      throws Exception {
+    ImmutableSet<String> uncompressedEntryNames = ImmutableSet.copyOf(uncompressedEntries);
+    ZipBuilder zipBuilder = new ZipBuilder();
+    contents.forEach(
+        (name, content) -> {
+          if (uncompressedEntryNames.contains(name)) {
+            zipBuilder.addFileWithContent(ZipPath.create(name), content, EntryOption.UNCOMPRESSED);
+          } else {
+            zipBuilder.addFileWithContent(ZipPath.create(name), content);
+          }
+        });
+    zipBuilder.writeTo(zipPath);
+  }
+
+  private static boolean crossesMappingStride(Entry entry) {
+    Location payloadLocation = entry.getPayloadLocation();
+    long lastByteOffset = payloadLocation.first + payloadLocation.size() - 1;
+    return payloadLocation.first / MAPPING_STRIDE != lastByteOffset / MAPPING_STRIDE;
+  }
+
+  private static byte[] toByteArray(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return bytes;
+  }
+
+  private static byte[] createRandomData(int size) {
+    byte[] data = new byte[size];
+    new Random(size).nextBytes(data);
+    return data;
+  }
+
+  /** Random bytes from a small alphabet, so that the data compresses. */
+  private static byte[] createCompressibleData(int size) {
+    Random random = new Random(size);
+    byte[] data = new byte[size];
+    for (int i = 0; i < size; i++) {
+      data[i] = (byte) ('a' + random.nextInt(8));
+    }
+    return data;
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.mergers;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class CachingDexMergerTest {
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  private Path tmpDir;
+  private Path cacheDir;
+
+  @Before
+  public void setUp() {
+    tmpDir = tmp.getRoot().toPath();
+    cacheDir = tmpDir.resolve("cache");
+  }
+
+  @Test
+  public void sameInputs_mergedOnce() throws Exception {
+    FakeDexMerger fakeMerger = new FakeDexMerger();
+    DexMerger dexMerger = new CachingDexMerger(fakeMerger, cacheDir, "1.0");
+    ImmutableList<Path> dexFiles =
+        ImmutableList.of(writeFile("a.dex", "a"), writeFile("b.dex", "b"));
+
+    ImmutableList<Path> firstOutput = merge(dexMerger, dexFiles, "out1", /* minSdk= */ 21);
+    ImmutableList<Path> secondOutput = merge(dexMerger, dexFiles, "out2", /* minSdk= */ 21);
+
+    assertThat(fakeMerger.invocations).isEqualTo(1);
+    assertThat(firstOutput).hasSize(2);
+    assertThat(readFiles(secondOutput)).containsExactlyElementsIn(readFiles(firstOutput)).inOrder();
+    assertThat(secondOutput.get(0).getParent()).isEqualTo(tmpDir.resolve("out2"));
+  }
+
+  @Test
+  public void cacheSharedAcrossInstances() throws Exception {
+    ImmutableList<Path> dexFiles = ImmutableList.of(writeFile("a.dex", "a"));
+    FakeDexMerger firstMerger = new FakeDexMerger();
+    merge(new CachingDexMerger(firstMerger, cacheDir, "1.0"), dexFiles, "out1", 21);
+
+    FakeDexMerger secondMerger = new FakeDexMerger();
+    ImmutableList<Path> output =
+        merge(new CachingDexMerger(secondMerger, cacheDir, "1.0"), dexFiles, "out2", 21);
+
+    assertThat(firstMerger.invocations).isEqualTo(1);
+    assertThat(secondMerger.invocations).isEqualTo(0);
+    assertThat(readFiles(output)).containsExactly("merged:a");
+  }
+
+  @Test
+  public void differentDexContents_mergedSeparately() throws Exception {
+    FakeDexMerger fakeMerger = new FakeDexMerger();
+    DexMerger dexMerger = new CachingDexMerger(fakeMerger, cacheDir, "1.0");
+
+    merge(dexMerger, ImmutableList.of(writeFile("a.dex", "a")), "out1", 21);
+    ImmutableList<Path> output =
+        merge(dexMerger, ImmutableList.of(writeFile("a.dex", "modified")), "out2", 21);
+
+    assertThat(fakeMerger.invocations).isEqualTo(2);
+    assertThat(readFiles(output)).containsExactly("merged:modified");
+  }
+
+  @Test
+  public void differentMinSdk_notShared() throws Exception {
+    FakeDexMerger fakeMerger = new FakeDexMerger();
+    DexMerger dexMerger = new CachingDexMerger(fakeMerger, cacheDir, "1.0");
+    ImmutableList<Path> dexFiles = ImmutableList.of(writeFile("a.dex", "a"));
+
+    merge(dexMerger, dexFiles, "out1", /* minSdk= */ 19);
+    merge(dexMerger, dexFiles, "out2", /* minSdk= */ 21);
+
+    assertThat(fakeMerger.invocations).isEqualTo(2);
+  }
+
+  @Test
+  public void differentMainDexList_notShared() throws Exception {
+    FakeDexMerger fakeMerger = new FakeDexMerger();
+    DexMerger dexMerger = new CachingDexMerger(fakeMerger, cacheDir, "1.0");
+    ImmutableList<Path> dexFiles = ImmutableList.of(writeFile("a.dex", "a"));
+
+    dexMerger.merge(
+        dexFiles,
+        newDir("out1"),
+        /* mainDexListFile= */ Optional.empty(),
+        /* proguardMap= */ Optional.empty(),
+        /* isDebuggable= */ false,
+        /* minSdkVersion= */ 19);
+    dexMerger.merge(
+        dexFiles,
+        newDir("out2"),
+        Optional.of(writeFile("main-dex-list.txt", "com/example/MyClass.class")),
+        /* proguardMap= */ Optional.empty(),
+        /* isDebuggable= */ false,
+        /* minSdkVersion= */ 19);
+
+    assertThat(fakeMerger.invocations).isEqualTo(2);
+  }
+
+  @Test
+  public void differentMergerVersions_notShared() throws Exception {
+    ImmutableList<Path> dexFiles = ImmutableList.of(writeFile("a.dex", "a"));
+    FakeDexMerger oldMerger = new FakeDexMerger();
+    merge(new CachingDexMerger(oldMerger, cacheDir, "1.0"), dexFiles, "out1", 21);
+
+    FakeDexMerger newMerger = new FakeDexMerger();
+    merge(new CachingDexMerger(newMerger, cacheDir, "2.0"), dexFiles, "out2", 21);
+
+    assertThat(oldMerger.invocations).isEqualTo(1);
+    assertThat(newMerger.invocations).isEqualTo(1);
+  }
+
+  private ImmutableList<Path> merge(
+      DexMerger dexMerger, ImmutableList<Path> dexFiles, String outputDirName, int minSdk)
+      throws Exception {
+    return dexMerger.merge(
+        dexFiles,
+        newDir(outputDirName),
+        /* mainDexListFile= */ Optional.empty(),
+        /* proguardMap= */ Optional.empty(),
+        /* isDebuggable= */ false,
+        minSdk);
+  }
+
+  private Path newDir(String dirName) throws Exception {
+    return Files.createDirectory(tmpDir.resolve(dirName));
+  }
+
+  private Path writeFile(String fileName, String content) throws Exception {
+    Path file = tmpDir.resolve(fileName);
+    Files.write(file, content.getBytes(UTF_8));
+    return file;
+  }
+
+  private static ImmutableList<String> readFiles(ImmutableList<Path> files) throws Exception {
+    ImmutableList.Builder<String> contents = ImmutableList.builder();
+    for (Path file : files) {
+      contents.add(new String(Files.readAllBytes(file), UTF_8));
+    }
+    return contents.build();
+  }
+
+  /** Writes one "classesN.dex" file per input dex file, prefixed with "merged:". */
+  private static class FakeDexMerger implements DexMerger {
+    private int invocations = 0;
+
+    @Override
+    public ImmutableList<Path> merge(
+        ImmutableList<Path> dexFiles,
+        Path outputDir,
+        Optional<Path> mainDexListFile,
+        Optional<Path> proguardMap,
+        boolean isDebuggable,
+        int minSdkVersion) {
+      invocations++;
+      ImmutableList.Builder<Path> outputs = ImmutableList.builder();
+      try {
+        for (int i = 0; i < dexFiles.size(); i++) {
+          String name = i == 0 ? "classes.dex" : String.format("classes%d.dex", i + 1);
+          Path output = outputDir.resolve(name);
+          String content = new String(Files.readAllBytes(dexFiles.get(i)), UTF_8);
+          Files.write(output, ("merged:" + content).getBytes(UTF_8));
+          outputs.add(output);
+        }
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+      return outputs.build();
+    }
+  }
+}
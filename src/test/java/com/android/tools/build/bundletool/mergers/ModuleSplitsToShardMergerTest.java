@@ -48,6 +48,7 @@ import static com.google.common.collect.Iterables.getOnlyElement;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth8.assertThat;
 import static com.google.common.truth.extensions.proto.ProtoTruth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
@@ -81,10 +82,17 @@ import com.android.tools.build.bundletool.testing.TestModule;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import dagger.Component;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
 import javax.inject.Inject;
 import org.junit.Before;
 import org.junit.Test;
@@ -311,7 +319,8 @@ public class ModuleSplitsToShardMergerTest {
     TestComponent.useTestModule(
         this, TestModule.builder().withAppBundle(BUNDLE_WITH_BASE_ONLY_NO_MAIN_DEX_LIST).build());
 
-    Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> dexMergingCache = createCache();
+    Map<ImmutableSet<ModuleEntry>, ListenableFuture<ImmutableList<Path>>> dexMergingCache =
+        createCache();
     ModuleSplit baseSplit =
         createModuleSplitBuilder()
             .setModuleName(BundleModuleName.create("base"))
@@ -335,7 +344,8 @@ public class ModuleSplitsToShardMergerTest {
 
   @Test
   public void dexFiles_inMultipleModules_areMerged() throws Exception {
-    Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> dexMergingCache = createCache();
+    Map<ImmutableSet<ModuleEntry>, ListenableFuture<ImmutableList<Path>>> dexMergingCache =
+        createCache();
     ModuleEntry dexEntry1 = createModuleEntryForFile("dex/classes.dex", CLASSES_DEX_CONTENT);
     ModuleSplit baseSplit =
         createModuleSplitBuilder()
@@ -363,14 +373,54 @@ public class ModuleSplitsToShardMergerTest {
     assertThat(dexMergingCache).hasSize(1);
     ImmutableSet<ModuleEntry> cacheKey = getOnlyElement(dexMergingCache.keySet());
     assertThat(cacheKey).containsExactly(dexEntry1, dexEntry2);
-    ImmutableList<Path> cacheValue = getOnlyElement(dexMergingCache.values());
+    ImmutableList<Path> cacheValue = getOnlyElement(dexMergingCache.values()).get();
     assertThat(cacheValue.stream().allMatch(cachedFile -> cachedFile.startsWith(tmpDir.getPath())))
         .isTrue();
   }
 
+  @Test
+  public void dexFiles_mergePendingInCache_waitsForPendingMerge() throws Exception {
+    Map<ImmutableSet<ModuleEntry>, ListenableFuture<ImmutableList<Path>>> dexMergingCache =
+        createCache();
+    ModuleEntry dexEntry1 = createModuleEntryForFile("dex/classes.dex", CLASSES_DEX_CONTENT);
+    ModuleSplit baseSplit =
+        createModuleSplitBuilder()
+            .setModuleName(BundleModuleName.create("base"))
+            .setEntries(ImmutableList.of(dexEntry1))
+            .build();
+    ModuleEntry dexEntry2 = createModuleEntryForFile("dex/classes.dex", CLASSES_OTHER_DEX_CONTENT);
+    ModuleSplit featureSplit =
+        createModuleSplitBuilder()
+            .setModuleName(BundleModuleName.create("feature"))
+            .setEntries(ImmutableList.of(dexEntry2))
+            .build();
+    // Merge of the same dex files started by another shard.
+    SettableFuture<ImmutableList<Path>> pendingMerge = SettableFuture.create();
+    dexMergingCache.put(ImmutableSet.of(dexEntry1, dexEntry2), pendingMerge);
+    Path mergedDexFile = Files.createDirectory(tmpDir.getPath().resolve("merged"));
+    mergedDexFile = Files.write(mergedDexFile.resolve("classes.dex"), DUMMY_CONTENT);
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<ModuleSplit> merged =
+          executor.submit(
+              () ->
+                  splitsToShardMerger.mergeSingleShard(
+                      ImmutableList.of(baseSplit, featureSplit), dexMergingCache));
+      assertThrows(TimeoutException.class, () -> merged.get(100, MILLISECONDS));
+      pendingMerge.set(ImmutableList.of(mergedDexFile));
+
+      assertThat(dexData(merged.get(), "dex/classes.dex")).isEqualTo(DUMMY_CONTENT);
+    } finally {
+      executor.shutdownNow();
+    }
+    assertThat(dexMergingCache).hasSize(1);
+  }
+
   @Test
   public void dexFiles_allInOneModule_areMerged() throws Exception {
-    Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> dexMergingCache = createCache();
+    Map<ImmutableSet<ModuleEntry>, ListenableFuture<ImmutableList<Path>>> dexMergingCache =
+        createCache();
     ModuleSplit baseSplit =
         createModuleSplitBuilder()
             .setModuleName(BundleModuleName.create("base"))
@@ -396,7 +446,8 @@ public class ModuleSplitsToShardMergerTest {
 
   @Test
   public void dexFiles_inMultipleModules_areRenamedForLPlus() throws Exception {
-    Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> dexMergingCache = createCache();
+    Map<ImmutableSet<ModuleEntry>, ListenableFuture<ImmutableList<Path>>> dexMergingCache =
+        createCache();
 
     ModuleEntry dexEntry1 = createModuleEntryForFile("dex/classes.dex", CLASSES_DEX_CONTENT);
     ModuleSplit baseSplit =
@@ -430,7 +481,8 @@ public class ModuleSplitsToShardMergerTest {
 
   @Test
   public void dexFiles_inMultipleModules_areRenamedForLPlusNoBaseModuleDex() throws Exception {
-    Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> dexMergingCache = createCache();
+    Map<ImmutableSet<ModuleEntry>, ListenableFuture<ImmutableList<Path>>> dexMergingCache =
+        createCache();
 
     ModuleSplit baseSplit =
         createModuleSplitBuilder()
@@ -465,7 +517,8 @@ public class ModuleSplitsToShardMergerTest {
     TestComponent.useTestModule(
         this, TestModule.builder().withAppBundle(BUNDLE_WITH_ONE_FEATURE_DISABLED_MERGING).build());
 
-    Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> dexMergingCache = createCache();
+    Map<ImmutableSet<ModuleEntry>, ListenableFuture<ImmutableList<Path>>> dexMergingCache =
+        createCache();
 
     ModuleEntry dexEntry1 = createModuleEntryForFile("dex/classes.dex", CLASSES_DEX_CONTENT);
     ModuleSplit baseSplit =
@@ -852,7 +905,8 @@ public class ModuleSplitsToShardMergerTest {
         .setVariantTargeting(lPlusVariantTargeting());
   }
 
-  private static Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> createCache() {
+  private static Map<ImmutableSet<ModuleEntry>, ListenableFuture<ImmutableList<Path>>>
+      createCache() {
     return new HashMap<>();
   }
 
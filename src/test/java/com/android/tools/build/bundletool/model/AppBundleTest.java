@@ -27,6 +27,7 @@ import static com.android.tools.build.bundletool.testing.TargetingUtils.toAbi;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth8.assertThat;
 import static com.google.common.truth.extensions.proto.ProtoTruth.assertThat;
+import static java.util.function.Function.identity;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import com.android.aapt.Resources.XmlNode;
@@ -38,10 +39,15 @@ import com.android.tools.build.bundletool.model.ModuleEntry.ModuleEntryBundleLoc
 import com.android.tools.build.bundletool.model.exceptions.InvalidBundleException;
 import com.android.tools.build.bundletool.testing.AppBundleBuilder;
 import com.android.tools.build.bundletool.testing.BundleConfigBuilder;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.io.ByteSource;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Optional;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -447,6 +453,105 @@ public class AppBundleTest {
         .isEmpty();
   }
 
+  @Test
+  public void buildFromZipEntries() throws Exception {
+    ZipPath dexZipEntry = ZipPath.create("base/dex/classes.dex");
+    ZipPath dexModuleEntryPath = ZipPath.create("dex/classes.dex");
+
+    AppBundle appBundle =
+        AppBundle.buildFromZipEntries(
+            bundleFile,
+            ImmutableMap.of(
+                ZipPath.create("BundleConfig.pb"),
+                ByteSource.wrap(BUNDLE_CONFIG.toByteArray()),
+                ZipPath.create("base/manifest/AndroidManifest.xml"),
+                ByteSource.wrap(MANIFEST.toByteArray()),
+                dexZipEntry,
+                ByteSource.wrap(DUMMY_CONTENT)));
+
+    assertThat(appBundle.getBundleConfig()).isEqualTo(BUNDLE_CONFIG);
+    assertThat(appBundle.getFeatureModules().keySet())
+        .containsExactly(BundleModuleName.create("base"));
+    ModuleEntry dexEntry = appBundle.getBaseModule().getEntry(dexModuleEntryPath).get();
+    assertThat(dexEntry.getContent().read()).isEqualTo(DUMMY_CONTENT);
+    assertThat(dexEntry.getBundleLocation())
+        .hasValue(ModuleEntryBundleLocation.create(bundleFile, dexZipEntry));
+  }
+
+  @Test
+  public void buildFromZipEntries_bundleConfigMissing_throws() {
+    ImmutableMap<ZipPath, ByteSource> fileEntries =
+        ImmutableMap.of(
+            ZipPath.create("base/manifest/AndroidManifest.xml"),
+            ByteSource.wrap(MANIFEST.toByteArray()));
+
+    InvalidBundleException exception =
+        assertThrows(
+            InvalidBundleException.class,
+            () -> AppBundle.buildFromZipEntries(bundleFile, fileEntries));
+
+    assertThat(exception).hasMessageThat().contains("File 'BundleConfig.pb' was not found.");
+  }
+
+  @Test
+  public void buildFromZip_entriesWithSameNormalizedPath_throws() throws Exception {
+    try (ZipOutputStream zipOutputStream =
+        new ZipOutputStream(Files.newOutputStream(bundleFile))) {
+      putEntry(zipOutputStream, "BundleConfig.pb", BUNDLE_CONFIG.toByteArray());
+      putEntry(zipOutputStream, "base/manifest/AndroidManifest.xml", MANIFEST.toByteArray());
+      putEntry(zipOutputStream, "base/dex/classes.dex", DUMMY_CONTENT);
+      putEntry(zipOutputStream, "base//dex/classes.dex", DUMMY_CONTENT);
+    }
+
+    try (ZipFile appBundleZip = new ZipFile(bundleFile.toFile())) {
+      InvalidBundleException exception =
+          assertThrows(InvalidBundleException.class, () -> AppBundle.buildFromZip(appBundleZip));
+
+      assertThat(exception)
+          .hasMessageThat()
+          .contains(
+              "Found multiple entries with the same path 'base/dex/classes.dex' in the App"
+                  + " Bundle.");
+    }
+  }
+
+  @Test
+  public void indexFileEntries() {
+    ImmutableMap<ZipPath, ByteSource> fileEntries =
+        AppBundle.indexFileEntries(
+            Stream.of("BundleConfig.pb", "/base/dex/classes.dex"),
+            identity(),
+            name -> ByteSource.wrap(DUMMY_CONTENT));
+
+    assertThat(fileEntries.keySet())
+        .containsExactly(ZipPath.create("BundleConfig.pb"), ZipPath.create("base/dex/classes.dex"))
+        .inOrder();
+  }
+
+  @Test
+  public void indexFileEntries_entriesWithSameNormalizedPath_throws() {
+    InvalidBundleException exception =
+        assertThrows(
+            InvalidBundleException.class,
+            () ->
+                AppBundle.indexFileEntries(
+                    Stream.of("base/dex/classes.dex", "base/dex//classes.dex"),
+                    identity(),
+                    name -> ByteSource.wrap(DUMMY_CONTENT)));
+
+    assertThat(exception)
+        .hasMessageThat()
+        .contains(
+            "Found multiple entries with the same path 'base/dex/classes.dex' in the App Bundle.");
+  }
+
+  private static void putEntry(ZipOutputStream zipOutputStream, String name, byte[] content)
+      throws Exception {
+    zipOutputStream.putNextEntry(new ZipEntry(name));
+    zipOutputStream.write(content);
+    zipOutputStream.closeEntry();
+  }
+
   private static ZipBuilder createBasicZipBuilder(BundleConfig config) {
     ZipBuilder zipBuilder = new ZipBuilder();
     zipBuilder.addFileWithContent(ZipPath.create("BundleConfig.pb"), config.toByteArray());
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.model;
+
+import static com.android.tools.build.bundletool.testing.TestUtils.createModuleEntryForFile;
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.stream.Collectors.toList;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ModuleEntryPathIndexTest {
+
+  private static final byte[] DUMMY_CONTENT = new byte[0];
+
+  private static final ModuleEntry ASSET_B =
+      createModuleEntryForFile("assets/b.txt", DUMMY_CONTENT);
+  private static final ModuleEntry ASSET_A =
+      createModuleEntryForFile("assets/a.bc", DUMMY_CONTENT);
+  private static final ModuleEntry NESTED_ASSET =
+      createModuleEntryForFile("assets/dir/c.txt", DUMMY_CONTENT);
+  private static final ModuleEntry ASSETS_LONGER =
+      createModuleEntryForFile("assets2/d.txt", DUMMY_CONTENT);
+  private static final ModuleEntry DEX = createModuleEntryForFile("dex/classes.dex", DUMMY_CONTENT);
+  private static final ModuleEntry NO_EXTENSION =
+      createModuleEntryForFile("root/bc", DUMMY_CONTENT);
+
+  private static final ModuleEntryPathIndex INDEX =
+      ModuleEntryPathIndex.create(
+          ImmutableList.of(DEX, ASSET_B, ASSETS_LONGER, NESTED_ASSET, ASSET_A, NO_EXTENSION));
+
+  @Test
+  public void findEntriesUnderPath_directory_inOriginalOrder() {
+    assertThat(INDEX.findEntriesUnderPath(ZipPath.create("assets")).collect(toList()))
+        .containsExactly(ASSET_B, NESTED_ASSET, ASSET_A)
+        .inOrder();
+  }
+
+  @Test
+  public void findEntriesUnderPath_file() {
+    assertThat(INDEX.findEntriesUnderPath(ZipPath.create("dex/classes.dex")).collect(toList()))
+        .containsExactly(DEX);
+  }
+
+  @Test
+  public void findEntriesUnderPath_root_returnsAllEntries() {
+    assertThat(INDEX.findEntriesUnderPath(ZipPath.create("")).collect(toList()))
+        .containsExactly(DEX, ASSET_B, ASSETS_LONGER, NESTED_ASSET, ASSET_A, NO_EXTENSION)
+        .inOrder();
+  }
+
+  @Test
+  public void findEntriesUnderPath_noMatch() {
+    assertThat(INDEX.findEntriesUnderPath(ZipPath.create("lib")).collect(toList())).isEmpty();
+    assertThat(INDEX.findEntriesUnderPath(ZipPath.create("zzz")).collect(toList())).isEmpty();
+  }
+
+  @Test
+  public void findEntriesWithExtension() {
+    assertThat(INDEX.findEntriesWithExtension("txt").collect(toList()))
+        .containsExactly(ASSET_B, ASSETS_LONGER, NESTED_ASSET)
+        .inOrder();
+    assertThat(INDEX.findEntriesWithExtension("bc").collect(toList())).containsExactly(ASSET_A);
+    assertThat(INDEX.findEntriesWithExtension("so").collect(toList())).isEmpty();
+  }
+}
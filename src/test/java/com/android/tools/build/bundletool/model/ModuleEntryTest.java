@@ -18,7 +18,13 @@ package com.android.tools.build.bundletool.model;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import com.android.tools.build.bundletool.model.utils.Crc32Source;
+import com.google.common.hash.Hashing;
 import com.google.common.io.ByteSource;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.OptionalLong;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -82,7 +88,95 @@ public class ModuleEntryTest {
     assertThat(entry.equals(entry)).isTrue();
   }
 
+  @Test
+  public void equals_sameContentFromDifferentSources() throws Exception {
+    ModuleEntry entry1 = createEntry(ZipPath.create("a"), new byte[] {'a', 'b'});
+    ModuleEntry entry2 =
+        ModuleEntry.builder()
+            .setPath(ZipPath.create("a"))
+            .setContent(
+                ByteSource.concat(
+                    ByteSource.wrap(new byte[] {'a'}), ByteSource.wrap(new byte[] {'b'})))
+            .build();
+
+    assertThat(entry1.equals(entry2)).isTrue();
+    assertThat(entry1.hashCode()).isEqualTo(entry2.hashCode());
+  }
+
+  @Test
+  public void equals_differentCrc32_contentNotRead() throws Exception {
+    ModuleEntry entry1 =
+        ModuleEntry.builder()
+            .setPath(ZipPath.create("a"))
+            .setContent(new UnreadableByteSource(/* crc32= */ 1))
+            .build();
+    ModuleEntry entry2 =
+        ModuleEntry.builder()
+            .setPath(ZipPath.create("a"))
+            .setContent(new UnreadableByteSource(/* crc32= */ 2))
+            .build();
+
+    assertThat(entry1.equals(entry2)).isFalse();
+  }
+
+  @Test
+  public void hashCode_samePathDifferentContents_differ() throws Exception {
+    ModuleEntry entry1 = createEntry(ZipPath.create("a"), new byte[] {'a'});
+    ModuleEntry entry2 = createEntry(ZipPath.create("a"), new byte[] {'b'});
+
+    assertThat(entry1.hashCode()).isNotEqualTo(entry2.hashCode());
+  }
+
+  @Test
+  public void hashCodeAndEquals_contentReadOnce() throws Exception {
+    AtomicInteger readCount = new AtomicInteger();
+    ModuleEntry entry1 =
+        ModuleEntry.builder()
+            .setPath(ZipPath.create("a"))
+            .setContent(
+                new ByteSource() {
+                  @Override
+                  public InputStream openStream() {
+                    readCount.incrementAndGet();
+                    return new ByteArrayInputStream(new byte[] {'a'});
+                  }
+                })
+            .build();
+    ModuleEntry entry2 = createEntry(ZipPath.create("a"), new byte[] {'a'});
+
+    assertThat(entry1.hashCode()).isEqualTo(entry2.hashCode());
+    assertThat(entry1.hashCode()).isEqualTo(entry2.hashCode());
+    assertThat(entry1.equals(entry2)).isTrue();
+    assertThat(readCount.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void contentDigest_isSha256() throws Exception {
+    ModuleEntry entry = createEntry(ZipPath.create("a"), new byte[] {'a'});
+
+    assertThat(entry.getContentDigest()).isEqualTo(Hashing.sha256().hashBytes(new byte[] {'a'}));
+  }
+
   private static ModuleEntry createEntry(ZipPath path, byte[] content) throws Exception {
     return ModuleEntry.builder().setPath(path).setContent(ByteSource.wrap(content)).build();
   }
+
+  /** A {@link ByteSource} with a known CRC-32 which fails when read. */
+  private static class UnreadableByteSource extends ByteSource implements Crc32Source {
+    private final long crc32;
+
+    UnreadableByteSource(long crc32) {
+      this.crc32 = crc32;
+    }
+
+    @Override
+    public InputStream openStream() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public OptionalLong crc32IfKnown() {
+      return OptionalLong.of(crc32);
+    }
+  }
 }
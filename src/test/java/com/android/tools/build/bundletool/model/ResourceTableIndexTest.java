@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.model;
+
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.HDPI;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.MDPI;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.USER_PACKAGE_OFFSET;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.entry;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.fileReference;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.locale;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.pkg;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.resourceTable;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.type;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.value;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.aapt.Resources.ResourceTable;
+import java.util.BitSet;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ResourceTableIndexTest {
+
+  private static final ResourceTable TABLE =
+      resourceTable(
+          pkg(
+              USER_PACKAGE_OFFSET,
+              "com.test.app",
+              type(
+                  0x01,
+                  "drawable",
+                  entry(
+                      0x01,
+                      "image",
+                      fileReference("res/drawable-mdpi/image.jpg", MDPI),
+                      fileReference("res/drawable-hdpi/image.jpg", HDPI))),
+              type(
+                  0x02,
+                  "string",
+                  entry(0x01, "title", value("Title", locale("en")), value("Titre", locale("fr"))),
+                  entry(0x02, "label", value("Label", locale("en"))))));
+
+  @Test
+  public void indexesEntriesAndConfigValues() {
+    ResourceTableIndex index = ResourceTableIndex.create(TABLE);
+
+    assertThat(index.getEntryCount()).isEqualTo(3);
+    assertThat(index.getConfigValueCount()).isEqualTo(5);
+    assertThat(index.getEntry(1).getResourceId().getFullResourceId()).isEqualTo(0x7f020001);
+    assertThat(index.getFirstConfigValueIndex(1)).isEqualTo(2);
+    assertThat(index.getEndConfigValueIndex(1)).isEqualTo(4);
+    assertThat(index.getConfigurations()).containsExactly(MDPI, HDPI, locale("en"), locale("fr"));
+    assertThat(index.getConfigurationIndex(4)).isEqualTo(index.getConfigurationIndex(2));
+  }
+
+  @Test
+  public void filter_allConfigValues_returnsSameTable() {
+    ResourceTableIndex index = ResourceTableIndex.create(TABLE);
+
+    assertThat(index.filter(index.allConfigValues())).isEqualTo(TABLE);
+  }
+
+  @Test
+  public void filter_removesEmptyEntriesAndTypes() {
+    ResourceTableIndex index = ResourceTableIndex.create(TABLE);
+    BitSet selected = new BitSet();
+    selected.set(3);
+
+    assertThat(index.filter(selected))
+        .isEqualTo(
+            resourceTable(
+                pkg(
+                    USER_PACKAGE_OFFSET,
+                    "com.test.app",
+                    type(
+                        0x02,
+                        "string",
+                        entry(0x01, "title", value("Titre", locale("fr")))))));
+  }
+
+  @Test
+  public void filterKeepingEmptyTypes_keepsEmptyTypes() {
+    ResourceTableIndex index = ResourceTableIndex.create(TABLE);
+    BitSet selected = new BitSet();
+    selected.set(3);
+
+    assertThat(index.filterKeepingEmptyTypes(selected))
+        .isEqualTo(
+            resourceTable(
+                pkg(
+                    USER_PACKAGE_OFFSET,
+                    "com.test.app",
+                    type(0x01, "drawable"),
+                    type(
+                        0x02,
+                        "string",
+                        entry(0x01, "title", value("Titre", locale("fr")))))));
+  }
+}
@@ -38,7 +38,10 @@ import com.android.tools.build.bundletool.model.ZipPath;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.nio.file.Path;
+import java.util.concurrent.Executors;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -115,6 +118,38 @@ public class ApkSizeUtilsTest {
     assertThat(sizeByApkPaths.get("feature-x86.apk")).isAtLeast(1L);
   }
 
+  @Test
+  public void multipleModules_sameSizesOnExecutor() throws Exception {
+    ImmutableList<Variant> variants =
+        ImmutableList.of(
+            createVariant(
+                variantSdkTargeting(sdkVersionFrom(21)),
+                createSplitApkSet(
+                    "base",
+                    createMasterApkDescription(
+                        ApkTargeting.getDefaultInstance(), ZipPath.create("base.apk")),
+                    createApkDescription(
+                        apkAbiTargeting(X86), ZipPath.create("base-x86.apk"), false)),
+                createSplitApkSet(
+                    "feature",
+                    createMasterApkDescription(
+                        ApkTargeting.getDefaultInstance(), ZipPath.create("feature.apk")))));
+    Path apksArchiveFile =
+        createApksArchiveFile(
+            BuildApksResult.newBuilder().addAllVariant(variants).build(),
+            tmpDir.resolve("bundle.apks"));
+
+    ListeningExecutorService executorService =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(3));
+    try {
+      assertThat(getVariantCompressedSizeByApkPaths(variants, apksArchiveFile, executorService))
+          .containsExactlyEntriesIn(getVariantCompressedSizeByApkPaths(variants, apksArchiveFile))
+          .inOrder();
+    } finally {
+      executorService.shutdown();
+    }
+  }
+
   @Test
   public void multipleVariants() throws Exception {
     ZipPath apkOne = ZipPath.create("apk_one.apk");
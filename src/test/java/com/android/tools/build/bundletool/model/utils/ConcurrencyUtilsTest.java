@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.model.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.collect.ImmutableList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ConcurrencyUtilsTest {
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void runAllInOrder_resultsInOrderOfTasks() {
+    ImmutableList<Callable<Integer>> tasks =
+        ImmutableList.of(
+            () -> {
+              Thread.sleep(50);
+              return 1;
+            },
+            () -> 2,
+            () -> 3);
+
+    assertThat(ConcurrencyUtils.runAllInOrder(tasks, executor)).containsExactly(1, 2, 3).inOrder();
+  }
+
+  @Test
+  public void runAllInOrder_nestedOnSameExecutor_completes() {
+    ImmutableList<Callable<ImmutableList<String>>> tasks =
+        ImmutableList.of(
+            () ->
+                ConcurrencyUtils.runAllInOrder(
+                    ImmutableList.<Callable<String>>of(() -> "a", () -> "b"), executor),
+            () ->
+                ConcurrencyUtils.runAllInOrder(
+                    ImmutableList.<Callable<String>>of(() -> "c"), executor));
+
+    assertThat(ConcurrencyUtils.runAllInOrder(tasks, executor))
+        .containsExactly(ImmutableList.of("a", "b"), ImmutableList.of("c"))
+        .inOrder();
+  }
+
+  @Test
+  public void runAllInOrder_taskFails_exceptionRethrown() {
+    ImmutableList<Callable<Integer>> tasks =
+        ImmutableList.of(
+            () -> 1,
+            () -> {
+              throw new IllegalArgumentException("Failed task.");
+            });
+
+    IllegalArgumentException e =
+        assertThrows(
+            IllegalArgumentException.class, () -> ConcurrencyUtils.runAllInOrder(tasks, executor));
+    assertThat(e).hasMessageThat().isEqualTo("Failed task.");
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.model.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Optional;
+import com.google.common.io.ByteSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.OptionalLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class GZipSizeCacheTest {
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void sameContent_calculatedOnce() throws Exception {
+    GZipSizeCache cache = GZipSizeCache.inMemory();
+    CountingCalculator calculator = new CountingCalculator();
+
+    long firstSize =
+        cache.getGzipCompressedSize(
+            new ZipEntryLikeSource("hello"), Deflater.DEFAULT_COMPRESSION, calculator);
+    long secondSize =
+        cache.getGzipCompressedSize(
+            new ZipEntryLikeSource("hello"), Deflater.DEFAULT_COMPRESSION, calculator);
+
+    assertThat(calculator.invocations).isEqualTo(1);
+    assertThat(secondSize).isEqualTo(firstSize);
+  }
+
+  @Test
+  public void differentContentOrLevel_calculatedSeparately() throws Exception {
+    GZipSizeCache cache = GZipSizeCache.inMemory();
+    CountingCalculator calculator = new CountingCalculator();
+
+    cache.getGzipCompressedSize(
+        new ZipEntryLikeSource("hello"), Deflater.DEFAULT_COMPRESSION, calculator);
+    cache.getGzipCompressedSize(
+        new ZipEntryLikeSource("world"), Deflater.DEFAULT_COMPRESSION, calculator);
+    cache.getGzipCompressedSize(
+        new ZipEntryLikeSource("hello"), Deflater.BEST_COMPRESSION, calculator);
+
+    assertThat(calculator.invocations).isEqualTo(3);
+  }
+
+  @Test
+  public void contentWithoutKnownCrc_neverCached() throws Exception {
+    GZipSizeCache cache = GZipSizeCache.inMemory();
+    CountingCalculator calculator = new CountingCalculator();
+    ByteSource content = ByteSource.wrap("hello".getBytes(UTF_8));
+
+    cache.getGzipCompressedSize(content, Deflater.DEFAULT_COMPRESSION, calculator);
+    cache.getGzipCompressedSize(content, Deflater.DEFAULT_COMPRESSION, calculator);
+
+    assertThat(calculator.invocations).isEqualTo(2);
+  }
+
+  @Test
+  public void savedAndLoaded() throws Exception {
+    Path cacheFile = tmp.getRoot().toPath().resolve("sizes").resolve("cache.txt");
+    GZipSizeCache firstCache = GZipSizeCache.loadFrom(cacheFile);
+    long size =
+        firstCache.getGzipCompressedSize(
+            new ZipEntryLikeSource("hello"),
+            Deflater.DEFAULT_COMPRESSION,
+            new CountingCalculator());
+    firstCache.save();
+
+    CountingCalculator calculator = new CountingCalculator();
+    long loadedSize =
+        GZipSizeCache.loadFrom(cacheFile)
+            .getGzipCompressedSize(
+                new ZipEntryLikeSource("hello"), Deflater.DEFAULT_COMPRESSION, calculator);
+
+    assertThat(calculator.invocations).isEqualTo(0);
+    assertThat(loadedSize).isEqualTo(size);
+  }
+
+  @Test
+  public void corruptedFile_ignored() throws Exception {
+    Path cacheFile = tmp.newFile("cache.txt").toPath();
+    Files.write(cacheFile, "not a cache".getBytes(UTF_8));
+    CountingCalculator calculator = new CountingCalculator();
+
+    GZipSizeCache.loadFrom(cacheFile)
+        .getGzipCompressedSize(
+            new ZipEntryLikeSource("hello"), Deflater.DEFAULT_COMPRESSION, calculator);
+
+    assertThat(calculator.invocations).isEqualTo(1);
+  }
+
+  /** Calculates the size with {@link GZipUtils}, counting the invocations. */
+  private static class CountingCalculator implements GZipSizeCache.GZipSizeCalculator {
+    private int invocations = 0;
+
+    @Override
+    public long calculate(ByteSource content) throws IOException {
+      invocations++;
+      return GZipUtils.calculateGzipCompressedSize(content);
+    }
+  }
+
+  /** A content whose size and CRC-32 are known upfront, like a zip entry. */
+  private static class ZipEntryLikeSource extends ByteSource implements Crc32Source {
+    private final byte[] content;
+
+    ZipEntryLikeSource(String content) {
+      this.content = content.getBytes(UTF_8);
+    }
+
+    @Override
+    public InputStream openStream() throws IOException {
+      return ByteSource.wrap(content).openStream();
+    }
+
+    @Override
+    public Optional<Long> sizeIfKnown() {
+      return Optional.of((long) content.length);
+    }
+
+    @Override
+    public OptionalLong crc32IfKnown() {
+      CRC32 crc32 = new CRC32();
+      crc32.update(content);
+      return OptionalLong.of(crc32.getValue());
+    }
+  }
+}
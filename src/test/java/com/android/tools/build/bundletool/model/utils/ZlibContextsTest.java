@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.model.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.android.tools.build.bundletool.model.utils.ZlibContexts.PooledDeflater;
+import com.android.tools.build.bundletool.model.utils.ZlibContexts.PooledInflater;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ZlibContextsTest {
+
+  private static final byte[] CONTENT = Strings.repeat("Hello world! ", 1000).getBytes(UTF_8);
+
+  @Test
+  public void deflaterAndInflaterStreams_roundTrip() throws Exception {
+    byte[] compressed;
+    try (InputStream in =
+        ZlibContexts.deflaterInputStream(
+            new ByteArrayInputStream(CONTENT), Deflater.BEST_COMPRESSION, /* nowrap= */ true)) {
+      compressed = ByteStreams.toByteArray(in);
+    }
+
+    byte[] uncompressed;
+    try (InputStream in =
+        ZlibContexts.inflaterInputStream(
+            new ByteArrayInputStream(compressed), /* nowrap= */ true)) {
+      uncompressed = ByteStreams.toByteArray(in);
+    }
+
+    assertThat(compressed.length).isLessThan(CONTENT.length);
+    assertThat(uncompressed).isEqualTo(CONTENT);
+  }
+
+  @Test
+  public void deflaterOutputStream_sameOutputAsNewDeflater() throws Exception {
+    ByteArrayOutputStream pooledOutput = new ByteArrayOutputStream();
+    for (int i = 0; i < 3; i++) {
+      pooledOutput.reset();
+      try (OutputStream out =
+          ZlibContexts.deflaterOutputStream(
+              pooledOutput, Deflater.DEFAULT_COMPRESSION, /* nowrap= */ true)) {
+        out.write(CONTENT);
+      }
+    }
+
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, /* nowrap= */ true);
+    deflater.setInput(CONTENT);
+    deflater.finish();
+    ByteArrayOutputStream expectedOutput = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    while (!deflater.finished()) {
+      expectedOutput.write(buffer, 0, deflater.deflate(buffer));
+    }
+    deflater.end();
+
+    assertThat(pooledOutput.toByteArray()).isEqualTo(expectedOutput.toByteArray());
+  }
+
+  @Test
+  public void releasedDeflater_reusedForSameLevel() {
+    Deflater released;
+    try (PooledDeflater deflater =
+        ZlibContexts.acquireDeflater(Deflater.BEST_SPEED, /* nowrap= */ true)) {
+      released = deflater.get();
+    }
+
+    try (PooledDeflater sameLevel =
+            ZlibContexts.acquireDeflater(Deflater.BEST_SPEED, /* nowrap= */ true);
+        PooledDeflater otherLevel =
+            ZlibContexts.acquireDeflater(Deflater.BEST_COMPRESSION, /* nowrap= */ true)) {
+      assertThat(sameLevel.get()).isSameInstanceAs(released);
+      assertThat(otherLevel.get()).isNotSameInstanceAs(released);
+    }
+  }
+
+  @Test
+  public void releasedInflater_reusedForSameNowrap() {
+    Inflater released;
+    try (PooledInflater inflater = ZlibContexts.acquireInflater(/* nowrap= */ false)) {
+      released = inflater.get();
+    }
+
+    try (PooledInflater sameNowrap = ZlibContexts.acquireInflater(/* nowrap= */ false);
+        PooledInflater otherNowrap = ZlibContexts.acquireInflater(/* nowrap= */ true)) {
+      assertThat(sameNowrap.get()).isSameInstanceAs(released);
+      assertThat(otherNowrap.get()).isNotSameInstanceAs(released);
+    }
+  }
+
+  @Test
+  public void useAfterRelease_throws() {
+    PooledDeflater deflater = ZlibContexts.acquireDeflater(Deflater.BEST_SPEED, /* nowrap= */ true);
+    deflater.close();
+
+    assertThrows(IllegalStateException.class, deflater::get);
+  }
+
+  @Test
+  public void invalidLevel_throws() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> ZlibContexts.acquireDeflater(/* level= */ 12, /* nowrap= */ true));
+  }
+}
@@ -63,6 +63,7 @@ import static com.google.common.collect.ImmutableSet.toImmutableSet;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth8.assertThat;
 import static com.google.common.truth.extensions.proto.ProtoTruth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.fail;
 
 import com.android.aapt.ConfigurationOuterClass.Configuration;
@@ -84,13 +85,19 @@ import com.android.bundle.Targeting.TextureCompressionFormat.TextureCompressionF
 import com.android.bundle.Targeting.VariantTargeting;
 import com.android.tools.build.bundletool.commands.BuildApksModule;
 import com.android.tools.build.bundletool.commands.CommandScoped;
+import com.android.tools.build.bundletool.io.TempDirectory;
+import com.android.tools.build.bundletool.mergers.DexMerger;
+import com.android.tools.build.bundletool.mergers.ModuleSplitsToShardMerger;
+import com.android.tools.build.bundletool.model.AppBundle;
 import com.android.tools.build.bundletool.model.BundleMetadata;
 import com.android.tools.build.bundletool.model.BundleModule;
 import com.android.tools.build.bundletool.model.ModuleSplit;
 import com.android.tools.build.bundletool.model.ModuleSplit.SplitType;
 import com.android.tools.build.bundletool.model.OptimizationDimension;
 import com.android.tools.build.bundletool.model.utils.xmlproto.XmlProtoElement;
+import com.android.tools.build.bundletool.model.version.BundleToolVersion;
 import com.android.tools.build.bundletool.optimizations.ApkOptimizations;
+import com.android.tools.build.bundletool.testing.AppBundleBuilder;
 import com.android.tools.build.bundletool.testing.BundleModuleBuilder;
 import com.android.tools.build.bundletool.testing.ResourceTableBuilder;
 import com.android.tools.build.bundletool.testing.TestModule;
@@ -100,8 +107,16 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.io.ByteSource;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.Message;
 import dagger.Component;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.inject.Inject;
 import org.junit.Before;
 import org.junit.Test;
@@ -169,6 +184,9 @@ public class StandaloneApksGeneratorTest {
                           .setDexMergingStrategy(DexMergingStrategy.NEVER_MERGE)));
 
   @Inject StandaloneApksGenerator standaloneApksGenerator;
+  @Inject ModuleSplitterForShards moduleSplitter;
+  @Inject Sharder sharder;
+  @Inject TempDirectory tempDirectory;
 
   @Before
   public void setUp() {
@@ -1533,6 +1551,95 @@ public class StandaloneApksGeneratorTest {
         .containsExactly("assets/file.txt", "dex/classes.dex", "root/license.dat");
   }
 
+  @Test
+  public void manyShards_mergedInParallel_dexMergedOnceAndShardsInDeterministicOrder()
+      throws Exception {
+    BundleModule baseModule =
+        new BundleModuleBuilder("base")
+            .addFile("dex/classes.dex", "base dex".getBytes(UTF_8))
+            .addFile("lib/armeabi/libtest.so")
+            .addFile("lib/x86/libtest.so")
+            .addFile("lib/x86_64/libtest.so")
+            .setManifest(androidManifest("com.test.app"))
+            .setNativeConfig(
+                nativeLibraries(
+                    targetedNativeDirectory("lib/armeabi", nativeDirectoryTargeting(ARMEABI)),
+                    targetedNativeDirectory("lib/x86", nativeDirectoryTargeting(X86)),
+                    targetedNativeDirectory("lib/x86_64", nativeDirectoryTargeting(X86_64))))
+            .build();
+    BundleModule featureModule =
+        new BundleModuleBuilder("feature")
+            .addFile("dex/classes.dex", "feature dex".getBytes(UTF_8))
+            .setManifest(androidManifest("com.test.app"))
+            .build();
+    // Dex files are merged because the app has feature modules and supports pre-L devices.
+    AtomicInteger dexMergeCount = new AtomicInteger();
+    DexMerger countingDexMerger =
+        (dexFiles, outputDir, mainDexListFile, proguardMap, isDebuggable, minSdkVersion) -> {
+          dexMergeCount.incrementAndGet();
+          try {
+            return ImmutableList.of(Files.copy(dexFiles.get(0), outputDir.resolve("classes.dex")));
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        };
+    AppBundle appBundle =
+        new AppBundleBuilder().addModule(baseModule).addModule(featureModule).build();
+    ModuleSplitsToShardMerger shardsMerger =
+        new ModuleSplitsToShardMerger(
+            BundleToolVersion.getCurrentVersion(), tempDirectory, countingDexMerger, appBundle);
+    ImmutableList<BundleModule> modules = ImmutableList.of(baseModule, featureModule);
+    ApkOptimizations apkOptimizations = standaloneApkOptimizations(OptimizationDimension.ABI);
+    ListeningExecutorService executorService =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(3));
+
+    ImmutableList<ModuleSplit> shards;
+    try {
+      shards =
+          new StandaloneApksGenerator(
+                  /* stampSource= */ Optional.empty(),
+                  moduleSplitter,
+                  sharder,
+                  shardsMerger,
+                  appBundle,
+                  executorService)
+              .generateStandaloneApks(modules, apkOptimizations);
+    } finally {
+      executorService.shutdown();
+    }
+    assertThat(dexMergeCount.get()).isEqualTo(1);
+
+    ImmutableList<ModuleSplit> shardsMergedSequentially =
+        new StandaloneApksGenerator(
+                /* stampSource= */ Optional.empty(),
+                moduleSplitter,
+                sharder,
+                shardsMerger,
+                appBundle,
+                MoreExecutors.newDirectExecutorService())
+            .generateStandaloneApks(modules, apkOptimizations);
+
+    assertThat(shards.stream().map(ModuleSplit::getApkTargeting).collect(toImmutableList()))
+        .containsExactlyElementsIn(
+            shardsMergedSequentially.stream()
+                .map(ModuleSplit::getApkTargeting)
+                .collect(toImmutableList()))
+        .inOrder();
+    assertThat(shards.stream().map(ModuleSplit::getApkTargeting).collect(toImmutableSet()))
+        .containsExactly(
+            apkAbiTargeting(ARMEABI, ImmutableSet.of(X86, X86_64)),
+            apkAbiTargeting(X86, ImmutableSet.of(ARMEABI, X86_64)),
+            apkAbiTargeting(X86_64, ImmutableSet.of(ARMEABI, X86)));
+    for (ModuleSplit shard : shards) {
+      // The dex files of both modules are merged into a single one.
+      assertThat(
+              extractPaths(shard.getEntries()).stream()
+                  .filter(path -> path.startsWith("dex/"))
+                  .collect(toImmutableList()))
+          .containsExactly("dex/classes.dex");
+    }
+  }
+
   private static ApkOptimizations standaloneApkOptimizations(OptimizationDimension... dimensions) {
     return ApkOptimizations.builder()
         .setSplitDimensions(ImmutableSet.of())
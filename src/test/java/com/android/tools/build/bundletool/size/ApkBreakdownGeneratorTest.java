@@ -25,13 +25,17 @@ import com.android.bundle.SizesOuterClass.Sizes;
 import com.android.tools.build.bundletool.io.ZipBuilder;
 import com.android.tools.build.bundletool.io.ZipBuilder.EntryOption;
 import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.tools.build.bundletool.model.utils.GZipSizeCache;
 import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
 import com.google.common.io.ByteStreams;
 import com.google.common.primitives.Bytes;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
 import java.util.zip.Deflater;
 import java.util.zip.GZIPOutputStream;
 import java.util.zip.ZipEntry;
@@ -273,6 +277,115 @@ public class ApkBreakdownGeneratorTest {
                 .build());
   }
 
+  @Test
+  public void computesBreakdown_withGZipSizeCache_withinErrorBoundOfExactBreakdown()
+      throws Exception {
+    Random random = new Random(0);
+    byte[] duplicatedAsset = randomText(random, 20_000);
+    byte[] nativeLib = new byte[10_000];
+    random.nextBytes(nativeLib);
+    ZipEntryInfo[] entries = {
+      ZipEntryInfo.builder()
+          .setName("AndroidManifest.xml")
+          .setContent("<manifest/>".getBytes(UTF_8))
+          .setCompress(true)
+          .build(),
+      ZipEntryInfo.builder()
+          .setName("classes.dex")
+          .setContent(randomText(random, 100_000))
+          .setCompress(true)
+          .build(),
+      // Identical entries within 32 KiB of each other are the worst case of the approximation.
+      ZipEntryInfo.builder()
+          .setName("assets/first.txt")
+          .setContent(duplicatedAsset)
+          .setCompress(true)
+          .build(),
+      ZipEntryInfo.builder()
+          .setName("assets/second.txt")
+          .setContent(duplicatedAsset)
+          .setCompress(true)
+          .build(),
+      ZipEntryInfo.builder()
+          .setName("lib/x86/libnative.so")
+          .setContent(nativeLib)
+          .setCompress(false)
+          .build(),
+      ZipEntryInfo.builder()
+          .setName("resources.arsc")
+          .setContent(randomText(random, 3_000))
+          .setCompress(false)
+          .build(),
+      ZipEntryInfo.builder()
+          .setName("res/raw/data.txt")
+          .setContent(randomText(random, 5_000))
+          .setCompress(true)
+          .build()
+    };
+    Path archive = createZipArchiveWith(entries);
+
+    Breakdown exactBreakdown = apkBreakdownGenerator.calculateBreakdown(archive);
+    Breakdown cachedBreakdown =
+        new ApkBreakdownGenerator(GZipSizeCache.inMemory()).calculateBreakdown(archive);
+
+    assertThat(cachedBreakdown.getTotal()).isEqualTo(exactBreakdown.getTotal());
+    assertWithinErrorBound(
+        cachedBreakdown.getDex(), exactBreakdown.getDex(), errorBound(ApkComponent.DEX, entries));
+    assertWithinErrorBound(
+        cachedBreakdown.getAssets(),
+        exactBreakdown.getAssets(),
+        errorBound(ApkComponent.ASSETS, entries));
+    assertWithinErrorBound(
+        cachedBreakdown.getNativeLibs(),
+        exactBreakdown.getNativeLibs(),
+        errorBound(ApkComponent.NATIVE_LIBS, entries));
+    assertWithinErrorBound(
+        cachedBreakdown.getResources(),
+        exactBreakdown.getResources(),
+        errorBound(ApkComponent.RESOURCES, entries));
+    // The other component absorbs the difference between the total and the other components.
+    long totalErrorBound = 0;
+    for (ZipEntryInfo entry : entries) {
+      totalErrorBound += gzipSizeOfFirst32KiB(entry.getContent());
+    }
+    assertWithinErrorBound(cachedBreakdown.getOther(), exactBreakdown.getOther(), totalErrorBound);
+  }
+
+  @Test
+  public void computesBreakdown_withGZipSizeCache_sizesPersistedPerDistinctEntry()
+      throws Exception {
+    byte[] resource = "I am a resource in an apk file".getBytes(UTF_8);
+    Path archive =
+        createZipArchiveWith(
+            ZipEntryInfo.builder()
+                .setName("classes.dex")
+                .setContent("I am a dex file".getBytes(UTF_8))
+                .setCompress(true)
+                .build(),
+            ZipEntryInfo.builder()
+                .setName("res/raw/first.txt")
+                .setContent(resource)
+                .setCompress(true)
+                .build(),
+            ZipEntryInfo.builder()
+                .setName("res/raw/second.txt")
+                .setContent(resource)
+                .setCompress(true)
+                .build());
+    Path cacheFile = tmpDir.resolve("gzip-sizes");
+    GZipSizeCache gzipSizeCache = GZipSizeCache.loadFrom(cacheFile);
+
+    Breakdown breakdown = new ApkBreakdownGenerator(gzipSizeCache).calculateBreakdown(archive);
+    gzipSizeCache.save();
+
+    // Header, then one line per distinct content.
+    assertThat(Files.readAllLines(cacheFile, UTF_8)).hasSize(3);
+    assertThat(
+            new ApkBreakdownGenerator(GZipSizeCache.loadFrom(cacheFile))
+                .calculateBreakdown(archive))
+        .isEqualTo(breakdown);
+  }
+
   @Test
   public void checkDeflaterSyncOverheadCorrect() throws Exception {
     Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, /* noWrap */ true);
@@ -281,6 +394,41 @@ public class ApkBreakdownGeneratorTest {
         .isEqualTo(ApkCompressedSizeCalculator.DEFLATER_SYNC_OVERHEAD_BYTES);
   }
 
+  private static void assertWithinErrorBound(Sizes actual, Sizes exact, long errorBound) {
+    assertThat(actual.getDiskSize()).isEqualTo(exact.getDiskSize());
+    assertThat(Math.abs(actual.getDownloadSize() - exact.getDownloadSize()))
+        .isAtMost(errorBound);
+  }
+
+  /**
+   * Returns the error bound of the download size of the component, as documented by {@link
+   * ApkBreakdownGenerator#ApkBreakdownGenerator(GZipSizeCache)}.
+   */
+  private static long errorBound(ApkComponent component, ZipEntryInfo... entries)
+      throws Exception {
+    long errorBound = 0;
+    for (ZipEntryInfo entry : entries) {
+      if (ApkComponent.fromEntryName(entry.getName()).equals(component)) {
+        errorBound += gzipSizeOfFirst32KiB(entry.getContent());
+      }
+    }
+    return errorBound;
+  }
+
+  private static long gzipSizeOfFirst32KiB(byte[] content) throws Exception {
+    return gzipOverArchive(Arrays.copyOf(content, Math.min(content.length, 32 * 1024))).length;
+  }
+
+  private static byte[] randomText(Random random, int length) {
+    ImmutableList<String> words =
+        ImmutableList.of("android", "class", "field", "method", "return", "string", "view");
+    StringBuilder text = new StringBuilder();
+    while (text.length() < length) {
+      text.append(words.get(random.nextInt(words.size()))).append(random.nextInt(100)).append(' ');
+    }
+    return Arrays.copyOf(text.toString().getBytes(UTF_8), length);
+  }
+
   private static byte[] gzipOverArchive(byte[] archive) throws Exception {
     ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
     try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream)) {
@@ -20,6 +20,9 @@ import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.andr
 import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.withSplitId;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth8.assertThat;
+import static com.google.common.util.concurrent.Uninterruptibles.sleepUninterruptibly;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.atLeastOnce;
@@ -35,9 +38,15 @@ import com.android.tools.build.bundletool.io.ZipBuilder;
 import com.android.tools.build.bundletool.model.AppBundle;
 import com.android.tools.build.bundletool.model.BundleModule;
 import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.tools.build.bundletool.model.exceptions.InvalidBundleException;
 import com.android.tools.build.bundletool.testing.BundleConfigBuilder;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import org.junit.Before;
@@ -178,6 +187,135 @@ public class ValidatorRunnerTest {
     }
   }
 
+  @Test
+  public void validateBundle_parallel_invokesAllSubValidators() throws Exception {
+    AppBundle bundle = buildTwoModulesBundle();
+    ListeningExecutorService executorService =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(2));
+    try {
+      new ValidatorRunner(ImmutableList.of(validator, validator2), executorService)
+          .validateBundle(bundle);
+    } finally {
+      executorService.shutdown();
+    }
+
+    for (SubValidator subValidator : ImmutableList.of(validator, validator2)) {
+      verify(subValidator).validateBundle(eq(bundle));
+      verify(subValidator).validateAllModules(any());
+      verify(subValidator, times(2)).validateModule(any());
+      verify(subValidator, times(2)).validateModuleFile(any());
+    }
+  }
+
+  @Test
+  public void validateBundle_parallel_throwsErrorOfFirstFailingSubValidator() throws Exception {
+    AppBundle bundle = buildTwoModulesBundle();
+    SubValidator slowFailingValidator =
+        new SubValidator() {
+          @Override
+          public void validateBundle(AppBundle bundle) {
+            sleepUninterruptibly(100, MILLISECONDS);
+            throw InvalidBundleException.builder().withUserMessage("first").build();
+          }
+        };
+    SubValidator failingValidator =
+        new SubValidator() {
+          @Override
+          public void validateBundle(AppBundle bundle) {
+            throw InvalidBundleException.builder().withUserMessage("second").build();
+          }
+        };
+    ListeningExecutorService executorService =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(2));
+    try {
+      InvalidBundleException exception =
+          assertThrows(
+              InvalidBundleException.class,
+              () ->
+                  new ValidatorRunner(
+                          ImmutableList.of(slowFailingValidator, failingValidator),
+                          executorService)
+                      .validateBundle(bundle));
+
+      assertThat(exception).hasMessageThat().isEqualTo("first");
+    } finally {
+      executorService.shutdown();
+    }
+  }
+
+  @Test
+  public void validateBundleZipFile_parallel_throwsErrorOfFirstInvalidEntry() throws Exception {
+    Path bundlePath =
+        new ZipBuilder()
+            .addFileWithContent(ZipPath.create("a.txt"), DUMMY_CONTENT)
+            .addFileWithContent(ZipPath.create("b.txt"), DUMMY_CONTENT)
+            .writeTo(tempFolder.resolve("bundle.aab"));
+    SubValidator failingOnSecondEntryValidator = new FailingZipEntryValidator("b.txt", "first");
+    SubValidator failingOnFirstEntryValidator = new FailingZipEntryValidator("a.txt", "second");
+    SubValidator alsoFailingOnFirstEntryValidator = new FailingZipEntryValidator("a.txt", "third");
+    ListeningExecutorService executorService =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(3));
+    try (ZipFile bundleZip = new ZipFile(bundlePath.toFile())) {
+      ImmutableList<SubValidator> subValidators =
+          ImmutableList.of(
+              failingOnSecondEntryValidator,
+              failingOnFirstEntryValidator,
+              alsoFailingOnFirstEntryValidator);
+
+      InvalidBundleException sequentialException =
+          assertThrows(
+              InvalidBundleException.class,
+              () -> new ValidatorRunner(subValidators).validateBundleZipFile(bundleZip));
+      InvalidBundleException parallelException =
+          assertThrows(
+              InvalidBundleException.class,
+              () ->
+                  new ValidatorRunner(subValidators, executorService)
+                      .validateBundleZipFile(bundleZip));
+
+      assertThat(sequentialException).hasMessageThat().isEqualTo("second");
+      assertThat(parallelException).hasMessageThat().isEqualTo("second");
+    } finally {
+      executorService.shutdown();
+    }
+  }
+
+  @Test
+  public void validateBundle_moduleFilesPassedToOverridingSubValidator() throws Exception {
+    AppBundle bundle = buildTwoModulesBundle();
+    List<String> validatedFiles = new ArrayList<>();
+    SubValidator moduleFileValidator =
+        new SubValidator() {
+          @Override
+          public void validateModuleFile(ZipPath file) {
+            validatedFiles.add(file.toString());
+          }
+        };
+
+    new ValidatorRunner(ImmutableList.of(new SubValidator() {}, moduleFileValidator))
+        .validateBundle(bundle);
+
+    assertThat(validatedFiles).containsExactly("assets/file.txt", "assets/file.txt");
+  }
+
+  private AppBundle buildTwoModulesBundle() throws Exception {
+    Path bundlePath =
+        new ZipBuilder()
+            .addFileWithContent(ZipPath.create("BundleConfig.pb"), BUNDLE_CONFIG.toByteArray())
+            .addFileWithProtoContent(
+                ZipPath.create("moduleX/manifest/AndroidManifest.xml"),
+                androidManifest("com.test.app", withSplitId("moduleX")))
+            .addFileWithContent(ZipPath.create("moduleX/assets/file.txt"), DUMMY_CONTENT)
+            .addFileWithProtoContent(
+                ZipPath.create("moduleY/manifest/AndroidManifest.xml"),
+                androidManifest("com.test.app", withSplitId("moduleY")))
+            .addFileWithContent(ZipPath.create("moduleY/assets/file.txt"), DUMMY_CONTENT)
+            .writeTo(tempFolder.resolve("bundle.aab"));
+    try (ZipFile bundleZip = new ZipFile(bundlePath.toFile())) {
+      return AppBundle.buildFromZip(bundleZip);
+    }
+  }
+
   @Test
   public void validateModuleZipFile_invokesRightSubValidatorMethods() throws Exception {
     Path modulePath =
@@ -193,4 +331,22 @@ public class ValidatorRunnerTest {
       verifyNoMoreInteractions(validator);
     }
   }
+
+  /** Fails when validating the zip entry with the given name. */
+  private static class FailingZipEntryValidator extends SubValidator {
+    private final String invalidEntryName;
+    private final String message;
+
+    FailingZipEntryValidator(String invalidEntryName, String message) {
+      this.invalidEntryName = invalidEntryName;
+      this.message = message;
+    }
+
+    @Override
+    public void validateBundleZipEntry(ZipFile bundleFile, ZipEntry zipEntry) {
+      if (zipEntry.getName().equals(invalidEntryName)) {
+        throw InvalidBundleException.builder().withUserMessage(message).build();
+      }
+    }
+  }
 }